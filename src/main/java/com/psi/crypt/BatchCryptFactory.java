@@ -0,0 +1,26 @@
+package com.psi.crypt;
+
+/**
+ * Selects the fastest batch implementation available on this platform. This
+ * class is replaced in the multi-release JAR for Java 17 and later, where a
+ * Vector API implementation may be chosen instead.
+ *
+ * @author John Glynn
+ */
+final class BatchCryptFactory {
+
+    /**
+     * BatchCryptFactory is not meant to be instantiated.
+     */
+    private BatchCryptFactory() {
+    }
+
+    /**
+     * Create a new batch implementation.
+     *
+     * @return The bitsliced 64 lane implementation.
+     */
+    static BatchCryptImplementation newImplementation() {
+        return new BitsliceCryptImplementation();
+    }
+}
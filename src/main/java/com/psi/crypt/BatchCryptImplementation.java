@@ -0,0 +1,53 @@
+package com.psi.crypt;
+
+/**
+ * Base class of the crypt(3C) implementations which hash a batch of
+ * passwords, each with its own salt, in one call to encrypt().
+ *
+ * @author John Glynn
+ */
+abstract class BatchCryptImplementation {
+
+    /**
+     * Accessor method to get the number of passwords hashed at once.
+     *
+     * @return The number of lanes.
+     */
+    abstract int lanes();
+
+    /**
+     * Load the keys and salts of the lanes. Lanes beyond count are hashed with
+     * an empty key and salt.
+     *
+     * @param keyBytes The password bytes of each lane. At most the first eight
+     * bytes of each password are used.
+     * @param salts The salt of each lane as two bytes in crypt(3C)-base64
+     * binary form.
+     * @param offset The index of the first password and salt to load.
+     * @param count The number of lanes to load, at most lanes().
+     */
+    abstract void setup(byte[][] keyBytes, byte[][] salts, int offset,
+            int count);
+
+    /**
+     * Perform 25 DES encryptions on all lanes.
+     */
+    abstract void encrypt();
+
+    /**
+     * Accessor method to get the DES result of a lane.
+     *
+     * @param lane The lane number.
+     * @return The 64 bit result, the first output bit in the most significant
+     * position.
+     */
+    abstract long getResult(int lane);
+
+    /**
+     * Accessor method to get the result string of a lane.
+     *
+     * @param lane The lane number.
+     * @return String made up of the base64 encoded characters.
+     */
+    abstract String getCrypt3Buffer(int lane);
+}
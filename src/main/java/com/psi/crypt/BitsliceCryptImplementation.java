@@ -0,0 +1,757 @@
+package com.psi.crypt;
+
+/**
+ * Bitsliced implementation of crypt(3C) which hashes up to 64 passwords at
+ * once. Every intermediate DES bit is held in a long whose bit i belongs to
+ * lane i, so the permutations become plain array indexing and the sboxes are
+ * evaluated as boolean circuits on all lanes together. Each lane has its own
+ * key and its own salt; the salt is applied as a per lane swap of the E
+ * expansion bits.
+ *
+ * The sbox circuits were derived mechanically from the sbox tables in
+ * CryptTables by Shannon decomposition.
+ *
+ * @author John Glynn
+ */
+final class BitsliceCryptImplementation extends BatchCryptImplementation {
+
+    /**
+     * The number of passwords hashed by one call to encrypt().
+     */
+    static final int LANES = 64;
+
+    /**
+     * The DES key bit used by each of the 48 subkey bits of the 16 rounds.
+     */
+    private static final int[] keybit = new int[16 * 48];
+
+    /**
+     * The bit of the 32 bit half selected by each of the 48 E expansion bits.
+     */
+    private static final int[] ebit = new int[48];
+
+    /**
+     * The position in the round function output of each sbox output bit, i.e.
+     * the inverse of perm32.
+     */
+    private static final int[] pbit = new int[32];
+
+    static {
+        /*
+         * Follow the key bits through pc1, the rotations and pc2
+         */
+        int[] cd = new int[56];
+        for (int i = 0; i < 56; ++i) {
+            cd[i] = CryptTables.pc1[i] - 1;
+        }
+        for (int round = 0; round < 16; ++round) {
+            for (int rot = CryptTables.rots[round]; rot > 0; --rot) {
+                int c = cd[0];
+                int d = cd[28];
+                System.arraycopy(cd, 1, cd, 0, 27);
+                System.arraycopy(cd, 29, cd, 28, 27);
+                cd[27] = c;
+                cd[55] = d;
+            }
+            for (int bit = 0; bit < 48; ++bit) {
+                keybit[round * 48 + bit] = cd[CryptTables.pc2[bit] - 1];
+            }
+        }
+
+        for (int bit = 0; bit < 48; ++bit) {
+            ebit[bit] = CryptTables.esel[bit] - 1;
+        }
+        for (int bit = 0; bit < 32; ++bit) {
+            pbit[CryptTables.perm32[bit] - 1] = bit;
+        }
+    }
+
+    /**
+     * The transposed key bits in DES order, eight bits per key byte.
+     */
+    private final long[] keys;
+    /**
+     * The transposed subkeys of the 16 rounds.
+     */
+    private final long[] subkeys;
+    /**
+     * For each of the 12 salt bits, the lanes whose salt has that bit set.
+     */
+    private final long[] saltmask;
+    /**
+     * The salt characters of each lane.
+     */
+    private final char[] saltChars;
+    /**
+     * The transposed left and right halves of the DES block.
+     */
+    private long[] left;
+    private long[] right;
+    /**
+     * Storage for the E expanded and keyed half block.
+     */
+    private final long[] e;
+    /**
+     * The 64 bit DES result of each lane.
+     */
+    private final long[] results;
+
+    /**
+     * No argument constructor allocates memory.
+     */
+    BitsliceCryptImplementation() {
+        keys = new long[64];
+        subkeys = new long[16 * 48];
+        saltmask = new long[12];
+        saltChars = new char[2 * LANES];
+        left = new long[32];
+        right = new long[32];
+        e = new long[48];
+        results = new long[LANES];
+    }
+
+    /**
+     * Accessor method to get the number of passwords hashed at once.
+     *
+     * @return Returns 64.
+     */
+    @Override
+    int lanes() {
+        return LANES;
+    }
+
+    /**
+     * Load the keys and salts of up to 64 lanes. Lanes beyond count are
+     * hashed with an empty key and salt.
+     *
+     * @param keyBytes The password bytes of each lane. At most the first eight
+     * bytes of each password are used.
+     * @param salts The salt of each lane as two bytes in crypt(3C)-base64
+     * binary form.
+     * @param offset The index of the first password and salt to load.
+     * @param count The number of lanes to load, at most 64.
+     */
+    @Override
+    void setup(byte[][] keyBytes, byte[][] salts, int offset, int count) {
+        if (count > LANES) {
+            throw new IllegalArgumentException("More than " + LANES
+                    + " lanes: " + count);
+        }
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = 0;
+        }
+        for (int i = 0; i < saltmask.length; ++i) {
+            saltmask[i] = 0;
+        }
+
+        for (int lane = 0; lane < count; ++lane) {
+            byte[] key = keyBytes[offset + lane];
+            int length = Math.min(8, key.length);
+            for (int i = 0; i < length; ++i) {
+                int c = key[i];
+                for (int j = 0; j < 7; ++j) {
+                    keys[8 * i + j] |= (long) (c >>> 6 - j & 0x1) << lane;
+                }
+            }
+
+            byte[] salt = salts[offset + lane];
+            int s = CryptTables.saltValue(salt[0], salt[1]);
+            for (int j = 0; j < 12; ++j) {
+                saltmask[j] |= (long) (s >>> j & 0x1) << lane;
+            }
+            saltChars[2 * lane] = CryptUtility.binaryToAscii(salt[0]);
+            saltChars[2 * lane + 1] = CryptUtility.binaryToAscii(salt[1]);
+        }
+        for (int lane = count; lane < LANES; ++lane) {
+            saltChars[2 * lane] = '.';
+            saltChars[2 * lane + 1] = '.';
+        }
+
+        for (int i = 0; i < subkeys.length; ++i) {
+            subkeys[i] = keys[keybit[i]];
+        }
+    }
+
+    /**
+     * Perform 25 DES encryptions on all lanes.
+     */
+    @Override
+    void encrypt() {
+        long[] l = left;
+        long[] r = right;
+        for (int i = 0; i < 32; ++i) {
+            l[i] = 0;
+            r[i] = 0;
+        }
+
+        for (int itr = 25; itr > 0; --itr) {
+            for (int round = 0; round < 16; round += 2) {
+                round(r, l, round);
+                round(l, r, round + 1);
+            }
+            long[] s = l;
+            l = r;
+            r = s;
+        }
+
+        /*
+         * Do final permutation and transpose back to one long per lane
+         */
+        for (int lane = 0; lane < LANES; ++lane) {
+            results[lane] = 0;
+        }
+        for (int bit = 0; bit < 64; ++bit) {
+            int from = CryptTables.final_perm[bit] - 1;
+            long word = from < 32 ? l[from] : r[from - 32];
+            for (int lane = 0; lane < LANES; ++lane) {
+                results[lane] |= (word >>> lane & 0x1) << 63 - bit;
+            }
+        }
+    }
+
+    /**
+     * Accessor method to get the DES result of a lane.
+     *
+     * @param lane The lane number.
+     * @return The 64 bit result, the first output bit in the most significant
+     * position.
+     */
+    @Override
+    long getResult(int lane) {
+        return results[lane];
+    }
+
+    /**
+     * Accessor method to get the result string of a lane.
+     *
+     * @param lane The lane number.
+     * @return String made up of the base64 encoded characters.
+     */
+    @Override
+    String getCrypt3Buffer(int lane) {
+        char[] buf = new char[13];
+        CryptUtility.outputConversion(saltChars[2 * lane],
+                saltChars[2 * lane + 1], results[lane], buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * Perform one DES round on all lanes, XORing the round function of one
+     * half into the other half.
+     *
+     * @param in The half fed through the round function.
+     * @param out The half receiving the output of the round function.
+     * @param round The round number.
+     */
+    private void round(long[] in, long[] out, int round) {
+        final long[] x = e;
+        final int base = round * 48;
+
+        for (int bit = 0; bit < 48; ++bit) {
+            x[bit] = in[ebit[bit]];
+        }
+        for (int bit = 0; bit < 12; ++bit) {
+            long t = (x[bit] ^ x[bit + 24]) & saltmask[bit];
+            x[bit] ^= t;
+            x[bit + 24] ^= t;
+        }
+        for (int bit = 0; bit < 48; ++bit) {
+            x[bit] ^= subkeys[base + bit];
+        }
+
+        s1(x[0], x[1], x[2], x[3], x[4], x[5],
+                out, pbit[0], pbit[1], pbit[2], pbit[3]);
+        s2(x[6], x[7], x[8], x[9], x[10], x[11],
+                out, pbit[4], pbit[5], pbit[6], pbit[7]);
+        s3(x[12], x[13], x[14], x[15], x[16], x[17],
+                out, pbit[8], pbit[9], pbit[10], pbit[11]);
+        s4(x[18], x[19], x[20], x[21], x[22], x[23],
+                out, pbit[12], pbit[13], pbit[14], pbit[15]);
+        s5(x[24], x[25], x[26], x[27], x[28], x[29],
+                out, pbit[16], pbit[17], pbit[18], pbit[19]);
+        s6(x[30], x[31], x[32], x[33], x[34], x[35],
+                out, pbit[20], pbit[21], pbit[22], pbit[23]);
+        s7(x[36], x[37], x[38], x[39], x[40], x[41],
+                out, pbit[24], pbit[25], pbit[26], pbit[27]);
+        s8(x[42], x[43], x[44], x[45], x[46], x[47],
+                out, pbit[28], pbit[29], pbit[30], pbit[31]);
+    }
+
+    /**
+     * S-box 1 as a boolean circuit. The four outputs are XORed into the
+     * given words of the output array.
+     */
+    private static void s1(long a1, long a2, long a3, long a4, long a5,
+            long a6, long[] out, int o1, int o2, int o3, int o4) {
+        long x1 = a1 & ~a3;
+        long x2 = ~(a4 & a3);
+        long x3 = x1 ^ (x2 & a6);
+        long x4 = a1 | ~a4;
+        long x5 = x4 | a3;
+        long x6 = a4 ^ (a1 & ~a3);
+        long x7 = x5 ^ (x6 & ~a6);
+        long x8 = x3 ^ (x7 & a5);
+        long x9 = a1 ^ a4;
+        long x10 = x9 | ~a3;
+        long x11 = a1 & a4;
+        long x12 = x11 & ~a3;
+        long x13 = x10 ^ (x12 & ~a6);
+        long x14 = x11 ^ (x1 & a6);
+        long x15 = x13 ^ (x14 & a5);
+        long x16 = x8 ^ (x15 & ~a2);
+        long x17 = a1 & ~a4;
+        long x18 = x17 | ~a3;
+        long x19 = ~x9;
+        long x20 = x19 ^ (a4 & a3);
+        long x21 = x18 ^ (x20 & a6);
+        long x22 = a1 | a4;
+        long x23 = x22 ^ a3;
+        long x24 = x22 | ~a3;
+        long x25 = x23 ^ (x24 & a6);
+        long x26 = x21 ^ (x25 & a5);
+        long x27 = x19 ^ (x17 & a3);
+        long x28 = x27 ^ ((x27 ^ a3) & a6);
+        long x29 = x6 ^ ((x6 ^ x22) & a6);
+        long x30 = x28 ^ (x29 & a5);
+        long x31 = x26 ^ (x30 & a2);
+        long x32 = ~a3;
+        long x33 = x32 ^ (x9 & ~a6);
+        long x34 = x22 ^ (a1 & a3);
+        long x35 = x11 ^ (x17 & a3);
+        long x36 = x34 ^ (x35 & a6);
+        long x37 = x33 ^ (x36 & ~a5);
+        long x38 = x22 | a3;
+        long x39 = x38 | a6;
+        long x40 = x19 ^ a3;
+        long x41 = x40 ^ (x34 & ~a6);
+        long x42 = x39 ^ (x41 & a5);
+        long x43 = x37 ^ (x42 & ~a2);
+        long x44 = ~x23;
+        long x45 = x4 ^ (x44 & a6);
+        long x46 = a4 ^ (x18 & ~a6);
+        long x47 = x45 ^ (x46 & a5);
+        long x48 = ~x11;
+        long x49 = x48 ^ (x27 & ~a6);
+        long x50 = ~x22;
+        long x51 = a1 | a3;
+        long x52 = x50 ^ (x51 & a6);
+        long x53 = x49 ^ (x52 & ~a5);
+        long x54 = x47 ^ (x53 & ~a2);
+        out[o1] ^= x16;
+        out[o2] ^= x31;
+        out[o3] ^= x43;
+        out[o4] ^= x54;
+    }
+
+    /**
+     * S-box 2 as a boolean circuit. The four outputs are XORed into the
+     * given words of the output array.
+     */
+    private static void s2(long a1, long a2, long a3, long a4, long a5,
+            long a6, long[] out, int o1, int o2, int o3, int o4) {
+        long x1 = a1 & ~a6;
+        long x2 = x1 ^ a5;
+        long x3 = x2 ^ ~a4;
+        long x4 = a1 | a6;
+        long x5 = a1 & a6;
+        long x6 = x4 ^ (x5 & a5);
+        long x7 = x3 ^ (x6 & a3);
+        long x8 = a1 | a5;
+        long x9 = x1 | ~a5;
+        long x10 = x8 ^ (x9 & ~a4);
+        long x11 = ~x4;
+        long x12 = x10 ^ (x11 & ~a3);
+        long x13 = x7 ^ (x12 & ~a2);
+        long x14 = a1 ^ a5;
+        long x15 = x14 ^ ~a4;
+        long x16 = a6 & a5;
+        long x17 = a6 ^ (x16 & a4);
+        long x18 = x15 ^ (x17 & ~a3);
+        long x19 = a6 ^ (x1 & a5);
+        long x20 = x19 | ~a4;
+        long x21 = ~(x1 & a5);
+        long x22 = x20 ^ (x21 & a3);
+        long x23 = x18 ^ (x22 & a2);
+        long x24 = x4 ^ a5;
+        long x25 = x21 ^ (x24 & a4);
+        long x26 = a1 | ~a6;
+        long x27 = x8 ^ ((x8 ^ x26) & a4);
+        long x28 = x25 ^ (x27 & ~a3);
+        long x29 = x26 | a5;
+        long x30 = x29 | a4;
+        long x31 = x19 ^ (a1 & ~a4);
+        long x32 = x30 ^ (x31 & ~a3);
+        long x33 = x28 ^ (x32 & a2);
+        long x34 = x1 ^ (a6 & a5);
+        long x35 = x26 | ~a5;
+        long x36 = x34 ^ (x35 & ~a4);
+        long x37 = ~x1;
+        long x38 = x11 ^ (x37 & a5);
+        long x39 = x36 ^ (x38 & a3);
+        long x40 = x4 | a5;
+        long x41 = ~a6;
+        long x42 = x5 ^ (x41 & a5);
+        long x43 = x40 ^ (x42 & ~a4);
+        long x44 = x5 ^ (x26 & a5);
+        long x45 = x43 ^ (x44 & a3);
+        long x46 = x39 ^ (x45 & a2);
+        out[o1] ^= x13;
+        out[o2] ^= x23;
+        out[o3] ^= x33;
+        out[o4] ^= x46;
+    }
+
+    /**
+     * S-box 3 as a boolean circuit. The four outputs are XORed into the
+     * given words of the output array.
+     */
+    private static void s3(long a1, long a2, long a3, long a4, long a5,
+            long a6, long[] out, int o1, int o2, int o3, int o4) {
+        long x1 = a4 ^ a6;
+        long x2 = x1 | ~a1;
+        long x3 = x1 | a1;
+        long x4 = x2 ^ (x3 & a5);
+        long x5 = a4 & a6;
+        long x6 = x5 ^ (a6 & ~a1);
+        long x7 = ~x1;
+        long x8 = a4 | ~a6;
+        long x9 = x7 ^ (x8 & a1);
+        long x10 = x6 ^ (x9 & a5);
+        long x11 = x4 ^ (x10 & a2);
+        long x12 = a6 | ~a1;
+        long x13 = a4 ^ (x8 & ~a1);
+        long x14 = x12 ^ (x13 & ~a5);
+        long x15 = ~a6;
+        long x16 = a4 & ~a6;
+        long x17 = x15 ^ (x16 & ~a1);
+        long x18 = x14 ^ (x17 & a2);
+        long x19 = x11 ^ (x18 & ~a3);
+        long x20 = x1 ^ a1;
+        long x21 = x8 | a1;
+        long x22 = x20 ^ (x21 & ~a5);
+        long x23 = ~x17;
+        long x24 = x23 | ~a5;
+        long x25 = x22 ^ (x24 & ~a2);
+        long x26 = x21 | ~a5;
+        long x27 = a4 | a1;
+        long x28 = x27 ^ (x15 & a5);
+        long x29 = x26 ^ (x28 & ~a2);
+        long x30 = x25 ^ (x29 & ~a3);
+        long x31 = ~x9;
+        long x32 = x31 ^ (x27 & a5);
+        long x33 = x12 | a5;
+        long x34 = x32 ^ (x33 & a2);
+        long x35 = a1 | a5;
+        long x36 = x8 & a1;
+        long x37 = x36 ^ (a1 & a5);
+        long x38 = x35 ^ (x37 & a2);
+        long x39 = x34 ^ (x38 & a3);
+        long x40 = a6 ^ a1;
+        long x41 = ~x16;
+        long x42 = x40 ^ (x41 & a5);
+        long x43 = ~x5;
+        long x44 = x42 ^ (x43 & ~a2);
+        long x45 = x5 & a1;
+        long x46 = x45 | ~a5;
+        long x47 = ~x3;
+        long x48 = x15 & ~a1;
+        long x49 = x47 ^ (x48 & a5);
+        long x50 = x46 ^ (x49 & a2);
+        long x51 = x44 ^ (x50 & ~a3);
+        out[o1] ^= x30;
+        out[o2] ^= x51;
+        out[o3] ^= x19;
+        out[o4] ^= x39;
+    }
+
+    /**
+     * S-box 4 as a boolean circuit. The four outputs are XORed into the
+     * given words of the output array.
+     */
+    private static void s4(long a1, long a2, long a3, long a4, long a5,
+            long a6, long[] out, int o1, int o2, int o3, int o4) {
+        long x1 = ~a3;
+        long x2 = a5 | ~a3;
+        long x3 = x1 ^ (x2 & a1);
+        long x4 = ~a5;
+        long x5 = x3 ^ (x4 & a4);
+        long x6 = a5 ^ a3;
+        long x7 = x6 | a1;
+        long x8 = x7 ^ ((x7 ^ a3) & a4);
+        long x9 = x5 ^ (x8 & a2);
+        long x10 = a5 & ~a3;
+        long x11 = ~x10;
+        long x12 = a3 ^ (x11 & ~a1);
+        long x13 = x10 ^ (x12 & ~a4);
+        long x14 = x2 | ~a1;
+        long x15 = x14 ^ (x6 & ~a4);
+        long x16 = x13 ^ (x15 & ~a2);
+        long x17 = x9 ^ (x16 & a6);
+        long x18 = ~x9;
+        long x19 = ~x16;
+        long x20 = x18 ^ (x19 & ~a6);
+        long x21 = x12 ^ (a5 & ~a4);
+        long x22 = x6 | ~a1;
+        long x23 = x1 ^ ((x1 ^ x22) & a4);
+        long x24 = x21 ^ (x23 & a2);
+        long x25 = x2 ^ (x3 & a4);
+        long x26 = x11 ^ (x10 & a1);
+        long x27 = x26 ^ (x6 & a4);
+        long x28 = x25 ^ (x27 & ~a2);
+        long x29 = x24 ^ (x28 & a6);
+        long x30 = ~x28;
+        long x31 = x24 ^ (x30 & ~a6);
+        out[o1] ^= x31;
+        out[o2] ^= x29;
+        out[o3] ^= x20;
+        out[o4] ^= x17;
+    }
+
+    /**
+     * S-box 5 as a boolean circuit. The four outputs are XORed into the
+     * given words of the output array.
+     */
+    private static void s5(long a1, long a2, long a3, long a4, long a5,
+            long a6, long[] out, int o1, int o2, int o3, int o4) {
+        long x1 = a2 ^ a5;
+        long x2 = x1 ^ a6;
+        long x3 = x2 ^ ~a3;
+        long x4 = ~a2;
+        long x5 = ~x1;
+        long x6 = x5 & a6;
+        long x7 = x4 ^ (x6 & a3);
+        long x8 = x3 ^ (x7 & ~a4);
+        long x9 = ~a5;
+        long x10 = x9 ^ (a5 & a3);
+        long x11 = a2 ^ (a5 & a6);
+        long x12 = x1 ^ (a2 & a6);
+        long x13 = x11 ^ (x12 & ~a3);
+        long x14 = x10 ^ (x13 & ~a4);
+        long x15 = x8 ^ (x14 & a1);
+        long x16 = a2 | a5;
+        long x17 = x16 ^ ~a6;
+        long x18 = a5 ^ (x16 & a6);
+        long x19 = x17 ^ (x18 & ~a3);
+        long x20 = a2 & ~a5;
+        long x21 = ~(x20 & ~a6);
+        long x22 = x21 ^ (a2 & ~a3);
+        long x23 = x19 ^ (x22 & ~a4);
+        long x24 = x20 | a6;
+        long x25 = x24 | a3;
+        long x26 = ~x16;
+        long x27 = x1 ^ (x9 & a6);
+        long x28 = x26 ^ (x27 & a3);
+        long x29 = x25 ^ (x28 & a4);
+        long x30 = x23 ^ (x29 & ~a1);
+        long x31 = ~x20;
+        long x32 = x31 & a6;
+        long x33 = x27 ^ (x32 & a3);
+        long x34 = x16 ^ (x4 & a6);
+        long x35 = x9 & ~a6;
+        long x36 = x34 ^ (x35 & a3);
+        long x37 = x33 ^ (x36 & a4);
+        long x38 = ~(a2 & a5);
+        long x39 = x5 & ~a6;
+        long x40 = x38 ^ (x39 & ~a3);
+        long x41 = x24 ^ (x1 & a3);
+        long x42 = x40 ^ (x41 & ~a4);
+        long x43 = x37 ^ (x42 & a1);
+        long x44 = x5 ^ (x31 & ~a3);
+        long x45 = x44 ^ (x24 & ~a4);
+        long x46 = ~x17;
+        long x47 = x16 & a6;
+        long x48 = x46 ^ (x47 & ~a3);
+        long x49 = x26 & a6;
+        long x50 = x49 ^ (x39 & ~a3);
+        long x51 = x48 ^ (x50 & ~a4);
+        long x52 = x45 ^ (x51 & ~a1);
+        out[o1] ^= x43;
+        out[o2] ^= x15;
+        out[o3] ^= x52;
+        out[o4] ^= x30;
+    }
+
+    /**
+     * S-box 6 as a boolean circuit. The four outputs are XORed into the
+     * given words of the output array.
+     */
+    private static void s6(long a1, long a2, long a3, long a4, long a5,
+            long a6, long[] out, int o1, int o2, int o3, int o4) {
+        long x1 = a1 ^ a6;
+        long x2 = x1 ^ a4;
+        long x3 = a1 | ~a6;
+        long x4 = a1 ^ (x3 & ~a4);
+        long x5 = x2 ^ (x4 & ~a5);
+        long x6 = a1 | a6;
+        long x7 = ~a6;
+        long x8 = x6 ^ (x7 & a4);
+        long x9 = x8 & ~a5;
+        long x10 = x5 ^ (x9 & a3);
+        long x11 = a1 & a6;
+        long x12 = x11 & a4;
+        long x13 = ~(x12 & ~a5);
+        long x14 = x3 | ~a4;
+        long x15 = x14 ^ (x11 & ~a5);
+        long x16 = x13 ^ (x15 & a3);
+        long x17 = x10 ^ (x16 & a2);
+        long x18 = x1 ^ (x14 & a5);
+        long x19 = ~x12;
+        long x20 = ~a1;
+        long x21 = x20 & ~a4;
+        long x22 = x19 ^ (x21 & a5);
+        long x23 = x18 ^ (x22 & a3);
+        long x24 = ~a4;
+        long x25 = x1 & a4;
+        long x26 = x24 ^ (x25 & a5);
+        long x27 = a1 & ~a6;
+        long x28 = x12 ^ (x27 & ~a5);
+        long x29 = x26 ^ (x28 & a3);
+        long x30 = x23 ^ (x29 & ~a2);
+        long x31 = x2 ^ ((x2 ^ x4) & a5);
+        long x32 = x27 | a5;
+        long x33 = x31 ^ (x32 & ~a3);
+        long x34 = ~x27;
+        long x35 = a6 ^ (x34 & a4);
+        long x36 = a1 ^ (x35 & a5);
+        long x37 = ~x11;
+        long x38 = x20 ^ (x37 & a5);
+        long x39 = x36 ^ (x38 & a3);
+        long x40 = x33 ^ (x39 & a2);
+        long x41 = ~(x6 & a4);
+        long x42 = x27 ^ (x41 & a5);
+        long x43 = x6 | ~a4;
+        long x44 = x43 ^ ((x43 ^ x20) & a5);
+        long x45 = x42 ^ (x44 & a3);
+        long x46 = x14 | a5;
+        long x47 = x37 ^ (x7 & a4);
+        long x48 = x46 ^ (x47 & ~a3);
+        long x49 = x45 ^ (x48 & a2);
+        out[o1] ^= x17;
+        out[o2] ^= x30;
+        out[o3] ^= x40;
+        out[o4] ^= x49;
+    }
+
+    /**
+     * S-box 7 as a boolean circuit. The four outputs are XORed into the
+     * given words of the output array.
+     */
+    private static void s7(long a1, long a2, long a3, long a4, long a5,
+            long a6, long[] out, int o1, int o2, int o3, int o4) {
+        long x1 = a4 ^ a2;
+        long x2 = a5 | ~a4;
+        long x3 = x2 | ~a2;
+        long x4 = x1 ^ (x3 & a1);
+        long x5 = a5 & a4;
+        long x6 = a5 ^ (x5 & ~a2);
+        long x7 = ~a5;
+        long x8 = x6 ^ (x7 & a1);
+        long x9 = x4 ^ (x8 & ~a6);
+        long x10 = a5 | a2;
+        long x11 = x10 | ~a1;
+        long x12 = ~x2;
+        long x13 = x12 ^ (a4 & a2);
+        long x14 = x13 | a1;
+        long x15 = x11 ^ ((x11 ^ x14) & a6);
+        long x16 = x9 ^ (x15 & a3);
+        long x17 = x7 ^ (a4 & a2);
+        long x18 = x2 & ~a2;
+        long x19 = x17 ^ (x18 & a1);
+        long x20 = a5 & ~a4;
+        long x21 = x20 | ~a1;
+        long x22 = x19 ^ (x21 & ~a6);
+        long x23 = a5 & ~a2;
+        long x24 = x23 | ~a1;
+        long x25 = ~a4;
+        long x26 = x5 ^ (x25 & a2);
+        long x27 = x26 | a1;
+        long x28 = x24 ^ (x27 & ~a6);
+        long x29 = x22 ^ (x28 & a3);
+        long x30 = a5 ^ a4;
+        long x31 = x30 ^ ~a1;
+        long x32 = ~x30;
+        long x33 = x32 & a2;
+        long x34 = x3 ^ (x33 & a1);
+        long x35 = x31 ^ (x34 & a6);
+        long x36 = x2 ^ a2;
+        long x37 = ~x36;
+        long x38 = x37 & a1;
+        long x39 = x36 ^ (x38 & a6);
+        long x40 = x35 ^ (x39 & ~a3);
+        long x41 = ~x17;
+        long x42 = ~x1;
+        long x43 = x41 ^ (x42 & ~a1);
+        long x44 = a4 | ~a2;
+        long x45 = x44 ^ (x3 & ~a1);
+        long x46 = x43 ^ (x45 & a6);
+        long x47 = ~x26;
+        long x48 = a2 ^ ((a2 ^ x47) & a1);
+        long x49 = x5 ^ (a2 & a1);
+        long x50 = x48 ^ (x49 & a6);
+        long x51 = x46 ^ (x50 & a3);
+        out[o1] ^= x29;
+        out[o2] ^= x51;
+        out[o3] ^= x16;
+        out[o4] ^= x40;
+    }
+
+    /**
+     * S-box 8 as a boolean circuit. The four outputs are XORed into the
+     * given words of the output array.
+     */
+    private static void s8(long a1, long a2, long a3, long a4, long a5,
+            long a6, long[] out, int o1, int o2, int o3, int o4) {
+        long x1 = a3 & ~a5;
+        long x2 = x1 ^ a4;
+        long x3 = a3 ^ a5;
+        long x4 = x2 ^ (x3 & ~a1);
+        long x5 = ~x3;
+        long x6 = ~a5;
+        long x7 = x5 ^ (x6 & a4);
+        long x8 = x7 | a1;
+        long x9 = x4 ^ (x8 & a2);
+        long x10 = a3 | ~a5;
+        long x11 = x10 ^ a4;
+        long x12 = x11 | ~a1;
+        long x13 = a3 & a4;
+        long x14 = x13 & a1;
+        long x15 = x12 ^ (x14 & ~a2);
+        long x16 = x9 ^ (x15 & ~a6);
+        long x17 = a3 | a5;
+        long x18 = x7 ^ (x17 & a1);
+        long x19 = x3 ^ a4;
+        long x20 = a5 | a4;
+        long x21 = x19 ^ (x20 & a1);
+        long x22 = x18 ^ ((x18 ^ x21) & a2);
+        long x23 = ~x10;
+        long x24 = x23 ^ (x1 & a4);
+        long x25 = x24 ^ a1;
+        long x26 = ~x13;
+        long x27 = x3 & ~a4;
+        long x28 = x26 ^ (x27 & ~a1);
+        long x29 = x25 ^ (x28 & ~a2);
+        long x30 = x22 ^ ((x22 ^ x29) & a6);
+        long x31 = x10 ^ (a5 & ~a4);
+        long x32 = x2 ^ (x31 & ~a1);
+        long x33 = x20 ^ (x13 & ~a1);
+        long x34 = x32 ^ (x33 & ~a2);
+        long x35 = ~x22;
+        long x36 = x34 ^ ((x34 ^ x35) & a6);
+        long x37 = x17 ^ a4;
+        long x38 = a5 | ~a4;
+        long x39 = x37 ^ (x38 & ~a1);
+        long x40 = x10 | ~a1;
+        long x41 = x39 ^ (x40 & ~a2);
+        long x42 = x20 & a1;
+        long x43 = x5 & ~a4;
+        long x44 = ~x31;
+        long x45 = x43 ^ (x44 & a1);
+        long x46 = x42 ^ (x45 & a2);
+        long x47 = x41 ^ (x46 & a6);
+        out[o1] ^= x36;
+        out[o2] ^= x16;
+        out[o3] ^= x47;
+        out[o4] ^= x30;
+    }
+
+}
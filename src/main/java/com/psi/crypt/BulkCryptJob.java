@@ -0,0 +1,673 @@
+package com.psi.crypt;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bulk job over a whole set of credentials, run on a ForkJoinPool with
+ * the work split by salt.
+ *
+ * The credentials are copied out of the store or snapshot and ordered by
+ * salt with a counting sort. The 4096 salts are then split recursively into
+ * ranges holding about the same number of credentials, so each worker owns
+ * a disjoint set of salts and handles all credentials of a salt together.
+ * Workers share nothing but the progress counters, which are LongAdders,
+ * so the job scales with the cores of the pool.
+ *
+ * Two kinds of job exist. forEach() hands every credential, grouped by
+ * salt, to a visitor, e.g. to migrate a store into another store. audit()
+ * re-verifies every credential against a list of candidate passwords, such
+ * as known weak passwords: each candidate is hashed once per salt, 64 at a
+ * time in the lanes of the bitsliced implementation, and compared with all
+ * credentials under that salt, so the cost depends on the number of salts
+ * rather than the number of users.
+ *
+ * A job runs once. cancel() stops it cleanly: workers check the flag
+ * between salts and between batches of hashes and return early. An
+ * exception thrown by a visitor cancels the job and is thrown by await().
+ *
+ * @author John Glynn
+ */
+public final class BulkCryptJob {
+
+    /**
+     * The default number of credentials below which a salt range is not
+     * split further.
+     */
+    public static final int DEFAULT_GRAIN = 1 << 12;
+
+    private static final int SALTS = 1 << 12;
+    private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    /**
+     * The work done for the credentials of one salt.
+     */
+    @FunctionalInterface
+    private interface GroupAction {
+
+        /**
+         * Process the credentials of a salt.
+         *
+         * @param worker The scratch space of the calling worker.
+         * @param salt The salt.
+         * @param start The first index into the salt order.
+         * @param end The index after the last.
+         */
+        void process(Worker worker, int salt, int start, int end);
+    }
+
+    private final Records records;
+    private final GroupAction action;
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder hashes = new LongAdder();
+    /**
+     * The workers not in use by a leaf task. A leaf takes one, so the batch
+     * implementations are created about once per pool thread rather than
+     * once per leaf.
+     */
+    private final ConcurrentLinkedQueue<Worker> idle
+            = new ConcurrentLinkedQueue<>();
+    private volatile boolean cancelled;
+    /**
+     * The first exception thrown by a worker. The pool rethrows copies
+     * wrapping the original, one per level of the task tree.
+     */
+    private volatile Throwable failure;
+    private volatile int grain = DEFAULT_GRAIN;
+    private volatile ForkJoinTask<Void> task;
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    /**
+     * Creates a job.
+     *
+     * @param records The credentials, grouped by salt.
+     * @param action The work for each salt.
+     */
+    private BulkCryptJob(Records records, GroupAction action) {
+        this.records = records;
+        this.action = action;
+    }
+
+    /**
+     * Create a job handing every credential of a store to a visitor, the
+     * credentials of each salt together. The visitor is called from several
+     * threads at once and must be thread safe.
+     *
+     * @param source The store, copied when the job is created.
+     * @param visitor The visitor.
+     * @return The job, not yet started.
+     */
+    public static BulkCryptJob forEach(CredentialStore source,
+            CredentialVisitor visitor) {
+        Records records = new Records(source.size());
+        source.forEach(records);
+        return forEach(records, visitor);
+    }
+
+    /**
+     * Create a job handing every credential of a snapshot to a visitor, the
+     * credentials of each salt together. The visitor is called from several
+     * threads at once and must be thread safe.
+     *
+     * @param source The snapshot, copied when the job is created.
+     * @param visitor The visitor.
+     * @return The job, not yet started.
+     */
+    public static BulkCryptJob forEach(CredentialSnapshot source,
+            CredentialVisitor visitor) {
+        Records records = new Records((int) Math.min(source.size(),
+                Integer.MAX_VALUE - 8));
+        source.forEach(records);
+        return forEach(records, visitor);
+    }
+
+    /**
+     * Create a job checking every credential of a store against candidate
+     * passwords. The visitor is called from several threads at once and
+     * must be thread safe.
+     *
+     * @param source The store, copied when the job is created.
+     * @param candidates The candidate passwords. At most the first eight
+     * encoded bytes of each are used.
+     * @param visitor The visitor receiving the matches.
+     * @return The job, not yet started.
+     */
+    public static BulkCryptJob audit(CredentialStore source,
+            char[][] candidates, PasswordMatchVisitor visitor) {
+        Records records = new Records(source.size());
+        source.forEach(records);
+        return audit(records, candidates, visitor);
+    }
+
+    /**
+     * Create a job checking every credential of a snapshot against candidate
+     * passwords. The visitor is called from several threads at once and
+     * must be thread safe.
+     *
+     * @param source The snapshot, copied when the job is created.
+     * @param candidates The candidate passwords. At most the first eight
+     * encoded bytes of each are used.
+     * @param visitor The visitor receiving the matches.
+     * @return The job, not yet started.
+     */
+    public static BulkCryptJob audit(CredentialSnapshot source,
+            char[][] candidates, PasswordMatchVisitor visitor) {
+        Records records = new Records((int) Math.min(source.size(),
+                Integer.MAX_VALUE - 8));
+        source.forEach(records);
+        return audit(records, candidates, visitor);
+    }
+
+    /**
+     * Mutator method to set the number of credentials below which a salt
+     * range is not split further. Smaller grains balance better, larger
+     * grains have less overhead.
+     *
+     * @param grain The number of credentials.
+     * @exception IllegalArgumentException Thrown when the grain is not
+     * positive.
+     */
+    public void setGrain(int grain) {
+        if (grain < 1) {
+            throw new IllegalArgumentException("Grain not positive: "
+                    + grain);
+        }
+        this.grain = grain;
+    }
+
+    /**
+     * Start the job on the common pool.
+     *
+     * @return This job.
+     * @exception IllegalStateException Thrown when the job was started.
+     */
+    public BulkCryptJob start() {
+        return start(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Start the job on a pool.
+     *
+     * @param pool The pool.
+     * @return This job.
+     * @exception IllegalStateException Thrown when the job was started.
+     */
+    public synchronized BulkCryptJob start(ForkJoinPool pool) {
+        if (task != null) {
+            throw new IllegalStateException("Job already started");
+        }
+        startNanos = System.nanoTime();
+        task = pool.submit(new SaltRange(0, SALTS));
+        return this;
+    }
+
+    /**
+     * Ask the job to stop. Workers finish the salt or batch of hashes they
+     * are on and return.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Wait until the job ends.
+     *
+     * @return <b>true</b> when every credential was processed, <b>false</b>
+     * when the job was cancelled.
+     * @exception InterruptedException Thrown when the waiting thread is
+     * interrupted.
+     * @exception IllegalStateException Thrown when the job was not started.
+     * @exception RuntimeException The exception thrown by a visitor.
+     */
+    public boolean await() throws InterruptedException {
+        ForkJoinTask<Void> t = task;
+        if (t == null) {
+            throw new IllegalStateException("Job not started");
+        }
+        try {
+            t.get();
+        } catch (ExecutionException e) {
+            Throwable cause = failure != null ? failure : e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        return processed.sum() == records.count;
+    }
+
+    /**
+     * Test whether the job ended.
+     *
+     * @return <b>true</b> or <b>false</b>
+     */
+    public boolean isDone() {
+        ForkJoinTask<Void> t = task;
+        return t != null && t.isDone();
+    }
+
+    /**
+     * Test whether the job was cancelled.
+     *
+     * @return <b>true</b> or <b>false</b>
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Accessor method to get the number of credentials of the job.
+     *
+     * @return The number of credentials.
+     */
+    public long getRecordCount() {
+        return records.count;
+    }
+
+    /**
+     * Accessor method to get the number of credentials processed so far.
+     *
+     * @return The number of credentials.
+     */
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+
+    /**
+     * Accessor method to get the number of hashes computed so far by an
+     * audit job.
+     *
+     * @return The number of hashes.
+     */
+    public long getHashCount() {
+        return hashes.sum();
+    }
+
+    /**
+     * Accessor method to get the part of the credentials processed so far.
+     *
+     * @return A fraction from 0 to 1.
+     */
+    public double getProgress() {
+        return records.count == 0 ? (isDone() ? 1 : 0)
+                : (double) processed.sum() / records.count;
+    }
+
+    /**
+     * Accessor method to get the time the job has run.
+     *
+     * @return The time in nanoseconds, 0 before the start.
+     */
+    public long getElapsedNanos() {
+        if (task == null) {
+            return 0;
+        }
+        long end = endNanos;
+        return (end != 0 ? end : System.nanoTime()) - startNanos;
+    }
+
+    /**
+     * Accessor method to get the rate at which credentials were processed.
+     *
+     * @return The credentials per second.
+     */
+    public double getThroughput() {
+        long elapsed = getElapsedNanos();
+        return elapsed == 0 ? 0 : processed.sum() * 1e9 / elapsed;
+    }
+
+    /**
+     * Returns a string representation of the job.
+     *
+     * @return A string.
+     */
+    @Override
+    public String toString() {
+        return "BulkCryptJob[records=" + records.count
+                + ", processed=" + processed.sum()
+                + ", hashes=" + hashes.sum()
+                + ", throughput=" + (long) getThroughput() + "/s"
+                + (cancelled ? ", cancelled" : isDone() ? ", done" : "")
+                + "]";
+    }
+
+    /**
+     * Create a visiting job over collected credentials.
+     *
+     * @param records The credentials.
+     * @param visitor The visitor.
+     * @return The job.
+     */
+    private static BulkCryptJob forEach(Records records,
+            CredentialVisitor visitor) {
+        records.group();
+        return new BulkCryptJob(records, (worker, salt, start, end) -> {
+            for (int k = start; k < end; ++k) {
+                int i = records.order[k];
+                visitor.visit(records.names, records.offsets[i],
+                        records.lengths[i], salt, records.results[i]);
+            }
+        });
+    }
+
+    /**
+     * Create an audit job over collected credentials.
+     *
+     * @param records The credentials.
+     * @param candidates The candidate passwords.
+     * @param visitor The visitor receiving the matches.
+     * @return The job.
+     */
+    private static BulkCryptJob audit(Records records, char[][] candidates,
+            PasswordMatchVisitor visitor) {
+        records.group();
+        byte[][] keys = new byte[candidates.length][8];
+        CryptEngine engine = Crypt.getEnginePool().acquire();
+        try {
+            for (int c = 0; c < candidates.length; ++c) {
+                engine.keyBytes(candidates[c], keys[c]);
+            }
+        } finally {
+            Crypt.getEnginePool().release(engine);
+        }
+
+        return new BulkCryptJob(records, (worker, salt, start, end) -> {
+            int n = end - start;
+            long[] stored = worker.stored(n);
+            for (int k = 0; k < n; ++k) {
+                stored[k] = records.results[records.order[start + k]];
+            }
+            Arrays.sort(stored, 0, n);
+
+            BatchCryptImplementation crypt = worker.crypt();
+            byte[][] salts = worker.salts(candidates.length, salt);
+            int lanes = crypt.lanes();
+            for (int c = 0; c < candidates.length; c += lanes) {
+                if (worker.job.cancelled) {
+                    return;
+                }
+                int count = Math.min(lanes, candidates.length - c);
+                crypt.setup(keys, salts, c, count);
+                crypt.encrypt();
+                worker.job.hashes.add(count);
+                for (int lane = 0; lane < count; ++lane) {
+                    long result = crypt.getResult(lane);
+                    if (Arrays.binarySearch(stored, 0, n, result) < 0) {
+                        continue;
+                    }
+                    for (int k = start; k < end; ++k) {
+                        int i = records.order[k];
+                        if (records.results[i] == result) {
+                            visitor.matched(records.names, records.offsets[i],
+                                    records.lengths[i], c + lane);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * A range of salts, split while it holds more credentials than the
+     * grain.
+     */
+    private final class SaltRange extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int low;
+        private final int high;
+
+        /**
+         * Creates a range.
+         *
+         * @param low The first salt.
+         * @param high The salt after the last.
+         */
+        SaltRange(int low, int high) {
+            this.low = low;
+            this.high = high;
+        }
+
+        /**
+         * Split the range or process its salts, and note the end time when
+         * the whole job ends.
+         */
+        @Override
+        protected void compute() {
+            try {
+                run();
+            } finally {
+                if (low == 0 && high == SALTS) {
+                    endNanos = System.nanoTime();
+                }
+            }
+        }
+
+        /**
+         * Split the range or process its salts.
+         */
+        private void run() {
+            int[] starts = records.starts;
+            int size = starts[high] - starts[low];
+            if (size > grain && high - low > 1) {
+                // split where half of the credentials lie on each side
+                int half = starts[low] + size / 2;
+                int mid = Arrays.binarySearch(starts, low + 1, high, half);
+                mid = Math.max(low + 1, Math.min(high - 1,
+                        mid >= 0 ? mid : ~mid));
+                invokeAll(new SaltRange(low, mid), new SaltRange(mid, high));
+                return;
+            }
+
+            Worker worker = idle.poll();
+            if (worker == null) {
+                worker = new Worker(BulkCryptJob.this);
+            }
+            try {
+                for (int salt = low; salt < high; ++salt) {
+                    if (cancelled) {
+                        return;
+                    }
+                    int start = starts[salt];
+                    int end = starts[salt + 1];
+                    if (start < end) {
+                        action.process(worker, salt, start, end);
+                        processed.add(end - start);
+                    }
+                }
+            } catch (RuntimeException | Error e) {
+                synchronized (BulkCryptJob.this) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                cancelled = true;
+                throw e;
+            } finally {
+                idle.offer(worker);
+            }
+        }
+    }
+
+    /**
+     * The scratch space of a leaf task, used by one leaf at a time.
+     */
+    private static final class Worker {
+
+        final BulkCryptJob job;
+        private BatchCryptImplementation crypt;
+        private final byte[] salt = new byte[2];
+        private byte[][] salts;
+        private long[] stored = new long[64];
+
+        /**
+         * Creates the scratch space of a job.
+         *
+         * @param job The job.
+         */
+        Worker(BulkCryptJob job) {
+            this.job = job;
+        }
+
+        /**
+         * Accessor method to get the batch implementation, created on first
+         * use.
+         *
+         * @return The implementation.
+         */
+        BatchCryptImplementation crypt() {
+            if (crypt == null) {
+                crypt = BatchCryptFactory.newImplementation();
+            }
+            return crypt;
+        }
+
+        /**
+         * Accessor method to get salt bytes for every candidate, all set to
+         * one salt.
+         *
+         * @param count The number of candidates.
+         * @param salt The salt.
+         * @return An array of count references to one byte[2].
+         */
+        byte[][] salts(int count, int salt) {
+            if (salts == null) {
+                salts = new byte[count][];
+                Arrays.fill(salts, this.salt);
+            }
+            this.salt[0] = (byte) (salt & 0x3f);
+            this.salt[1] = (byte) (salt >>> 6);
+            return salts;
+        }
+
+        /**
+         * Accessor method to get space for the stored results of a salt.
+         *
+         * @param n The number of results.
+         * @return A long[] of at least n elements.
+         */
+        long[] stored(int n) {
+            if (stored.length < n) {
+                stored = new long[Math.max(n, 2 * stored.length)];
+            }
+            return stored;
+        }
+    }
+
+    /**
+     * The credentials of a job, collected from a store or snapshot and
+     * ordered by salt.
+     */
+    private static final class Records implements CredentialVisitor {
+
+        byte[] names;
+        int nameEnd;
+        int[] offsets;
+        int[] lengths;
+        int[] salts;
+        long[] results;
+        int count;
+
+        /**
+         * The indexes of the credentials in salt order, and the index into
+         * order of the first credential of each salt.
+         */
+        int[] order;
+        final int[] starts = new int[SALTS + 1];
+
+        /**
+         * Creates an empty collection.
+         *
+         * @param expected The expected number of credentials.
+         */
+        Records(int expected) {
+            int capacity = (int) Math.min(MAX_ARRAY,
+                    Math.max(16, expected + expected / 8L));
+            names = new byte[(int) Math.min(MAX_ARRAY,
+                    Math.max(1 << 10, 8L * capacity))];
+            offsets = new int[capacity];
+            lengths = new int[capacity];
+            salts = new int[capacity];
+            results = new long[capacity];
+        }
+
+        /**
+         * Add a credential.
+         *
+         * @param name The byte[] holding the UTF-8 user name.
+         * @param offset Integer offset into name.
+         * @param length The length of the name in bytes.
+         * @param salt The 12 bit salt.
+         * @param result The DES result.
+         * @exception IllegalStateException Thrown when the credentials or
+         * their names do not fit in arrays.
+         */
+        @Override
+        public void visit(byte[] name, int offset, int length, int salt,
+                long result) {
+            if (count == offsets.length) {
+                int capacity = grow(count, count + 1L, "Too many credentials");
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                salts = Arrays.copyOf(salts, capacity);
+                results = Arrays.copyOf(results, capacity);
+            }
+            if (names.length - nameEnd < length) {
+                names = Arrays.copyOf(names, grow(names.length,
+                        (long) nameEnd + length, "User names too long"));
+            }
+            System.arraycopy(name, offset, names, nameEnd, length);
+            offsets[count] = nameEnd;
+            lengths[count] = length;
+            salts[count] = salt;
+            results[count] = result;
+            nameEnd += length;
+            count++;
+        }
+
+        /**
+         * Order the credentials by salt with a counting sort.
+         */
+        void group() {
+            for (int i = 0; i < count; ++i) {
+                starts[salts[i] + 1]++;
+            }
+            for (int s = 0; s < SALTS; ++s) {
+                starts[s + 1] += starts[s];
+            }
+            int[] next = Arrays.copyOf(starts, SALTS);
+            order = new int[count];
+            for (int i = 0; i < count; ++i) {
+                order[next[salts[i]]++] = i;
+            }
+        }
+
+        /**
+         * Compute the new length of a full array, half as long again.
+         *
+         * @param length The current length.
+         * @param needed The smallest length that will do.
+         * @param message The message when no array is long enough.
+         * @return The new length.
+         * @exception IllegalStateException Thrown when the needed length is
+         * above the array limit.
+         */
+        private static int grow(int length, long needed, String message) {
+            if (needed > MAX_ARRAY) {
+                throw new IllegalStateException(message);
+            }
+            return (int) Math.min(MAX_ARRAY,
+                    Math.max(needed, length + (length >> 1) + 16L));
+        }
+    }
+}
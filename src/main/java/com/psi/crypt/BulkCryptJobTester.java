@@ -0,0 +1,199 @@
+package com.psi.crypt;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks BulkCryptJob against a sequential run. A store of random users
+ * with a few common passwords is visited by a forEach job, which must hand
+ * over every credential once with the credentials of each salt together,
+ * and audited against candidate passwords, both from the store and from a
+ * snapshot of it. The matches must be exactly the credentials whose stored
+ * string Crypt.crypt gives for a candidate and its salt. A failed check
+ * throws an IllegalStateException.
+ *
+ * <pre>
+ * java -cp target/classes com.psi.crypt.BulkCryptJobTester
+ * </pre>
+ *
+ * @author John Glynn
+ */
+public class BulkCryptJobTester {
+
+    private static final int USERS = 20000;
+    private static final String[] PASSWORDS
+            = {"alpha", "beta", "gamma", "delta", "epsilon"};
+    private static final String[] CANDIDATES = {"beta", "epsilon", "zeta"};
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(5);
+        CredentialStore store = new CredentialStore(USERS);
+        for (int i = 0; i < USERS; ++i) {
+            String salt = CryptHash.valueOf(random.nextInt(1 << 12), 0)
+                    .toString().substring(0, 2);
+            store.put("user" + i, CryptHash.parse(Crypt.crypt(
+                    PASSWORDS[random.nextInt(PASSWORDS.length)], salt)));
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            checkForEach(store, pool);
+            System.out.println("forEach of " + USERS + " users: ok");
+
+            Set<String> expected = sequentialAudit(store);
+            Set<String> matches = ConcurrentHashMap.newKeySet();
+            run(BulkCryptJob.audit(store, candidates(), collect(matches)),
+                    pool);
+            check(expected.equals(matches),
+                    "store audit differs from Crypt.crypt");
+            System.out.println("audit of the store, " + expected.size()
+                    + " matches: ok");
+
+            Path snapshot = Files.createTempFile("bulk-job", ".snapshot");
+            try {
+                CredentialSnapshot.write(store, snapshot);
+                matches.clear();
+                run(BulkCryptJob.audit(CredentialSnapshot.open(snapshot),
+                        candidates(), collect(matches)), pool);
+                check(expected.equals(matches),
+                        "snapshot audit differs from Crypt.crypt");
+                System.out.println("audit of a snapshot: ok");
+            } finally {
+                Files.delete(snapshot);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Check that a forEach job visits every credential once, the
+     * credentials of each salt together.
+     *
+     * @param store The store.
+     * @param pool The pool running the job.
+     * @exception InterruptedException Thrown when interrupted.
+     */
+    private static void checkForEach(CredentialStore store, ForkJoinPool pool)
+            throws InterruptedException {
+        Map<String, CryptHash> visited = new ConcurrentHashMap<>();
+        Set<Integer> finished = ConcurrentHashMap.newKeySet();
+        ThreadLocal<int[]> current
+                = ThreadLocal.withInitial(() -> new int[] {-1});
+        BulkCryptJob job = BulkCryptJob.forEach(store,
+                (name, offset, length, salt, result) -> {
+                    int[] last = current.get();
+                    if (last[0] != salt) {
+                        check(!finished.contains(salt),
+                                "salt " + salt + " visited in two parts");
+                        if (last[0] >= 0) {
+                            finished.add(last[0]);
+                        }
+                        last[0] = salt;
+                    }
+                    CryptHash old = visited.put(new String(name, offset,
+                            length, StandardCharsets.UTF_8),
+                            CryptHash.valueOf(salt, result));
+                    check(old == null, "credential visited twice");
+                });
+        run(job, pool);
+        check(contents(store).equals(new TreeMap<>(visited)),
+                "forEach visits differ from the store");
+    }
+
+    /**
+     * Run a job split into many small leaf tasks and wait for it.
+     *
+     * @param job The job.
+     * @param pool The pool running the job.
+     * @exception InterruptedException Thrown when interrupted.
+     */
+    private static void run(BulkCryptJob job, ForkJoinPool pool)
+            throws InterruptedException {
+        job.setGrain(64);
+        check(job.start(pool).await(), "job did not finish: " + job);
+    }
+
+    /**
+     * Make a visitor collecting audit matches.
+     *
+     * @param matches The set receiving each match as user and candidate
+     * number.
+     * @return The visitor.
+     */
+    private static PasswordMatchVisitor collect(Set<String> matches) {
+        return (name, offset, length, candidate) -> matches.add(new String(
+                name, offset, length, StandardCharsets.UTF_8) + "/"
+                + candidate);
+    }
+
+    /**
+     * Find the matches of the candidates one credential and candidate at a
+     * time with Crypt.crypt.
+     *
+     * @param store The store.
+     * @return The matches, as user and candidate number.
+     * @exception CryptException Thrown when a hash cannot be computed.
+     */
+    private static Set<String> sequentialAudit(CredentialStore store)
+            throws CryptException {
+        Set<String> matches = new HashSet<>();
+        for (Map.Entry<String, CryptHash> e : contents(store).entrySet()) {
+            String stored = e.getValue().toString();
+            for (int c = 0; c < CANDIDATES.length; ++c) {
+                if (Crypt.crypt(CANDIDATES[c], stored.substring(0, 2))
+                        .equals(stored)) {
+                    matches.add(e.getKey() + "/" + c);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Accessor method to get the candidate passwords.
+     *
+     * @return The candidates as char arrays.
+     */
+    private static char[][] candidates() {
+        char[][] candidates = new char[CANDIDATES.length][];
+        for (int c = 0; c < CANDIDATES.length; ++c) {
+            candidates[c] = CANDIDATES[c].toCharArray();
+        }
+        return candidates;
+    }
+
+    /**
+     * Copy the credentials of a store.
+     *
+     * @param store The store.
+     * @return The hash of each user.
+     */
+    private static Map<String, CryptHash> contents(CredentialStore store) {
+        Map<String, CryptHash> contents = new TreeMap<>();
+        store.forEach((name, offset, length, salt, result) -> contents.put(
+                new String(name, offset, length, StandardCharsets.UTF_8),
+                CryptHash.valueOf(salt, result)));
+        return contents;
+    }
+
+    /**
+     * Fail when a condition does not hold.
+     *
+     * @param condition The condition.
+     * @param message The failure message.
+     * @exception IllegalStateException Thrown when the condition is false.
+     */
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
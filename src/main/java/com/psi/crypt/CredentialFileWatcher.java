@@ -0,0 +1,769 @@
+package com.psi.crypt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a CredentialStore in step with a credential file which is updated
+ * by another program, such as a shadow file with lines of the form
+ * <code>user:hash[:fields]</code>.
+ *
+ * A daemon thread watches the directory of the file with a WatchService.
+ * When the file is modified or replaced, and has then been quiet for the
+ * settle time, it is read again with a ShadowFileReader and compared with
+ * the previous load line by line, like a diff. Each line is compared by its 64
+ * bit hash with the previous line following the last match; when they
+ * differ the line is looked up in a table of the hashes of all previous
+ * lines, and a hit continues the comparison after the line found, so lines
+ * moved by an insertion or deletion are unchanged too. Unchanged lines are
+ * not parsed.
+ *
+ * The store then ends up as ShadowFiles.load would leave it: a user has the
+ * hash of its last line whose password field is a crypt(3C) string, and a
+ * user without one, such as a locked account, is removed. Only the users
+ * of new, changed and removed lines can change, and when lines moved past
+ * each other, the users with several lines. When one of these users also
+ * has unchanged lines, the file is read a second time for the lines of
+ * these users. A reload of a file with millions of lines makes as many
+ * store writes as users changed. Readers of the store never block: each
+ * write locks only its stripe.
+ *
+ * Between loads the watcher keeps two longs per line, the hash of the line
+ * and the store hash of the user name, and never the names themselves.
+ * Blank lines and lines starting with # are ignored.
+ *
+ * Programs updating the file should write a new file and rename it over the
+ * old one, as passwd and shadow tools do, so that a reload never sees a
+ * half written or truncated file.
+ *
+ * @author John Glynn
+ */
+public final class CredentialFileWatcher implements Closeable {
+
+    /**
+     * The default quiet time in milliseconds between the last change of the
+     * file and the reload.
+     */
+    public static final long DEFAULT_SETTLE_MILLIS = 100;
+
+    private static final Logger LOG
+            = Logger.getLogger(CredentialFileWatcher.class.getName());
+
+    /**
+     * The hash of a line kept for a user whose store write failed. No line
+     * of the file is expected to have it, so the next load finds the line
+     * removed and resolves the user again.
+     */
+    private static final long UNRESOLVED = 0x5ca1ab1e0ddba11L;
+
+    private final Path file;
+    private final CredentialStore store;
+
+    /**
+     * The seed of the line hash.
+     */
+    private final long seed = new SecureRandom().nextLong();
+
+    private volatile long settleMillis = DEFAULT_SETTLE_MILLIS;
+    private volatile WatchService watcher;
+    private volatile Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * The failure of the last reload by the watcher thread, or null.
+     */
+    private volatile Throwable failure;
+
+    /**
+     * The lines of the previous load, guarded by this.
+     */
+    private Lines previous = new Lines(16);
+
+    /**
+     * The lines of the load before, reused for the next load, guarded by
+     * this.
+     */
+    private Lines spare = new Lines(16);
+
+    /**
+     * The line of the previous load expected next, guarded by this.
+     */
+    private int cursor;
+
+    /**
+     * The bit set of the lines of the previous load matched by this load,
+     * and their number, guarded by this.
+     */
+    private long[] matched = new long[1];
+    private int kept;
+
+    /**
+     * The new and changed lines of this load, and whether a line matched a
+     * previous line before the cursor, i.e. lines moved past each other,
+     * guarded by this.
+     */
+    private final Changes changes = new Changes();
+    private boolean reordered;
+
+    /**
+     * The table of the line hashes of the previous load, made when a line
+     * does not match the line at the cursor, guarded by this.
+     */
+    private LineTable table;
+
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder removals = new LongAdder();
+    private final LongAdder unchanged = new LongAdder();
+
+    /**
+     * Creates a watcher. Nothing is read until start() or reload().
+     *
+     * @param file The credential file.
+     * @param store The store kept in step with the file.
+     */
+    public CredentialFileWatcher(Path file, CredentialStore store) {
+        this.file = file.toAbsolutePath();
+        this.store = store;
+    }
+
+    /**
+     * Load the file and start watching it.
+     *
+     * @exception IOException Thrown when the file cannot be read or its
+     * directory cannot be watched.
+     * @exception IllegalStateException Thrown when already started or closed.
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null || closed) {
+            throw new IllegalStateException("Watcher already started");
+        }
+        Path directory = file.getParent();
+        WatchService ws = directory.getFileSystem().newWatchService();
+        try {
+            directory.register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            reload();
+        } catch (IOException | RuntimeException e) {
+            ws.close();
+            throw e;
+        }
+        this.watcher = ws;
+        this.thread = new Thread(this::watch, "CredentialFileWatcher "
+                + file.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Read the file and apply the lines changed since the previous load.
+     * The watcher thread calls this on changes; it may also be called
+     * directly. When a store write fails, the users not yet written are
+     * resolved again by the next reload.
+     *
+     * @return The number of store updates made.
+     * @exception IOException Thrown when the file cannot be read.
+     */
+    public synchronized long reload() throws IOException {
+        Lines next = spare;
+        next.count = 0;
+        long updates = 0;
+        if (matched.length << 6 < previous.count) {
+            matched = new long[(previous.count >> 6) + 1];
+        } else {
+            Arrays.fill(matched, 0);
+        }
+        kept = 0;
+        cursor = 0;
+        table = null;
+        changes.clear();
+        reordered = false;
+
+        try (ShadowFileReader reader = new ShadowFileReader(file)) {
+            while (reader.next()) {
+                scan(next, reader);
+            }
+            UserSet users = changedUsers(next);
+            if (users.count > 0) {
+                updates = resolve(next, reader, users);
+            }
+        }
+
+        accept(next);
+        reloads.increment();
+        return updates;
+    }
+
+    /**
+     * Mutator method to set the quiet time between the last change of the
+     * file and the reload, so a file written in several steps is read once.
+     *
+     * @param millis The time in milliseconds.
+     * @exception IllegalArgumentException Thrown when the time is negative.
+     */
+    public void setSettleMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Negative settle time: "
+                    + millis);
+        }
+        this.settleMillis = millis;
+    }
+
+    /**
+     * Accessor method to get the file.
+     *
+     * @return The absolute path of the file.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Accessor method to get the store.
+     *
+     * @return The store kept in step with the file.
+     */
+    public CredentialStore getStore() {
+        return store;
+    }
+
+    /**
+     * Accessor method to get the number of loads of the file.
+     *
+     * @return The number of loads.
+     */
+    public long getReloadCount() {
+        return reloads.sum();
+    }
+
+    /**
+     * Accessor method to get the number of users put into the store.
+     *
+     * @return The number of puts.
+     */
+    public long getPutCount() {
+        return puts.sum();
+    }
+
+    /**
+     * Accessor method to get the number of users removed from the store.
+     *
+     * @return The number of removals.
+     */
+    public long getRemoveCount() {
+        return removals.sum();
+    }
+
+    /**
+     * Accessor method to get the number of lines skipped as unchanged.
+     *
+     * @return The number of unchanged lines.
+     */
+    public long getUnchangedCount() {
+        return unchanged.sum();
+    }
+
+    /**
+     * Accessor method to get the failure of the last reload made by the
+     * watcher thread. The thread logs the failure and keeps watching, so
+     * the store is behind the file until a later reload succeeds.
+     *
+     * @return The exception or error, or null when the last reload
+     * succeeded.
+     */
+    public Throwable getLastFailure() {
+        return failure;
+    }
+
+    /**
+     * Test whether the watcher thread is following the file. It stops when
+     * the watcher is closed or on an error it cannot recover from, which
+     * getLastFailure() returns.
+     *
+     * @return <b>true</b> or <b>false</b>
+     */
+    public boolean isWatching() {
+        Thread t = thread;
+        return t != null && t.isAlive() && !closed;
+    }
+
+    /**
+     * Stop watching the file. The store keeps its contents.
+     */
+    @Override
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            t = thread;
+        }
+        WatchService ws = watcher;
+        if (ws != null) {
+            try {
+                ws.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Closing watch service", e);
+            }
+        }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns a string representation of the watcher.
+     *
+     * @return A string.
+     */
+    @Override
+    public String toString() {
+        return "CredentialFileWatcher[file=" + file
+                + ", reloads=" + reloads.sum()
+                + ", puts=" + puts.sum()
+                + ", removals=" + removals.sum()
+                + ", unchanged=" + unchanged.sum() + "]";
+    }
+
+    /**
+     * The loop of the watcher thread.
+     */
+    private void watch() {
+        WatchService ws = watcher;
+        Path name = file.getFileName();
+        try {
+            while (!closed) {
+                if (!changed(ws.take(), name)) {
+                    continue;
+                }
+                WatchKey key;
+                while ((key = ws.poll(settleMillis, TimeUnit.MILLISECONDS))
+                        != null) {
+                    changed(key, name);
+                }
+                try {
+                    reload();
+                    failure = null;
+                } catch (IOException | RuntimeException | InternalError e) {
+                    // the file may be between a delete and a rename, or be
+                    // truncated while mapped
+                    failure = e;
+                    LOG.log(Level.WARNING, "Cannot reload " + file, e);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // closed
+        } catch (Error e) {
+            failure = e;
+            LOG.log(Level.SEVERE, "Stopped watching " + file, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Drain the events of a key.
+     *
+     * @param key The signalled key.
+     * @param name The name of the file.
+     * @return <b>true</b> when an event concerns the file.
+     */
+    private static boolean changed(WatchKey key, Path name) {
+        boolean found = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            found |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || name.equals(event.context());
+        }
+        key.reset();
+        return found;
+    }
+
+    /**
+     * Compare the current line of a reader with the previous load and note
+     * its user when it is new or changed.
+     *
+     * @param next The lines of this load.
+     * @param reader The reader.
+     */
+    private void scan(Lines next, ShadowFileReader reader) {
+        long h = CredentialTables.hash(seed, reader.getBuffer(),
+                reader.getLineOffset(), reader.getLineLength());
+        Lines old = previous;
+        int i = cursor;
+        if (i >= old.count || old.hashes[i] != h || isMatched(i)) {
+            if (table == null) {
+                table = new LineTable(old);
+            }
+            i = table.get(h);
+            if (i >= 0 && isMatched(i)) {
+                // already matched by an identical line
+                i = -1;
+            }
+        }
+        if (i >= 0) {
+            if (i < cursor) {
+                // moved before lines matched already
+                reordered = true;
+            }
+            next.add(h, old.names[i]);
+            matched[i >> 6] |= 1L << i;
+            kept++;
+            cursor = i + 1;
+            unchanged.increment();
+            return;
+        }
+        long user = userHash(reader);
+        next.add(h, user);
+        if (user != 0) {
+            changes.add(next.count - 1, user, reader);
+        }
+    }
+
+    /**
+     * Test whether a line of the previous load was matched by this load.
+     *
+     * @param i The line number.
+     * @return <b>true</b> or <b>false</b>
+     */
+    private boolean isMatched(int i) {
+        return (matched[i >> 6] & 1L << i) != 0;
+    }
+
+    /**
+     * Compute the store hash of the user of a new or changed line.
+     *
+     * @param reader The reader positioned on the line.
+     * @return The store hash of the user name, or 0 for a line without one.
+     */
+    private long userHash(ShadowFileReader reader) {
+        if (reader.isBlankOrComment()) {
+            return 0;
+        }
+        int length = reader.getFieldLength(0);
+        if (reader.getFieldCount() < 2 || length == 0
+                || length > CredentialStore.MAX_NAME_BYTES) {
+            LOG.log(Level.FINE, "Ignoring malformed line {0} of {1}",
+                    new Object[] {reader.getLineNumber(), file});
+            return 0;
+        }
+        return store.hash(reader.getBuffer(), reader.getFieldOffset(0),
+                length);
+    }
+
+    /**
+     * Collect the users whose store entry may change: the users of new and
+     * changed lines, of the previous lines not matched and, when lines moved
+     * past each other, every user with several lines.
+     *
+     * @param next The lines of this load.
+     * @return The distinct users.
+     */
+    private UserSet changedUsers(Lines next) {
+        Lines old = previous;
+        UserSet users = new UserSet(changes.count + old.count - kept
+                + (reordered ? next.count : 0));
+        for (int c = 0; c < changes.count; ++c) {
+            users.add(changes.users[c]);
+        }
+        for (int i = 0; i < old.count && kept < old.count; ++i) {
+            if (!isMatched(i) && old.names[i] != 0) {
+                users.add(old.names[i]);
+            }
+        }
+        if (reordered) {
+            long[] names = Arrays.copyOf(next.names, next.count);
+            Arrays.sort(names);
+            for (int i = 1; i < names.length; ++i) {
+                if (names[i] != 0 && names[i] == names[i - 1]) {
+                    users.add(names[i]);
+                }
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Put each of some users into the store with the hash of its last line
+     * whose password field is a crypt(3C) string, or remove it when it has
+     * none, as a full load of the file would. The new and changed lines were
+     * parsed by the scan; the file is read again only when one of the users
+     * has unchanged lines too.
+     *
+     * @param next The lines of this load.
+     * @param reader The reader, at the end of the file.
+     * @param users The users.
+     * @return The number of store updates made.
+     * @exception IOException Thrown when the file cannot be read.
+     */
+    private long resolve(Lines next, ShadowFileReader reader, UserSet users)
+            throws IOException {
+        int n = users.count;
+        int[] salts = new int[n];
+        Arrays.fill(salts, -1);
+        long[] results = new long[n];
+        int[] nameOffsets = new int[n];
+        int[] nameLengths = new int[n];
+        byte[] names;
+
+        boolean reread = false;
+        for (int i = 0, c = 0; i < next.count && !reread; ++i) {
+            if (c < changes.count && changes.lines[c] == i) {
+                c++;
+            } else {
+                reread = next.names[i] != 0 && users.get(next.names[i]) >= 0;
+            }
+        }
+
+        if (!reread) {
+            names = changes.names;
+            for (int c = 0; c < changes.count; ++c) {
+                int k = users.get(changes.users[c]);
+                if (changes.salts[c] >= 0) {
+                    salts[k] = changes.salts[c];
+                    results[k] = changes.results[c];
+                    nameOffsets[k] = changes.nameOffsets[c];
+                    nameLengths[k] = changes.nameLengths[c];
+                }
+            }
+        } else {
+            names = new byte[16 * n];
+            int namesEnd = 0;
+            reader.rewind();
+            for (int i = 0; i < next.count && reader.next(); ++i) {
+                long user = next.names[i];
+                int k;
+                if (user == 0 || (k = users.get(user)) < 0
+                        || !reader.isCryptHash(ShadowFiles.PASSWORD_FIELD)) {
+                    continue;
+                }
+                salts[k] = reader.getSalt(ShadowFiles.PASSWORD_FIELD);
+                results[k] = reader.getResult(ShadowFiles.PASSWORD_FIELD);
+                if (nameLengths[k] == 0) {
+                    int length = reader.getFieldLength(0);
+                    if (namesEnd + length > names.length) {
+                        names = Arrays.copyOf(names, Math.max(
+                                2 * names.length, namesEnd + length));
+                    }
+                    System.arraycopy(reader.getBuffer(),
+                            reader.getFieldOffset(0), names, namesEnd, length);
+                    nameOffsets[k] = namesEnd;
+                    nameLengths[k] = length;
+                    namesEnd += length;
+                }
+            }
+        }
+
+        long updates = 0;
+        int k = 0;
+        try {
+            for (; k < n; ++k) {
+                if (salts[k] >= 0) {
+                    store.put(names, nameOffsets[k], nameLengths[k],
+                            salts[k], results[k]);
+                    puts.increment();
+                    updates++;
+                } else if (store.remove(users.users[k])) {
+                    removals.increment();
+                    updates++;
+                }
+            }
+        } finally {
+            if (k < n) {
+                // the store holds part of this load: keep this load, with a
+                // line no file has for each user not written
+                for (; k < n; ++k) {
+                    next.add(UNRESOLVED, users.users[k]);
+                }
+                accept(next);
+            }
+        }
+        return updates;
+    }
+
+    /**
+     * Make a load the previous load.
+     *
+     * @param next The lines of the load.
+     */
+    private void accept(Lines next) {
+        spare = previous;
+        previous = next;
+        table = null;
+    }
+
+    /**
+     * The line hashes and user name hashes of the lines of a load, in file
+     * order.
+     */
+    private static final class Lines {
+
+        long[] hashes;
+        long[] names;
+        int count;
+
+        Lines(int capacity) {
+            hashes = new long[capacity];
+            names = new long[capacity];
+        }
+
+        void add(long hash, long name) {
+            if (count == hashes.length) {
+                int capacity = count + (count >> 1) + 16;
+                hashes = Arrays.copyOf(hashes, capacity);
+                names = Arrays.copyOf(names, capacity);
+            }
+            hashes[count] = hash;
+            names[count] = name;
+            count++;
+        }
+    }
+
+    /**
+     * The new and changed lines of a load with a user name, in file order:
+     * the line number, the store hash of the user, the salt or -1 when the
+     * password field is not a crypt(3C) string, the DES result and the name.
+     */
+    private static final class Changes {
+
+        int[] lines = new int[16];
+        long[] users = new long[16];
+        int[] salts = new int[16];
+        long[] results = new long[16];
+        int[] nameOffsets = new int[16];
+        int[] nameLengths = new int[16];
+        byte[] names = new byte[256];
+        int namesEnd;
+        int count;
+
+        void add(int line, long user, ShadowFileReader reader) {
+            if (count == lines.length) {
+                int capacity = count + (count >> 1) + 16;
+                lines = Arrays.copyOf(lines, capacity);
+                users = Arrays.copyOf(users, capacity);
+                salts = Arrays.copyOf(salts, capacity);
+                results = Arrays.copyOf(results, capacity);
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+                nameLengths = Arrays.copyOf(nameLengths, capacity);
+            }
+            int length = reader.getFieldLength(0);
+            if (namesEnd + length > names.length) {
+                names = Arrays.copyOf(names,
+                        Math.max(2 * names.length, namesEnd + length));
+            }
+            System.arraycopy(reader.getBuffer(), reader.getFieldOffset(0),
+                    names, namesEnd, length);
+            lines[count] = line;
+            users[count] = user;
+            if (reader.isCryptHash(ShadowFiles.PASSWORD_FIELD)) {
+                salts[count] = reader.getSalt(ShadowFiles.PASSWORD_FIELD);
+                results[count] = reader.getResult(ShadowFiles.PASSWORD_FIELD);
+            } else {
+                salts[count] = -1;
+            }
+            nameOffsets[count] = namesEnd;
+            nameLengths[count] = length;
+            namesEnd += length;
+            count++;
+        }
+
+        void clear() {
+            count = 0;
+            namesEnd = 0;
+        }
+    }
+
+    /**
+     * An open addressing set of the store hashes of users, which numbers the
+     * users in the order they are added.
+     */
+    private static final class UserSet {
+
+        final long[] keys;
+        final int[] rows;
+        final int mask;
+        long[] users = new long[16];
+        int count;
+
+        UserSet(int capacity) {
+            int slots = CredentialTables.slotsFor(capacity);
+            keys = new long[slots];
+            rows = new int[slots];
+            mask = slots - 1;
+        }
+
+        void add(long h) {
+            int i = (int) h & mask;
+            while (keys[i] != 0) {
+                if (keys[i] == h) {
+                    return;
+                }
+                i = i + 1 & mask;
+            }
+            if (count == users.length) {
+                users = Arrays.copyOf(users, count + (count >> 1) + 16);
+            }
+            keys[i] = h;
+            rows[i] = count;
+            users[count++] = h;
+        }
+
+        int get(long h) {
+            for (int i = (int) h & mask; keys[i] != 0; i = i + 1 & mask) {
+                if (keys[i] == h) {
+                    return rows[i];
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * An open addressing table from the line hashes of a load to their line
+     * numbers. A hash of several identical lines maps to the last of them.
+     */
+    private static final class LineTable {
+
+        final long[] keys;
+        final int[] rows;
+        final int mask;
+
+        LineTable(Lines lines) {
+            int capacity = CredentialTables.slotsFor(lines.count);
+            keys = new long[capacity];
+            rows = new int[capacity];
+            mask = capacity - 1;
+            for (int row = 0; row < lines.count; ++row) {
+                long h = lines.hashes[row];
+                int i = (int) h & mask;
+                while (keys[i] != 0 && keys[i] != h) {
+                    i = i + 1 & mask;
+                }
+                keys[i] = h;
+                rows[i] = row;
+            }
+        }
+
+        int get(long h) {
+            for (int i = (int) h & mask; keys[i] != 0; i = i + 1 & mask) {
+                if (keys[i] == h) {
+                    return rows[i];
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.psi.crypt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Checks that the incremental reloads of a CredentialFileWatcher leave the
+ * store as a full ShadowFiles.load of the file would. Random files of a few
+ * users, with users on several lines, locked accounts, comments and blank
+ * lines, are edited step by step: lines are changed, removed, inserted,
+ * copied, swapped, moved in blocks and shuffled. After each step the file
+ * is reloaded and the store compared with a fresh load. Last, the watcher
+ * thread must pick up a change on its own. A failed check throws an
+ * IllegalStateException.
+ *
+ * <pre>
+ * java -cp target/classes com.psi.crypt.CredentialFileWatcherTester
+ * </pre>
+ *
+ * @author John Glynn
+ */
+public class CredentialFileWatcherTester {
+
+    private static final int FILES = 300;
+    private static final int STEPS = 10;
+    private static final long WATCH_TIMEOUT_MILLIS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(11);
+        Path directory = Files.createTempDirectory("credential-watch");
+        Path file = directory.resolve("shadow");
+        try {
+            int reloads = 0;
+            for (int f = 0; f < FILES; ++f) {
+                int users = 2 + random.nextInt(40);
+                List<String> lines = new ArrayList<>();
+                for (int i = random.nextInt(60); i > 0; --i) {
+                    lines.add(random.nextInt(15) > 0 ? line(random, users)
+                            : random.nextBoolean() ? "" : "# comment");
+                }
+                CredentialStore store = new CredentialStore(16);
+                CredentialFileWatcher watcher
+                        = new CredentialFileWatcher(file, store);
+                write(file, lines);
+                watcher.reload();
+                checkLoad(file, store, "first load of file " + f);
+                for (int step = 0; step < STEPS; ++step) {
+                    edit(random, lines, users);
+                    write(file, lines);
+                    watcher.reload();
+                    reloads++;
+                    checkLoad(file, store, "file " + f + " step " + step);
+                }
+            }
+            System.out.println(reloads + " reloads equal to a full load: ok");
+
+            CredentialStore store = new CredentialStore(16);
+            try (CredentialFileWatcher watcher
+                    = new CredentialFileWatcher(file, store)) {
+                watcher.start();
+                List<String> lines = new ArrayList<>();
+                lines.add("watched:" + CryptHash.valueOf(1, 1) + ":1:2");
+                write(file, lines);
+                long deadline = System.currentTimeMillis()
+                        + WATCH_TIMEOUT_MILLIS;
+                while (!CryptHash.valueOf(1, 1).equals(store.get("watched"))
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(20);
+                }
+                check(watcher.isWatching() && watcher.getLastFailure() == null,
+                        "watcher stopped or failed: "
+                        + watcher.getLastFailure());
+                checkLoad(file, store, "watched change");
+                System.out.println("watcher thread reload: ok");
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Make a random line: mostly a crypt(3C) hash, sometimes a locked
+     * account.
+     *
+     * @param random The random numbers.
+     * @param users The number of user names to choose from.
+     * @return The line.
+     */
+    private static String line(Random random, int users) {
+        int kind = random.nextInt(10);
+        String password = kind == 0 ? "!" : kind == 1 ? "*LK*"
+                : CryptHash.valueOf(random.nextInt(1 << 12),
+                        random.nextLong()).toString();
+        return "u" + random.nextInt(users) + ":" + password + ":1:2";
+    }
+
+    /**
+     * Make one random edit of the lines.
+     *
+     * @param random The random numbers.
+     * @param lines The lines.
+     * @param users The number of user names to choose from.
+     */
+    private static void edit(Random random, List<String> lines, int users) {
+        int size = lines.size();
+        switch (random.nextInt(7)) {
+        case 0:
+            if (size > 0) {
+                lines.set(random.nextInt(size), line(random, users));
+            }
+            break;
+        case 1:
+            if (size > 0) {
+                lines.remove(random.nextInt(size));
+            }
+            break;
+        case 2:
+            lines.add(random.nextInt(size + 1), line(random, users));
+            break;
+        case 3:
+            if (size > 1) {
+                Collections.swap(lines, random.nextInt(size),
+                        random.nextInt(size));
+            }
+            break;
+        case 4:
+            if (size > 2) {
+                int start = random.nextInt(size);
+                List<String> range = lines.subList(start,
+                        start + 1 + random.nextInt(size - start));
+                List<String> block = new ArrayList<>(range);
+                range.clear();
+                lines.addAll(random.nextInt(lines.size() + 1), block);
+            }
+            break;
+        case 5:
+            if (size > 0) {
+                lines.add(random.nextInt(size + 1),
+                        lines.get(random.nextInt(size)));
+            }
+            break;
+        default:
+            Collections.shuffle(lines, random);
+            break;
+        }
+    }
+
+    /**
+     * Replace a file by a rename, as passwd tools do.
+     *
+     * @param file The file.
+     * @param lines The new lines.
+     * @exception IOException Thrown when the file cannot be written.
+     */
+    private static void write(Path file, List<String> lines)
+            throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".new");
+        Files.write(temporary, lines, StandardCharsets.UTF_8);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Check that a store holds what a full load of a file gives.
+     *
+     * @param file The file.
+     * @param store The store.
+     * @param what The case checked, for the failure message.
+     * @exception IOException Thrown when the file cannot be read.
+     */
+    private static void checkLoad(Path file, CredentialStore store,
+            String what) throws IOException {
+        CredentialStore loaded = new CredentialStore(16);
+        ShadowFiles.load(file, loaded);
+        Map<String, CryptHash> expected = contents(loaded);
+        Map<String, CryptHash> actual = contents(store);
+        check(expected.equals(actual), what + ": reload gave " + actual
+                + " but a full load " + expected);
+    }
+
+    /**
+     * Copy the credentials of a store.
+     *
+     * @param store The store.
+     * @return The hash of each user.
+     */
+    private static Map<String, CryptHash> contents(CredentialStore store) {
+        Map<String, CryptHash> contents = new TreeMap<>();
+        store.forEach((name, offset, length, salt, result) -> contents.put(
+                new String(name, offset, length, StandardCharsets.UTF_8),
+                CryptHash.valueOf(salt, result)));
+        return contents;
+    }
+
+    /**
+     * Fail when a condition does not hold.
+     *
+     * @param condition The condition.
+     * @param message The failure message.
+     * @exception IllegalStateException Thrown when the condition is false.
+     */
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
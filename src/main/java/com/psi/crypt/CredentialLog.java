@@ -0,0 +1,710 @@
+package com.psi.crypt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable CredentialStore: every update is appended to a write-ahead log
+ * and forced to disk before it is applied to the store and the update call
+ * returns.
+ *
+ * Concurrent writers share their disk flushes. A writer appends its record
+ * to an in-memory batch and waits until the log is durable past its record.
+ * The first waiter finding no flush under way becomes the leader: it takes
+ * the batch, writes it and forces the file while other writers fill the next
+ * batch, then wakes everyone the flush covered. During a mass password reset
+ * one force covers as many updates as arrive while the previous force runs.
+ *
+ * The directory holds a CredentialSnapshot and numbered log files. When the
+ * logs grow past a threshold a background compaction starts a new log file,
+ * writes a new snapshot of the store and deletes the older logs. Opening the
+ * directory loads the snapshot and replays the logs in order; a record torn
+ * by a crash, detected by its CRC32, ends the replay and is cut off.
+ *
+ * Log records are little endian:
+ *
+ * <pre>
+ * crc         4 bytes  CRC32 of the rest of the record
+ * operation   1 byte   1 put, 2 remove
+ * salt        2 bytes
+ * nameLength  2 bytes
+ * result      8 bytes
+ * name        the UTF-8 user name
+ * </pre>
+ *
+ * @author John Glynn
+ */
+public final class CredentialLog implements Closeable {
+
+    /**
+     * The name of the snapshot file in the directory.
+     */
+    public static final String SNAPSHOT_FILE = "credentials.snapshot";
+
+    /**
+     * The default log size in bytes which starts a compaction.
+     */
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 64L << 20;
+
+    private static final String LOG_PREFIX = "credentials-";
+    private static final String LOG_SUFFIX = ".log";
+
+    /**
+     * The first eight bytes of a log file, "PSICWAL1" in little endian.
+     */
+    private static final long MAGIC = 0x314c415743495350L;
+    private static final int FILE_HEADER_BYTES = 8;
+
+    private static final int RECORD_HEADER_BYTES = 17;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private static final int INITIAL_BATCH_BYTES = 64 << 10;
+
+    private static final Logger LOG
+            = Logger.getLogger(CredentialLog.class.getName());
+
+    private final Path directory;
+    private final CredentialStore store;
+
+    /**
+     * Guards the batches, the log file and the counters below.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when a flush ends or a record is applied to the store.
+     */
+    private final Condition flushed = lock.newCondition();
+
+    private FileChannel channel;
+    private long generation;
+    private ByteBuffer pending;
+    private ByteBuffer standby;
+    private boolean flushing;
+    /**
+     * The log bytes appended and the log bytes durable, counted across log
+     * files.
+     */
+    private long appended;
+    private long durable;
+    /**
+     * The log bytes whose records are applied to the store. Records are
+     * applied in log order once they are durable.
+     */
+    private long applied;
+    /**
+     * The bytes in the log files written since the last compaction.
+     */
+    private long logBytes;
+    private IOException failure;
+    private boolean closed;
+
+    private final CRC32 crc = new CRC32();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final ExecutorService compactor;
+    private volatile long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+
+    /**
+     * Creates a log appending to a new log file.
+     *
+     * @param directory The directory.
+     * @param store The store.
+     * @param generation The number of the new log file.
+     * @exception IOException Thrown when the log file cannot be created.
+     */
+    private CredentialLog(Path directory, CredentialStore store,
+            long generation) throws IOException {
+        this.directory = directory;
+        this.store = store;
+        this.generation = generation;
+        this.channel = createLog(generation);
+        this.pending = ByteBuffer.allocateDirect(INITIAL_BATCH_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        this.standby = ByteBuffer.allocateDirect(INITIAL_BATCH_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "CredentialLog compaction");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Open a log directory, creating it when needed, and recover its
+     * credentials into a store. The snapshot is loaded and the log files are
+     * replayed in order; the last record of the last log may be cut off if
+     * it was torn by a crash.
+     *
+     * @param directory The directory.
+     * @param store The store receiving the credentials, usually empty.
+     * @return The log, appending to a new log file.
+     * @exception IOException Thrown when the directory cannot be read or a
+     * file is corrupt.
+     */
+    public static CredentialLog open(Path directory, CredentialStore store)
+            throws IOException {
+        Files.createDirectories(directory);
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            CredentialSnapshot.open(snapshot).forEach(store::put);
+        }
+
+        List<Long> generations = listGenerations(directory);
+        for (int i = 0; i < generations.size(); ++i) {
+            replay(directory.resolve(logName(generations.get(i))), store,
+                    i == generations.size() - 1);
+        }
+        long next = generations.isEmpty() ? 1
+                : generations.get(generations.size() - 1) + 1;
+        CredentialLog log = new CredentialLog(directory, store, next);
+        for (long g : generations) {
+            log.logBytes += Files.size(directory.resolve(logName(g)));
+        }
+        return log;
+    }
+
+    /**
+     * Durably add or replace the hash of a user.
+     *
+     * @param user The user name.
+     * @param hash The crypt(3C) hash.
+     * @exception IOException Thrown when the log cannot be written.
+     */
+    public void put(CharSequence user, CryptHash hash) throws IOException {
+        put(user, hash.getSalt(), hash.getResult());
+    }
+
+    /**
+     * Durably add or replace the hash of a user. The record is forced to
+     * disk before the store shows the new hash, so readers never see an
+     * update the log could lose.
+     *
+     * @param user The user name.
+     * @param salt The 12 bit salt.
+     * @param result The DES result.
+     * @exception IOException Thrown when the log cannot be written.
+     * @exception IllegalArgumentException Thrown when the salt is not in
+     * range or the name is too long.
+     */
+    public void put(CharSequence user, int salt, long result)
+            throws IOException {
+        if ((salt & ~0xfff) != 0) {
+            throw new IllegalArgumentException("Salt out of range: " + salt);
+        }
+        byte[] name = CredentialTables.nameBuffer(user);
+        int length = CredentialTables.encode(user, name);
+        append(PUT, name, length, salt, result);
+    }
+
+    /**
+     * Durably remove a user.
+     *
+     * @param user The user name.
+     * @exception IOException Thrown when the log cannot be written.
+     */
+    public void remove(CharSequence user) throws IOException {
+        byte[] name = CredentialTables.nameBuffer(user);
+        int length = CredentialTables.encode(user, name);
+        append(REMOVE, name, length, 0, 0);
+    }
+
+    /**
+     * Write a new snapshot of the store and delete the logs it covers. New
+     * updates go to a fresh log file while the snapshot is written.
+     *
+     * @exception IOException Thrown when the snapshot cannot be written.
+     */
+    public synchronized void compact() throws IOException {
+        long covered;
+        lock.lock();
+        try {
+            checkOpen();
+            flushAll();
+            covered = generation;
+            FileChannel old = channel;
+            channel = createLog(generation + 1);
+            generation++;
+            logBytes = 0;
+            old.close();
+            // The snapshot must hold every record of the covered logs.
+            long end = durable;
+            while (applied < end) {
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // The snapshot rename is forced to disk before any log is deleted.
+        CredentialSnapshot.write(store, directory.resolve(SNAPSHOT_FILE));
+        for (long g : listGenerations(directory)) {
+            if (g <= covered) {
+                Files.deleteIfExists(directory.resolve(logName(g)));
+            }
+        }
+        compactions.increment();
+    }
+
+    /**
+     * Set the log size which starts a background compaction.
+     *
+     * @param bytes The threshold in bytes, or Long.MAX_VALUE to compact only
+     * when compact() is called.
+     */
+    public void setCompactionThreshold(long bytes) {
+        compactionThreshold = bytes;
+    }
+
+    /**
+     * Accessor method to get the store kept by this log.
+     *
+     * @return The store.
+     */
+    public CredentialStore getStore() {
+        return store;
+    }
+
+    /**
+     * Accessor method to get the number of records appended.
+     *
+     * @return The record count.
+     */
+    public long getRecordCount() {
+        return records.sum();
+    }
+
+    /**
+     * Accessor method to get the number of times the log was forced to disk.
+     * Records divided by syncs is the average group commit size.
+     *
+     * @return The sync count.
+     */
+    public long getSyncCount() {
+        return syncs.sum();
+    }
+
+    /**
+     * Accessor method to get the number of compactions.
+     *
+     * @return The compaction count.
+     */
+    public long getCompactionCount() {
+        return compactions.sum();
+    }
+
+    /**
+     * Flush the pending records, wait for a running compaction and close the
+     * log file.
+     *
+     * @exception IOException Thrown when the pending records cannot be
+     * written.
+     */
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            try {
+                if (failure == null) {
+                    flushAll();
+                }
+            } finally {
+                closed = true;
+                channel.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return a descriptive string with the log statistics.
+     *
+     * @return The statistics as a string.
+     */
+    @Override
+    public String toString() {
+        return "CredentialLog[directory=" + directory + ", records="
+                + getRecordCount() + ", syncs=" + getSyncCount()
+                + ", compactions=" + getCompactionCount() + "]";
+    }
+
+    /**
+     * Append a record, wait until it is durable, leading a flush when none
+     * is under way, and apply it to the store.
+     *
+     * @param operation PUT or REMOVE.
+     * @param name The byte[] holding the user name.
+     * @param length The length of the name in bytes.
+     * @param salt The 12 bit salt.
+     * @param result The DES result.
+     * @exception IOException Thrown when the log cannot be written.
+     */
+    private void append(byte operation, byte[] name, int length, int salt,
+            long result) throws IOException {
+        if (length > CredentialTables.MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("User name longer than "
+                    + CredentialTables.MAX_NAME_BYTES + " bytes");
+        }
+        boolean compact;
+        lock.lock();
+        try {
+            checkOpen();
+
+            int size = RECORD_HEADER_BYTES + length;
+            if (pending.remaining() < size) {
+                pending = grow(pending, size);
+            }
+            long first = appended;
+            int start = pending.position();
+            pending.putInt(0);
+            pending.put(operation);
+            pending.putShort((short) salt);
+            pending.putShort((short) length);
+            pending.putLong(result);
+            pending.put(name, 0, length);
+            crc.reset();
+            for (int i = start + 4; i < start + size; ++i) {
+                crc.update(pending.get(i));
+            }
+            pending.putInt(start, (int) crc.getValue());
+            records.increment();
+            appended += size;
+            long end = appended;
+
+            while (durable < end) {
+                if (failure != null) {
+                    throw new IOException("Credential log failed", failure);
+                }
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                } else {
+                    flush();
+                }
+            }
+
+            // Applied under the lock after the records before it, so the
+            // store sees updates in log order.
+            while (applied < first) {
+                flushed.awaitUninterruptibly();
+            }
+            try {
+                if (operation == PUT) {
+                    store.put(name, 0, length, salt, result);
+                } else {
+                    store.remove(name, 0, length);
+                }
+            } finally {
+                applied = end;
+                flushed.signalAll();
+            }
+            compact = logBytes > compactionThreshold;
+        } finally {
+            lock.unlock();
+        }
+
+        if (compact && compacting.compareAndSet(false, true)) {
+            try {
+                compactor.execute(() -> {
+                    try {
+                        compact();
+                    } catch (IOException | RuntimeException ex) {
+                        LOG.log(Level.WARNING, "Compaction failed", ex);
+                    } finally {
+                        compacting.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                compacting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Write and force the pending batch as the leader. Called with the lock
+     * held and no flush under way; the lock is released during the write so
+     * that other writers can fill the next batch.
+     */
+    private void flush() {
+        flushing = true;
+        ByteBuffer batch = pending;
+        pending = standby;
+        long target = appended;
+        FileChannel ch = channel;
+        lock.unlock();
+        IOException error = null;
+        try {
+            ((Buffer) batch).flip();
+            while (batch.hasRemaining()) {
+                ch.write(batch);
+            }
+            ch.force(false);
+            syncs.increment();
+        } catch (IOException ex) {
+            error = ex;
+        } finally {
+            lock.lock();
+        }
+        ((Buffer) batch).clear();
+        standby = batch;
+        if (error != null) {
+            failure = error;
+        } else {
+            logBytes += target - durable;
+            durable = target;
+        }
+        flushing = false;
+        flushed.signalAll();
+    }
+
+    /**
+     * Wait for a running flush and flush what is pending. Called with the
+     * lock held.
+     *
+     * @exception IOException Thrown when the log cannot be written.
+     */
+    private void flushAll() throws IOException {
+        while (flushing) {
+            flushed.awaitUninterruptibly();
+        }
+        if (durable < appended) {
+            flush();
+        }
+        if (failure != null) {
+            throw new IOException("Credential log failed", failure);
+        }
+    }
+
+    /**
+     * Check that the log is usable. Called with the lock held.
+     *
+     * @exception IOException Thrown when the log is closed or failed.
+     */
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Credential log closed");
+        }
+        if (failure != null) {
+            throw new IOException("Credential log failed", failure);
+        }
+    }
+
+    /**
+     * Create a log file with its header and force it and the directory to
+     * disk.
+     *
+     * @param g The log number.
+     * @return The channel positioned after the header.
+     * @exception IOException Thrown when the file cannot be created.
+     */
+    private FileChannel createLog(long g) throws IOException {
+        FileChannel ch = FileChannel.open(directory.resolve(logName(g)),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(0, MAGIC);
+        while (header.hasRemaining()) {
+            ch.write(header);
+        }
+        ch.force(true);
+        CredentialSnapshot.forceDirectory(directory);
+        return ch;
+    }
+
+    /**
+     * Replay a log file into a store.
+     *
+     * @param path The log file.
+     * @param store The store.
+     * @param last Whether this is the newest log, whose torn tail is cut off.
+     * An earlier log must be complete.
+     * @exception IOException Thrown when the file is not a log or is corrupt.
+     */
+    private static void replay(Path path, CredentialStore store, boolean last)
+            throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.allocate(2 * INITIAL_BATCH_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            long position = FILE_HEADER_BYTES;
+            long size = ch.size();
+            ((Buffer) buf).limit(FILE_HEADER_BYTES);
+            if (size < FILE_HEADER_BYTES || ch.read(buf, 0) < FILE_HEADER_BYTES
+                    || buf.getLong(0) != MAGIC) {
+                throw new IOException("Not a credential log: " + path);
+            }
+
+            CRC32 crc = new CRC32();
+            byte[] name = new byte[CredentialTables.MAX_NAME_BYTES];
+            ((Buffer) buf).clear().limit(0);
+            while (position < size) {
+                if (!fill(ch, buf, position, RECORD_HEADER_BYTES)) {
+                    break;
+                }
+                int p = buf.position();
+                int checksum = buf.getInt(p);
+                byte operation = buf.get(p + 4);
+                int salt = buf.getShort(p + 5) & 0xfff;
+                int length = buf.getShort(p + 7) & 0xffff;
+                long result = buf.getLong(p + 9);
+                int recordBytes = RECORD_HEADER_BYTES + length;
+                if (!fill(ch, buf, position, recordBytes)) {
+                    break;
+                }
+                p = buf.position();
+                crc.reset();
+                for (int i = p + 4; i < p + recordBytes; ++i) {
+                    crc.update(buf.get(i));
+                }
+                if ((int) crc.getValue() != checksum
+                        || operation != PUT && operation != REMOVE) {
+                    break;
+                }
+                for (int i = 0; i < length; ++i) {
+                    name[i] = buf.get(p + RECORD_HEADER_BYTES + i);
+                }
+                if (operation == PUT) {
+                    store.put(name, 0, length, salt, result);
+                } else {
+                    store.remove(name, 0, length);
+                }
+                ((Buffer) buf).position(p + recordBytes);
+                position += recordBytes;
+            }
+
+            if (position < size) {
+                if (!last) {
+                    throw new IOException("Corrupt credential log at "
+                            + position + ": " + path);
+                }
+                LOG.log(Level.WARNING, "Cutting off {0} bytes torn from {1}",
+                        new Object[]{size - position, path});
+                ch.truncate(position);
+                ch.force(true);
+            }
+        }
+    }
+
+    /**
+     * Make sure a buffer holds a number of bytes from a file, reading more
+     * when needed. The buffer position is the file position.
+     *
+     * @param ch The channel.
+     * @param buf The buffer, whose remaining bytes are the file bytes from
+     * position.
+     * @param position The file position of the buffer position.
+     * @param needed The number of bytes needed.
+     * @return <b>false</b> when the file ends first.
+     * @exception IOException Thrown when reading fails.
+     */
+    private static boolean fill(FileChannel ch, ByteBuffer buf, long position,
+            int needed) throws IOException {
+        if (buf.remaining() >= needed) {
+            return true;
+        }
+        buf.compact();
+        long next = position + buf.position();
+        while (buf.position() < needed) {
+            int n = ch.read(buf, next);
+            if (n <= 0) {
+                ((Buffer) buf).flip();
+                return false;
+            }
+            next += n;
+        }
+        ((Buffer) buf).flip();
+        return true;
+    }
+
+    /**
+     * Replace a batch buffer with a larger one holding the same bytes.
+     *
+     * @param buf The buffer.
+     * @param needed The number of bytes which must fit after the current
+     * ones.
+     * @return The new buffer.
+     */
+    private static ByteBuffer grow(ByteBuffer buf, int needed) {
+        int capacity = buf.capacity();
+        while (capacity - buf.position() < needed) {
+            capacity *= 2;
+        }
+        ByteBuffer bigger = ByteBuffer.allocateDirect(capacity)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer) buf).flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    /**
+     * List the numbers of the log files in a directory.
+     *
+     * @param directory The directory.
+     * @return The log numbers in ascending order.
+     * @exception IOException Thrown when the directory cannot be read.
+     */
+    private static List<Long> listGenerations(Path directory)
+            throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(
+                            LOG_PREFIX.length(),
+                            name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    LOG.log(Level.WARNING, "Ignoring {0}", file);
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * Returns the file name of a log.
+     *
+     * @param g The log number.
+     * @return The file name.
+     */
+    private static String logName(long g) {
+        return String.format("%s%016d%s", LOG_PREFIX, g, LOG_SUFFIX);
+    }
+}
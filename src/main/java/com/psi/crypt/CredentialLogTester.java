@@ -0,0 +1,178 @@
+package com.psi.crypt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Checks that a CredentialLog recovers the store it kept. Several threads
+ * put and remove the same few users through one log while background
+ * compactions run. The directory is then opened into a new store, once as
+ * it was left and once with a torn record at the end of the last log, and
+ * each time the store must equal the one the threads left. A failed check
+ * throws an IllegalStateException.
+ *
+ * <pre>
+ * java -cp target/classes com.psi.crypt.CredentialLogTester
+ * </pre>
+ *
+ * @author John Glynn
+ */
+public class CredentialLogTester {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 2000;
+    private static final int USERS = 10;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("credential-log");
+        try {
+            CredentialStore store = new CredentialStore(USERS);
+            CredentialLog log = CredentialLog.open(directory, store);
+            log.setCompactionThreshold(16 << 10);
+            updateConcurrently(log);
+            log.close();
+            Map<String, CryptHash> expected = contents(store);
+            System.out.println(log);
+
+            check(expected.equals(recover(directory)),
+                    "replay differs from the store");
+            System.out.println("replay of " + expected.size() + " users: ok");
+
+            Files.write(lastLog(directory), new byte[] {1, 2, 3, 4, 5, 6, 7},
+                    StandardOpenOption.APPEND);
+            check(expected.equals(recover(directory)),
+                    "replay with a torn record differs from the store");
+            System.out.println("replay with a torn record: ok");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Put and remove random users from several threads at once.
+     *
+     * @param log The log.
+     * @exception Exception The first exception thrown by a thread.
+     */
+    private static void updateConcurrently(CredentialLog log)
+            throws Exception {
+        List<Exception> failures = Collections.synchronizedList(
+                new ArrayList<>());
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; ++t) {
+            Random random = new Random(t);
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < OPERATIONS; ++i) {
+                        String user = "user" + random.nextInt(USERS);
+                        if (random.nextInt(4) == 0) {
+                            log.remove(user);
+                        } else {
+                            log.put(user, random.nextInt(1 << 12),
+                                    random.nextLong());
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failures.add(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+    }
+
+    /**
+     * Open a log directory into a new store.
+     *
+     * @param directory The directory.
+     * @return The credentials recovered.
+     * @exception IOException Thrown when the directory cannot be read.
+     */
+    private static Map<String, CryptHash> recover(Path directory)
+            throws IOException {
+        CredentialStore store = new CredentialStore(USERS);
+        CredentialLog.open(directory, store).close();
+        return contents(store);
+    }
+
+    /**
+     * Copy the credentials of a store.
+     *
+     * @param store The store.
+     * @return The hash of each user.
+     */
+    private static Map<String, CryptHash> contents(CredentialStore store) {
+        Map<String, CryptHash> contents = new TreeMap<>();
+        store.forEach((name, offset, length, salt, result) -> contents.put(
+                new String(name, offset, length, StandardCharsets.UTF_8),
+                CryptHash.valueOf(salt, result)));
+        return contents;
+    }
+
+    /**
+     * Find the newest log file of a directory.
+     *
+     * @param directory The directory.
+     * @return The log file with the highest generation.
+     * @exception IOException Thrown when the directory cannot be read.
+     */
+    private static Path lastLog(Path directory) throws IOException {
+        Path last = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!name.equals(CredentialLog.SNAPSHOT_FILE) && (last == null
+                        || name.compareTo(last.getFileName().toString()) > 0)) {
+                    last = file;
+                }
+            }
+        }
+        check(last != null, "no log file in " + directory);
+        return last;
+    }
+
+    /**
+     * Delete a directory and the files in it.
+     *
+     * @param directory The directory.
+     * @exception IOException Thrown when a file cannot be deleted.
+     */
+    private static void delete(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Fail when a condition does not hold.
+     *
+     * @param condition The condition.
+     * @param message The failure message.
+     * @exception IllegalStateException Thrown when the condition is false.
+     */
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
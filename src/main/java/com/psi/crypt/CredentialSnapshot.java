@@ -0,0 +1,466 @@
+package com.psi.crypt;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A read-only credential set mapped from a snapshot file and queried in
+ * place. Opening a snapshot maps its segments without reading them, so it
+ * takes the same time for any number of accounts, and JVMs mapping the same
+ * file share its pages in the page cache.
+ *
+ * A snapshot holds the stripes of a CredentialStore as they are laid out in
+ * memory. All numbers are little endian.
+ *
+ * <pre>
+ * header     magic        8 bytes  "PSICREDS"
+ *            version      4 bytes
+ *            stripes      4 bytes  a power of two
+ *            seed         8 bytes  the seed of the user name hash
+ *            size         8 bytes  the number of accounts
+ *            crc          4 bytes  CRC32 of the header and directory
+ *            reserved     4 bytes
+ * directory  per stripe:
+ *            offset       8 bytes  file position of the segment
+ *            slots        4 bytes  a power of two
+ *            nameBytes    4 bytes
+ *            size         4 bytes
+ *            crc          4 bytes  CRC32 of the segment
+ * segments   per stripe, at a page boundary:
+ *            slots        24 bytes each, as in CredentialStore
+ *            names        the UTF-8 user names
+ * </pre>
+ *
+ * The header checksum is verified when a snapshot is opened. Verifying the
+ * segment checksums reads the whole file, so it is left to
+ * verifyChecksums().
+ *
+ * @author John Glynn
+ */
+public final class CredentialSnapshot {
+
+    /**
+     * The first eight bytes of a snapshot file.
+     */
+    private static final long MAGIC = 0x5344455243495350L;
+
+    /**
+     * The format version written by this class.
+     */
+    public static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 40;
+    private static final int CRC_POSITION = 32;
+    private static final int DIRECTORY_ENTRY_BYTES = 24;
+    private static final int SEGMENT_ALIGNMENT = 4096;
+
+    private final Path path;
+    private final int version;
+    private final long seed;
+    private final long size;
+    private final int stripeBits;
+    private final CredentialTables[] segments;
+    private final int[] checksums;
+
+    /**
+     * Creates a snapshot from its mapped segments.
+     *
+     * @param path The snapshot file.
+     * @param version The format version.
+     * @param seed The seed of the user name hash.
+     * @param size The number of users.
+     * @param segments The mapped segments.
+     * @param checksums The expected checksum of each segment.
+     */
+    private CredentialSnapshot(Path path, int version, long seed, long size,
+            CredentialTables[] segments, int[] checksums) {
+        this.path = path;
+        this.version = version;
+        this.seed = seed;
+        this.size = size;
+        this.stripeBits = Integer.numberOfTrailingZeros(segments.length);
+        this.segments = segments;
+        this.checksums = checksums;
+    }
+
+    /**
+     * Write the accounts of a store to a snapshot file. The file is written
+     * under a temporary name, forced to disk and renamed, so readers see
+     * either the old snapshot or the complete new one. The directory is
+     * forced after the rename, so the rename survives a crash once this
+     * returns. Each stripe is copied under its lock; updates made to other
+     * stripes during the copy may or may not be included.
+     *
+     * @param store The store.
+     * @param path The snapshot file.
+     * @exception IOException Thrown when the file cannot be written.
+     */
+    public static void write(CredentialStore store, Path path)
+            throws IOException {
+        int stripes = store.getStripeCount();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES
+                + stripes * DIRECTORY_ENTRY_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer) header).position(HEADER_BYTES);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            long position = align(header.capacity());
+            long size = 0;
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < stripes; ++i) {
+                CredentialTables t = store.copyStripe(i,
+                        ByteOrder.LITTLE_ENDIAN);
+                int count = 0;
+                for (int p = 0; p < t.slots.capacity();
+                        p += CredentialTables.SLOT_BYTES) {
+                    if (t.slots.getLong(p + CredentialTables.HASH) != 0) {
+                        ++count;
+                    }
+                }
+
+                crc.reset();
+                crc.update(t.slots.duplicate());
+                crc.update(t.names.duplicate());
+                header.putLong(position);
+                header.putInt(t.capacity());
+                header.putInt(t.names.capacity());
+                header.putInt(count);
+                header.putInt((int) crc.getValue());
+
+                writeFully(ch, t.slots.duplicate(), position);
+                writeFully(ch, t.names.duplicate(),
+                        position + t.slots.capacity());
+                position = align(position + t.slots.capacity()
+                        + t.names.capacity());
+                size += count;
+            }
+
+            header.putLong(0, MAGIC);
+            header.putInt(8, VERSION);
+            header.putInt(12, stripes);
+            header.putLong(16, store.getSeed());
+            header.putLong(24, size);
+            header.putInt(CRC_POSITION, headerChecksum(header));
+            ((Buffer) header).clear();
+            writeFully(ch, header, 0);
+            ch.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(path.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Map a snapshot file. The header and directory are read and checked;
+     * the segments are mapped read-only and paged in as they are queried.
+     * The mappings stay valid after the file is replaced or deleted and are
+     * released when the snapshot is garbage collected.
+     *
+     * @param path The snapshot file.
+     * @return The snapshot.
+     * @exception IOException Thrown when the file cannot be read, is not a
+     * snapshot, has an unsupported version or a corrupt header.
+     */
+    public static CredentialSnapshot open(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = ch.size();
+            ByteBuffer fixed = ByteBuffer.allocate(HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (fileSize < HEADER_BYTES) {
+                throw new IOException("Not a credential snapshot: " + path);
+            }
+            readFully(ch, fixed, 0);
+            if (fixed.getLong(0) != MAGIC) {
+                throw new IOException("Not a credential snapshot: " + path);
+            }
+            int version = fixed.getInt(8);
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version "
+                        + version + ": " + path);
+            }
+            int stripes = fixed.getInt(12);
+            if (stripes < 1 || stripes > 1 << 16
+                    || Integer.bitCount(stripes) != 1
+                    || fileSize < HEADER_BYTES
+                    + (long) stripes * DIRECTORY_ENTRY_BYTES) {
+                throw new IOException("Corrupt snapshot header: " + path);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES
+                    + stripes * DIRECTORY_ENTRY_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            readFully(ch, header, 0);
+            if (header.getInt(CRC_POSITION) != headerChecksum(header)) {
+                throw new IOException("Snapshot header checksum mismatch: "
+                        + path);
+            }
+
+            CredentialTables[] segments = new CredentialTables[stripes];
+            int[] checksums = new int[stripes];
+            for (int i = 0; i < stripes; ++i) {
+                int d = HEADER_BYTES + i * DIRECTORY_ENTRY_BYTES;
+                long offset = header.getLong(d);
+                int slots = header.getInt(d + 8);
+                int nameBytes = header.getInt(d + 12);
+                checksums[i] = header.getInt(d + 20);
+                long slotBytes = (long) slots * CredentialTables.SLOT_BYTES;
+                if (slots < 1 || Integer.bitCount(slots) != 1
+                        || slotBytes > Integer.MAX_VALUE || nameBytes < 0
+                        || offset < 0
+                        || offset > fileSize - slotBytes - nameBytes) {
+                    throw new IOException("Corrupt snapshot directory: "
+                            + path);
+                }
+                MappedByteBuffer slotMap = ch.map(FileChannel.MapMode.READ_ONLY,
+                        offset, slotBytes);
+                MappedByteBuffer nameMap = ch.map(FileChannel.MapMode.READ_ONLY,
+                        offset + slotBytes, nameBytes);
+                slotMap.order(ByteOrder.LITTLE_ENDIAN);
+                segments[i] = new CredentialTables(slotMap, nameMap);
+            }
+            return new CredentialSnapshot(path, version,
+                    header.getLong(16), header.getLong(24), segments,
+                    checksums);
+        }
+    }
+
+    /**
+     * Read every segment and compare it with its checksum.
+     *
+     * @exception IOException Thrown when a segment is corrupt.
+     */
+    public void verifyChecksums() throws IOException {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < segments.length; ++i) {
+            crc.reset();
+            crc.update(segments[i].slots.duplicate());
+            crc.update(segments[i].names.duplicate());
+            if ((int) crc.getValue() != checksums[i]) {
+                throw new IOException("Snapshot segment " + i
+                        + " checksum mismatch: " + path);
+            }
+        }
+    }
+
+    /**
+     * Look up the hash of a user.
+     *
+     * @param user The user name.
+     * @return The hash, or null when the user is not present.
+     */
+    public CryptHash get(CharSequence user) {
+        byte[] name = CredentialTables.nameBuffer(user);
+        int length = CredentialTables.encode(user, name);
+        return get(name, 0, length);
+    }
+
+    /**
+     * Look up the hash of a user whose name is given as UTF-8 bytes.
+     *
+     * @param user The byte[] holding the user name.
+     * @param offset Integer offset into user.
+     * @param length The length of the name in bytes.
+     * @return The hash, or null when the user is not present.
+     */
+    public CryptHash get(byte[] user, int offset, int length) {
+        long h = CredentialTables.hash(seed, user, offset, length);
+        CredentialTables t = segment(h);
+        int p = t.find(h, user, offset, length);
+        return p >= 0 ? new CryptHash(t.salt(p), t.result(p)) : null;
+    }
+
+    /**
+     * Test whether a user is present.
+     *
+     * @param user The user name.
+     * @return <b>true</b> or <b>false</b>
+     */
+    public boolean contains(CharSequence user) {
+        byte[] name = CredentialTables.nameBuffer(user);
+        int length = CredentialTables.encode(user, name);
+        long h = CredentialTables.hash(seed, name, 0, length);
+        return segment(h).find(h, name, 0, length) >= 0;
+    }
+
+    /**
+     * Check the password of a user without allocating once the calling
+     * thread has hashed its first password. An unknown user costs a hash
+     * like a known one.
+     *
+     * @param user The user name.
+     * @param password The password characters.
+     * @return <b>true</b> when the user is present and the password matches.
+     */
+    public boolean verify(CharSequence user, char[] password) {
+        byte[] name = CredentialTables.nameBuffer(user);
+        int length = CredentialTables.encode(user, name);
+        return verify(name, 0, length, password);
+    }
+
+    /**
+     * Check the password of a user whose name is given as UTF-8 bytes.
+     *
+     * @param user The byte[] holding the user name.
+     * @param offset Integer offset into user.
+     * @param length The length of the name in bytes.
+     * @param password The password characters.
+     * @return <b>true</b> when the user is present and the password matches.
+     */
+    public boolean verify(byte[] user, int offset, int length,
+            char[] password) {
+        long h = CredentialTables.hash(seed, user, offset, length);
+        CredentialTables t = segment(h);
+        int p = t.find(h, user, offset, length);
+        return CredentialStore.verify(password, p >= 0 ? t.salt(p) : 0,
+                p >= 0 ? t.result(p) : 0) & p >= 0;
+    }
+
+    /**
+     * Call a visitor with every user, e.g. to load the snapshot into a
+     * CredentialStore.
+     *
+     * @param visitor The visitor.
+     */
+    public void forEach(CredentialVisitor visitor) {
+        for (CredentialTables t : segments) {
+            t.forEach(visitor);
+        }
+    }
+
+    /**
+     * Accessor method to get the number of users.
+     *
+     * @return The number of users.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Accessor method to get the format version of the file.
+     *
+     * @return The version.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Accessor method to get the snapshot file.
+     *
+     * @return The path given to open().
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Return a descriptive string.
+     *
+     * @return The path, version and size as a string.
+     */
+    @Override
+    public String toString() {
+        return "CredentialSnapshot[path=" + path + ", version=" + version
+                + ", size=" + size + ", segments=" + segments.length + "]";
+    }
+
+    /**
+     * Select the segment of a hash by its high bits, like the stripe of a
+     * CredentialStore.
+     *
+     * @param h The hash of a user name.
+     * @return The segment.
+     */
+    private CredentialTables segment(long h) {
+        return stripeBits == 0 ? segments[0]
+                : segments[(int) (h >>> 64 - stripeBits)];
+    }
+
+    /**
+     * Force a directory to disk, so that files created, renamed or deleted
+     * in it survive a crash.
+     *
+     * @param directory The directory.
+     * @exception IOException Thrown when the directory cannot be forced.
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel ch = FileChannel.open(directory,
+                StandardOpenOption.READ)) {
+            ch.force(true);
+        }
+    }
+
+    /**
+     * Compute the checksum of the header and directory, skipping the
+     * checksum field.
+     *
+     * @param header The header and directory.
+     * @return The CRC32 value.
+     */
+    private static int headerChecksum(ByteBuffer header) {
+        CRC32 crc = new CRC32();
+        ByteBuffer b = header.duplicate();
+        ((Buffer) b).position(0).limit(CRC_POSITION);
+        crc.update(b);
+        ((Buffer) b).limit(header.capacity()).position(CRC_POSITION + 4);
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Round a file position up to a page boundary.
+     *
+     * @param position The position.
+     * @return The aligned position.
+     */
+    private static long align(long position) {
+        return position + SEGMENT_ALIGNMENT - 1 & -SEGMENT_ALIGNMENT;
+    }
+
+    /**
+     * Write a whole buffer at a file position.
+     *
+     * @param ch The channel.
+     * @param buf The buffer.
+     * @param position The file position.
+     * @exception IOException Thrown when writing fails.
+     */
+    private static void writeFully(FileChannel ch, ByteBuffer buf,
+            long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += ch.write(buf, position);
+        }
+    }
+
+    /**
+     * Fill a buffer from a file position.
+     *
+     * @param ch The channel.
+     * @param buf The buffer.
+     * @param position The file position.
+     * @exception IOException Thrown when reading fails or the file ends.
+     */
+    private static void readFully(FileChannel ch, ByteBuffer buf,
+            long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,529 @@
+package com.psi.crypt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An off-heap map from user names to crypt(3C) hashes, for holding millions
+ * of accounts without millions of String objects on the heap.
+ *
+ * The map is split into stripes by the high bits of a keyed hash of the user
+ * name. Each stripe is an open addressing table with linear probing in a
+ * direct ByteBuffer, plus an arena holding the UTF-8 bytes of its user
+ * names. A slot is 24 bytes: the 64 bit hash of the name, the offset and
+ * length of the name in the arena, the 12 bit salt and the 64 bit DES
+ * result.
+ *
+ * Readers never lock. They read a stripe under a StampedLock optimistic
+ * stamp, which acts as a sequence lock, and retry when a writer changed the
+ * stripe meanwhile. Writers lock only their stripe. Removed entries are
+ * deleted by shifting the following entries back, so the table has no
+ * tombstones, and the arena is compacted when the stripe is rebuilt.
+ *
+ * @author John Glynn
+ */
+public final class CredentialStore {
+
+    /**
+     * The longest user name in UTF-8 bytes.
+     */
+    public static final int MAX_NAME_BYTES = CredentialTables.MAX_NAME_BYTES;
+
+    /**
+     * The salt hashed for unknown users, so that a failed lookup takes as
+     * long as a wrong password.
+     */
+    private static final int UNKNOWN_SALT = 0;
+
+    /**
+     * A stripe of the map, written under its own lock.
+     */
+    private static final class Stripe {
+
+        final StampedLock lock = new StampedLock();
+        volatile CredentialTables tables;
+        volatile int size;
+        /**
+         * The number of arena bytes of removed names.
+         */
+        int garbage;
+    }
+
+    private final Stripe[] stripes;
+
+    /**
+     * The number of hash bits selecting the stripe.
+     */
+    private final int stripeBits;
+
+    /**
+     * The seed of the user name hash.
+     */
+    private final long seed;
+
+    /**
+     * Creates a store sized for a number of accounts with one stripe per
+     * processor, rounded up to a power of two.
+     *
+     * @param expectedSize The expected number of accounts.
+     */
+    public CredentialStore(int expectedSize) {
+        this(expectedSize, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a store sized for a number of accounts.
+     *
+     * @param expectedSize The expected number of accounts.
+     * @param stripeCount The number of stripes, rounded up to a power of two.
+     * More stripes let more writers run at once.
+     * @exception IllegalArgumentException Thrown when the size is negative or
+     * the stripe count is not in 1 to 65536.
+     */
+    public CredentialStore(int expectedSize, int stripeCount) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Negative size: "
+                    + expectedSize);
+        }
+        if (stripeCount < 1 || stripeCount > 1 << 16) {
+            throw new IllegalArgumentException("Unsupported stripe count: "
+                    + stripeCount);
+        }
+        int count = Integer.highestOneBit(stripeCount - 1 << 1 | 1);
+        int capacity = CredentialTables.slotsFor(expectedSize / count + 1);
+
+        this.stripes = new Stripe[count];
+        this.stripeBits = Integer.numberOfTrailingZeros(count);
+        this.seed = new SecureRandom().nextLong();
+        for (int i = 0; i < count; ++i) {
+            stripes[i] = new Stripe();
+            stripes[i].tables = CredentialTables.allocateDirect(capacity,
+                    8 * capacity);
+        }
+    }
+
+    /**
+     * Add or replace the hash of a user.
+     *
+     * @param user The user name.
+     * @param hash The crypt(3C) hash.
+     * @return <b>true</b> when the user was added, <b>false</b> when an
+     * existing hash was replaced.
+     */
+    public boolean put(CharSequence user, CryptHash hash) {
+        return put(user, hash.getSalt(), hash.getResult());
+    }
+
+    /**
+     * Add or replace the hash of a user.
+     *
+     * @param user The user name.
+     * @param salt The 12 bit salt.
+     * @param result The DES result.
+     * @return <b>true</b> when the user was added, <b>false</b> when an
+     * existing hash was replaced.
+     * @exception IllegalArgumentException Thrown when the salt is not in
+     * range or the name is too long.
+     */
+    public boolean put(CharSequence user, int salt, long result) {
+        byte[] name = CredentialTables.nameBuffer(user);
+        int length = CredentialTables.encode(user, name);
+        return put(name, 0, length, salt, result);
+    }
+
+    /**
+     * Add or replace the hash of a user whose name is given as UTF-8 bytes.
+     *
+     * @param user The byte[] holding the user name.
+     * @param offset Integer offset into user.
+     * @param length The length of the name in bytes.
+     * @param salt The 12 bit salt.
+     * @param result The DES result.
+     * @return <b>true</b> when the user was added, <b>false</b> when an
+     * existing hash was replaced.
+     * @exception IllegalArgumentException Thrown when the salt is not in
+     * range or the name is too long.
+     */
+    public boolean put(byte[] user, int offset, int length, int salt,
+            long result) {
+        if ((salt & ~0xfff) != 0) {
+            throw new IllegalArgumentException("Salt out of range: " + salt);
+        }
+        if (length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("User name longer than "
+                    + MAX_NAME_BYTES + " bytes");
+        }
+        long h = CredentialTables.hash(seed, user, offset, length);
+        Stripe stripe = stripe(h);
+        long stamp = stripe.lock.writeLock();
+        try {
+            CredentialTables t = stripe.tables;
+            int p = t.find(h, user, offset, length);
+            if (p >= 0) {
+                t.slots.putShort(p + CredentialTables.SALT, (short) salt);
+                t.slots.putLong(p + CredentialTables.RESULT, result);
+                return false;
+            }
+
+            if (stripe.size + 1 > t.capacity() / 4 * 3
+                    || t.nameEnd + length > t.names.capacity()) {
+                t = rebuild(stripe, stripe.size + 1, length);
+            }
+            t.insert(h, user, offset, length, salt, result);
+            stripe.size++;
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove a user.
+     *
+     * @param user The user name.
+     * @return <b>true</b> when the user was present.
+     */
+    public boolean remove(CharSequence user) {
+        byte[] name = CredentialTables.nameBuffer(user);
+        int length = CredentialTables.encode(user, name);
+        return remove(name, 0, length);
+    }
+
+    /**
+     * Remove a user whose name is given as UTF-8 bytes.
+     *
+     * @param user The byte[] holding the user name.
+     * @param offset Integer offset into user.
+     * @param length The length of the name in bytes.
+     * @return <b>true</b> when the user was present.
+     */
+    public boolean remove(byte[] user, int offset, int length) {
+        long h = CredentialTables.hash(seed, user, offset, length);
+        Stripe stripe = stripe(h);
+        long stamp = stripe.lock.writeLock();
+        try {
+            CredentialTables t = stripe.tables;
+            int p = t.find(h, user, offset, length);
+            if (p < 0) {
+                return false;
+            }
+            t.delete(p);
+            stripe.garbage += length;
+            stripe.size--;
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Look up the hash of a user.
+     *
+     * @param user The user name.
+     * @return The hash, or null when the user is not present.
+     */
+    public CryptHash get(CharSequence user) {
+        byte[] name = CredentialTables.nameBuffer(user);
+        int length = CredentialTables.encode(user, name);
+        return get(name, 0, length);
+    }
+
+    /**
+     * Look up the hash of a user whose name is given as UTF-8 bytes.
+     *
+     * @param user The byte[] holding the user name.
+     * @param offset Integer offset into user.
+     * @param length The length of the name in bytes.
+     * @return The hash, or null when the user is not present.
+     */
+    public CryptHash get(byte[] user, int offset, int length) {
+        long h = CredentialTables.hash(seed, user, offset, length);
+        Stripe stripe = stripe(h);
+        for (;;) {
+            long stamp = stripe.lock.tryOptimisticRead();
+            CredentialTables t = stripe.tables;
+            int p = t.find(h, user, offset, length);
+            int salt = p >= 0 ? t.salt(p) : 0;
+            long result = p >= 0 ? t.result(p) : 0;
+            if (stripe.lock.validate(stamp)) {
+                return p >= 0 ? new CryptHash(salt, result) : null;
+            }
+        }
+    }
+
+    /**
+     * Test whether a user is present.
+     *
+     * @param user The user name.
+     * @return <b>true</b> or <b>false</b>
+     */
+    public boolean contains(CharSequence user) {
+        byte[] name = CredentialTables.nameBuffer(user);
+        int length = CredentialTables.encode(user, name);
+        long h = CredentialTables.hash(seed, name, 0, length);
+        Stripe stripe = stripe(h);
+        for (;;) {
+            long stamp = stripe.lock.tryOptimisticRead();
+            boolean found = stripe.tables.find(h, name, 0, length) >= 0;
+            if (stripe.lock.validate(stamp)) {
+                return found;
+            }
+        }
+    }
+
+    /**
+     * Check the password of a user without locking or allocating once the
+     * calling thread has hashed its first password. An unknown user costs a
+     * hash like a known one, so the time taken does not reveal which users
+     * exist.
+     *
+     * @param user The user name.
+     * @param password The password characters.
+     * @return <b>true</b> when the user is present and the password matches.
+     */
+    public boolean verify(CharSequence user, char[] password) {
+        byte[] name = CredentialTables.nameBuffer(user);
+        int length = CredentialTables.encode(user, name);
+        return verify(name, 0, length, password);
+    }
+
+    /**
+     * Check the password of a user whose name is given as UTF-8 bytes.
+     *
+     * @param user The byte[] holding the user name.
+     * @param offset Integer offset into user.
+     * @param length The length of the name in bytes.
+     * @param password The password characters.
+     * @return <b>true</b> when the user is present and the password matches.
+     */
+    public boolean verify(byte[] user, int offset, int length,
+            char[] password) {
+        long h = CredentialTables.hash(seed, user, offset, length);
+        Stripe stripe = stripe(h);
+        int p;
+        int salt;
+        long result;
+        for (;;) {
+            long stamp = stripe.lock.tryOptimisticRead();
+            CredentialTables t = stripe.tables;
+            p = t.find(h, user, offset, length);
+            salt = p >= 0 ? t.salt(p) : UNKNOWN_SALT;
+            result = p >= 0 ? t.result(p) : 0;
+            if (stripe.lock.validate(stamp)) {
+                break;
+            }
+        }
+        return verify(password, salt, result) & p >= 0;
+    }
+
+    /**
+     * Call a visitor with every user. Each stripe is copied under its lock
+     * and visited afterwards, so the visitor may update the store; it sees
+     * each stripe as it was when copied.
+     *
+     * @param visitor The visitor.
+     */
+    public void forEach(CredentialVisitor visitor) {
+        for (int i = 0; i < stripes.length; ++i) {
+            copyStripe(i, ByteOrder.nativeOrder()).forEach(visitor);
+        }
+    }
+
+    /**
+     * Accessor method to get the number of users.
+     *
+     * @return The number of users.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+    /**
+     * Accessor method to get the number of stripes.
+     *
+     * @return The stripe count.
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Accessor method to get the off-heap memory held by the store.
+     *
+     * @return The size in bytes of the slot tables and name arenas.
+     */
+    public long getOffHeapBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            CredentialTables t = stripe.tables;
+            bytes += t.slots.capacity() + t.names.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Removes every user. The memory of each stripe is kept for reuse.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            long stamp = stripe.lock.writeLock();
+            try {
+                stripe.tables.clear();
+                stripe.size = 0;
+                stripe.garbage = 0;
+            } finally {
+                stripe.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Return a descriptive string with the store statistics.
+     *
+     * @return The statistics as a string.
+     */
+    @Override
+    public String toString() {
+        return "CredentialStore[size=" + size() + ", stripes="
+                + getStripeCount() + ", offHeapBytes=" + getOffHeapBytes()
+                + "]";
+    }
+
+    /**
+     * Accessor method to get the seed of the user name hash.
+     *
+     * @return The seed.
+     */
+    long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Compute the hash of a user name as kept in the slots of this store.
+     *
+     * @param user The byte[] holding the user name.
+     * @param offset Integer offset into user.
+     * @param length The length of the name in bytes.
+     * @return The nonzero 64 bit hash.
+     */
+    long hash(byte[] user, int offset, int length) {
+        return CredentialTables.hash(seed, user, offset, length);
+    }
+
+    /**
+     * Remove the user whose name has a hash. The hash is keyed with the
+     * random seed of the store, so names cannot be chosen to collide.
+     *
+     * @param h The hash from hash().
+     * @return <b>true</b> when a user was removed.
+     */
+    boolean remove(long h) {
+        Stripe stripe = stripe(h);
+        long stamp = stripe.lock.writeLock();
+        try {
+            CredentialTables t = stripe.tables;
+            int p = t.findHash(h);
+            if (p < 0) {
+                return false;
+            }
+            stripe.garbage += t.slots.getShort(p + CredentialTables.NAME_LENGTH)
+                    & 0xffff;
+            t.delete(p);
+            stripe.size--;
+            return true;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copy a stripe into compact heap tables. The stripe is read locked while
+     * it is copied, so writers to other stripes carry on.
+     *
+     * @param index The stripe number.
+     * @param order The byte order of the copied slots.
+     * @return The copy.
+     */
+    CredentialTables copyStripe(int index, ByteOrder order) {
+        Stripe stripe = stripes[index];
+        long stamp = stripe.lock.readLock();
+        try {
+            CredentialTables t = stripe.tables;
+            int slots = CredentialTables.slotsFor(stripe.size);
+            CredentialTables copy = new CredentialTables(
+                    ByteBuffer.allocate(slots * CredentialTables.SLOT_BYTES)
+                    .order(order),
+                    ByteBuffer.allocate(t.nameEnd - stripe.garbage));
+            t.copyTo(copy);
+            return copy;
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Check a password against a salt and result with a pooled engine.
+     *
+     * @param password The password characters.
+     * @param salt The 12 bit salt.
+     * @param result The stored DES result.
+     * @return <b>true</b> when the password matches.
+     */
+    static boolean verify(char[] password, int salt, long result) {
+        CryptEnginePool engines = Crypt.getEnginePool();
+        CryptEngine engine = engines.acquire();
+        try {
+            return engine.verify(password, salt, result);
+        } finally {
+            engines.release(engine);
+        }
+    }
+
+    /**
+     * Select the stripe of a hash by its high bits.
+     *
+     * @param h The hash of a user name.
+     * @return The stripe.
+     */
+    private Stripe stripe(long h) {
+        return stripeBits == 0 ? stripes[0]
+                : stripes[(int) (h >>> 64 - stripeBits)];
+    }
+
+    /**
+     * Copy the live entries of a stripe into new tables sized for a number of
+     * entries, dropping the names of removed entries. Called with the write
+     * lock held.
+     *
+     * @param stripe The stripe.
+     * @param entries The number of entries the new tables must hold.
+     * @param extraNameBytes The arena space needed beyond the live names.
+     * @return The new tables, already published.
+     */
+    private static CredentialTables rebuild(Stripe stripe, int entries,
+            int extraNameBytes) {
+        CredentialTables old = stripe.tables;
+        long live = (long) old.nameEnd - stripe.garbage + extraNameBytes;
+        long nameBytes = Math.max(old.names.capacity(), 2 * live);
+        if (nameBytes > Integer.MAX_VALUE - 8) {
+            nameBytes = Integer.MAX_VALUE - 8;
+            if (live > nameBytes) {
+                throw new IllegalStateException("Stripe name arena full");
+            }
+        }
+        CredentialTables t = CredentialTables.allocateDirect(
+                Math.max(old.capacity(), CredentialTables.slotsFor(entries)),
+                (int) nameBytes);
+        old.copyTo(t);
+
+        stripe.garbage = 0;
+        stripe.tables = t;
+        return t;
+    }
+}
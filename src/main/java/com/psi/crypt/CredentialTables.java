@@ -0,0 +1,395 @@
+package com.psi.crypt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The open addressing table of user names and hashes behind a stripe of a
+ * CredentialStore or a segment of a CredentialSnapshot.
+ *
+ * A slot is 24 bytes: the 64 bit hash of the user name, the offset and
+ * length of the name in the name arena, the 12 bit salt and the 64 bit DES
+ * result. A zero name hash marks an empty slot. Slots are probed linearly
+ * from the low bits of the name hash.
+ *
+ * @author John Glynn
+ */
+final class CredentialTables {
+
+    /**
+     * The size in bytes of a slot and the offsets of its fields.
+     */
+    static final int SLOT_BYTES = 24;
+    static final int HASH = 0;
+    static final int NAME_OFFSET = 8;
+    static final int NAME_LENGTH = 12;
+    static final int SALT = 14;
+    static final int RESULT = 16;
+
+    /**
+     * The longest user name in UTF-8 bytes.
+     */
+    static final int MAX_NAME_BYTES = 0xffff;
+
+    /**
+     * The smallest number of slots in a table.
+     */
+    private static final int MIN_SLOTS = 16;
+
+    /**
+     * Scratch buffers for encoding user names given as characters.
+     */
+    private static final ThreadLocal<byte[]> NAME_BUFFER
+            = ThreadLocal.withInitial(() -> new byte[64]);
+
+    final ByteBuffer slots;
+    final ByteBuffer names;
+    final int mask;
+
+    /**
+     * The number of name arena bytes in use. Only maintained by writers.
+     */
+    int nameEnd;
+
+    /**
+     * Creates tables over existing buffers, e.g. mapped from a snapshot.
+     *
+     * @param slots The slots. The capacity must be a power of two number of
+     * slots and the byte order must be set.
+     * @param names The name arena.
+     */
+    CredentialTables(ByteBuffer slots, ByteBuffer names) {
+        this.slots = slots;
+        this.names = names;
+        this.mask = slots.capacity() / SLOT_BYTES - 1;
+    }
+
+    /**
+     * Allocate empty off-heap tables.
+     *
+     * @param capacity The number of slots, a power of two.
+     * @param nameBytes The size of the name arena.
+     * @return The tables.
+     */
+    static CredentialTables allocateDirect(int capacity, int nameBytes) {
+        return new CredentialTables(
+                ByteBuffer.allocateDirect(capacity * SLOT_BYTES)
+                .order(ByteOrder.nativeOrder()),
+                ByteBuffer.allocateDirect(nameBytes));
+    }
+
+    /**
+     * Accessor method to get the number of slots.
+     *
+     * @return The capacity.
+     */
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Find the slot of a user name. Readers call this without a lock, so
+     * every offset read from the table is checked before it is used; a torn
+     * read gives a wrong answer which the reader discards when its stamp
+     * fails to validate.
+     *
+     * @param h The hash of the user name.
+     * @param name The byte[] holding the user name.
+     * @param offset Integer offset into name.
+     * @param length The length of the name in bytes.
+     * @return The byte offset of the slot, or -1 when the name is not present.
+     */
+    int find(long h, byte[] name, int offset, int length) {
+        int i = (int) h & mask;
+        for (int n = 0; n <= mask; ++n) {
+            int p = i * SLOT_BYTES;
+            long sh = slots.getLong(p + HASH);
+            if (sh == 0) {
+                return -1;
+            }
+            if (sh == h && (slots.getShort(p + NAME_LENGTH) & 0xffff) == length) {
+                int nameOffset = slots.getInt(p + NAME_OFFSET);
+                if (nameOffset >= 0 && nameOffset <= names.capacity() - length
+                        && nameEquals(nameOffset, name, offset, length)) {
+                    return p;
+                }
+            }
+            i = i + 1 & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the slot of a name hash alone, for callers which kept the hash of
+     * a name but not the name.
+     *
+     * @param h The hash of the user name.
+     * @return The byte offset of the slot, or -1 when no slot has the hash.
+     */
+    int findHash(long h) {
+        int i = (int) h & mask;
+        for (int n = 0; n <= mask; ++n) {
+            int p = i * SLOT_BYTES;
+            long sh = slots.getLong(p + HASH);
+            if (sh == 0) {
+                return -1;
+            }
+            if (sh == h) {
+                return p;
+            }
+            i = i + 1 & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Accessor method to get the salt in a slot.
+     *
+     * @param p The byte offset of the slot.
+     * @return The 12 bit salt.
+     */
+    int salt(int p) {
+        return slots.getShort(p + SALT) & 0xfff;
+    }
+
+    /**
+     * Accessor method to get the DES result in a slot.
+     *
+     * @param p The byte offset of the slot.
+     * @return The DES result.
+     */
+    long result(int p) {
+        return slots.getLong(p + RESULT);
+    }
+
+    /**
+     * Append a name to the arena and fill a free slot. The caller makes sure
+     * there is room for both.
+     *
+     * @param h The hash of the user name.
+     * @param name The byte[] holding the user name.
+     * @param offset Integer offset into name.
+     * @param length The length of the name in bytes.
+     * @param salt The 12 bit salt.
+     * @param result The DES result.
+     */
+    void insert(long h, byte[] name, int offset, int length, int salt,
+            long result) {
+        for (int j = 0; j < length; ++j) {
+            names.put(nameEnd + j, name[offset + j]);
+        }
+        fill(h, length, salt, result);
+    }
+
+    /**
+     * Copy the live entries into other tables, compacting the names. The
+     * target must be empty and large enough.
+     *
+     * @param target The tables receiving the entries.
+     */
+    void copyTo(CredentialTables target) {
+        for (int p = 0; p <= mask * SLOT_BYTES; p += SLOT_BYTES) {
+            long h = slots.getLong(p + HASH);
+            if (h == 0) {
+                continue;
+            }
+            int nameOffset = slots.getInt(p + NAME_OFFSET);
+            int length = slots.getShort(p + NAME_LENGTH) & 0xffff;
+            for (int j = 0; j < length; ++j) {
+                target.names.put(target.nameEnd + j,
+                        names.get(nameOffset + j));
+            }
+            target.fill(h, length, salt(p), result(p));
+        }
+    }
+
+    /**
+     * Empty the slot of an entry, shifting back the entries probed past it so
+     * that no tombstone is needed.
+     *
+     * @param p The byte offset of the slot.
+     */
+    void delete(int p) {
+        int i = p / SLOT_BYTES;
+        for (int j = i + 1 & mask;; j = j + 1 & mask) {
+            long sh = slots.getLong(j * SLOT_BYTES + HASH);
+            if (sh == 0) {
+                break;
+            }
+            int ideal = (int) sh & mask;
+            if ((j - ideal & mask) >= (j - i & mask)) {
+                for (int b = 0; b < SLOT_BYTES; b += 8) {
+                    slots.putLong(i * SLOT_BYTES + b,
+                            slots.getLong(j * SLOT_BYTES + b));
+                }
+                i = j;
+            }
+        }
+        for (int b = 0; b < SLOT_BYTES; b += 8) {
+            slots.putLong(i * SLOT_BYTES + b, 0);
+        }
+    }
+
+    /**
+     * Empty every slot and the name arena.
+     */
+    void clear() {
+        for (int b = 0; b < slots.capacity(); b += 8) {
+            slots.putLong(b, 0);
+        }
+        nameEnd = 0;
+    }
+
+    /**
+     * Call a visitor with every entry.
+     *
+     * @param visitor The visitor.
+     */
+    void forEach(CredentialVisitor visitor) {
+        byte[] buf = new byte[256];
+        for (int p = 0; p <= mask * SLOT_BYTES; p += SLOT_BYTES) {
+            if (slots.getLong(p + HASH) == 0) {
+                continue;
+            }
+            int nameOffset = slots.getInt(p + NAME_OFFSET);
+            int length = slots.getShort(p + NAME_LENGTH) & 0xffff;
+            if (buf.length < length) {
+                buf = new byte[MAX_NAME_BYTES];
+            }
+            for (int j = 0; j < length; ++j) {
+                buf[j] = names.get(nameOffset + j);
+            }
+            visitor.visit(buf, 0, length, salt(p), result(p));
+        }
+    }
+
+    /**
+     * Returns the number of slots keeping a number of entries under three
+     * quarters load.
+     *
+     * @param entries The number of entries.
+     * @return A power of two number of slots.
+     */
+    static int slotsFor(int entries) {
+        long slots = Math.max(MIN_SLOTS, (long) entries * 4 / 3 + 1);
+        if (slots > 1 << 30) {
+            throw new IllegalArgumentException("Too many entries: " + entries);
+        }
+        return Integer.highestOneBit((int) slots - 1 << 1);
+    }
+
+    /**
+     * Compute the keyed hash of a user name. FNV-1a over the bytes is
+     * finished with the MurmurHash3 finalizer. Zero marks an empty slot, so
+     * it is never returned.
+     *
+     * @param seed The seed of the table.
+     * @param name The byte[] holding the user name.
+     * @param offset Integer offset into name.
+     * @param length The length of the name in bytes.
+     * @return The nonzero 64 bit hash.
+     */
+    static long hash(long seed, byte[] name, int offset, int length) {
+        long h = seed ^ 0xcbf29ce484222325L;
+        for (int i = 0; i < length; ++i) {
+            h = (h ^ name[offset + i] & 0xff) * 0x100000001b3L;
+        }
+        h = (h ^ h >>> 33) * 0xff51afd7ed558ccdL;
+        h = (h ^ h >>> 33) * 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h != 0 ? h : 1;
+    }
+
+    /**
+     * Accessor method to get the scratch buffer of the calling thread, large
+     * enough for the UTF-8 bytes of a user name.
+     *
+     * @param name The user name.
+     * @return The buffer.
+     */
+    static byte[] nameBuffer(CharSequence name) {
+        byte[] buf = NAME_BUFFER.get();
+        if (buf.length < 3 * name.length()) {
+            buf = new byte[3 * name.length()];
+            NAME_BUFFER.set(buf);
+        }
+        return buf;
+    }
+
+    /**
+     * Encode a user name as UTF-8 without allocating. Unpaired surrogates are
+     * encoded as '?' like <code>String.getBytes()</code>.
+     *
+     * @param name The user name.
+     * @param buf The byte[] receiving the bytes, from nameBuffer().
+     * @return The number of bytes.
+     */
+    static int encode(CharSequence name, byte[] buf) {
+        int length = name.length();
+        int n = 0;
+        for (int i = 0; i < length; ++i) {
+            char c = name.charAt(i);
+            if (c < 0x80) {
+                buf[n++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[n++] = (byte) (0xc0 | c >> 6);
+                buf[n++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(name.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, name.charAt(++i));
+                buf[n++] = (byte) (0xf0 | cp >> 18);
+                buf[n++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                buf[n++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                buf[n++] = (byte) (0x80 | cp & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                buf[n++] = '?';
+            } else {
+                buf[n++] = (byte) (0xe0 | c >> 12);
+                buf[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buf[n++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Fill a free slot for a name just written at the end of the arena.
+     *
+     * @param h The hash of the user name.
+     * @param length The length of the name in bytes.
+     * @param salt The 12 bit salt.
+     * @param result The DES result.
+     */
+    private void fill(long h, int length, int salt, long result) {
+        int i = (int) h & mask;
+        while (slots.getLong(i * SLOT_BYTES + HASH) != 0) {
+            i = i + 1 & mask;
+        }
+        int p = i * SLOT_BYTES;
+        slots.putInt(p + NAME_OFFSET, nameEnd);
+        slots.putShort(p + NAME_LENGTH, (short) length);
+        slots.putShort(p + SALT, (short) salt);
+        slots.putLong(p + RESULT, result);
+        slots.putLong(p + HASH, h);
+        nameEnd += length;
+    }
+
+    /**
+     * Compare a name in the arena with a name in a byte[].
+     *
+     * @param position The position of the stored name.
+     * @param name The byte[] holding the other name.
+     * @param offset Integer offset into name.
+     * @param length The length of both names.
+     * @return <b>true</b> when the names are equal.
+     */
+    private boolean nameEquals(int position, byte[] name, int offset,
+            int length) {
+        for (int i = 0; i < length; ++i) {
+            if (names.get(position + i) != name[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,21 @@
+package com.psi.crypt;
+
+/**
+ * Receiver of the entries of a credential store or snapshot.
+ *
+ * @author John Glynn
+ */
+@FunctionalInterface
+public interface CredentialVisitor {
+
+    /**
+     * Called with an entry. The name bytes are only valid during the call.
+     *
+     * @param name The byte[] holding the UTF-8 user name.
+     * @param offset Integer offset into name.
+     * @param length The length of the name in bytes.
+     * @param salt The 12 bit salt.
+     * @param result The DES result.
+     */
+    void visit(byte[] name, int offset, int length, int salt, long result);
+}
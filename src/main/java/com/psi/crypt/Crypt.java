@@ -1,82 +1,406 @@
 package com.psi.crypt;
 
-import java.security.AlgorithmParameters;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.AlgorithmParameterSpec;
-import java.security.spec.InvalidParameterSpecException;
-import java.util.UUID;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 /**
  *
  * @author john
  */
 public class Crypt {
-    private static final Logger LOG = Logger.getLogger(Crypt.class.getName());
+
+    /**
+     * The engines used by the crypt methods. The engines are called directly
+     * instead of looking up a MessageDigest for every hash.
+     */
+    private static final CryptEnginePool ENGINES = new CryptEnginePool();
+
+    static {
+        ENGINES.setKeyScheduleCache(KeyScheduleCache.fromProperty());
+    }
     
     public static String crypt(byte[] data) throws CryptException {
+        CryptAlgorithmParameterSpec spec = SaltGenerator.getDefault().nextSpec();
+        CryptEngine engine = ENGINES.acquire();
         try {
-            return doCrypt(data, generateSalt());
-        } catch (NoSuchAlgorithmException | InvalidParameterSpecException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-            throw new CryptException(ex);
+            return engine.crypt(data, spec);
+        } finally {
+            ENGINES.release(engine);
         }
     }
     
     public static String crypt(byte[] data, byte[] salt) throws CryptException {
+        CryptAlgorithmParameterSpec spec
+                = CryptAlgorithmParameterSpec.forSalt(salt);
+        CryptEngine engine = ENGINES.acquire();
         try {
-            return doCrypt(data, salt);
-        } catch (NoSuchAlgorithmException | InvalidParameterSpecException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-            throw new CryptException(ex);
+            return engine.crypt(data, spec);
+        } finally {
+            ENGINES.release(engine);
         }
     }
     
     public static String crypt(String data) throws CryptException {
+        CryptAlgorithmParameterSpec spec = SaltGenerator.getDefault().nextSpec();
+        CryptEngine engine = ENGINES.acquire();
         try {
-            return doCrypt(data.getBytes(), generateSalt());
-        } catch (NoSuchAlgorithmException | InvalidParameterSpecException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-            throw new CryptException(ex);
+            return engine.crypt(data, spec);
+        } finally {
+            ENGINES.release(engine);
         }
     }
     
     public static String crypt(String data, String salt) throws CryptException {
+        CryptAlgorithmParameterSpec spec
+                = CryptAlgorithmParameterSpec.forSalt(salt);
+        CryptEngine engine = ENGINES.acquire();
         try {
-            return doCrypt(data.getBytes(), charToBytes(salt.toCharArray()));
-        } catch (NoSuchAlgorithmException | InvalidParameterSpecException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-            throw new CryptException(ex);
+            return engine.crypt(data, spec);
+        } finally {
+            ENGINES.release(engine);
         }
     }
     
-    private static byte[] generateSalt() {
-        return charToBytes(UUID.randomUUID().toString().replaceAll("-", "")
-                .substring(0,2).toCharArray());
+    /**
+     * Hash a password into a caller supplied char[] without allocating once
+     * the calling thread has hashed its first password. ASCII passwords are
+     * used as is; other passwords are encoded with the platform charset like
+     * {@link #crypt(String, String)}.
+     *
+     * @param password The password characters. At most the first eight
+     * encoded bytes are used.
+     * @param salt The salt as two crypt(3C)-base64 characters.
+     * @param out The char[] receiving the 13 character crypt(3C) string.
+     * @param offset Integer offset into out.
+     * @exception IllegalArgumentException Thrown when the salt is shorter than
+     * two characters.
+     * @exception ArrayIndexOutOfBoundsException Thrown when the result does
+     * not fit in out at the offset.
+     */
+    public static void crypt(char[] password, CharSequence salt, char[] out,
+            int offset) {
+        CryptEngine engine = ENGINES.acquire();
+        try {
+            engine.crypt(password, salt, out, offset);
+        } finally {
+            ENGINES.release(engine);
+        }
     }
-    
-    private static byte[] charToBytes(char[] chars) {
-        byte[] bytes = new byte[chars.length];
-        for (int i = 0; i < chars.length; ++i) {
-            bytes[i] = (byte)CryptUtility.asciiToBinary(chars[i]);
+
+    /**
+     * Hash a password into a caller supplied byte[] as 13 ASCII bytes without
+     * allocating once the calling thread has hashed its first password.
+     *
+     * @param password The password characters. At most the first eight
+     * encoded bytes are used.
+     * @param salt The salt as two crypt(3C)-base64 characters.
+     * @param out The byte[] receiving the 13 character crypt(3C) string.
+     * @param offset Integer offset into out.
+     * @exception IllegalArgumentException Thrown when the salt is shorter than
+     * two characters.
+     * @exception ArrayIndexOutOfBoundsException Thrown when the result does
+     * not fit in out at the offset.
+     */
+    public static void crypt(char[] password, CharSequence salt, byte[] out,
+            int offset) {
+        CryptEngine engine = ENGINES.acquire();
+        try {
+            engine.crypt(password, salt, out, offset);
+        } finally {
+            ENGINES.release(engine);
+        }
+    }
+
+    /**
+     * Hash a password into a caller supplied char[] without allocating once
+     * the calling thread has hashed its first password.
+     *
+     * @param password The password characters. At most the first eight
+     * encoded bytes are used.
+     * @param salt The salt as two crypt(3C)-base64 characters.
+     * @param out The char[] receiving the 13 character crypt(3C) string.
+     * @param offset Integer offset into out.
+     * @exception IllegalArgumentException Thrown when the salt is shorter than
+     * two characters.
+     * @exception ArrayIndexOutOfBoundsException Thrown when the result does
+     * not fit in out at the offset.
+     */
+    public static void crypt(CharSequence password, CharSequence salt,
+            char[] out, int offset) {
+        CryptEngine engine = ENGINES.acquire();
+        try {
+            engine.crypt(password, salt, out, offset);
+        } finally {
+            ENGINES.release(engine);
+        }
+    }
+
+    /**
+     * Hash a password into a caller supplied byte[] as 13 ASCII bytes without
+     * allocating once the calling thread has hashed its first password.
+     *
+     * @param password The password characters. At most the first eight
+     * encoded bytes are used.
+     * @param salt The salt as two crypt(3C)-base64 characters.
+     * @param out The byte[] receiving the 13 character crypt(3C) string.
+     * @param offset Integer offset into out.
+     * @exception IllegalArgumentException Thrown when the salt is shorter than
+     * two characters.
+     * @exception ArrayIndexOutOfBoundsException Thrown when the result does
+     * not fit in out at the offset.
+     */
+    public static void crypt(CharSequence password, CharSequence salt,
+            byte[] out, int offset) {
+        CryptEngine engine = ENGINES.acquire();
+        try {
+            engine.crypt(password, salt, out, offset);
+        } finally {
+            ENGINES.release(engine);
+        }
+    }
+
+    /**
+     * Hash the password bytes remaining in a buffer into another buffer as 13
+     * ASCII bytes without allocating once the calling thread has hashed its
+     * first password. The position of the password buffer is not changed and
+     * the position of the output buffer is advanced by 13.
+     *
+     * @param password The password bytes. At most the first eight bytes are
+     * used.
+     * @param salt The salt as two crypt(3C)-base64 characters.
+     * @param out The buffer receiving the 13 character crypt(3C) string.
+     * @exception IllegalArgumentException Thrown when the salt is shorter than
+     * two characters.
+     * @exception BufferOverflowException Thrown when out has fewer than 13
+     * bytes remaining.
+     */
+    public static void crypt(ByteBuffer password, CharSequence salt,
+            ByteBuffer out) {
+        CryptEngine engine = ENGINES.acquire();
+        try {
+            engine.crypt(password, salt, out);
+        } finally {
+            ENGINES.release(engine);
         }
-        return bytes;
     }
-    
-    private static String doCrypt(byte[] data, byte[] salt) 
-            throws NoSuchAlgorithmException, InvalidParameterSpecException {
-        CryptDigest crypt = (CryptDigest) MessageDigest.getInstance("Crypt");
-        CryptAlgorithmParameterSpec spec = new CryptAlgorithmParameterSpec(salt);
-        AlgorithmParameters params  = AlgorithmParameters.getInstance("Crypt");
-        params.init((AlgorithmParameterSpec) spec);
-        crypt.init(params);
 
-        for (int i = 0; i < data.length; ++i) {
-            crypt.update(data[i]);
+    /**
+     * Check a password against a stored crypt(3C) string in constant time
+     * without allocating once the calling thread has hashed its first
+     * password.
+     *
+     * @param password The password characters. At most the first eight
+     * encoded bytes are used.
+     * @param storedHash The 13 character crypt(3C) string.
+     * @return <b>true</b> when the password matches, <b>false</b> when it does
+     * not or the stored string is null or malformed.
+     */
+    public static boolean verify(char[] password, CharSequence storedHash) {
+        CryptEngine engine = ENGINES.acquire();
+        try {
+            return engine.verify(password, storedHash);
+        } finally {
+            ENGINES.release(engine);
         }
+    }
 
-        return new String(crypt.digest());
+    /**
+     * Check a password against a parsed crypt(3C) hash in constant time
+     * without allocating once the calling thread has hashed its first
+     * password.
+     *
+     * @param password The password characters. At most the first eight
+     * encoded bytes are used.
+     * @param hash The stored hash.
+     * @return <b>true</b> when the password matches.
+     */
+    public static boolean verify(char[] password, CryptHash hash) {
+        CryptEngine engine = ENGINES.acquire();
+        try {
+            return engine.verify(password, hash);
+        } finally {
+            ENGINES.release(engine);
+        }
+    }
+
+    /**
+     * Check a batch of passwords against stored crypt(3C) strings, returning
+     * the results in the order of the passwords. A batch of up to four
+     * passwords is checked one by one by a pooled engine. A larger batch is
+     * hashed 64 or more passwords at a time by the bitsliced implementation.
+     * Neither sets up salt tables: the engine applies a salt as a swap mask
+     * and the bitsliced implementation as a bit swap in each lane, so the
+     * batch is not grouped by salt.
+     *
+     * @param passwords The password characters. At most the first eight
+     * encoded bytes of each are used.
+     * @param storedHashes The 13 character crypt(3C) strings. A null or
+     * malformed string matches no password.
+     * @return Whether each password matches its stored string.
+     * @exception IllegalArgumentException Thrown when the number of passwords
+     * and hashes differ.
+     */
+    public static boolean[] verifyAll(char[][] passwords,
+            CharSequence[] storedHashes) {
+        int[] salts = new int[storedHashes.length];
+        long[] results = new long[storedHashes.length];
+        for (int i = 0; i < storedHashes.length; ++i) {
+            CharSequence hash = storedHashes[i];
+            if (hash != null && hash.length() == CryptHash.LENGTH
+                    && CryptHash.isValid(hash, 0)) {
+                salts[i] = CryptHash.parseSalt(hash, 0);
+                results[i] = CryptHash.parseResult(hash, 0);
+            } else {
+                salts[i] = -1;
+            }
+        }
+        return verifyAll(passwords, salts, results);
+    }
+
+    /**
+     * Check a batch of passwords against parsed crypt(3C) hashes, returning
+     * the results in the order of the passwords, as
+     * {@link #verifyAll(char[][], CharSequence[])} does.
+     *
+     * @param passwords The password characters. At most the first eight
+     * encoded bytes of each are used.
+     * @param hashes The stored hashes. A null hash matches no password.
+     * @return Whether each password matches its stored hash.
+     * @exception IllegalArgumentException Thrown when the number of passwords
+     * and hashes differ.
+     */
+    public static boolean[] verifyAll(char[][] passwords, CryptHash[] hashes) {
+        int[] salts = new int[hashes.length];
+        long[] results = new long[hashes.length];
+        for (int i = 0; i < hashes.length; ++i) {
+            if (hashes[i] != null) {
+                salts[i] = hashes[i].getSalt();
+                results[i] = hashes[i].getResult();
+            } else {
+                salts[i] = -1;
+            }
+        }
+        return verifyAll(passwords, salts, results);
+    }
+
+    /**
+     * Hash a batch of passwords, each with its own salt. The passwords are
+     * hashed 64 or more at a time by a bitsliced implementation, which is much
+     * faster than hashing them one by one. Groups of up to four passwords, e.g.
+     * from concurrent logins, are hashed together by an interleaved table
+     * implementation instead.
+     *
+     * @param data The password bytes. At most the first eight bytes of each
+     * password are used.
+     * @param salts The salt of each password as two bytes in crypt(3C)-base64
+     * binary form.
+     * @return The crypt(3C) strings in the order of the passwords.
+     * @exception IllegalArgumentException Thrown when the number of passwords
+     * and salts differ.
+     */
+    public static String[] crypt(byte[][] data, byte[][] salts) {
+        if (data.length != salts.length) {
+            throw new IllegalArgumentException(data.length + " passwords but "
+                    + salts.length + " salts");
+        }
+
+        String[] hashes = new String[data.length];
+        BatchCryptImplementation crypt;
+        if (data.length <= InterleavedCryptImplementation.MAX_LANES) {
+            crypt = new InterleavedCryptImplementation(
+                    Math.max(2, data.length));
+        } else {
+            crypt = BatchCryptFactory.newImplementation();
+        }
+        int lanes = crypt.lanes();
+        for (int i = 0; i < data.length; i += lanes) {
+            int count = Math.min(lanes, data.length - i);
+            crypt.setup(data, salts, i, count);
+            crypt.encrypt();
+            for (int lane = 0; lane < count; ++lane) {
+                hashes[i + lane] = crypt.getCrypt3Buffer(lane);
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Accessor method to get the pool of engines used by the crypt methods,
+     * e.g. to read its statistics.
+     *
+     * @return The shared engine pool.
+     */
+    public static CryptEnginePool getEnginePool() {
+        return ENGINES;
+    }
+
+    /**
+     * Accessor method to get the cache of salted sb tables shared by the
+     * crypt implementations, e.g. to read its statistics or change its memory
+     * budget.
+     *
+     * @return The shared salt table cache.
+     */
+    public static SaltTableCache<?> getSaltTableCache() {
+        return CryptImplementation.SALT_TABLES;
+    }
+
+    /**
+     * Check a batch of passwords against hashes packed as salts and DES
+     * results, as {@link #verifyAll(char[][], CharSequence[])} describes.
+     *
+     * @param passwords The password characters.
+     * @param salts The salts, negative for malformed hashes.
+     * @param results The DES results.
+     * @return Whether each password matches.
+     */
+    private static boolean[] verifyAll(char[][] passwords, int[] salts,
+            long[] results) {
+        if (passwords.length != salts.length) {
+            throw new IllegalArgumentException(passwords.length
+                    + " passwords but " + salts.length + " hashes");
+        }
+        boolean[] matches = new boolean[passwords.length];
+        CryptEngine engine = ENGINES.acquire();
+        try {
+            if (passwords.length <= InterleavedCryptImplementation.MAX_LANES) {
+                engine.verifyAll(passwords, salts, results, matches);
+                return matches;
+            }
+
+            BatchCryptImplementation crypt
+                    = BatchCryptFactory.newImplementation();
+            int lanes = crypt.lanes();
+            byte[][] keys = new byte[lanes][8];
+            byte[][] saltBytes = new byte[lanes][2];
+            int[] index = new int[lanes];
+            int count = 0;
+            for (int i = 0; i <= passwords.length; ++i) {
+                if (i < passwords.length) {
+                    if (salts[i] < 0) {
+                        continue;
+                    }
+                    engine.keyBytes(passwords[i], keys[count]);
+                    saltBytes[count][0] = (byte) (salts[i] & 0x3f);
+                    saltBytes[count][1] = (byte) (salts[i] >>> 6 & 0x3f);
+                    index[count++] = i;
+                }
+                if (count == lanes || i == passwords.length && count > 0) {
+                    crypt.setup(keys, saltBytes, 0, count);
+                    crypt.encrypt();
+                    for (int lane = 0; lane < count; ++lane) {
+                        matches[index[lane]] = (results[index[lane]]
+                                ^ crypt.getResult(lane)) == 0;
+                    }
+                    count = 0;
+                }
+            }
+            for (byte[] key : keys) {
+                CryptUtility.clearMemory(key);
+            }
+        } finally {
+            ENGINES.release(engine);
+        }
+        return matches;
     }
 }
@@ -6,6 +6,10 @@ import java.security.spec.AlgorithmParameterSpec;
  * Transparent container for Crypt algorithm parameters. The only parameter used
  * in the algorithm is the 2 char array commonly known as the "salt".
  *
+ * Specifications for the 4096 valid salts are built once and shared. They are
+ * returned by the forSalt methods. The public accessors return copies of the
+ * salt bytes, so a shared specification cannot be changed.
+ *
  * @author John Glynn
  */
 public class CryptAlgorithmParameterSpec implements AlgorithmParameterSpec {
@@ -15,6 +19,19 @@ public class CryptAlgorithmParameterSpec implements AlgorithmParameterSpec {
      */
     private final byte[] salt;
 
+    /**
+     * The shared specifications indexed by 12 bit salt value.
+     */
+    private static final CryptAlgorithmParameterSpec[] INTERNED
+            = new CryptAlgorithmParameterSpec[SaltTableCache.SALTS];
+
+    static {
+        for (int i = 0; i < INTERNED.length; ++i) {
+            INTERNED[i] = new CryptAlgorithmParameterSpec(
+                    new byte[]{(byte) (i & 0x3f), (byte) (i >>> 6)});
+        }
+    }
+
     /**
      * Construct a specification using a char[]. The array parameter must be at
      * least 2 long or ArrayIndexOutOfBoundsException will be thrown.
@@ -47,21 +64,108 @@ public class CryptAlgorithmParameterSpec implements AlgorithmParameterSpec {
         salt[1] = sl[1];
     }
 
+    /**
+     * Returns the shared specification of a salt.
+     *
+     * @param salt The 12 bit salt value. The low six bits come from the first
+     * salt character.
+     * @return The shared specification.
+     * @exception IllegalArgumentException Thrown when the salt is not in the
+     * range 0 to 4095.
+     */
+    public static CryptAlgorithmParameterSpec forSalt(int salt) {
+        if (salt < 0 || salt >= INTERNED.length) {
+            throw new IllegalArgumentException("Salt out of range: " + salt);
+        }
+        return INTERNED[salt];
+    }
+
+    /**
+     * Returns the shared specification of a salt given as characters. Salts
+     * with characters outside the crypt(3C)-base64 alphabet get a new
+     * specification, which hashes exactly as the char[] constructor.
+     *
+     * @param chars The salt as two crypt(3C)-base64 characters.
+     * @return The specification of the salt.
+     * @exception IllegalArgumentException Thrown when there are fewer than two
+     * characters.
+     */
+    public static CryptAlgorithmParameterSpec forSalt(CharSequence chars) {
+        if (chars.length() < 2) {
+            throw new IllegalArgumentException("Salt shorter than two"
+                    + " characters");
+        }
+        return forSalt(CryptUtility.asciiToBinary(chars.charAt(0)),
+                CryptUtility.asciiToBinary(chars.charAt(1)));
+    }
+
+    /**
+     * Returns the shared specification of a salt given as bytes. Salts with
+     * bytes outside the range 0 to 63 get a new specification, which hashes
+     * exactly as the byte[] constructor.
+     *
+     * @param sl The salt as two bytes in crypt(3C)-base64 binary form.
+     * @return The specification of the salt.
+     * @exception IllegalArgumentException Thrown when there are fewer than two
+     * bytes.
+     */
+    public static CryptAlgorithmParameterSpec forSalt(byte[] sl) {
+        if (sl.length < 2) {
+            throw new IllegalArgumentException("Salt shorter than two bytes");
+        }
+        return forSalt(sl[0], sl[1]);
+    }
+
+    /**
+     * Accessor method to get the 12 bit value of the salt.
+     *
+     * @return The salt value. The low six bits come from the first salt
+     * character.
+     */
+    public int getSaltValue() {
+        return CryptTables.saltValue(salt[0], salt[1]);
+    }
+
     /**
      * Accessor method to get "salt".
      *
-     * @return Byte[] containing two byte salt value.
+     * @return A copy of the two byte salt value.
      */
     public byte[] getSalt() {
-        return salt;
+        return salt.clone();
     }
 
     /**
      * Accessor method to get "salt".
      *
-     * @return Byte[] containing two byte salt value.
+     * @return A copy of the two byte salt value.
      */
     public byte[] getEncoded() {
         return getSalt();
     }
+
+    /**
+     * Accessor method to get "salt" without copying it, for the engines. The
+     * array of a shared specification must not be modified.
+     *
+     * @return Byte[] containing two byte salt value.
+     */
+    byte[] saltBytes() {
+        return salt;
+    }
+
+    /**
+     * Returns the shared specification when both salt values are in range.
+     *
+     * @param b0 The first salt value.
+     * @param b1 The second salt value.
+     * @return The specification of the salt.
+     */
+    private static CryptAlgorithmParameterSpec forSalt(int b0, int b1) {
+        if ((b0 & ~0x3f) == 0 && (b1 & ~0x3f) == 0) {
+            return INTERNED[b0 | b1 << 6];
+        }
+        return new CryptAlgorithmParameterSpec(
+                new byte[]{(byte) b0, (byte) b1});
+    }
 }
@@ -1,30 +1,45 @@
 package com.psi.crypt;
 
-import java.security.MessageDigest;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.security.AlgorithmParameters;
+import java.security.DigestException;
+import java.security.MessageDigest;
 
 /**
  * A hashing digest which uses the crypt(3C) algorithm.
  *
+ * The digest is cloneable, so an initialized prototype can be cloned instead
+ * of going through MessageDigest.getInstance() for every hash.
+ *
  * @author John Glynn
  */
-public final class CryptDigest extends MessageDigest {
+public final class CryptDigest extends MessageDigest implements Cloneable {
 
     /**
-     * The parameters needed for this algorithm, i.e., the salt.
+     * The parameters needed for this algorithm, i.e., the salt, as the shared
+     * specification of the salt.
      */
-    private AlgorithmParameters parameters;
+    private CryptAlgorithmParameterSpec parameters;
 
     /**
-     * Internal storage for the data to be digested, i.e., the password.
+     * Internal storage for the data to be digested, i.e., the password. Each
+     * byte is masked to seven bits as it is added.
      */
-    private final byte[] buffer;
+    private byte[] buffer;
 
     /**
      * The current offset into the buffer where the next byte is to be copied.
      */
     private int offset;
 
+    /**
+     * The crypt implementation, created on the first digest and reused for
+     * every digest after that.
+     */
+    private CryptImplementation crypt;
+
     /**
      * No argument constructor required for Factory pattern.
      */
@@ -36,28 +51,80 @@ public final class CryptDigest extends MessageDigest {
     }
 
     /**
-     * Initialize the AlgorithmParameters field.
+     * Initialize the parameters. The salt is read once here, so a digest
+     * does not go through the parameters again.
      *
      * @param params An opaque representation of the parameters.
+     * @exception IllegalArgumentException Thrown when the parameters cannot
+     * be encoded.
      */
     public void init(AlgorithmParameters params) {
-        parameters = params;
+        try {
+            parameters = CryptAlgorithmParameterSpec.forSalt(
+                    params.getEncoded());
+        } catch (IOException io) {
+            throw new IllegalArgumentException(io);
+        }
     }
 
     /**
      * Performs the hash on the data currently held in the internal buffer.
+     * The buffer is cleared afterwards and the parameters are kept, so the
+     * digest is ready for the next password.
      *
      * @return The byte array containing the base64 string in crypt format.
      */
     @Override
     protected byte[] engineDigest() {
-        CryptKeySpec spec = new CryptKeySpec(buffer);
-        CryptImplementation crypt = new CryptImplementation();
+        byte[] result = new byte[13];
+        hash(result, 0);
+        clearBuffer();
+        return result;
+    }
+
+    /**
+     * Performs the hash on the data currently held in the internal buffer
+     * and writes the result into a caller supplied array. The buffer is
+     * cleared afterwards and the parameters are kept.
+     *
+     * @param buf The byte array receiving the base64 string in crypt format.
+     * @param offset The offset into buf where the result starts.
+     * @param len The number of bytes available in buf.
+     * @return The number of bytes written, which is 13.
+     * @exception DigestException Thrown when fewer than 13 bytes are
+     * available.
+     */
+    @Override
+    protected int engineDigest(byte[] buf, int offset, int len)
+            throws DigestException {
+        if (len < 13) {
+            throw new DigestException("Output buffer too small: " + len);
+        }
+        hash(buf, offset);
+        clearBuffer();
+        return 13;
+    }
+
+    /**
+     * Performs the hash on a key instead of the bytes added by update. A key
+     * created by CryptKeyFactory carries its key schedule, which is used
+     * instead of being built again. The digest is reset afterwards.
+     *
+     * @param key The key to be hashed.
+     * @return The byte array containing the base64 string in crypt format.
+     */
+    public byte[] digest(CryptKey key) {
+        if (crypt == null) {
+            crypt = new CryptImplementation();
+        }
         crypt.setupSalt(parameters);
-        crypt.makeKeyTable(new CryptKey(spec));
+        crypt.makeKeyTable(key);
         crypt.encrypt();
+        byte[] result = new byte[13];
+        crypt.getCrypt3Buffer(result, 0);
 
-        return crypt.getCrypt3Buffer().getBytes();
+        reset();
+        return result;
     }
 
     /**
@@ -65,12 +132,8 @@ public final class CryptDigest extends MessageDigest {
      */
     @Override
     protected void engineReset() {
-        offset = 0;
         parameters = null;
-
-        for (int i = 0; i < buffer.length; ++i) {
-            buffer[i] = (byte) 0;
-        }
+        clearBuffer();
     }
 
     /**
@@ -82,7 +145,7 @@ public final class CryptDigest extends MessageDigest {
     @Override
     protected void engineUpdate(byte input) {
         if (offset < buffer.length) {
-            buffer[offset] = input;
+            buffer[offset] = (byte) (input & 0x7f);
             ++offset;
         }
     }
@@ -102,10 +165,42 @@ public final class CryptDigest extends MessageDigest {
         for (int i = 0;
                 offset < buffer.length && inputOffset < input.length && i < len;
                 ++offset, ++inputOffset, ++i) {
-            buffer[offset] = input[inputOffset];
+            buffer[offset] = (byte) (input[inputOffset] & 0x7f);
         }
     }
 
+    /**
+     * Adds the bytes remaining in a buffer to the internal array if that array
+     * is not already full. At most eight bytes are stored in the internal
+     * array. All remaining bytes of the input are consumed.
+     *
+     * @param input The buffer from which bytes are copied.
+     */
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        int position = input.position();
+        int n = Math.min(buffer.length - offset, input.remaining());
+        for (int i = 0; i < n; ++i, ++offset) {
+            buffer[offset] = (byte) (input.get(position + i) & 0x7f);
+        }
+        ((Buffer) input).position(input.limit());
+    }
+
+    /**
+     * Returns a copy of this digest with the same parameters and buffered
+     * bytes. The copy creates its own crypt implementation.
+     *
+     * @return The copy.
+     * @exception CloneNotSupportedException Never thrown.
+     */
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        CryptDigest copy = (CryptDigest) super.clone();
+        copy.buffer = buffer.clone();
+        copy.crypt = null;
+        return copy;
+    }
+
     /**
      * Factory accessor method to get the length of the byte[] that will be
      * output by the digest.
@@ -116,4 +211,31 @@ public final class CryptDigest extends MessageDigest {
     protected int engineGetDigestLength() {
         return 13;
     }
+
+    /**
+     * Hash the buffered bytes with the current parameters.
+     *
+     * @param buf The byte array receiving the base64 string in crypt format.
+     * @param offset The offset into buf where the result starts.
+     */
+    private void hash(byte[] buf, int offset) {
+        if (crypt == null) {
+            crypt = new CryptImplementation();
+        }
+        crypt.setupSalt(parameters);
+        crypt.makeKeyTable(buffer);
+        crypt.encrypt();
+        crypt.getCrypt3Buffer(buf, offset);
+    }
+
+    /**
+     * Empty the internal buffer and set its bytes to zero.
+     */
+    private void clearBuffer() {
+        offset = 0;
+
+        for (int i = 0; i < buffer.length; ++i) {
+            buffer[i] = (byte) 0;
+        }
+    }
 }
@@ -0,0 +1,561 @@
+package com.psi.crypt;
+
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A reusable crypt(3C) engine which hashes char[], CharSequence and ByteBuffer
+ * passwords into caller supplied buffers without allocating. Passwords made
+ * of ASCII characters are copied straight into the key when the platform
+ * charset is ASCII compatible. Other passwords are encoded with the platform
+ * charset, like <code>String.getBytes()</code>, into scratch buffers owned by
+ * the engine.
+ *
+ * The engine is called directly, without the provider lookups and reflective
+ * construction of the MessageDigest route. Salts can be given as the interned
+ * specifications returned by CryptAlgorithmParameterSpec.forSalt(int).
+ *
+ * An engine is not thread-safe. Each thread needs its own engine.
+ *
+ * @author John Glynn
+ */
+public final class CryptEngine {
+
+    /**
+     * The number of characters in a crypt(3C) string.
+     */
+    public static final int LENGTH = 13;
+
+    /**
+     * The number of password characters passed to the charset encoder. Every
+     * character encodes to at least one byte, so this is enough for the eight
+     * key bytes even when a surrogate pair straddles the eighth byte.
+     */
+    private static final int ENCODE_CHARS = 16;
+
+    /**
+     * Whether the platform charset encodes each ASCII character as the single
+     * byte of the same value, which allows copying ASCII passwords directly.
+     */
+    private static final boolean ASCII_COMPATIBLE = isAsciiCompatible(
+            Charset.defaultCharset());
+
+    /**
+     * The crypt implementation. The salt mask implementation makes a salt
+     * change as cheap as a key change.
+     */
+    private final SaltMaskCryptImplementation crypt;
+    /**
+     * The key bytes, each masked to seven bits.
+     */
+    private final byte[] key;
+    /**
+     * Storage for the result string.
+     */
+    private final char[] crypt_3_buf;
+    /**
+     * Encoder for passwords containing non ASCII characters, created on first
+     * use.
+     */
+    private CharsetEncoder encoder;
+    /**
+     * The leading password characters given to the encoder.
+     */
+    private CharBuffer encoderInput;
+    /**
+     * The bytes produced by the encoder.
+     */
+    private ByteBuffer encoderOutput;
+
+    /**
+     * No argument constructor allocates memory.
+     */
+    public CryptEngine() {
+        crypt = new SaltMaskCryptImplementation();
+        key = new byte[8];
+        crypt_3_buf = new char[LENGTH];
+    }
+
+    /**
+     * Set the cache of key schedules used by this engine. A cache may be
+     * shared by any number of engines.
+     *
+     * @param keyCache The cache, or null to build every schedule.
+     */
+    public void setKeyScheduleCache(KeyScheduleCache keyCache) {
+        crypt.setKeyScheduleCache(keyCache);
+    }
+
+    /**
+     * Hash a key. A key created by CryptKeyFactory carries its key schedule,
+     * so hashing it with several salts, e.g. to check one password against
+     * several stored hashes, builds the schedule only once.
+     *
+     * @param key The key.
+     * @param params The salt.
+     * @return The 13 character crypt(3C) string.
+     */
+    public String crypt(CryptKey key, CryptAlgorithmParameterSpec params) {
+        byte[] salt = params.saltBytes();
+        crypt.setupSalt(salt[0], salt[1]);
+        crypt.makeKeyTable(key);
+        crypt.encrypt();
+
+        crypt.getCrypt3Buffer(crypt_3_buf, 0);
+        return new String(crypt_3_buf);
+    }
+
+    /**
+     * Hash password bytes.
+     *
+     * @param password The password bytes. At most the first eight bytes are
+     * used.
+     * @param params The salt.
+     * @return The 13 character crypt(3C) string.
+     */
+    public String crypt(byte[] password, CryptAlgorithmParameterSpec params) {
+        int n = Math.min(key.length, password.length);
+        for (int i = 0; i < key.length; ++i) {
+            key[i] = i < n ? (byte) (password[i] & 0x7f) : 0;
+        }
+        hash(params);
+
+        crypt.getCrypt3Buffer(crypt_3_buf, 0);
+        return new String(crypt_3_buf);
+    }
+
+    /**
+     * Hash a password.
+     *
+     * @param password The password characters. At most the first eight
+     * encoded bytes are used.
+     * @param params The salt.
+     * @return The 13 character crypt(3C) string.
+     */
+    public String crypt(CharSequence password,
+            CryptAlgorithmParameterSpec params) {
+        setKey(password);
+        hash(params);
+
+        crypt.getCrypt3Buffer(crypt_3_buf, 0);
+        return new String(crypt_3_buf);
+    }
+
+    /**
+     * Hash a password into a char[].
+     *
+     * @param password The password characters. At most the first eight
+     * encoded bytes are used.
+     * @param params The salt.
+     * @param out The char[] receiving the 13 characters.
+     * @param offset Integer offset into out.
+     */
+    public void crypt(char[] password, CryptAlgorithmParameterSpec params,
+            char[] out, int offset) {
+        checkOutput(out.length, offset);
+        setKey(password);
+        hash(params);
+        crypt.getCrypt3Buffer(out, offset);
+    }
+
+    /**
+     * Hash a password into a char[].
+     *
+     * @param password The password characters.
+     * @param salt The salt as two crypt(3C)-base64 characters.
+     * @param out The char[] receiving the 13 characters.
+     * @param offset Integer offset into out.
+     */
+    public void crypt(char[] password, CharSequence salt, char[] out, int offset) {
+        checkOutput(out.length, offset);
+        setKey(password);
+        hash(salt);
+        crypt.getCrypt3Buffer(out, offset);
+    }
+
+    /**
+     * Hash a password into a byte[] as ASCII.
+     *
+     * @param password The password characters.
+     * @param salt The salt as two crypt(3C)-base64 characters.
+     * @param out The byte[] receiving the 13 characters.
+     * @param offset Integer offset into out.
+     */
+    public void crypt(char[] password, CharSequence salt, byte[] out, int offset) {
+        checkOutput(out.length, offset);
+        setKey(password);
+        hash(salt);
+        copyResult(out, offset);
+    }
+
+    /**
+     * Hash a password into a char[].
+     *
+     * @param password The password characters.
+     * @param salt The salt as two crypt(3C)-base64 characters.
+     * @param out The char[] receiving the 13 characters.
+     * @param offset Integer offset into out.
+     */
+    public void crypt(CharSequence password, CharSequence salt, char[] out,
+            int offset) {
+        checkOutput(out.length, offset);
+        setKey(password);
+        hash(salt);
+        crypt.getCrypt3Buffer(out, offset);
+    }
+
+    /**
+     * Hash a password into a byte[] as ASCII.
+     *
+     * @param password The password characters.
+     * @param salt The salt as two crypt(3C)-base64 characters.
+     * @param out The byte[] receiving the 13 characters.
+     * @param offset Integer offset into out.
+     */
+    public void crypt(CharSequence password, CharSequence salt, byte[] out,
+            int offset) {
+        checkOutput(out.length, offset);
+        setKey(password);
+        hash(salt);
+        copyResult(out, offset);
+    }
+
+    /**
+     * Hash the password bytes remaining in a buffer into another buffer as
+     * ASCII. At most the first eight password bytes are used and the position
+     * of the password buffer is not changed. The position of the output
+     * buffer is advanced by 13.
+     *
+     * @param password The password bytes.
+     * @param salt The salt as two crypt(3C)-base64 characters.
+     * @param out The buffer receiving the 13 characters.
+     * @exception BufferOverflowException Thrown when out has fewer than 13
+     * bytes remaining. Nothing is written in that case.
+     */
+    public void crypt(ByteBuffer password, CharSequence salt, ByteBuffer out) {
+        if (out.remaining() < LENGTH) {
+            throw new BufferOverflowException();
+        }
+
+        int position = password.position();
+        int n = Math.min(key.length, password.remaining());
+        for (int i = 0; i < key.length; ++i) {
+            key[i] = i < n ? (byte) (password.get(position + i) & 0x7f) : 0;
+        }
+        hash(salt);
+
+        crypt.getCrypt3Buffer(crypt_3_buf, 0);
+        for (int i = 0; i < LENGTH; ++i) {
+            out.put((byte) crypt_3_buf[i]);
+        }
+    }
+
+    /**
+     * Check a password against a stored crypt(3C) string. The stored string
+     * is decoded to its salt and 64 bit DES result, and the result of the
+     * password is compared with it in one operation, so the time taken does
+     * not depend on how many leading characters match. No String is built.
+     *
+     * @param password The password characters. At most the first eight
+     * encoded bytes are used.
+     * @param storedHash The 13 character crypt(3C) string.
+     * @return <b>true</b> when the password matches, <b>false</b> when it does
+     * not or the stored string is null or malformed.
+     */
+    public boolean verify(char[] password, CharSequence storedHash) {
+        if (storedHash == null || storedHash.length() != LENGTH) {
+            return false;
+        }
+
+        int salt0 = CryptUtility.decodeBinary(storedHash.charAt(0));
+        int salt1 = CryptUtility.decodeBinary(storedHash.charAt(1));
+        int bad = salt0 | salt1;
+        long stored = 0;
+        for (int i = 2; i < LENGTH - 1; ++i) {
+            int v = CryptUtility.decodeBinary(storedHash.charAt(i));
+            bad |= v;
+            stored = stored << 6 | v & 0x3f;
+        }
+        int last = CryptUtility.decodeBinary(storedHash.charAt(LENGTH - 1));
+        bad |= last | -(last & 3);
+        stored = stored << 4 | (last & 0x3f) >>> 2;
+        if (bad < 0) {
+            return false;
+        }
+
+        setKey(password);
+        crypt.setupSalt(salt0 | salt1 << 6);
+        hash();
+        return (stored ^ crypt.getResult()) == 0;
+    }
+
+    /**
+     * Check a password against a parsed crypt(3C) hash in constant time.
+     *
+     * @param password The password characters. At most the first eight
+     * encoded bytes are used.
+     * @param hash The stored hash.
+     * @return <b>true</b> when the password matches.
+     */
+    public boolean verify(char[] password, CryptHash hash) {
+        return verify(password, hash.getSalt(), hash.getResult());
+    }
+
+    /**
+     * Check a password against a crypt(3C) hash packed as its salt and DES
+     * result, e.g. in primitive arrays, in constant time.
+     *
+     * @param password The password characters. At most the first eight
+     * encoded bytes are used.
+     * @param salt The 12 bit salt. The low six bits come from the first salt
+     * character.
+     * @param result The stored DES result.
+     * @return <b>true</b> when the password matches.
+     * @exception IllegalArgumentException Thrown when the salt is not in
+     * range.
+     */
+    public boolean verify(char[] password, int salt, long result) {
+        if ((salt & ~0xfff) != 0) {
+            throw new IllegalArgumentException("Salt out of range: " + salt);
+        }
+        setKey(password);
+        crypt.setupSalt(salt);
+        hash();
+        return (result ^ crypt.getResult()) == 0;
+    }
+
+    /**
+     * Check a batch of passwords against crypt(3C) hashes packed as salts and
+     * DES results. This is a loop over the passwords in order: the engine
+     * applies a salt as a swap mask, so a salt change costs a few operations
+     * and grouping the batch by salt would save nothing. Every comparison
+     * takes constant time.
+     *
+     * @param passwords The password characters. At most the first eight
+     * encoded bytes of each are used.
+     * @param salts The 12 bit salt of each hash. A negative salt marks a
+     * malformed hash, which matches no password.
+     * @param results The stored DES result of each hash.
+     * @param matches The boolean[] receiving whether each password matches,
+     * in the order of the passwords.
+     * @exception IllegalArgumentException Thrown when the arrays differ in
+     * length or a salt is out of range.
+     */
+    public void verifyAll(char[][] passwords, int[] salts, long[] results,
+            boolean[] matches) {
+        int n = passwords.length;
+        if (salts.length != n || results.length != n || matches.length != n) {
+            throw new IllegalArgumentException(n + " passwords but "
+                    + salts.length + " salts, " + results.length
+                    + " results and " + matches.length + " matches");
+        }
+        for (int i = 0; i < n; ++i) {
+            matches[i] = salts[i] >= 0
+                    && verify(passwords[i], salts[i], results[i]);
+        }
+    }
+
+    /**
+     * Encode the key bytes of a password the way this engine hashes it, for
+     * a batch implementation hashing it in a lane.
+     *
+     * @param password The password characters.
+     * @param out The byte[] receiving the eight key bytes.
+     */
+    void keyBytes(char[] password, byte[] out) {
+        setKey(password);
+        System.arraycopy(key, 0, out, 0, key.length);
+        CryptUtility.clearMemory(key);
+    }
+
+    /**
+     * Set up the salt and run the encryption on the current key.
+     *
+     * @param salt The salt as two crypt(3C)-base64 characters.
+     */
+    private void hash(CharSequence salt) {
+        if (salt.length() < 2) {
+            CryptUtility.clearMemory(key);
+            throw new IllegalArgumentException("Salt shorter than two"
+                    + " characters");
+        }
+        crypt.setupSalt(salt.charAt(0), salt.charAt(1));
+        hash();
+    }
+
+    /**
+     * Set up the salt and run the encryption on the current key.
+     *
+     * @param params The salt.
+     */
+    private void hash(CryptAlgorithmParameterSpec params) {
+        byte[] salt = params.saltBytes();
+        crypt.setupSalt(salt[0], salt[1]);
+        hash();
+    }
+
+    /**
+     * Run the encryption on the current key and salt. The key bytes are
+     * cleared afterwards.
+     */
+    private void hash() {
+        crypt.makeKeyTable(key);
+        CryptUtility.clearMemory(key);
+        crypt.encrypt();
+    }
+
+    /**
+     * Load the key from password characters. ASCII characters are copied
+     * directly; anything else sends the password through the encoder.
+     *
+     * @param password The password characters.
+     */
+    private void setKey(char[] password) {
+        int n = Math.min(key.length, password.length);
+        for (int i = 0; i < n; ++i) {
+            char c = password[i];
+            if (c >= 0x80 || !ASCII_COMPATIBLE) {
+                ((Buffer) encoderInput()).clear();
+                encoderInput.put(password, 0,
+                        Math.min(ENCODE_CHARS, password.length));
+                encodeKey();
+                return;
+            }
+            key[i] = (byte) c;
+        }
+        for (int i = n; i < key.length; ++i) {
+            key[i] = 0;
+        }
+    }
+
+    /**
+     * Load the key from password characters. ASCII characters are copied
+     * directly; anything else sends the password through the encoder.
+     *
+     * @param password The password characters.
+     */
+    private void setKey(CharSequence password) {
+        int length = password.length();
+        int n = Math.min(key.length, length);
+        for (int i = 0; i < n; ++i) {
+            char c = password.charAt(i);
+            if (c >= 0x80 || !ASCII_COMPATIBLE) {
+                ((Buffer) encoderInput()).clear();
+                for (int j = 0; j < ENCODE_CHARS && j < length; ++j) {
+                    encoderInput.put(password.charAt(j));
+                }
+                encodeKey();
+                return;
+            }
+            key[i] = (byte) c;
+        }
+        for (int i = n; i < key.length; ++i) {
+            key[i] = 0;
+        }
+    }
+
+    /**
+     * Accessor method to get the encoder input buffer, creating the encoder
+     * and its buffers on first use.
+     *
+     * @return The encoder input buffer.
+     */
+    private CharBuffer encoderInput() {
+        if (encoder == null) {
+            encoder = Charset.defaultCharset().newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encoderInput = CharBuffer.allocate(ENCODE_CHARS);
+            encoderOutput = ByteBuffer.allocate(ENCODE_CHARS
+                    * (int) Math.ceil(encoder.maxBytesPerChar()));
+        }
+        return encoderInput;
+    }
+
+    /**
+     * Encode the characters in the encoder input buffer and load the key from
+     * the leading bytes. Both buffers are cleared afterwards.
+     */
+    private void encodeKey() {
+        ((Buffer) encoderInput).flip();
+        ((Buffer) encoderOutput).clear();
+        encoder.reset();
+        encoder.encode(encoderInput, encoderOutput, true);
+        encoder.flush(encoderOutput);
+
+        int n = encoderOutput.position();
+        for (int i = 0; i < key.length; ++i) {
+            key[i] = i < n ? (byte) (encoderOutput.get(i) & 0x7f) : 0;
+        }
+
+        ((Buffer) encoderInput).clear();
+        while (encoderInput.hasRemaining()) {
+            encoderInput.put('\0');
+        }
+        ((Buffer) encoderInput).clear();
+        ((Buffer) encoderOutput).clear();
+        while (encoderOutput.hasRemaining()) {
+            encoderOutput.put((byte) 0);
+        }
+        ((Buffer) encoderOutput).clear();
+    }
+
+    /**
+     * Copy the result string into a byte[] as ASCII.
+     *
+     * @param out The byte[] receiving the 13 characters.
+     * @param offset Integer offset into out.
+     */
+    private void copyResult(byte[] out, int offset) {
+        crypt.getCrypt3Buffer(crypt_3_buf, 0);
+        for (int i = 0; i < LENGTH; ++i) {
+            out[offset + i] = (byte) crypt_3_buf[i];
+        }
+    }
+
+    /**
+     * Test whether a charset encodes each ASCII character as the single byte
+     * of the same value.
+     *
+     * @param charset The charset to test.
+     * @return <b>true</b> or <b>false</b>
+     */
+    private static boolean isAsciiCompatible(Charset charset) {
+        char[] ascii = new char[0x80];
+        for (int i = 0; i < ascii.length; ++i) {
+            ascii[i] = (char) i;
+        }
+
+        byte[] encoded = new String(ascii).getBytes(charset);
+        if (encoded.length != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < encoded.length; ++i) {
+            if (encoded[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that an output array has room for the result before any work is
+     * done.
+     *
+     * @param length The length of the output array.
+     * @param offset Integer offset into the output array.
+     * @exception ArrayIndexOutOfBoundsException Thrown when the 13 characters
+     * do not fit.
+     */
+    private static void checkOutput(int length, int offset) {
+        if (offset < 0 || offset > length - LENGTH) {
+            throw new ArrayIndexOutOfBoundsException("No room for " + LENGTH
+                    + " characters at offset " + offset);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.psi.crypt;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe source of reusable crypt engines. Engines are not thread-safe,
+ * so each caller acquires an engine, hashes with it and releases it.
+ *
+ * Platform threads keep one engine each in a thread local slot, so a thread
+ * hashing repeatedly always gets the same engine back. Virtual threads are
+ * too numerous and too short lived for that, so they share a bounded pool of
+ * engines which is searched and refilled with compare and set operations and
+ * never blocks. When the pool is empty a new engine is created, and when it is
+ * full a released engine is dropped for the garbage collector.
+ *
+ * @author John Glynn
+ */
+public final class CryptEnginePool {
+
+    /**
+     * The system property holding the default number of pooled engines.
+     */
+    public static final String SIZE_PROPERTY = "com.psi.crypt.enginePoolSize";
+
+    /**
+     * Thread.isVirtual() on Java 21 and later, or null when there are no
+     * virtual threads.
+     */
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    /**
+     * The thread local slot of a platform thread.
+     */
+    private static final class Slot {
+
+        /**
+         * The engine of the thread, or null while it is acquired.
+         */
+        CryptEngine engine;
+    }
+
+    /**
+     * The thread local slots, or null when every thread uses the pool.
+     */
+    private final ThreadLocal<Slot> local;
+
+    /**
+     * The pooled engines. Empty slots are null.
+     */
+    private final AtomicReferenceArray<CryptEngine> pool;
+
+    /**
+     * The cache of key schedules given to acquired engines, or null.
+     */
+    private volatile KeyScheduleCache keyCache;
+
+    private final LongAdder acquisitions;
+    private final LongAdder threadLocalHits;
+    private final LongAdder poolHits;
+    private final LongAdder creations;
+    private final LongAdder discards;
+
+    /**
+     * Creates a pool sized by the system property
+     * <code>com.psi.crypt.enginePoolSize</code>, or twice the number of
+     * processors, which uses thread local engines for platform threads.
+     */
+    public CryptEnginePool() {
+        this(Integer.getInteger(SIZE_PROPERTY,
+                2 * Runtime.getRuntime().availableProcessors()), true);
+    }
+
+    /**
+     * Creates a pool of the given size.
+     *
+     * @param size The largest number of idle engines kept in the pool.
+     * @param threadLocal Whether platform threads keep their own engine. When
+     * false every thread uses the pool, which suits servers running many more
+     * platform threads than processors.
+     * @exception IllegalArgumentException Thrown when the size is negative.
+     */
+    public CryptEnginePool(int size, boolean threadLocal) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size: " + size);
+        }
+        this.local = threadLocal ? ThreadLocal.withInitial(Slot::new) : null;
+        this.pool = new AtomicReferenceArray<>(size);
+        this.acquisitions = new LongAdder();
+        this.threadLocalHits = new LongAdder();
+        this.poolHits = new LongAdder();
+        this.creations = new LongAdder();
+        this.discards = new LongAdder();
+    }
+
+    /**
+     * Take an engine for the exclusive use of the caller until it is released.
+     *
+     * @return An engine.
+     */
+    public CryptEngine acquire() {
+        CryptEngine engine = take();
+        engine.setKeyScheduleCache(keyCache);
+        return engine;
+    }
+
+    /**
+     * Give back an engine taken with acquire(). The engine must not be used
+     * by the caller afterwards.
+     *
+     * @param engine The engine.
+     */
+    public void release(CryptEngine engine) {
+        Thread thread = Thread.currentThread();
+        if (local != null && !isVirtual(thread)) {
+            Slot slot = local.get();
+            if (slot.engine == null) {
+                slot.engine = engine;
+                return;
+            }
+        }
+
+        int length = pool.length();
+        int start = length > 0 ? (thread.hashCode() & 0x7fffffff) % length : 0;
+        for (int i = 0; i < length; ++i) {
+            int index = start + i < length ? start + i : start + i - length;
+            if (pool.get(index) == null
+                    && pool.compareAndSet(index, null, engine)) {
+                return;
+            }
+        }
+
+        discards.increment();
+    }
+
+    /**
+     * Set the cache of key schedules shared by the engines acquired from now
+     * on.
+     *
+     * @param keyCache The cache, or null to build every schedule.
+     */
+    public void setKeyScheduleCache(KeyScheduleCache keyCache) {
+        this.keyCache = keyCache;
+    }
+
+    /**
+     * Accessor method to get the cache of key schedules.
+     *
+     * @return The cache, or null.
+     */
+    public KeyScheduleCache getKeyScheduleCache() {
+        return keyCache;
+    }
+
+    /**
+     * Accessor method to get the largest number of idle engines kept in the
+     * pool.
+     *
+     * @return The pool size.
+     */
+    public int getSize() {
+        return pool.length();
+    }
+
+    /**
+     * Accessor method to get the number of idle engines in the pool. Engines
+     * held in thread local slots are not counted.
+     *
+     * @return The number of idle pooled engines.
+     */
+    public int getIdleCount() {
+        int idle = 0;
+        for (int i = 0; i < pool.length(); ++i) {
+            if (pool.get(i) != null) {
+                ++idle;
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * Accessor method to get the number of engines acquired.
+     *
+     * @return The acquisition count.
+     */
+    public long getAcquireCount() {
+        return acquisitions.sum();
+    }
+
+    /**
+     * Accessor method to get the number of acquisitions served from a thread
+     * local slot.
+     *
+     * @return The thread local hit count.
+     */
+    public long getThreadLocalHitCount() {
+        return threadLocalHits.sum();
+    }
+
+    /**
+     * Accessor method to get the number of acquisitions served from the pool.
+     *
+     * @return The pool hit count.
+     */
+    public long getPoolHitCount() {
+        return poolHits.sum();
+    }
+
+    /**
+     * Accessor method to get the number of engines created because none was
+     * idle.
+     *
+     * @return The creation count.
+     */
+    public long getCreateCount() {
+        return creations.sum();
+    }
+
+    /**
+     * Accessor method to get the number of released engines dropped because
+     * the pool was full.
+     *
+     * @return The discard count.
+     */
+    public long getDiscardCount() {
+        return discards.sum();
+    }
+
+    /**
+     * Return a descriptive string with the pool statistics.
+     *
+     * @return The statistics as a string.
+     */
+    @Override
+    public String toString() {
+        return "CryptEnginePool[size=" + getSize() + ", idle=" + getIdleCount()
+                + ", acquisitions=" + getAcquireCount()
+                + ", threadLocalHits=" + getThreadLocalHitCount()
+                + ", poolHits=" + getPoolHitCount()
+                + ", creations=" + getCreateCount()
+                + ", discards=" + getDiscardCount() + "]";
+    }
+
+    /**
+     * Take an idle engine or create one.
+     *
+     * @return An engine.
+     */
+    private CryptEngine take() {
+        acquisitions.increment();
+
+        Thread thread = Thread.currentThread();
+        if (local != null && !isVirtual(thread)) {
+            Slot slot = local.get();
+            CryptEngine engine = slot.engine;
+            if (engine != null) {
+                slot.engine = null;
+                threadLocalHits.increment();
+                return engine;
+            }
+        }
+
+        int length = pool.length();
+        int start = length > 0 ? (thread.hashCode() & 0x7fffffff) % length : 0;
+        for (int i = 0; i < length; ++i) {
+            int index = start + i < length ? start + i : start + i - length;
+            CryptEngine engine = pool.get(index);
+            if (engine != null && pool.compareAndSet(index, engine, null)) {
+                poolHits.increment();
+                return engine;
+            }
+        }
+
+        creations.increment();
+        return new CryptEngine();
+    }
+
+    /**
+     * Test whether a thread is a virtual thread.
+     *
+     * @param thread The thread.
+     * @return <b>true</b> or <b>false</b>
+     */
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * Look up Thread.isVirtual(), which only exists on Java 21 and later.
+     *
+     * @return The method handle, or null when the method does not exist.
+     */
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class,
+                    "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            return null;
+        }
+    }
+}
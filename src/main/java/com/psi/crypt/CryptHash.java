@@ -0,0 +1,360 @@
+package com.psi.crypt;
+
+/**
+ * A crypt(3C) hash held as its 12 bit salt and 64 bit DES result instead of
+ * a 13 character String. A large credential set can keep the salts in a
+ * short[] and the results in a long[], ten bytes per hash, and rebuild the
+ * hash with valueOf() when it is needed.
+ *
+ * The parse and format methods look each character up in a table and do not
+ * allocate, apart from the CryptHash returned by parse(). Only canonical
+ * strings are accepted: every character must be in the crypt(3C)-base64
+ * alphabet and the two unused low bits of the last character must be zero,
+ * so formatting a parsed hash gives back the same string.
+ *
+ * @author John Glynn
+ */
+public final class CryptHash implements Comparable<CryptHash> {
+
+    /**
+     * The number of characters in a crypt(3C) string.
+     */
+    public static final int LENGTH = 13;
+
+    /**
+     * The 12 bit salt. The low six bits come from the first salt character.
+     */
+    private final int salt;
+    /**
+     * The DES result, the first output bit in the most significant position.
+     */
+    private final long result;
+
+    /**
+     * Creates a hash from its salt and result.
+     *
+     * @param salt The 12 bit salt. The low six bits come from the first salt
+     * character.
+     * @param result The DES result, the first output bit in the most
+     * significant position.
+     * @exception IllegalArgumentException Thrown when the salt is not in
+     * range.
+     */
+    public CryptHash(int salt, long result) {
+        if ((salt & ~0xfff) != 0) {
+            throw new IllegalArgumentException("Salt out of range: " + salt);
+        }
+        this.salt = salt;
+        this.result = result;
+    }
+
+    /**
+     * Creates a hash from its salt and result, e.g. as packed in primitive
+     * arrays.
+     *
+     * @param salt The 12 bit salt.
+     * @param result The DES result.
+     * @return The hash.
+     * @exception IllegalArgumentException Thrown when the salt is not in
+     * range.
+     */
+    public static CryptHash valueOf(int salt, long result) {
+        return new CryptHash(salt, result);
+    }
+
+    /**
+     * Parse a crypt(3C) string.
+     *
+     * @param chars The 13 characters.
+     * @return The hash.
+     * @exception IllegalArgumentException Thrown when the string is
+     * malformed.
+     */
+    public static CryptHash parse(CharSequence chars) {
+        if (chars.length() != LENGTH) {
+            throw malformed();
+        }
+        return new CryptHash(parseSalt(chars, 0), parseResult(chars, 0));
+    }
+
+    /**
+     * Parse a crypt(3C) string stored as ASCII bytes.
+     *
+     * @param buf The byte[] holding the 13 characters.
+     * @param offset Integer offset into buf.
+     * @return The hash.
+     * @exception IllegalArgumentException Thrown when the string is
+     * malformed.
+     */
+    public static CryptHash parse(byte[] buf, int offset) {
+        return new CryptHash(parseSalt(buf, offset), parseResult(buf, offset));
+    }
+
+    /**
+     * Test whether characters form a canonical crypt(3C) string.
+     *
+     * @param chars The characters.
+     * @param offset The index of the first of the 13 characters.
+     * @return <b>true</b> or <b>false</b>
+     */
+    public static boolean isValid(CharSequence chars, int offset) {
+        if (offset < 0 || offset > chars.length() - LENGTH) {
+            return false;
+        }
+        int bad = 0;
+        for (int i = 0; i < LENGTH; ++i) {
+            bad |= CryptUtility.decodeBinary(chars.charAt(offset + i));
+        }
+        return bad >= 0
+                && (CryptUtility.decodeBinary(chars.charAt(offset + 12)) & 3)
+                == 0;
+    }
+
+    /**
+     * Test whether ASCII bytes form a canonical crypt(3C) string.
+     *
+     * @param buf The byte[] holding the characters.
+     * @param offset The index of the first of the 13 characters.
+     * @return <b>true</b> or <b>false</b>
+     */
+    public static boolean isValid(byte[] buf, int offset) {
+        if (offset < 0 || offset > buf.length - LENGTH) {
+            return false;
+        }
+        int bad = 0;
+        for (int i = 0; i < LENGTH; ++i) {
+            bad |= CryptUtility.decodeBinary((char) (buf[offset + i] & 0xff));
+        }
+        return bad >= 0
+                && (CryptUtility.decodeBinary((char) buf[offset + 12]) & 3)
+                == 0;
+    }
+
+    /**
+     * Decode the salt of a crypt(3C) string.
+     *
+     * @param chars The characters.
+     * @param offset The index of the first of the 13 characters.
+     * @return The 12 bit salt.
+     * @exception IllegalArgumentException Thrown when a salt character is not
+     * in the alphabet.
+     */
+    public static int parseSalt(CharSequence chars, int offset) {
+        int b0 = CryptUtility.decodeBinary(chars.charAt(offset));
+        int b1 = CryptUtility.decodeBinary(chars.charAt(offset + 1));
+        if ((b0 | b1) < 0) {
+            throw malformed();
+        }
+        return b0 | b1 << 6;
+    }
+
+    /**
+     * Decode the DES result of a crypt(3C) string.
+     *
+     * @param chars The characters.
+     * @param offset The index of the first of the 13 characters.
+     * @return The DES result.
+     * @exception IllegalArgumentException Thrown when the result characters
+     * are malformed.
+     */
+    public static long parseResult(CharSequence chars, int offset) {
+        int bad = 0;
+        long result = 0;
+        for (int i = 2; i < LENGTH - 1; ++i) {
+            int v = CryptUtility.decodeBinary(chars.charAt(offset + i));
+            bad |= v;
+            result = result << 6 | v & 0x3f;
+        }
+        int last = CryptUtility.decodeBinary(chars.charAt(offset + 12));
+        if ((bad | last | -(last & 3)) < 0) {
+            throw malformed();
+        }
+        return result << 4 | last >>> 2;
+    }
+
+    /**
+     * Decode the salt of a crypt(3C) string stored as ASCII bytes.
+     *
+     * @param buf The byte[] holding the 13 characters.
+     * @param offset Integer offset into buf.
+     * @return The 12 bit salt.
+     * @exception IllegalArgumentException Thrown when a salt character is not
+     * in the alphabet.
+     */
+    public static int parseSalt(byte[] buf, int offset) {
+        int b0 = CryptUtility.decodeBinary((char) (buf[offset] & 0xff));
+        int b1 = CryptUtility.decodeBinary((char) (buf[offset + 1] & 0xff));
+        if ((b0 | b1) < 0) {
+            throw malformed();
+        }
+        return b0 | b1 << 6;
+    }
+
+    /**
+     * Decode the DES result of a crypt(3C) string stored as ASCII bytes.
+     *
+     * @param buf The byte[] holding the 13 characters.
+     * @param offset Integer offset into buf.
+     * @return The DES result.
+     * @exception IllegalArgumentException Thrown when the result characters
+     * are malformed.
+     */
+    public static long parseResult(byte[] buf, int offset) {
+        int bad = 0;
+        long result = 0;
+        for (int i = 2; i < LENGTH - 1; ++i) {
+            int v = CryptUtility.decodeBinary((char) (buf[offset + i] & 0xff));
+            bad |= v;
+            result = result << 6 | v & 0x3f;
+        }
+        int last = CryptUtility.decodeBinary((char) (buf[offset + 12] & 0xff));
+        if ((bad | last | -(last & 3)) < 0) {
+            throw malformed();
+        }
+        return result << 4 | last >>> 2;
+    }
+
+    /**
+     * Write a salt and result as a crypt(3C) string.
+     *
+     * @param salt The 12 bit salt.
+     * @param result The DES result.
+     * @param buf The char[] receiving the 13 characters.
+     * @param offset Integer offset into buf.
+     */
+    public static void format(int salt, long result, char[] buf, int offset) {
+        CryptUtility.outputConversion(CryptUtility.encodeBinary(salt),
+                CryptUtility.encodeBinary(salt >>> 6), result, buf, offset);
+    }
+
+    /**
+     * Write a salt and result as a crypt(3C) string of ASCII bytes.
+     *
+     * @param salt The 12 bit salt.
+     * @param result The DES result.
+     * @param buf The byte[] receiving the 13 characters.
+     * @param offset Integer offset into buf.
+     */
+    public static void format(int salt, long result, byte[] buf, int offset) {
+        buf[offset] = (byte) CryptUtility.encodeBinary(salt);
+        buf[offset + 1] = (byte) CryptUtility.encodeBinary(salt >>> 6);
+        for (int i = 0; i < 10; ++i) {
+            buf[offset + i + 2] = (byte) CryptUtility.encodeBinary(
+                    (int) (result >>> 58 - 6 * i));
+        }
+        buf[offset + 12] = (byte) CryptUtility.encodeBinary((int) result << 2);
+    }
+
+    /**
+     * Accessor method to get the salt.
+     *
+     * @return The 12 bit salt. The low six bits come from the first salt
+     * character.
+     */
+    public int getSalt() {
+        return salt;
+    }
+
+    /**
+     * Accessor method to get the DES result.
+     *
+     * @return The 64 bit result, the first output bit in the most significant
+     * position.
+     */
+    public long getResult() {
+        return result;
+    }
+
+    /**
+     * Accessor method to get the salt as a parameter specification.
+     *
+     * @return The shared specification of the salt.
+     */
+    public CryptAlgorithmParameterSpec getParameterSpec() {
+        return CryptAlgorithmParameterSpec.forSalt(salt);
+    }
+
+    /**
+     * Write this hash as a crypt(3C) string.
+     *
+     * @param buf The char[] receiving the 13 characters.
+     * @param offset Integer offset into buf.
+     */
+    public void format(char[] buf, int offset) {
+        format(salt, result, buf, offset);
+    }
+
+    /**
+     * Write this hash as a crypt(3C) string of ASCII bytes.
+     *
+     * @param buf The byte[] receiving the 13 characters.
+     * @param offset Integer offset into buf.
+     */
+    public void format(byte[] buf, int offset) {
+        format(salt, result, buf, offset);
+    }
+
+    /**
+     * Order hashes by salt and then by result, so hashes sharing a salt sort
+     * next to each other.
+     *
+     * @param other The hash to compare with.
+     * @return A negative, zero or positive integer.
+     */
+    @Override
+    public int compareTo(CryptHash other) {
+        int c = Integer.compare(salt, other.salt);
+        return c != 0 ? c : Long.compareUnsigned(result, other.result);
+    }
+
+    /**
+     * Compare two hashes.
+     *
+     * @param obj The object to compare with.
+     * @return <b>true</b> when obj is a CryptHash with the same salt and
+     * result.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof CryptHash)) {
+            return false;
+        }
+        CryptHash other = (CryptHash) obj;
+        return salt == other.salt && result == other.result;
+    }
+
+    /**
+     * Returns a hash code mixing every bit of the salt and result with the
+     * MurmurHash3 64 bit finalizer.
+     *
+     * @return The hash code.
+     */
+    @Override
+    public int hashCode() {
+        long x = result ^ (long) salt * 0x9e3779b97f4a7c15L;
+        x = (x ^ x >>> 33) * 0xff51afd7ed558ccdL;
+        x = (x ^ x >>> 33) * 0xc4ceb9fe1a85ec53L;
+        return (int) (x ^ x >>> 32);
+    }
+
+    /**
+     * Returns the crypt(3C) string.
+     *
+     * @return The 13 characters.
+     */
+    @Override
+    public String toString() {
+        char[] buf = new char[LENGTH];
+        format(buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * Create the exception thrown for a malformed crypt(3C) string.
+     *
+     * @return The exception.
+     */
+    private static IllegalArgumentException malformed() {
+        return new IllegalArgumentException("Malformed crypt(3C) string");
+    }
+}
@@ -1,7 +1,5 @@
 package com.psi.crypt;
 
-import java.security.AlgorithmParameters;
-
   /*
    * UFC-crypt: ultra fast crypt(3) implementation
    *
@@ -37,127 +35,32 @@ import java.security.AlgorithmParameters;
 class CryptImplementation {
 
     /**
-     * Permutation done once on the 56 bit key derived from the original 8 byte
-     * ASCII key.
-     */
-    private static final int[] pc1 = {
-        57, 49, 41, 33, 25, 17, 9, 1, 58, 50, 42, 34, 26, 18,
-        10, 2, 59, 51, 43, 35, 27, 19, 11, 3, 60, 52, 44, 36,
-        63, 55, 47, 39, 31, 23, 15, 7, 62, 54, 46, 38, 30, 22,
-        14, 6, 61, 53, 45, 37, 29, 21, 13, 5, 28, 20, 12, 4
-    };
-
-    /**
-     * The final permutation matrix.
-     */
-    private static final int[] final_perm = {
-        40, 8, 48, 16, 56, 24, 64, 32, 39, 7, 47, 15, 55, 23, 63, 31,
-        38, 6, 46, 14, 54, 22, 62, 30, 37, 5, 45, 13, 53, 21, 61, 29,
-        36, 4, 44, 12, 52, 20, 60, 28, 35, 3, 43, 11, 51, 19, 59, 27,
-        34, 2, 42, 10, 50, 18, 58, 26, 33, 1, 41, 9, 49, 17, 57, 25
-    };
-
-    /**
-     * The sboxes for the DES algorithm.
-     */
-    private static final int[][][] sbox = {
-        {{14, 4, 13, 1, 2, 15, 11, 8, 3, 10, 6, 12, 5, 9, 0, 7},
-        {0, 15, 7, 4, 14, 2, 13, 1, 10, 6, 12, 11, 9, 5, 3, 8},
-        {4, 1, 14, 8, 13, 6, 2, 11, 15, 12, 9, 7, 3, 10, 5, 0},
-        {15, 12, 8, 2, 4, 9, 1, 7, 5, 11, 3, 14, 10, 0, 6, 13}
-        },
-        {{15, 1, 8, 14, 6, 11, 3, 4, 9, 7, 2, 13, 12, 0, 5, 10},
-        {3, 13, 4, 7, 15, 2, 8, 14, 12, 0, 1, 10, 6, 9, 11, 5},
-        {0, 14, 7, 11, 10, 4, 13, 1, 5, 8, 12, 6, 9, 3, 2, 15},
-        {13, 8, 10, 1, 3, 15, 4, 2, 11, 6, 7, 12, 0, 5, 14, 9}
-        },
-        {{10, 0, 9, 14, 6, 3, 15, 5, 1, 13, 12, 7, 11, 4, 2, 8},
-        {13, 7, 0, 9, 3, 4, 6, 10, 2, 8, 5, 14, 12, 11, 15, 1},
-        {13, 6, 4, 9, 8, 15, 3, 0, 11, 1, 2, 12, 5, 10, 14, 7},
-        {1, 10, 13, 0, 6, 9, 8, 7, 4, 15, 14, 3, 11, 5, 2, 12}
-        },
-        {{7, 13, 14, 3, 0, 6, 9, 10, 1, 2, 8, 5, 11, 12, 4, 15},
-        {13, 8, 11, 5, 6, 15, 0, 3, 4, 7, 2, 12, 1, 10, 14, 9},
-        {10, 6, 9, 0, 12, 11, 7, 13, 15, 1, 3, 14, 5, 2, 8, 4},
-        {3, 15, 0, 6, 10, 1, 13, 8, 9, 4, 5, 11, 12, 7, 2, 14}
-        },
-        {{2, 12, 4, 1, 7, 10, 11, 6, 8, 5, 3, 15, 13, 0, 14, 9},
-        {14, 11, 2, 12, 4, 7, 13, 1, 5, 0, 15, 10, 3, 9, 8, 6},
-        {4, 2, 1, 11, 10, 13, 7, 8, 15, 9, 12, 5, 6, 3, 0, 14},
-        {11, 8, 12, 7, 1, 14, 2, 13, 6, 15, 0, 9, 10, 4, 5, 3}
-        },
-        {{12, 1, 10, 15, 9, 2, 6, 8, 0, 13, 3, 4, 14, 7, 5, 11},
-        {10, 15, 4, 2, 7, 12, 9, 5, 6, 1, 13, 14, 0, 11, 3, 8},
-        {9, 14, 15, 5, 2, 8, 12, 3, 7, 0, 4, 10, 1, 13, 11, 6},
-        {4, 3, 2, 12, 9, 5, 15, 10, 11, 14, 1, 7, 6, 0, 8, 13}
-        },
-        {{4, 11, 2, 14, 15, 0, 8, 13, 3, 12, 9, 7, 5, 10, 6, 1},
-        {13, 0, 11, 7, 4, 9, 1, 10, 14, 3, 5, 12, 2, 15, 8, 6},
-        {1, 4, 11, 13, 12, 3, 7, 14, 10, 15, 6, 8, 0, 5, 9, 2},
-        {6, 11, 13, 8, 1, 4, 10, 7, 9, 5, 0, 15, 14, 2, 3, 12}
-        },
-        {{13, 2, 8, 4, 6, 15, 11, 1, 10, 9, 3, 14, 5, 0, 12, 7},
-        {1, 15, 13, 8, 10, 3, 7, 4, 12, 5, 6, 11, 0, 14, 9, 2},
-        {7, 11, 4, 1, 9, 12, 14, 2, 0, 6, 10, 13, 15, 3, 5, 8},
-        {2, 1, 14, 7, 4, 10, 8, 13, 15, 12, 9, 0, 3, 5, 6, 11}
-        }
-    };
-
-    /**
-     * The E expansion table which selects bits from the 32 bit intermediate
-     * result.
-     */
-    private static final int[] esel = {
-        32, 1, 2, 3, 4, 5, 4, 5, 6, 7, 8, 9,
-        8, 9, 10, 11, 12, 13, 12, 13, 14, 15, 16, 17,
-        16, 17, 18, 19, 20, 21, 20, 21, 22, 23, 24, 25,
-        24, 25, 26, 27, 28, 29, 28, 29, 30, 31, 32, 1
-    };
-
-    /**
-     * Permutation giving the key of the i' DES round.
-     */
-    private static final int[] pc2 = {
-        14, 17, 11, 24, 1, 5, 3, 28, 15, 6, 21, 10,
-        23, 19, 12, 4, 26, 8, 16, 7, 27, 20, 13, 2,
-        41, 52, 31, 37, 47, 55, 30, 40, 51, 45, 33, 48,
-        44, 49, 39, 56, 34, 53, 46, 42, 50, 36, 29, 32
-    };
-
-    /**
-     * Permutation done on the result of sbox lookups.
+     * The salt table cache shared by all instances which do not supply their
+     * own cache.
      */
-    private static final int[] perm32 = {
-        16, 7, 20, 21, 29, 12, 28, 17, 1, 15, 23, 26, 5, 18, 31, 10,
-        2, 8, 24, 14, 32, 27, 3, 9, 19, 13, 30, 6, 22, 11, 4, 25
-    };
+    static final SaltTableCache<byte[][]> SALT_TABLES = new SaltTableCache<>(
+            CryptImplementation::shuffledTables, 4 * 32768,
+            SaltTableCache.defaultBudget());
 
     /**
-     * How much to rotate each 28 bit half of the pc1 permutated 56 bit key
-     * before using pc2 to give the i' key
+     * Storage for the internal DES expanded key, one long per round.
      */
-    private static final int[] rots = {
-        1, 1, 2, 2, 2, 2, 2, 2, 1, 2, 2, 2, 2, 2, 2, 1
-    };
-
+    private final long[] keysched;
     /**
-     * Additional bitmasks needed for permutations.
+     * The sb tables in use for the current salt. This is either the shared
+     * table for the empty salt, a table from the salt table cache or saltedSb.
      */
-    private static final int[] bitmask = {
-        0x40000000, 0x20000000, 0x10000000, 0x08000000, 0x04000000, 0x02000000,
-        0x01000000, 0x00800000, 0x00400000, 0x00200000, 0x00100000, 0x00080000,
-        0x00004000, 0x00002000, 0x00001000, 0x00000800, 0x00000400, 0x00000200,
-        0x00000100, 0x00000080, 0x00000040, 0x00000020, 0x00000010, 0x00000008
-    };
-
+    private byte[][] sb;
     /**
-     * Storage for the internal DES expanded key.
+     * Storage for the permuted sboxes, allocated the first time a salt other
+     * than the empty salt is used.
      */
-    private final byte[] keysched;
+    private byte[][] saltedSb;
     /**
-     * Storage for the permuted sboxes.
+     * The cache supplying shuffled sb tables, or null when every salt change
+     * shuffles into saltedSb.
      */
-    private final byte[][] sb;
+    private final SaltTableCache<byte[][]> saltTables;
     /**
      * Two byte array which stores the raw salt bytes.
      */
@@ -181,65 +84,28 @@ class CryptImplementation {
     private final byte[] residue;
 
     /**
-     * Perform pc1 permutation in the key schedule generation.
-     *
-     * The first index is the byte number in the 8 byte ASCII key. The second
-     * index is the two 28 bits halves of the result. The third index selects
-     * the 7 bits actually used of each byte.
-     *
-     * The result is kept with 28 bit per 32 bit with the 4 most significant
-     * bits zero.
-     */
-    private final int[][][] do_pc1;
-
-    /**
-     * Perform pc2 permutation in the key schedule generation.
-     *
-     * The first index is the septet number in the two 28 bit intermediate
-     * values. The second index is the septet values.
-     *
-     * Knowledge of the structure of the pc2 permutation is used.
-     *
-     * The result is kept with 28 bit per 32 bit with the 4 most significant
-     * bits zero.
-     */
-    private final int[][] do_pc2;
-
-    /**
-     * Do 32 bit permutation and E selection
-     *
-     * The first index is the byte number in the 32 bit value to be permuted.
-     * The second index is the value of this byte. The third index selects the
-     * two 32 bit values.
-     *
-     * The table is used and generated internally in init to speed it up.
+     * No argument constructor allocates memory. The salt independent tables
+     * are shared through CryptTables and the salted tables through the shared
+     * salt table cache.
      */
-    private final int[][][] eperm32tab;
+    public CryptImplementation() {
+        this(SALT_TABLES);
+    }
 
     /**
-     * Undo an extra e selection and do final permutation giving the DES result.
+     * Constructor allocating memory and using the given salt table cache.
      *
-     * Invoked 6 bit a time on two 48 bit values giving two 32 bit ints.
-     */
-    private final int[][][] efp;
-
-    /**
-     * No argument constructor allocates memory and calls init().
+     * @param saltTables The cache of shuffled sb tables, or null to shuffle
+     * a private copy of the tables on every salt change.
      */
-    public CryptImplementation() {
-        keysched = new byte[128];
-        sb = new byte[4][32768];
+    CryptImplementation(SaltTableCache<byte[][]> saltTables) {
+        this.saltTables = saltTables;
+        keysched = new long[16];
+        sb = CryptTables.sb;
         saltBytes = new byte[2];
         crypt_3_buf = new char[13];
         current_salt = new char[2];
         residue = new byte[16];
-
-        do_pc1 = new int[8][2][128];
-        do_pc2 = new int[8][128];
-        eperm32tab = new int[4][256][2];
-        efp = new int[16][64][2];
-
-        init();
     }
 
     /**
@@ -251,6 +117,18 @@ class CryptImplementation {
         return new String(crypt_3_buf);
     }
 
+    /**
+     * Write the result string into a caller supplied array as ASCII.
+     *
+     * @param buf The byte[] receiving the 13 characters.
+     * @param offset Integer offset into buf.
+     */
+    void getCrypt3Buffer(byte[] buf, int offset) {
+        for (int i = 0; i < crypt_3_buf.length; ++i) {
+            buf[offset + i] = (byte) crypt_3_buf[i];
+        }
+    }
+
     /**
      * Perform 25 DES encryptions on the data.
      */
@@ -261,10 +139,8 @@ class CryptImplementation {
         long s = 0;
 
         for (int itr = 25; itr > 0; --itr) {
-            int offset = 0;
-            long k = CryptUtility.bytesToLong(keysched, offset);
-            for (int i = 8; i > 0; --i) {
-                s = k ^ r;
+            for (int i = 0; i < 16; i += 2) {
+                s = keysched[i] ^ r;
                 l ^= sbLong(s, 2, 0, 0xffff);
                 l ^= sbLong(s, 2, 16, 0xffff);
                 s >>>= 16;
@@ -273,10 +149,7 @@ class CryptImplementation {
                 l ^= sbLong(s, 0, 16, 0);
                 s >>>= 16;
 
-                offset += 8;
-                k = CryptUtility.bytesToLong(keysched, offset);
-
-                s = k ^ l;
+                s = keysched[i + 1] ^ l;
                 r ^= sbLong(s, 2, 0, 0xffff);
                 r ^= sbLong(s, 2, 16, 0xffff);
                 s >>>= 16;
@@ -284,20 +157,15 @@ class CryptImplementation {
                 s >>>= 16;
                 r ^= sbLong(s, 0, 16, 0);
                 s >>>= 16;
-
-                offset += 8;
-                k = CryptUtility.bytesToLong(keysched, offset);
             }
             s = l;
             l = r;
             r = s;
         }
 
-        byte[] left = CryptUtility.longToBytes(l);
-        byte[] right = CryptUtility.longToBytes(r);
         for (int i = 0; i < 8; ++i) {
-            residue[i] = left[i];
-            residue[i + 8] = right[i];
+            residue[i] = (byte) (l >>> 8 * (7 - i));
+            residue[i + 8] = (byte) (r >>> 8 * (7 - i));
         }
         /*
           * Do final permutations
@@ -311,301 +179,83 @@ class CryptImplementation {
     }
 
     /**
-     * Initialize the keysched array.
+     * Initialize the keysched array. A schedule precomputed by
+     * CryptKeyFactory is copied instead of being built again.
      *
      * @param cryptKey An opaque container for the key (password bytes).
      */
     void makeKeyTable(CryptKey cryptKey) {
-        int v1 = 0;
-        int v2 = 0;
-        byte[] key = cryptKey.getEncoded();
-
-        for (int i = 8; i > 0; --i) {
-            v1 |= do_pc1[8 - i][0][key[8 - i]];
-            v2 |= do_pc1[8 - i][1][key[8 - i]];
+        long[] precomputed = cryptKey.getKeySchedule();
+        if (precomputed != null) {
+            System.arraycopy(precomputed, 0, keysched, 0, 16);
+        } else {
+            CryptTables.makeKeyTable(cryptKey.getEncoded(), keysched, 0);
         }
 
-        long v = 0;
-        int offset = 0;
         for (int i = 0; i < 16; ++i) {
-            v1 = v1 << rots[i] | v1 >>> 28 - rots[i];
-
-            offset = v1 >>> 21 & 0x7f;
-            v = do_pc2[0][offset];
-            offset = v1 >>> 14 & 0x7f;
-            v |= do_pc2[1][offset];
-            offset = v1 >>> 7 & 0x7f;
-            v |= do_pc2[2][offset];
-            offset = v1 & 0x7f;
-            v |= do_pc2[3][offset];
-
-            v <<= 32;
-            v2 = v2 << rots[i] | v2 >>> 28 - rots[i];
-
-            offset = v2 >>> 21 & 0x7f;
-            v |= do_pc2[4][offset];
-            offset = v2 >>> 14 & 0x7f;
-            v |= do_pc2[5][offset];
-            offset = v2 >>> 7 & 0x7f;
-            v |= do_pc2[6][offset];
-            offset = v2 & 0x7f;
-            v |= do_pc2[7][offset];
-
-            v |= 0x0000800000008000L;
-            byte[] next = CryptUtility.longToBytes(v);
-            for (int j = 0; j < 8; ++j) {
-                keysched[i * 8 + j] = next[j];
-            }
+            keysched[i] |= 0x0000800000008000L;
         }
     }
 
     /**
-     * Take the encoded bytes of the salt and swap entries in the expansion
-     * table according to the bits set in the salt.
+     * Initialize the keysched array from the eight key bytes.
      *
-     * @param params Opaque container for the salt bits.
+     * @param key The password bytes, each masked to seven bits.
      */
-    void setupSalt(AlgorithmParameters params) {
-        try {
-            saltBytes = params.getEncoded();
-        } catch (java.io.IOException io) {
-            System.out.println(io.getMessage());
-            io.printStackTrace();
+    void makeKeyTable(byte[] key) {
+        CryptTables.makeKeyTable(key, keysched, 0);
+
+        for (int i = 0; i < 16; ++i) {
+            keysched[i] |= 0x0000800000008000L;
         }
+    }
+
+    /**
+     * Take the bytes of the salt and swap entries in the expansion table
+     * according to the bits set in the salt.
+     *
+     * @param params The salt.
+     */
+    void setupSalt(CryptAlgorithmParameterSpec params) {
+        saltBytes = params.saltBytes();
 
         // Convert bytes to base64 char representation
-        char[] s = new char[2];
-        s[0] = CryptUtility.binaryToAscii(saltBytes[0]);
-        s[1] = CryptUtility.binaryToAscii(saltBytes[1]);
+        char s0 = CryptUtility.binaryToAscii(saltBytes[0]);
+        char s1 = CryptUtility.binaryToAscii(saltBytes[1]);
 
-        if (s[0] == current_salt[0] && s[1] == current_salt[1]) {
+        if (s0 == current_salt[0] && s1 == current_salt[1]) {
             return;
         }
 
-        current_salt[0] = s[0];
-        current_salt[1] = s[1];
+        current_salt[0] = s0;
+        current_salt[1] = s1;
 
         /*
           * This is the only crypt change to DES:
           * entries are swapped in the expansion table
           * according to the bits set in the salt.
          */
-        long saltbits = 0;
-        for (int i = 0; i < 2; ++i) {
-            long c = CryptUtility.asciiToBinary(s[i]);
-            for (int j = 0; j < 6; ++j) {
-                if ((c >>> j & 0x1) != 0) {
-                    saltbits |= (long) bitmask[6 * i + j] & 0xffffffff;
-                }
-            }
-        }
+        int salt = CryptUtility.asciiToBinary(s0) & 0x3f
+                | (CryptUtility.asciiToBinary(s1) & 0x3f) << 6;
+        long saltbits = CryptTables.saltbits(salt);
 
         /*
-          * Permute the sb table values
+          * Permute the shared sb table values
           * to reflect the changed e selection table
          */
-        shuffle_sb(sb[0], current_saltbits ^ saltbits);
-        shuffle_sb(sb[1], current_saltbits ^ saltbits);
-        shuffle_sb(sb[2], current_saltbits ^ saltbits);
-        shuffle_sb(sb[3], current_saltbits ^ saltbits);
-
-        current_saltbits = saltbits;
-    }
-
-    /**
-     * Populate the permutation arrays.
-     */
-    private void init() {
-        /*
-         * Create the do_pc1 table used to affect pc1 permutation
-         * when generating keys
-         */
-        for (int i = 0; i < do_pc1.length; ++i) {
-            for (int k = 0; k < do_pc1[i].length; ++k) {
-                for (int l = 0; l < do_pc1[i][k].length; ++l) {
-                    do_pc1[i][k][l] = 0;
-                }
-            }
-        }
-
-        int comes_from_bit = 0;
-        int bit = 0;
-        int j = 0;
-        int mask1 = 0;
-        int mask2 = 0;
-        for (bit = 0; bit < 56; ++bit) {
-            comes_from_bit = pc1[bit] - 1;
-            mask1 = CryptUtility.bytemask[comes_from_bit % 8 + 1];
-            mask2 = CryptUtility.intmask[bit % 28 + 4];
-            for (j = 0; j < 128; ++j) {
-                if ((j & mask1) != 0) {
-                    do_pc1[comes_from_bit / 8][bit / 28][j] |= mask2;
-                }
-            }
-        }
-
-        /*
-         * Create the do_pc2 table used to affect pc2 permutation when
-         * generating keys
-         */
-        for (int i = 0; i < do_pc2.length; ++i) {
-            for (int k = 0; k < do_pc2[i].length; ++k) {
-                do_pc2[i][k] = 0;
-            }
-        }
-
-        for (bit = 0; bit < 48; ++bit) {
-            comes_from_bit = pc2[bit] - 1;
-            mask1 = CryptUtility.bytemask[comes_from_bit % 7 + 1];
-            mask2 = bitmask[bit % 24];
-            for (j = 0; j < 128; ++j) {
-                if ((j & mask1) != 0) {
-                    do_pc2[comes_from_bit / 7][j] |= mask2;
-                }
-            }
-        }
-
-        /*
-         * Now generate the table used to do combined 32 bit permutation 
-         * and e expansion
-         *
-         * We use it because we have to permute 16384 32 bit
-         * longs into 48 bits in order to initialize sb.
-         *
-         */
-        for (int i = 0; i < eperm32tab.length; ++i) {
-            for (int k = 0; k < eperm32tab[i].length; ++k) {
-                for (int l = 0; l < eperm32tab[i][k].length; ++l) {
-                    eperm32tab[i][k][l] = 0;
-                }
-            }
-        }
-
-        for (bit = 0; bit < 48; ++bit) {
-            int comes_from = perm32[esel[bit] - 1] - 1;
-            int mask3 = CryptUtility.bytemask[comes_from % 8];
-            for (j = 256; j > 0;) {
-                --j;
-                if ((j & mask3) != 0) {
-                    eperm32tab[comes_from / 8][j][bit / 24]
-                            |= bitmask[bit % 24];
-                }
-            }
-        }
-
-        /*
-         * Create an inverse matrix for esel telling where to plug out bits 
-         * if undoing it
-         */
-        int[] e_inverse = new int[64];
-        for (bit = 48; bit > 0;) {
-            --bit;
-            e_inverse[esel[bit] - 1] = bit;
-            e_inverse[esel[bit] - 1 + 32] = bit + 48;
-        }
-
-        /*
-         * create efp: the matrix used to undo the E expansion and effect 
-         * final permutation
-         */
-        for (int i = 0; i < efp.length; ++i) {
-            for (int k = 0; k < efp[i].length; ++k) {
-                for (int l = 0; l < efp[i][k].length; ++l) {
-                    efp[i][k][l] = 0;
-                }
-            }
-        }
-
-        for (bit = 0; bit < 64; ++bit) {
-            /* See where bit i belongs in the two 32 bit long's */
-            int o_long = bit / 32;
-            /* 0..1  */
-            int o_bit = bit % 32;
-            /* 0..31 */
-
-            /*
-             * And find a bit in the e permutated value setting this bit.
-             *
-             * Note: the e selection may have selected the same bit several
-             * times. By the initialization of e_inverse, we only look
-             * for one specific instance.
-             */
-            int comes_from_f_bit = final_perm[bit] - 1;
-            /* 0..63 */
-            int comes_from_e_bit = e_inverse[comes_from_f_bit];
-            /* 0..95 */
-            int comes_from_word = comes_from_e_bit / 6;
-            /* 0..15 */
-            int bit_within_word = comes_from_e_bit % 6;
-            /* 0..5  */
-
-            int mask4 = CryptUtility.intmask[bit_within_word + 26];
-            int mask5 = CryptUtility.intmask[o_bit];
-
-            for (int word_value = 64; word_value > 0;) {
-                --word_value;
-                if ((word_value & mask4) != 0) {
-                    efp[comes_from_word][word_value][o_long] |= mask5;
-                }
-            }
-        }
-
-        /*
-         * Create the sb tables:
-         *
-         * For each 12 bit segment of an 48 bit intermediate
-         * result, the sb table precomputes the two 4 bit
-         * values of the sbox lookups done with the two 6
-         * bit halves, shifts them to their proper place,
-         * sends them through perm32 and finally E expands
-         * them so that they are ready for the next
-         * DES round.
-         *
-         */
-        CryptUtility.clearMemory(sb[0]);
-        CryptUtility.clearMemory(sb[1]);
-        CryptUtility.clearMemory(sb[2]);
-        CryptUtility.clearMemory(sb[3]);
-
-        for (int sg = 0; sg < 4; ++sg) {
-            for (int j1 = 0; j1 < 64; ++j1) {
-                int s1 = sboxLookup(2 * sg, j1);
-                for (int j2 = 0; j2 < 64; ++j2) {
-                    int s2 = sboxLookup(2 * sg + 1, j2);
-                    int to_permute = (s1 << 4 | s2) << 24 - 8 * sg;
-                    int inx = j1 << 6 | j2;
-
-                    long block
-                            = (long) eperm32tab[0][to_permute >>> 24 & 0xff][0] << 32
-                            | (long) eperm32tab[0][to_permute >>> 24 & 0xff][1];
-                    block
-                            |= (long) eperm32tab[1][to_permute >>> 16 & 0xff][0] << 32
-                            | (long) eperm32tab[1][to_permute >>> 16 & 0xff][1];
-                    block
-                            |= (long) eperm32tab[2][to_permute >>> 8 & 0xff][0] << 32
-                            | (long) eperm32tab[2][to_permute >>> 8 & 0xff][1];
-                    block
-                            |= (long) eperm32tab[3][to_permute & 0xff][0] << 32
-                            | (long) eperm32tab[3][to_permute & 0xff][1];
-
-                    byte[] temp = CryptUtility.longToBytes(block);
-                    for (int k = 0; k < 8; ++k) {
-                        sb[sg][inx * 8 + k] = temp[k];
-                    }
-                }
+        if (saltbits == 0) {
+            sb = CryptTables.sb;
+        } else if (saltTables != null && saltTables.getMaxEntries() > 0) {
+            sb = saltTables.get(salt);
+        } else {
+            if (saltedSb == null) {
+                saltedSb = new byte[4][32768];
             }
+            shuffle_sb(CryptTables.sb, saltedSb, saltbits);
+            sb = saltedSb;
         }
-    }
 
-    /**
-     * Lookup a 6 bit value in an sbox.
-     *
-     * @param i The outer index.
-     * @param s The integer used to calculate the inner two indices.
-     * @return The integer value stored in the sbox.
-     */
-    private int sboxLookup(int i, int s) {
-        return sbox[i][s >>> 4 & 0x2 | s & 0x1][s >>> 1 & 0xf];
+        current_saltbits = saltbits;
     }
 
     /**
@@ -681,23 +331,36 @@ class CryptImplementation {
     }
 
     /**
-     * Process the elements of the sb table permuting the bits swapped in the
-     * expansion by the current salt.
+     * Build the sb tables for a salt. Used by the shared salt table cache.
      *
-     * @param sbBytes The outer sb array being permuted.
-     * @param saltbits A group of eight bytes used to permute the sb array.
+     * @param salt The 12 bit salt value.
+     * @return A new set of sb tables permuted for the salt.
      */
-    private void shuffle_sb(byte[] sbBytes, long saltbits) {
-        for (int i = 0; i < sbBytes.length; i += 8) {
-            long y = CryptUtility.bytesToLong(sbBytes, i);
-            long x = (y >>> 32 ^ y) & saltbits;
-            y ^= x << 32 | x;
+    static byte[][] shuffledTables(int salt) {
+        byte[][] tables = new byte[4][32768];
+        shuffle_sb(CryptTables.sb, tables, CryptTables.saltbits(salt));
+        return tables;
+    }
 
-            // Put the new long back in the byte[]
-            byte[] shuffle = CryptUtility.longToBytes(y);
+    /**
+     * Copy the elements of the unsalted sb tables permuting the bits swapped
+     * in the expansion by the given salt.
+     *
+     * @param src The sb tables for the empty salt.
+     * @param dest The sb tables receiving the permuted values.
+     * @param saltbits A group of eight bytes used to permute the sb array.
+     */
+    private static void shuffle_sb(byte[][] src, byte[][] dest, long saltbits) {
+        for (int k = 0; k < src.length; ++k) {
+            for (int i = 0; i < src[k].length; i += 8) {
+                long y = CryptUtility.bytesToLong(src[k], i);
+                long x = (y >>> 32 ^ y) & saltbits;
+                y ^= x << 32 | x;
 
-            for (int j = 0; j < 8; ++j) {
-                sbBytes[i + j] = shuffle[j];
+                // Put the new long in the destination byte[]
+                for (int j = 0; j < 8; ++j) {
+                    dest[k][i + j] = (byte) (y >>> 8 * (7 - j));
+                }
             }
         }
     }
@@ -726,48 +389,45 @@ class CryptImplementation {
         r1 >>>= 3;
         r2 >>>= 3;
 
-        v1 |= efp[15][r2 & 0x3f][0];
-        v2 |= efp[15][r2 & 0x3f][1];
-        v1 |= efp[14][(r2 >>>= 6) & 0x3f][0];
-        v2 |= efp[14][r2 & 0x3f][1];
-        v1 |= efp[13][(r2 >>>= 10) & 0x3f][0];
-        v2 |= efp[13][r2 & 0x3f][1];
-        v1 |= efp[12][(r2 >>>= 6) & 0x3f][0];
-        v2 |= efp[12][r2 & 0x3f][1];
-
-        v1 |= efp[11][r1 & 0x3f][0];
-        v2 |= efp[11][r1 & 0x3f][1];
-        v1 |= efp[10][(r1 >>>= 6) & 0x3f][0];
-        v2 |= efp[10][r1 & 0x3f][1];
-        v1 |= efp[9][(r1 >>>= 10) & 0x3f][0];
-        v2 |= efp[9][r1 & 0x3f][1];
-        v1 |= efp[8][(r1 >>>= 6) & 0x3f][0];
-        v2 |= efp[8][r1 & 0x3f][1];
-
-        v1 |= efp[7][l2 & 0x3f][0];
-        v2 |= efp[7][l2 & 0x3f][1];
-        v1 |= efp[6][(l2 >>>= 6) & 0x3f][0];
-        v2 |= efp[6][l2 & 0x3f][1];
-        v1 |= efp[5][(l2 >>>= 10) & 0x3f][0];
-        v2 |= efp[5][l2 & 0x3f][1];
-        v1 |= efp[4][(l2 >>>= 6) & 0x3f][0];
-        v2 |= efp[4][l2 & 0x3f][1];
-
-        v1 |= efp[3][l1 & 0x3f][0];
-        v2 |= efp[3][l1 & 0x3f][1];
-        v1 |= efp[2][(l1 >>>= 6) & 0x3f][0];
-        v2 |= efp[2][l1 & 0x3f][1];
-        v1 |= efp[1][(l1 >>>= 10) & 0x3f][0];
-        v2 |= efp[1][l1 & 0x3f][1];
-        v1 |= efp[0][(l1 >>>= 6) & 0x3f][0];
-        v2 |= efp[0][l1 & 0x3f][1];
-
-        byte[] first = CryptUtility.intToBytes(v1);
-        byte[] second = CryptUtility.intToBytes(v2);
+        v1 |= CryptTables.efp[15][r2 & 0x3f][0];
+        v2 |= CryptTables.efp[15][r2 & 0x3f][1];
+        v1 |= CryptTables.efp[14][(r2 >>>= 6) & 0x3f][0];
+        v2 |= CryptTables.efp[14][r2 & 0x3f][1];
+        v1 |= CryptTables.efp[13][(r2 >>>= 10) & 0x3f][0];
+        v2 |= CryptTables.efp[13][r2 & 0x3f][1];
+        v1 |= CryptTables.efp[12][(r2 >>>= 6) & 0x3f][0];
+        v2 |= CryptTables.efp[12][r2 & 0x3f][1];
+
+        v1 |= CryptTables.efp[11][r1 & 0x3f][0];
+        v2 |= CryptTables.efp[11][r1 & 0x3f][1];
+        v1 |= CryptTables.efp[10][(r1 >>>= 6) & 0x3f][0];
+        v2 |= CryptTables.efp[10][r1 & 0x3f][1];
+        v1 |= CryptTables.efp[9][(r1 >>>= 10) & 0x3f][0];
+        v2 |= CryptTables.efp[9][r1 & 0x3f][1];
+        v1 |= CryptTables.efp[8][(r1 >>>= 6) & 0x3f][0];
+        v2 |= CryptTables.efp[8][r1 & 0x3f][1];
+
+        v1 |= CryptTables.efp[7][l2 & 0x3f][0];
+        v2 |= CryptTables.efp[7][l2 & 0x3f][1];
+        v1 |= CryptTables.efp[6][(l2 >>>= 6) & 0x3f][0];
+        v2 |= CryptTables.efp[6][l2 & 0x3f][1];
+        v1 |= CryptTables.efp[5][(l2 >>>= 10) & 0x3f][0];
+        v2 |= CryptTables.efp[5][l2 & 0x3f][1];
+        v1 |= CryptTables.efp[4][(l2 >>>= 6) & 0x3f][0];
+        v2 |= CryptTables.efp[4][l2 & 0x3f][1];
+
+        v1 |= CryptTables.efp[3][l1 & 0x3f][0];
+        v2 |= CryptTables.efp[3][l1 & 0x3f][1];
+        v1 |= CryptTables.efp[2][(l1 >>>= 6) & 0x3f][0];
+        v2 |= CryptTables.efp[2][l1 & 0x3f][1];
+        v1 |= CryptTables.efp[1][(l1 >>>= 10) & 0x3f][0];
+        v2 |= CryptTables.efp[1][l1 & 0x3f][1];
+        v1 |= CryptTables.efp[0][(l1 >>>= 6) & 0x3f][0];
+        v2 |= CryptTables.efp[0][l1 & 0x3f][1];
 
         for (int i = 0; i < 4; ++i) {
-            residue[i] = first[i];
-            residue[i + 4] = second[i];
+            residue[i] = (byte) (v1 >>> 8 * (3 - i));
+            residue[i + 4] = (byte) (v2 >>> 8 * (3 - i));
         }
     }
 
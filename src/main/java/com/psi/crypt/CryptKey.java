@@ -16,6 +16,12 @@ public class CryptKey implements SecretKey {
      */
     private final byte[] keyBytes;
 
+    /**
+     * The 16 subkeys of the DES key schedule, or null when the key was not
+     * created by CryptKeyFactory. The schedule is not serialized.
+     */
+    private final transient long[] keysched;
+
     /**
      * Creates a key from a specification.
      *
@@ -23,6 +29,18 @@ public class CryptKey implements SecretKey {
      */
     public CryptKey(CryptKeySpec spec) {
         keyBytes = spec.getEncoded();
+        keysched = null;
+    }
+
+    /**
+     * Creates a key from a specification with a precomputed key schedule.
+     *
+     * @param spec A transparent representation of the key bytes.
+     * @param keysched The 16 subkeys of the key.
+     */
+    CryptKey(CryptKeySpec spec, long[] keysched) {
+        keyBytes = spec.getEncoded();
+        this.keysched = keysched;
     }
 
     /**
@@ -33,6 +51,7 @@ public class CryptKey implements SecretKey {
      */
     public CryptKey(byte[] bt) {
         keyBytes = bt;
+        keysched = null;
     }
 
     /**
@@ -64,4 +83,13 @@ public class CryptKey implements SecretKey {
     public byte[] getEncoded() {
         return keyBytes;
     }
+
+    /**
+     * Accessor method to get the precomputed key schedule.
+     *
+     * @return The 16 subkeys, or null when the schedule was not precomputed.
+     */
+    long[] getKeySchedule() {
+        return keysched;
+    }
 }
@@ -0,0 +1,109 @@
+package com.psi.crypt;
+
+import java.security.InvalidKeyException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactorySpi;
+
+/**
+ * Implementation of SecretKeyFactory SPI for crypt(3C) keys. The keys created
+ * by the factory carry their DES key schedule, so the crypt implementations
+ * skip building it when they are handed such a key. This pays off when one
+ * password is hashed with several salts.
+ *
+ * @author John Glynn
+ */
+public final class CryptKeyFactory extends SecretKeyFactorySpi {
+
+    /**
+     * No argument constructor required for factory methods.
+     */
+    public CryptKeyFactory() {
+    }
+
+    /**
+     * Generate a key with a precomputed key schedule from a specification.
+     *
+     * @param keySpec The specification, which must be a CryptKeySpec.
+     * @return A CryptKey carrying its key schedule.
+     * @exception InvalidKeySpecException Thrown when keySpec is not a
+     * CryptKeySpec.
+     */
+    @Override
+    protected SecretKey engineGenerateSecret(KeySpec keySpec)
+            throws InvalidKeySpecException {
+        if (!(keySpec instanceof CryptKeySpec)) {
+            throw new InvalidKeySpecException(
+                    "Only CryptKeySpec supported");
+        }
+        return newKey((CryptKeySpec) keySpec);
+    }
+
+    /**
+     * Factory accessor method to get the specification of a key.
+     *
+     * @param key The key.
+     * @param keySpec Class object of the requested specification.
+     * @return A CryptKeySpec holding the key bytes.
+     * @exception InvalidKeySpecException Thrown when requesting any class
+     * other than CryptKeySpec or when the key is not a crypt key.
+     */
+    @Override
+    protected KeySpec engineGetKeySpec(SecretKey key, Class<?> keySpec)
+            throws InvalidKeySpecException {
+        if (keySpec == null || !keySpec.isAssignableFrom(CryptKeySpec.class)) {
+            throw new InvalidKeySpecException(
+                    "Only CryptKeySpec supported");
+        }
+        if (!isCryptKey(key)) {
+            throw new InvalidKeySpecException("Not a RAW Crypt key");
+        }
+        return new CryptKeySpec(key.getEncoded());
+    }
+
+    /**
+     * Translate a crypt key of any origin into a key with a precomputed key
+     * schedule.
+     *
+     * @param key The key.
+     * @return A CryptKey carrying its key schedule.
+     * @exception InvalidKeyException Thrown when the key is not a RAW Crypt
+     * key.
+     */
+    @Override
+    protected SecretKey engineTranslateKey(SecretKey key)
+            throws InvalidKeyException {
+        if (key instanceof CryptKey
+                && ((CryptKey) key).getKeySchedule() != null) {
+            return key;
+        }
+        if (!isCryptKey(key)) {
+            throw new InvalidKeyException("Not a RAW Crypt key");
+        }
+        return newKey(new CryptKeySpec(key.getEncoded()));
+    }
+
+    /**
+     * Create a key and its key schedule.
+     *
+     * @param spec The specification holding the masked key bytes.
+     * @return A CryptKey carrying its key schedule.
+     */
+    private static CryptKey newKey(CryptKeySpec spec) {
+        long[] keysched = new long[16];
+        CryptTables.makeKeyTable(spec.getEncoded(), keysched, 0);
+        return new CryptKey(spec, keysched);
+    }
+
+    /**
+     * Test whether a key is a crypt key in RAW format.
+     *
+     * @param key The key.
+     * @return <b>true</b> or <b>false</b>
+     */
+    private static boolean isCryptKey(SecretKey key) {
+        return key != null && "Crypt".equals(key.getAlgorithm())
+                && "RAW".equals(key.getFormat()) && key.getEncoded() != null;
+    }
+}
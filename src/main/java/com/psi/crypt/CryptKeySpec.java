@@ -92,6 +92,16 @@ public class CryptKeySpec implements KeySpec, SecretKey {
         return bytes;
     }
 
+    /**
+     * Accessor method which returns the key as a number.
+     *
+     * @return The seven significant bits of each of the eight key bytes packed
+     * into the low 56 bits, the first byte in the most significant position.
+     */
+    public long toLong() {
+        return CryptTables.packKey(bytes);
+    }
+
     /**
      * Comparison method which compares the individual bytes of the key
      * specification.
@@ -126,12 +136,7 @@ public class CryptKeySpec implements KeySpec, SecretKey {
      */
     @Override
     public int hashCode() {
-        int hash = 0;
-
-        for (int i = 0; i < bytes.length - 1; i += 2) {
-            hash += (bytes[i] ^ bytes[i + 1]) << (24 - (i * 4));
-        }
-
-        return hash;
+        long x = toLong() * 0x9e3779b97f4a7c15L;
+        return (int) (x ^ x >>> 32);
     }
 }
@@ -0,0 +1,507 @@
+package com.psi.crypt;
+
+  /*
+   * UFC-crypt: ultra fast crypt(3) implementation
+   *
+   * Copyright (C) 1991, 1992, 1993, 1996 Free Software Foundation, Inc.
+   *
+   * This library is free software; you can redistribute it and/or
+   * modify it under the terms of the GNU Library General Public
+   * License as published by the Free Software Foundation; either
+   * version 2 of the License, or (at your option) any later version.
+   *
+   * This library is distributed in the hope that it will be useful,
+   * but WITHOUT ANY WARRANTY; without even the implied warranty of
+   * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+   * Library General Public License for more details.
+   *
+   * You should have received a copy of the GNU Library General Public
+   * License along with this library; see the file COPYING.LIB.  If not,
+   * write to the Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+   * Boston, MA 02111-1307, USA.
+   *
+   * @(#)crypt.c  2.25 12/20/96
+   *
+   * Semiportable C version
+   *
+   * Ported to Java 4/2000.
+   */
+
+/**
+ * The salt independent tables used by the crypt(3C) implementation. The tables
+ * are computed once when the class is loaded and are never modified afterwards,
+ * so they may be shared by any number of CryptImplementation instances.
+ *
+ * @author John Glynn
+ */
+final class CryptTables {
+
+    /**
+     * Permutation done once on the 56 bit key derived from the original 8 byte
+     * ASCII key.
+     */
+    static final int[] pc1 = {
+        57, 49, 41, 33, 25, 17, 9, 1, 58, 50, 42, 34, 26, 18,
+        10, 2, 59, 51, 43, 35, 27, 19, 11, 3, 60, 52, 44, 36,
+        63, 55, 47, 39, 31, 23, 15, 7, 62, 54, 46, 38, 30, 22,
+        14, 6, 61, 53, 45, 37, 29, 21, 13, 5, 28, 20, 12, 4
+    };
+
+    /**
+     * The final permutation matrix.
+     */
+    static final int[] final_perm = {
+        40, 8, 48, 16, 56, 24, 64, 32, 39, 7, 47, 15, 55, 23, 63, 31,
+        38, 6, 46, 14, 54, 22, 62, 30, 37, 5, 45, 13, 53, 21, 61, 29,
+        36, 4, 44, 12, 52, 20, 60, 28, 35, 3, 43, 11, 51, 19, 59, 27,
+        34, 2, 42, 10, 50, 18, 58, 26, 33, 1, 41, 9, 49, 17, 57, 25
+    };
+
+    /**
+     * The sboxes for the DES algorithm.
+     */
+    private static final int[][][] sbox = {
+        {{14, 4, 13, 1, 2, 15, 11, 8, 3, 10, 6, 12, 5, 9, 0, 7},
+        {0, 15, 7, 4, 14, 2, 13, 1, 10, 6, 12, 11, 9, 5, 3, 8},
+        {4, 1, 14, 8, 13, 6, 2, 11, 15, 12, 9, 7, 3, 10, 5, 0},
+        {15, 12, 8, 2, 4, 9, 1, 7, 5, 11, 3, 14, 10, 0, 6, 13}
+        },
+        {{15, 1, 8, 14, 6, 11, 3, 4, 9, 7, 2, 13, 12, 0, 5, 10},
+        {3, 13, 4, 7, 15, 2, 8, 14, 12, 0, 1, 10, 6, 9, 11, 5},
+        {0, 14, 7, 11, 10, 4, 13, 1, 5, 8, 12, 6, 9, 3, 2, 15},
+        {13, 8, 10, 1, 3, 15, 4, 2, 11, 6, 7, 12, 0, 5, 14, 9}
+        },
+        {{10, 0, 9, 14, 6, 3, 15, 5, 1, 13, 12, 7, 11, 4, 2, 8},
+        {13, 7, 0, 9, 3, 4, 6, 10, 2, 8, 5, 14, 12, 11, 15, 1},
+        {13, 6, 4, 9, 8, 15, 3, 0, 11, 1, 2, 12, 5, 10, 14, 7},
+        {1, 10, 13, 0, 6, 9, 8, 7, 4, 15, 14, 3, 11, 5, 2, 12}
+        },
+        {{7, 13, 14, 3, 0, 6, 9, 10, 1, 2, 8, 5, 11, 12, 4, 15},
+        {13, 8, 11, 5, 6, 15, 0, 3, 4, 7, 2, 12, 1, 10, 14, 9},
+        {10, 6, 9, 0, 12, 11, 7, 13, 15, 1, 3, 14, 5, 2, 8, 4},
+        {3, 15, 0, 6, 10, 1, 13, 8, 9, 4, 5, 11, 12, 7, 2, 14}
+        },
+        {{2, 12, 4, 1, 7, 10, 11, 6, 8, 5, 3, 15, 13, 0, 14, 9},
+        {14, 11, 2, 12, 4, 7, 13, 1, 5, 0, 15, 10, 3, 9, 8, 6},
+        {4, 2, 1, 11, 10, 13, 7, 8, 15, 9, 12, 5, 6, 3, 0, 14},
+        {11, 8, 12, 7, 1, 14, 2, 13, 6, 15, 0, 9, 10, 4, 5, 3}
+        },
+        {{12, 1, 10, 15, 9, 2, 6, 8, 0, 13, 3, 4, 14, 7, 5, 11},
+        {10, 15, 4, 2, 7, 12, 9, 5, 6, 1, 13, 14, 0, 11, 3, 8},
+        {9, 14, 15, 5, 2, 8, 12, 3, 7, 0, 4, 10, 1, 13, 11, 6},
+        {4, 3, 2, 12, 9, 5, 15, 10, 11, 14, 1, 7, 6, 0, 8, 13}
+        },
+        {{4, 11, 2, 14, 15, 0, 8, 13, 3, 12, 9, 7, 5, 10, 6, 1},
+        {13, 0, 11, 7, 4, 9, 1, 10, 14, 3, 5, 12, 2, 15, 8, 6},
+        {1, 4, 11, 13, 12, 3, 7, 14, 10, 15, 6, 8, 0, 5, 9, 2},
+        {6, 11, 13, 8, 1, 4, 10, 7, 9, 5, 0, 15, 14, 2, 3, 12}
+        },
+        {{13, 2, 8, 4, 6, 15, 11, 1, 10, 9, 3, 14, 5, 0, 12, 7},
+        {1, 15, 13, 8, 10, 3, 7, 4, 12, 5, 6, 11, 0, 14, 9, 2},
+        {7, 11, 4, 1, 9, 12, 14, 2, 0, 6, 10, 13, 15, 3, 5, 8},
+        {2, 1, 14, 7, 4, 10, 8, 13, 15, 12, 9, 0, 3, 5, 6, 11}
+        }
+    };
+
+    /**
+     * The E expansion table which selects bits from the 32 bit intermediate
+     * result.
+     */
+    static final int[] esel = {
+        32, 1, 2, 3, 4, 5, 4, 5, 6, 7, 8, 9,
+        8, 9, 10, 11, 12, 13, 12, 13, 14, 15, 16, 17,
+        16, 17, 18, 19, 20, 21, 20, 21, 22, 23, 24, 25,
+        24, 25, 26, 27, 28, 29, 28, 29, 30, 31, 32, 1
+    };
+
+    /**
+     * Permutation giving the key of the i' DES round.
+     */
+    static final int[] pc2 = {
+        14, 17, 11, 24, 1, 5, 3, 28, 15, 6, 21, 10,
+        23, 19, 12, 4, 26, 8, 16, 7, 27, 20, 13, 2,
+        41, 52, 31, 37, 47, 55, 30, 40, 51, 45, 33, 48,
+        44, 49, 39, 56, 34, 53, 46, 42, 50, 36, 29, 32
+    };
+
+    /**
+     * Permutation done on the result of sbox lookups.
+     */
+    static final int[] perm32 = {
+        16, 7, 20, 21, 29, 12, 28, 17, 1, 15, 23, 26, 5, 18, 31, 10,
+        2, 8, 24, 14, 32, 27, 3, 9, 19, 13, 30, 6, 22, 11, 4, 25
+    };
+
+    /**
+     * How much to rotate each 28 bit half of the pc1 permutated 56 bit key
+     * before using pc2 to give the i' key
+     */
+    static final int[] rots = {
+        1, 1, 2, 2, 2, 2, 2, 2, 1, 2, 2, 2, 2, 2, 2, 1
+    };
+
+    /**
+     * Additional bitmasks needed for permutations.
+     */
+    static final int[] bitmask = {
+        0x40000000, 0x20000000, 0x10000000, 0x08000000, 0x04000000, 0x02000000,
+        0x01000000, 0x00800000, 0x00400000, 0x00200000, 0x00100000, 0x00080000,
+        0x00004000, 0x00002000, 0x00001000, 0x00000800, 0x00000400, 0x00000200,
+        0x00000100, 0x00000080, 0x00000040, 0x00000020, 0x00000010, 0x00000008
+    };
+
+    /**
+     * Perform pc1 permutation in the key schedule generation.
+     *
+     * The first index is the byte number in the 8 byte ASCII key. The second
+     * index is the two 28 bits halves of the result. The third index selects
+     * the 7 bits actually used of each byte.
+     *
+     * The result is kept with 28 bit per 32 bit with the 4 most significant
+     * bits zero.
+     */
+    static final int[][][] do_pc1 = new int[8][2][128];
+
+    /**
+     * Perform pc2 permutation in the key schedule generation.
+     *
+     * The first index is the septet number in the two 28 bit intermediate
+     * values. The second index is the septet values.
+     *
+     * Knowledge of the structure of the pc2 permutation is used.
+     *
+     * The result is kept with 28 bit per 32 bit with the 4 most significant
+     * bits zero.
+     */
+    static final int[][] do_pc2 = new int[8][128];
+
+    /**
+     * The complete key schedule contributed by each key byte. The pc1
+     * permutation, the rotations of every round and the pc2 permutation are
+     * folded together, so the 16 subkeys of a key are the OR of one row of 16
+     * subkeys for each of the 8 key bytes.
+     *
+     * The table is flat. The index is built from the byte number in the key,
+     * the 7 bit value of the byte and the round as
+     * (byte * 128 + value) * 16 + round.
+     */
+    static final long[] do_keysched = new long[8 * 128 * 16];
+
+    /**
+     * Do 32 bit permutation and E selection
+     *
+     * The table is flat. The index is built from the byte number in the 32 bit
+     * value to be permuted, the value of this byte and the selector of the two
+     * 32 bit values as (byte * 256 + value) * 2 + selector.
+     *
+     * The table is used and generated internally in init to speed up the
+     * creation of sb.
+     */
+    static final int[] eperm32tab = new int[4 * 256 * 2];
+
+    /**
+     * Undo an extra e selection and do final permutation giving the DES result.
+     *
+     * Invoked 6 bit a time on two 48 bit values giving two 32 bit ints.
+     */
+    static final int[][][] efp = new int[16][64][2];
+
+    /**
+     * The sb tables for the empty salt.
+     *
+     * For each 12 bit segment of an 48 bit intermediate result, the sb table
+     * precomputes the two 4 bit values of the sbox lookups done with the two 6
+     * bit halves, shifts them to their proper place, sends them through perm32
+     * and finally E expands them so that they are ready for the next DES round.
+     *
+     * Salted copies are derived from these by swapping bits of each entry.
+     */
+    static final byte[][] sb = new byte[4][32768];
+
+    /**
+     * The sb tables for the empty salt as one flat array of 4 * 4096 entries,
+     * indexed directly by segment * 4096 plus the 12 bit value.
+     */
+    static final long[] sb_flat = new long[4 * 4096];
+
+    /**
+     * The efp table as a flat array indexed by
+     * (word * 64 + word_value) * 2 + o_long.
+     */
+    static final int[] efp_flat = new int[16 * 64 * 2];
+
+    static {
+        init();
+    }
+
+    /**
+     * CryptTables is not meant to be instantiated.
+     */
+    private CryptTables() {
+    }
+
+    /**
+     * Compute the bits swapped in the E expansion for a salt.
+     *
+     * @param salt The 12 bit salt value. The low six bits come from the first
+     * salt character.
+     * @return The group of eight bytes used to permute the sb tables.
+     */
+    static long saltbits(int salt) {
+        long saltbits = 0;
+        for (int i = 0; i < 12; ++i) {
+            if ((salt >>> i & 0x1) != 0) {
+                saltbits |= bitmask[i];
+            }
+        }
+        return saltbits;
+    }
+
+    /**
+     * Compute the 12 bit salt value of two salt bytes. Each byte is decoded
+     * from the salt character it is echoed as, so bytes outside the range 0
+     * to 63 select the same salt bits as they always have.
+     *
+     * @param b0 The first salt byte in crypt(3C)-base64 binary form.
+     * @param b1 The second salt byte in crypt(3C)-base64 binary form.
+     * @return The 12 bit salt value.
+     */
+    static int saltValue(int b0, int b1) {
+        return CryptUtility.asciiToBinary(CryptUtility.binaryToAscii(b0)) & 0x3f
+                | (CryptUtility.asciiToBinary(CryptUtility.binaryToAscii(b1))
+                & 0x3f) << 6;
+    }
+
+    /**
+     * Compute the 16 subkeys of a key into a key schedule array.
+     *
+     * @param key The password bytes, each masked to seven bits.
+     * @param keysched The array receiving the subkeys.
+     * @param offset The index of the first subkey in keysched.
+     */
+    static void makeKeyTable(byte[] key, long[] keysched, int offset) {
+        final long[] t = do_keysched;
+
+        int row = key[0] << 4;
+        for (int i = 0; i < 16; ++i) {
+            keysched[offset + i] = t[row + i];
+        }
+        for (int b = 1; b < 8; ++b) {
+            row = (b << 7 | key[b]) << 4;
+            for (int i = 0; i < 16; ++i) {
+                keysched[offset + i] |= t[row + i];
+            }
+        }
+    }
+
+    /**
+     * Pack the seven significant bits of each key byte into a long, the
+     * first byte in the most significant position.
+     *
+     * @param key The password bytes.
+     * @return The 56 bit key.
+     */
+    static long packKey(byte[] key) {
+        long packed = 0;
+        for (int i = 0; i < 8; ++i) {
+            packed = packed << 7 | key[i] & 0x7f;
+        }
+        return packed;
+    }
+
+    /**
+     * Populate the permutation arrays.
+     */
+    private static void init() {
+        /*
+         * Create the do_pc1 table used to affect pc1 permutation
+         * when generating keys
+         */
+        int comes_from_bit = 0;
+        int bit = 0;
+        int j = 0;
+        int mask1 = 0;
+        int mask2 = 0;
+        for (bit = 0; bit < 56; ++bit) {
+            comes_from_bit = pc1[bit] - 1;
+            mask1 = CryptUtility.bytemask[comes_from_bit % 8 + 1];
+            mask2 = CryptUtility.intmask[bit % 28 + 4];
+            for (j = 0; j < 128; ++j) {
+                if ((j & mask1) != 0) {
+                    do_pc1[comes_from_bit / 8][bit / 28][j] |= mask2;
+                }
+            }
+        }
+
+        /*
+         * Create the do_pc2 table used to affect pc2 permutation when
+         * generating keys
+         */
+        for (bit = 0; bit < 48; ++bit) {
+            comes_from_bit = pc2[bit] - 1;
+            mask1 = CryptUtility.bytemask[comes_from_bit % 7 + 1];
+            mask2 = bitmask[bit % 24];
+            for (j = 0; j < 128; ++j) {
+                if ((j & mask1) != 0) {
+                    do_pc2[comes_from_bit / 7][j] |= mask2;
+                }
+            }
+        }
+
+        /*
+         * Create the do_keysched table holding the subkeys of every key byte
+         * value. Each step of the key schedule only shifts and ORs bits, so
+         * the subkeys of a key are the OR of the subkeys of its bytes
+         */
+        for (int b = 0; b < 8; ++b) {
+            for (j = 0; j < 128; ++j) {
+                int v1 = do_pc1[b][0][j];
+                int v2 = do_pc1[b][1][j];
+                for (int i = 0; i < 16; ++i) {
+                    v1 = v1 << rots[i] | v1 >>> 28 - rots[i];
+                    v2 = v2 << rots[i] | v2 >>> 28 - rots[i];
+
+                    long v = do_pc2[0][v1 >>> 21 & 0x7f]
+                            | do_pc2[1][v1 >>> 14 & 0x7f]
+                            | do_pc2[2][v1 >>> 7 & 0x7f]
+                            | do_pc2[3][v1 & 0x7f];
+                    v <<= 32;
+                    v |= do_pc2[4][v2 >>> 21 & 0x7f]
+                            | do_pc2[5][v2 >>> 14 & 0x7f]
+                            | do_pc2[6][v2 >>> 7 & 0x7f]
+                            | do_pc2[7][v2 & 0x7f];
+
+                    do_keysched[(b * 128 + j) * 16 + i] = v;
+                }
+            }
+        }
+
+        /*
+         * Now generate the table used to do combined 32 bit permutation 
+         * and e expansion
+         *
+         * We use it because we have to permute 16384 32 bit
+         * longs into 48 bits in order to initialize sb.
+         *
+         */
+        for (bit = 0; bit < 48; ++bit) {
+            int comes_from = perm32[esel[bit] - 1] - 1;
+            int mask3 = CryptUtility.bytemask[comes_from % 8];
+            for (j = 256; j > 0;) {
+                --j;
+                if ((j & mask3) != 0) {
+                    eperm32tab[((comes_from / 8) * 256 + j) * 2 + bit / 24]
+                            |= bitmask[bit % 24];
+                }
+            }
+        }
+
+        /*
+         * Create an inverse matrix for esel telling where to plug out bits 
+         * if undoing it
+         */
+        int[] e_inverse = new int[64];
+        for (bit = 48; bit > 0;) {
+            --bit;
+            e_inverse[esel[bit] - 1] = bit;
+            e_inverse[esel[bit] - 1 + 32] = bit + 48;
+        }
+
+        /*
+         * create efp: the matrix used to undo the E expansion and effect 
+         * final permutation
+         */
+        for (bit = 0; bit < 64; ++bit) {
+            /* See where bit i belongs in the two 32 bit long's */
+            int o_long = bit / 32;
+            /* 0..1  */
+            int o_bit = bit % 32;
+            /* 0..31 */
+
+            /*
+             * And find a bit in the e permutated value setting this bit.
+             *
+             * Note: the e selection may have selected the same bit several
+             * times. By the initialization of e_inverse, we only look
+             * for one specific instance.
+             */
+            int comes_from_f_bit = final_perm[bit] - 1;
+            /* 0..63 */
+            int comes_from_e_bit = e_inverse[comes_from_f_bit];
+            /* 0..95 */
+            int comes_from_word = comes_from_e_bit / 6;
+            /* 0..15 */
+            int bit_within_word = comes_from_e_bit % 6;
+            /* 0..5  */
+
+            int mask4 = CryptUtility.intmask[bit_within_word + 26];
+            int mask5 = CryptUtility.intmask[o_bit];
+
+            for (int word_value = 64; word_value > 0;) {
+                --word_value;
+                if ((word_value & mask4) != 0) {
+                    efp[comes_from_word][word_value][o_long] |= mask5;
+                    efp_flat[(comes_from_word * 64 + word_value) * 2 + o_long]
+                            |= mask5;
+                }
+            }
+        }
+
+        /*
+         * Create the sb tables:
+         *
+         * For each 12 bit segment of an 48 bit intermediate
+         * result, the sb table precomputes the two 4 bit
+         * values of the sbox lookups done with the two 6
+         * bit halves, shifts them to their proper place,
+         * sends them through perm32 and finally E expands
+         * them so that they are ready for the next
+         * DES round.
+         *
+         */
+        for (int sg = 0; sg < 4; ++sg) {
+            for (int j1 = 0; j1 < 64; ++j1) {
+                int s1 = sboxLookup(2 * sg, j1);
+                for (int j2 = 0; j2 < 64; ++j2) {
+                    int s2 = sboxLookup(2 * sg + 1, j2);
+                    int to_permute = (s1 << 4 | s2) << 24 - 8 * sg;
+                    int inx = j1 << 6 | j2;
+
+                    long block = eperm32(0, to_permute >>> 24 & 0xff)
+                            | eperm32(1, to_permute >>> 16 & 0xff)
+                            | eperm32(2, to_permute >>> 8 & 0xff)
+                            | eperm32(3, to_permute & 0xff);
+                    sb_flat[sg * 4096 + inx] = block;
+
+                    byte[] temp = CryptUtility.longToBytes(block);
+                    for (int k = 0; k < 8; ++k) {
+                        sb[sg][inx * 8 + k] = temp[k];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Do the combined 32 bit permutation and E expansion of one byte.
+     *
+     * @param i The byte number in the 32 bit value.
+     * @param value The value of the byte.
+     * @return The two 32 bit halves of the E expanded value as a long.
+     */
+    private static long eperm32(int i, int value) {
+        int index = (i * 256 + value) * 2;
+        return (long) eperm32tab[index] << 32 | (long) eperm32tab[index + 1];
+    }
+
+    /**
+     * Lookup a 6 bit value in an sbox.
+     *
+     * @param i The outer index.
+     * @param s The integer used to calculate the inner two indices.
+     * @return The integer value stored in the sbox.
+     */
+    private static int sboxLookup(int i, int s) {
+        return sbox[i][s >>> 4 & 0x2 | s & 0x1][s >>> 1 & 0xf];
+    }
+}
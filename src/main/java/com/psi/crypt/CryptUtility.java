@@ -1,6 +1,7 @@
 package com.psi.crypt;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 
 /**
  * A class used as namespace for common methods and data.
@@ -118,6 +119,25 @@ public class CryptUtility {
                 -30, -28, -24, -18, -16, -10, -6, -4
             };
 
+    /**
+     * The crypt(3C)-base64 character of each six bit value.
+     */
+    private static final char[] binary_to_ascii = new char[64];
+
+    /**
+     * The crypt(3C)-base64 value of each ASCII character, or -1 for characters
+     * outside the alphabet.
+     */
+    private static final byte[] ascii_to_binary = new byte[128];
+
+    static {
+        Arrays.fill(ascii_to_binary, (byte) -1);
+        for (int i = 0; i < 64; ++i) {
+            binary_to_ascii[i] = binaryToAscii(i);
+            ascii_to_binary[binary_to_ascii[i]] = (byte) i;
+        }
+    }
+
     /**
      * Converts a byte array to hex string
      *
@@ -161,6 +181,29 @@ public class CryptUtility {
         return (c >= 'a' ? (c - 59) : c >= 'A' ? (c - 53) : c - '.');
     }
 
+    /**
+     * Returns the base64 (crypt) value of an encoded character, rejecting
+     * characters outside the alphabet. Unlike asciiToBinary() this uses a
+     * table, so it takes the same time for every character of the alphabet.
+     *
+     * @param c Encoded character
+     * @return Integer value in range {0, ..., 63}, or -1
+     */
+    static int decodeBinary(char c) {
+        return c < 128 ? ascii_to_binary[c] : -1;
+    }
+
+    /**
+     * Returns the base64 (crypt) encoded character of the low six bits of an
+     * integer, looked up in a table.
+     *
+     * @param i Integer whose low six bits are encoded
+     * @return Encoded character
+     */
+    static char encodeBinary(int i) {
+        return binary_to_ascii[i & 0x3f];
+    }
+
     /**
      * Returns the base64 (crypt) encoded character of the integer. This
      * encoding scheme follows crypt(3C) format.
@@ -258,6 +301,28 @@ public class CryptUtility {
         return bytes;
     }
 
+    /**
+     * Convert a 64 bit DES result to 11 bit ASCII prefixed with the salt,
+     * giving the 13 characters of the crypt(3C) format.
+     *
+     * @param salt0 The first salt character.
+     * @param salt1 The second salt character.
+     * @param result The DES result, the first output bit in the most
+     * significant position.
+     * @param buf The char[] receiving the 13 characters.
+     * @param offset Integer offset into buf.
+     */
+    static void outputConversion(char salt0, char salt1, long result,
+            char[] buf, int offset) {
+        buf[offset] = salt0;
+        buf[offset + 1] = salt1;
+
+        for (int i = 0; i < 10; ++i) {
+            buf[offset + i + 2] = encodeBinary((int) (result >>> 58 - 6 * i));
+        }
+        buf[offset + 12] = encodeBinary((int) result << 2);
+    }
+
     /**
      * CryptUtility is not meant to implemented directly.
      */
@@ -0,0 +1,330 @@
+package com.psi.crypt;
+
+import java.security.AlgorithmParameters;
+
+/**
+ * Implementation of crypt(3C) which keeps the sb tables, the key schedule and
+ * the final permutation table in flat primitive arrays. Each round step is a
+ * direct array index instead of an unpacking of eight bytes, so the output is
+ * identical to CryptImplementation at a fraction of the cost.
+ *
+ * @author John Glynn
+ */
+class FlatCryptImplementation {
+
+    /**
+     * The salt table cache shared by all instances which do not supply their
+     * own cache.
+     */
+    static final SaltTableCache<long[]> SALT_TABLES = new SaltTableCache<>(
+            FlatCryptImplementation::shuffledTables, 8 * 4 * 4096,
+            SaltTableCache.defaultBudget());
+
+    /**
+     * Storage for the internal DES expanded key, one long per round.
+     */
+    private final long[] keysched;
+    /**
+     * The sb tables in use for the current salt. This is either the shared
+     * table for the empty salt, a table from the salt table cache or saltedSb.
+     */
+    private long[] sb;
+    /**
+     * Storage for the permuted sboxes, allocated the first time a salt other
+     * than the empty salt is used without a cache.
+     */
+    private long[] saltedSb;
+    /**
+     * The cache supplying shuffled sb tables, or null when every salt change
+     * shuffles into saltedSb.
+     */
+    private final SaltTableCache<long[]> saltTables;
+    /**
+     * Stores the result of the digest prefixed with the salt.
+     */
+    private final char[] crypt_3_buf;
+    /**
+     * The 12 bit value of the current salt, or -1 before the first salt.
+     */
+    private int current_salt;
+    /**
+     * Two char array which stores the salt as given.
+     */
+    private final char[] current_salt_chars;
+    /**
+     * Group of eight bytes which stores each bit of the salt after applying a
+     * bitmask.
+     */
+    private long current_saltbits;
+    /**
+     * The 64 bit DES result of the last encryption.
+     */
+    private long result;
+
+    /**
+     * No argument constructor allocates memory and uses the shared salt table
+     * cache.
+     */
+    public FlatCryptImplementation() {
+        this(SALT_TABLES);
+    }
+
+    /**
+     * Constructor allocating memory and using the given salt table cache.
+     *
+     * @param saltTables The cache of shuffled sb tables, or null to shuffle
+     * a private copy of the tables on every salt change.
+     */
+    FlatCryptImplementation(SaltTableCache<long[]> saltTables) {
+        this.saltTables = saltTables;
+        keysched = new long[16];
+        sb = CryptTables.sb_flat;
+        crypt_3_buf = new char[13];
+        current_salt = -1;
+        current_salt_chars = new char[2];
+    }
+
+    /**
+     * Accessor method to get the result string.
+     *
+     * @return String made up of the base64 encoded characters.
+     */
+    public String getCrypt3Buffer() {
+        CryptUtility.outputConversion(current_salt_chars[0],
+                current_salt_chars[1], result, crypt_3_buf, 0);
+        return new String(crypt_3_buf);
+    }
+
+    /**
+     * Accessor method to get the DES result of the last encryption.
+     *
+     * @return The 64 bit result, the first output bit in the most significant
+     * position.
+     */
+    long getResult() {
+        return result;
+    }
+
+    /**
+     * Perform 25 DES encryptions on the data.
+     */
+    void encrypt() {
+        final long[] t = sb;
+        final long[] k = keysched;
+        long l = 0;
+        long r = 0;
+
+        for (int itr = 25; itr > 0; --itr) {
+            for (int i = 0; i < 16; i += 2) {
+                long s = k[i] ^ r;
+                l ^= t[(int) (s >>> 51) & 0xfff]
+                        ^ t[0x1000 | (int) (s >>> 35) & 0xfff]
+                        ^ t[0x2000 | (int) (s >>> 19) & 0xfff]
+                        ^ t[0x3000 | (int) (s >>> 3) & 0xfff];
+
+                s = k[i + 1] ^ l;
+                r ^= t[(int) (s >>> 51) & 0xfff]
+                        ^ t[0x1000 | (int) (s >>> 35) & 0xfff]
+                        ^ t[0x2000 | (int) (s >>> 19) & 0xfff]
+                        ^ t[0x3000 | (int) (s >>> 3) & 0xfff];
+            }
+            long s = l;
+            l = r;
+            r = s;
+        }
+
+        /*
+          * Do final permutations
+         */
+        result = doFinalPerm(l, r, current_saltbits);
+    }
+
+    /**
+     * Initialize the keysched array. A schedule precomputed by
+     * CryptKeyFactory is copied instead of being built again.
+     *
+     * @param cryptKey An opaque container for the key (password bytes).
+     */
+    void makeKeyTable(CryptKey cryptKey) {
+        long[] precomputed = cryptKey.getKeySchedule();
+        if (precomputed != null) {
+            System.arraycopy(precomputed, 0, keysched, 0, 16);
+        } else {
+            makeKeyTable(cryptKey.getEncoded());
+        }
+    }
+
+    /**
+     * Initialize the keysched array from the eight key bytes.
+     *
+     * @param key The password bytes, each masked to seven bits.
+     */
+    void makeKeyTable(byte[] key) {
+        CryptTables.makeKeyTable(key, keysched, 0);
+    }
+
+    /**
+     * Take the encoded bytes of the salt and swap entries in the expansion
+     * table according to the bits set in the salt.
+     *
+     * @param params Opaque container for the salt bits.
+     */
+    void setupSalt(AlgorithmParameters params) {
+        byte[] saltBytes;
+        try {
+            saltBytes = params.getEncoded();
+        } catch (java.io.IOException io) {
+            throw new IllegalArgumentException(io);
+        }
+
+        setupSalt(CryptTables.saltValue(saltBytes[0], saltBytes[1]));
+        current_salt_chars[0] = CryptUtility.binaryToAscii(saltBytes[0]);
+        current_salt_chars[1] = CryptUtility.binaryToAscii(saltBytes[1]);
+    }
+
+    /**
+     * Select the sb tables permuted for a salt.
+     *
+     * @param salt The 12 bit salt value. The low six bits come from the first
+     * salt character.
+     */
+    void setupSalt(int salt) {
+        current_salt_chars[0] = CryptUtility.binaryToAscii(salt & 0x3f);
+        current_salt_chars[1] = CryptUtility.binaryToAscii(salt >>> 6);
+
+        if (salt == current_salt) {
+            return;
+        }
+
+        long saltbits = CryptTables.saltbits(salt);
+        if (saltbits == 0) {
+            sb = CryptTables.sb_flat;
+        } else if (saltTables != null && saltTables.getMaxEntries() > 0) {
+            sb = saltTables.get(salt);
+        } else {
+            if (saltedSb == null) {
+                saltedSb = new long[4 * 4096];
+            }
+            shuffle_sb(CryptTables.sb_flat, saltedSb, saltbits);
+            sb = saltedSb;
+        }
+
+        current_salt = salt;
+        current_saltbits = saltbits;
+    }
+
+    /**
+     * Build the sb tables for a salt. Used by the shared salt table cache.
+     *
+     * @param salt The 12 bit salt value.
+     * @return A new sb table permuted for the salt.
+     */
+    static long[] shuffledTables(int salt) {
+        long[] table = new long[4 * 4096];
+        shuffle_sb(CryptTables.sb_flat, table, CryptTables.saltbits(salt));
+        return table;
+    }
+
+    /**
+     * Copy the elements of the unsalted sb table permuting the bits swapped in
+     * the expansion by the given salt.
+     *
+     * @param src The sb table for the empty salt.
+     * @param dest The sb table receiving the permuted values.
+     * @param saltbits A group of eight bytes used to permute the sb table.
+     */
+    static void shuffle_sb(long[] src, long[] dest, long saltbits) {
+        for (int i = 0; i < src.length; ++i) {
+            long y = src[i];
+            long x = (y >>> 32 ^ y) & saltbits;
+            dest[i] = y ^ (x << 32 | x);
+        }
+    }
+
+    /**
+     * Undo an extra E selection and do final permutations.
+     *
+     * @param l The left half in E expanded form.
+     * @param r The right half in E expanded form.
+     * @param saltbits The salt bits swapped in the E expansion.
+     * @return The 64 bit DES result.
+     */
+    static long doFinalPerm(long l, long r, long saltbits) {
+        final int[] efp = CryptTables.efp_flat;
+        int l1 = (int) (l >>> 32);
+        int l2 = (int) l;
+        int r1 = (int) (r >>> 32);
+        int r2 = (int) r;
+
+        int x = (l1 ^ l2) & (int) saltbits;
+        l1 ^= x;
+        l2 ^= x;
+
+        x = (r1 ^ r2) & (int) saltbits;
+        r1 ^= x;
+        r2 ^= x;
+
+        l1 >>>= 3;
+        l2 >>>= 3;
+        r1 >>>= 3;
+        r2 >>>= 3;
+
+        int v1 = 0;
+        int v2 = 0;
+        int e;
+
+        e = (15 * 64 + (r2 & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+        e = (14 * 64 + ((r2 >>>= 6) & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+        e = (13 * 64 + ((r2 >>>= 10) & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+        e = (12 * 64 + ((r2 >>>= 6) & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+
+        e = (11 * 64 + (r1 & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+        e = (10 * 64 + ((r1 >>>= 6) & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+        e = (9 * 64 + ((r1 >>>= 10) & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+        e = (8 * 64 + ((r1 >>>= 6) & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+
+        e = (7 * 64 + (l2 & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+        e = (6 * 64 + ((l2 >>>= 6) & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+        e = (5 * 64 + ((l2 >>>= 10) & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+        e = (4 * 64 + ((l2 >>>= 6) & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+
+        e = (3 * 64 + (l1 & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+        e = (2 * 64 + ((l1 >>>= 6) & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+        e = (1 * 64 + ((l1 >>>= 10) & 0x3f)) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+        e = ((l1 >>>= 6) & 0x3f) * 2;
+        v1 |= efp[e];
+        v2 |= efp[e + 1];
+
+        return (long) v1 << 32 | (long) v2 & 0xffffffffL;
+    }
+}
@@ -0,0 +1,263 @@
+package com.psi.crypt;
+
+/**
+ * Implementation of crypt(3C) which interleaves two to four independent
+ * hashes in one loop over the flat tables. Each lane has its own key schedule
+ * and its own salted sb table, and the table lookups of the lanes do not
+ * depend on each other, so an out-of-order processor can overlap them. This
+ * suits small groups of concurrent hashes which are too few for the bitsliced
+ * implementations.
+ *
+ * @author John Glynn
+ */
+final class InterleavedCryptImplementation extends BatchCryptImplementation {
+
+    /**
+     * The largest number of lanes.
+     */
+    static final int MAX_LANES = 4;
+
+    /**
+     * The number of lanes hashed at once.
+     */
+    private final int lanes;
+    /**
+     * The key schedules of the lanes, 16 subkeys per lane.
+     */
+    private final long[] keysched;
+    /**
+     * The sb tables of the lanes for their salts.
+     */
+    private final long[][] sb;
+    /**
+     * The salt bits of the lanes.
+     */
+    private final long[] saltbits;
+    /**
+     * The salt characters of each lane.
+     */
+    private final char[] saltChars;
+    /**
+     * The 64 bit DES result of each lane.
+     */
+    private final long[] results;
+    /**
+     * Storage for the masked key bytes of a lane.
+     */
+    private final byte[] key;
+
+    /**
+     * Constructor allocating memory for the given number of lanes.
+     *
+     * @param lanes The number of lanes, from 2 to 4.
+     */
+    InterleavedCryptImplementation(int lanes) {
+        if (lanes < 2 || lanes > MAX_LANES) {
+            throw new IllegalArgumentException("Unsupported lanes: " + lanes);
+        }
+        this.lanes = lanes;
+        keysched = new long[16 * MAX_LANES];
+        sb = new long[MAX_LANES][];
+        saltbits = new long[MAX_LANES];
+        saltChars = new char[2 * MAX_LANES];
+        results = new long[MAX_LANES];
+        key = new byte[8];
+
+        for (int lane = 0; lane < MAX_LANES; ++lane) {
+            sb[lane] = CryptTables.sb_flat;
+        }
+    }
+
+    /**
+     * Accessor method to get the number of passwords hashed at once.
+     *
+     * @return The number of lanes given to the constructor.
+     */
+    @Override
+    int lanes() {
+        return lanes;
+    }
+
+    /**
+     * Load the keys and salts of the lanes. Lanes beyond count are hashed with
+     * an empty key and salt.
+     *
+     * @param keyBytes The password bytes of each lane. At most the first eight
+     * bytes of each password are used.
+     * @param salts The salt of each lane as two bytes in crypt(3C)-base64
+     * binary form.
+     * @param offset The index of the first password and salt to load.
+     * @param count The number of lanes to load, at most lanes().
+     */
+    @Override
+    void setup(byte[][] keyBytes, byte[][] salts, int offset, int count) {
+        if (count > lanes) {
+            throw new IllegalArgumentException("More than " + lanes
+                    + " lanes: " + count);
+        }
+
+        for (int lane = 0; lane < MAX_LANES; ++lane) {
+            CryptUtility.clearMemory(key);
+            int salt = 0;
+            if (lane < count) {
+                byte[] raw = keyBytes[offset + lane];
+                for (int i = 0; i < key.length && i < raw.length; ++i) {
+                    key[i] = (byte) (raw[i] & 0x7f);
+                }
+
+                byte[] saltBytes = salts[offset + lane];
+                salt = CryptTables.saltValue(saltBytes[0], saltBytes[1]);
+                saltChars[2 * lane] = CryptUtility.binaryToAscii(saltBytes[0]);
+                saltChars[2 * lane + 1]
+                        = CryptUtility.binaryToAscii(saltBytes[1]);
+            } else {
+                saltChars[2 * lane] = '.';
+                saltChars[2 * lane + 1] = '.';
+            }
+
+            CryptTables.makeKeyTable(key, keysched, 16 * lane);
+            saltbits[lane] = CryptTables.saltbits(salt);
+            if (saltbits[lane] == 0) {
+                sb[lane] = CryptTables.sb_flat;
+            } else if (FlatCryptImplementation.SALT_TABLES.getMaxEntries() > 0) {
+                sb[lane] = FlatCryptImplementation.SALT_TABLES.get(salt);
+            } else {
+                sb[lane] = FlatCryptImplementation.shuffledTables(salt);
+            }
+        }
+    }
+
+    /**
+     * Perform 25 DES encryptions on all lanes.
+     */
+    @Override
+    void encrypt() {
+        if (lanes == 2) {
+            encrypt2();
+        } else {
+            encrypt4();
+        }
+    }
+
+    /**
+     * Accessor method to get the DES result of a lane.
+     *
+     * @param lane The lane number.
+     * @return The 64 bit result, the first output bit in the most significant
+     * position.
+     */
+    @Override
+    long getResult(int lane) {
+        return results[lane];
+    }
+
+    /**
+     * Accessor method to get the result string of a lane.
+     *
+     * @param lane The lane number.
+     * @return String made up of the base64 encoded characters.
+     */
+    @Override
+    String getCrypt3Buffer(int lane) {
+        char[] buf = new char[13];
+        CryptUtility.outputConversion(saltChars[2 * lane],
+                saltChars[2 * lane + 1], results[lane], buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * Perform 25 DES encryptions on two lanes.
+     */
+    private void encrypt2() {
+        final long[] k = keysched;
+        final long[] t0 = sb[0];
+        final long[] t1 = sb[1];
+        long l0 = 0;
+        long r0 = 0;
+        long l1 = 0;
+        long r1 = 0;
+
+        for (int itr = 25; itr > 0; --itr) {
+            for (int i = 0; i < 16; i += 2) {
+                l0 ^= f(t0, k[i] ^ r0);
+                l1 ^= f(t1, k[16 + i] ^ r1);
+
+                r0 ^= f(t0, k[i + 1] ^ l0);
+                r1 ^= f(t1, k[16 + i + 1] ^ l1);
+            }
+            long s = l0;
+            l0 = r0;
+            r0 = s;
+            s = l1;
+            l1 = r1;
+            r1 = s;
+        }
+
+        results[0] = FlatCryptImplementation.doFinalPerm(l0, r0, saltbits[0]);
+        results[1] = FlatCryptImplementation.doFinalPerm(l1, r1, saltbits[1]);
+    }
+
+    /**
+     * Perform 25 DES encryptions on four lanes.
+     */
+    private void encrypt4() {
+        final long[] k = keysched;
+        final long[] t0 = sb[0];
+        final long[] t1 = sb[1];
+        final long[] t2 = sb[2];
+        final long[] t3 = sb[3];
+        long l0 = 0;
+        long r0 = 0;
+        long l1 = 0;
+        long r1 = 0;
+        long l2 = 0;
+        long r2 = 0;
+        long l3 = 0;
+        long r3 = 0;
+
+        for (int itr = 25; itr > 0; --itr) {
+            for (int i = 0; i < 16; i += 2) {
+                l0 ^= f(t0, k[i] ^ r0);
+                l1 ^= f(t1, k[16 + i] ^ r1);
+                l2 ^= f(t2, k[32 + i] ^ r2);
+                l3 ^= f(t3, k[48 + i] ^ r3);
+
+                r0 ^= f(t0, k[i + 1] ^ l0);
+                r1 ^= f(t1, k[16 + i + 1] ^ l1);
+                r2 ^= f(t2, k[32 + i + 1] ^ l2);
+                r3 ^= f(t3, k[48 + i + 1] ^ l3);
+            }
+            long s = l0;
+            l0 = r0;
+            r0 = s;
+            s = l1;
+            l1 = r1;
+            r1 = s;
+            s = l2;
+            l2 = r2;
+            r2 = s;
+            s = l3;
+            l3 = r3;
+            r3 = s;
+        }
+
+        results[0] = FlatCryptImplementation.doFinalPerm(l0, r0, saltbits[0]);
+        results[1] = FlatCryptImplementation.doFinalPerm(l1, r1, saltbits[1]);
+        results[2] = FlatCryptImplementation.doFinalPerm(l2, r2, saltbits[2]);
+        results[3] = FlatCryptImplementation.doFinalPerm(l3, r3, saltbits[3]);
+    }
+
+    /**
+     * The DES round function on the flat sb table.
+     *
+     * @param t The sb table of the lane.
+     * @param s The keyed half block.
+     * @return The E expanded output of the round function.
+     */
+    private static long f(long[] t, long s) {
+        return t[(int) (s >>> 51) & 0xfff]
+                ^ t[0x1000 | (int) (s >>> 35) & 0xfff]
+                ^ t[0x2000 | (int) (s >>> 19) & 0xfff]
+                ^ t[0x3000 | (int) (s >>> 3) & 0xfff];
+    }
+}
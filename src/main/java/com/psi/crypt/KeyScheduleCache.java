@@ -0,0 +1,252 @@
+package com.psi.crypt;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of DES key schedules, for workloads which hash the same
+ * password again, e.g. when users re-authenticate or clients retry.
+ *
+ * The cache does not keep the password. A key is packed into 56 bits and run
+ * through a 64 bit fingerprint keyed with a random seed chosen per cache, so
+ * the slot a password lands in cannot be predicted. Only the fingerprint and
+ * the 16 subkeys are stored. A hit is confirmed by recomputing the first
+ * subkey, which costs 8 table lookups instead of 128.
+ *
+ * The cache is direct mapped: each fingerprint has one slot, and a new
+ * schedule evicts the schedule of another key in its slot. Readers never
+ * lock; entries are immutable and published through an atomic array.
+ *
+ * @author John Glynn
+ */
+public final class KeyScheduleCache {
+
+    /**
+     * The system property holding the memory budget in bytes of the cache
+     * used by the Crypt methods. The cache is disabled when it is not set.
+     */
+    public static final String BUDGET_PROPERTY = "com.psi.crypt.keyCacheBytes";
+
+    /**
+     * The approximate size in bytes of one cached schedule with its entry
+     * and slot.
+     */
+    static final int ENTRY_BYTES = 192;
+
+    /**
+     * A cached key schedule with its fingerprint.
+     */
+    private static final class Entry {
+
+        final long fingerprint;
+        final long[] keysched;
+
+        Entry(long fingerprint, long[] keysched) {
+            this.fingerprint = fingerprint;
+            this.keysched = keysched;
+        }
+    }
+
+    /**
+     * The cached entries indexed by the low bits of the fingerprint.
+     */
+    private final AtomicReferenceArray<Entry> entries;
+
+    /**
+     * The mask selecting the slot from a fingerprint.
+     */
+    private final int mask;
+
+    /**
+     * The seeds of the fingerprint.
+     */
+    private final long seed0;
+    private final long seed1;
+
+    /**
+     * The number of schedules currently cached.
+     */
+    private final AtomicInteger size;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    /**
+     * Creates a cache within a memory budget.
+     *
+     * @param budget The memory budget in bytes. The number of slots is the
+     * largest power of two that fits, and at least one.
+     * @exception IllegalArgumentException Thrown when the budget is negative.
+     */
+    public KeyScheduleCache(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Negative budget: " + budget);
+        }
+        long slots = Math.max(1, Math.min(1 << 30, budget / ENTRY_BYTES));
+        int capacity = Integer.highestOneBit((int) slots);
+
+        SecureRandom random = new SecureRandom();
+        this.entries = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.seed0 = random.nextLong();
+        this.seed1 = random.nextLong();
+        this.size = new AtomicInteger();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    /**
+     * Returns a cache with the budget configured through the system property
+     * <code>com.psi.crypt.keyCacheBytes</code>.
+     *
+     * @return The cache, or null when the property is not set or zero.
+     */
+    static KeyScheduleCache fromProperty() {
+        long budget = Long.getLong(BUDGET_PROPERTY, 0);
+        return budget > 0 ? new KeyScheduleCache(budget) : null;
+    }
+
+    /**
+     * Compute the 16 subkeys of a key into a key schedule array, copying them
+     * from the cache when the key was seen before.
+     *
+     * @param key The password bytes, each masked to seven bits.
+     * @param keysched The array receiving the subkeys.
+     * @param offset The index of the first subkey in keysched.
+     */
+    void makeKeyTable(byte[] key, long[] keysched, int offset) {
+        long fingerprint = fingerprint(CryptTables.packKey(key));
+        int index = (int) fingerprint & mask;
+
+        Entry entry = entries.get(index);
+        if (entry != null && entry.fingerprint == fingerprint
+                && entry.keysched[0] == firstSubkey(key)) {
+            System.arraycopy(entry.keysched, 0, keysched, offset, 16);
+            hits.increment();
+            return;
+        }
+
+        misses.increment();
+        CryptTables.makeKeyTable(key, keysched, offset);
+
+        long[] copy = new long[16];
+        System.arraycopy(keysched, offset, copy, 0, 16);
+        Entry old = entries.getAndSet(index, new Entry(fingerprint, copy));
+        if (old == null) {
+            size.incrementAndGet();
+        } else {
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Accessor method to get the number of slots.
+     *
+     * @return The largest number of cached schedules.
+     */
+    public int getCapacity() {
+        return entries.length();
+    }
+
+    /**
+     * Accessor method to get the number of schedules currently cached.
+     *
+     * @return The number of cached schedules.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Accessor method to get the number of lookups served from the cache.
+     *
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Accessor method to get the number of lookups which built a schedule.
+     *
+     * @return The miss count.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Accessor method to get the number of schedules replaced by the schedule
+     * of another key.
+     *
+     * @return The eviction count.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Removes every schedule from the cache. The counters are not reset.
+     */
+    public void clear() {
+        for (int i = 0; i < entries.length(); ++i) {
+            if (entries.getAndSet(i, null) != null) {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Return a descriptive string with the cache statistics.
+     *
+     * @return The statistics as a string.
+     */
+    @Override
+    public String toString() {
+        return "KeyScheduleCache[size=" + size() + ", capacity="
+                + getCapacity() + ", hits=" + getHitCount() + ", misses="
+                + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    /**
+     * Compute the keyed fingerprint of a packed key. Two rounds of the
+     * MurmurHash3 finalizer are mixed with the seeds of this cache.
+     *
+     * @param packed The key packed into 56 bits.
+     * @return The 64 bit fingerprint.
+     */
+    private long fingerprint(long packed) {
+        return mix(mix(packed ^ seed0) + seed1);
+    }
+
+    /**
+     * The MurmurHash3 64 bit finalizer.
+     *
+     * @param x The value to mix.
+     * @return The mixed value.
+     */
+    private static long mix(long x) {
+        x = (x ^ x >>> 33) * 0xff51afd7ed558ccdL;
+        x = (x ^ x >>> 33) * 0xc4ceb9fe1a85ec53L;
+        return x ^ x >>> 33;
+    }
+
+    /**
+     * Compute the subkey of the first round alone.
+     *
+     * @param key The password bytes, each masked to seven bits.
+     * @return The first subkey.
+     */
+    private static long firstSubkey(byte[] key) {
+        final long[] t = CryptTables.do_keysched;
+        long k = 0;
+        for (int b = 0; b < 8; ++b) {
+            k |= t[(b << 7 | key[b]) << 4];
+        }
+        return k;
+    }
+}
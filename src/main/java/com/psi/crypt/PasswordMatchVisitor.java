@@ -0,0 +1,20 @@
+package com.psi.crypt;
+
+/**
+ * Receiver of the users whose stored hash matches a candidate password.
+ *
+ * @author John Glynn
+ */
+@FunctionalInterface
+public interface PasswordMatchVisitor {
+
+    /**
+     * Called with a match. The name bytes are only valid during the call.
+     *
+     * @param name The byte[] holding the UTF-8 user name.
+     * @param offset Integer offset into name.
+     * @param length The length of the name in bytes.
+     * @param candidate The index of the matching candidate password.
+     */
+    void matched(byte[] name, int offset, int length, int candidate);
+}
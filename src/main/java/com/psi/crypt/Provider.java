@@ -9,8 +9,8 @@ public final class Provider extends java.security.Provider {
 
     /**
      * No argument constructor required for implementation. This initializes the
-     * base class and adds the crypt digest and algorithm parameters to the list
-     * of available modules in the security model.
+     * base class and adds the crypt digest, algorithm parameters and secret
+     * key factory to the list of available modules in the security model.
      */
     public Provider() {
         super("PSI", 1.2, "DES Crypt");
@@ -18,5 +18,6 @@ public final class Provider extends java.security.Provider {
         put("AlgorithmParameters.Crypt",
                 "com.psi.crypt.CryptAlgorithmParameters");
         put("MessageDigest.Crypt", "com.psi.crypt.CryptDigest");
+        put("SecretKeyFactory.Crypt", "com.psi.crypt.CryptKeyFactory");
     }
 }
@@ -0,0 +1,180 @@
+package com.psi.crypt;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generator of random crypt(3C) salts, uniform over all 4096 salts.
+ *
+ * Each thread has its own SecureRandom, so threads do not contend on a shared
+ * generator. Random bytes are fetched in bulk and each salt takes 12 bits of
+ * two bytes. 4096 divides 65536, so masking keeps the salts uniform.
+ *
+ * @author John Glynn
+ */
+public final class SaltGenerator {
+
+    /**
+     * The system property holding the SecureRandom algorithm of the default
+     * generator, e.g. <code>NativePRNGNonBlocking</code> or
+     * <code>DRBG</code>. The platform default is used when it is not set,
+     * or with a logged warning when the algorithm is not available.
+     */
+    public static final String ALGORITHM_PROPERTY = "com.psi.crypt.saltAlgorithm";
+
+    /**
+     * The number of random bytes fetched at once, enough for 256 salts.
+     */
+    private static final int PREFETCH = 512;
+
+    private static final Logger LOG
+            = Logger.getLogger(SaltGenerator.class.getName());
+
+    /**
+     * The generator used by the Crypt methods which pick their own salt.
+     */
+    private static final SaltGenerator DEFAULT = newDefault(
+            System.getProperty(ALGORITHM_PROPERTY));
+
+    /**
+     * The random source and prefetched bytes of a thread.
+     */
+    private static final class Source {
+
+        final SecureRandom random;
+        final byte[] bytes;
+        int position;
+
+        Source(SecureRandom random) {
+            this.random = random;
+            this.bytes = new byte[PREFETCH];
+            this.position = PREFETCH;
+        }
+    }
+
+    /**
+     * The SecureRandom algorithm, or null for the platform default.
+     */
+    private final String algorithm;
+
+    /**
+     * The random source of each thread.
+     */
+    private final ThreadLocal<Source> sources;
+
+    /**
+     * Creates a generator using a SecureRandom algorithm.
+     *
+     * @param algorithm The SecureRandom algorithm, or null for the platform
+     * default.
+     * @exception IllegalArgumentException Thrown when the algorithm is not
+     * available.
+     */
+    public SaltGenerator(String algorithm) {
+        this.algorithm = algorithm;
+        if (algorithm != null) {
+            try {
+                SecureRandom.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalArgumentException(ex);
+            }
+        }
+        this.sources = ThreadLocal.withInitial(this::newSource);
+    }
+
+    /**
+     * Accessor method to get the generator configured through the system
+     * property <code>com.psi.crypt.saltAlgorithm</code>.
+     *
+     * @return The default generator.
+     */
+    public static SaltGenerator getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Accessor method to get the SecureRandom algorithm.
+     *
+     * @return The algorithm, or null for the platform default.
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns a random salt.
+     *
+     * @return The 12 bit salt value. The low six bits are the first salt
+     * character.
+     */
+    public int nextSalt() {
+        Source source = sources.get();
+        if (source.position == PREFETCH) {
+            source.random.nextBytes(source.bytes);
+            source.position = 0;
+        }
+        int salt = (source.bytes[source.position] & 0xff
+                | source.bytes[source.position + 1] << 8) & 0xfff;
+        source.bytes[source.position] = 0;
+        source.bytes[source.position + 1] = 0;
+        source.position += 2;
+        return salt;
+    }
+
+    /**
+     * Returns the shared specification of a random salt.
+     *
+     * @return The specification.
+     */
+    public CryptAlgorithmParameterSpec nextSpec() {
+        return CryptAlgorithmParameterSpec.forSalt(nextSalt());
+    }
+
+    /**
+     * Write a random salt as two crypt(3C)-base64 characters.
+     *
+     * @param buf The char[] receiving the salt.
+     * @param offset Integer offset into buf.
+     */
+    public void nextSalt(char[] buf, int offset) {
+        int salt = nextSalt();
+        buf[offset] = CryptUtility.binaryToAscii(salt & 0x3f);
+        buf[offset + 1] = CryptUtility.binaryToAscii(salt >>> 6);
+    }
+
+    /**
+     * Create the default generator, falling back to the platform default
+     * algorithm when the configured one is not available, as newSource()
+     * does, instead of failing the class initialization.
+     *
+     * @param algorithm The configured algorithm, or null.
+     * @return The generator.
+     */
+    private static SaltGenerator newDefault(String algorithm) {
+        try {
+            return new SaltGenerator(algorithm);
+        } catch (IllegalArgumentException ex) {
+            LOG.log(Level.WARNING, "Salt algorithm " + algorithm
+                    + " not available, using the default SecureRandom", ex);
+            return new SaltGenerator(null);
+        }
+    }
+
+    /**
+     * Create the random source of a thread.
+     *
+     * @return The source.
+     */
+    private Source newSource() {
+        if (algorithm != null) {
+            try {
+                return new Source(SecureRandom.getInstance(algorithm));
+            } catch (NoSuchAlgorithmException ex) {
+                LOG.log(Level.WARNING, "Using the default SecureRandom", ex);
+            }
+        }
+        return new Source(new SecureRandom());
+    }
+}
@@ -0,0 +1,212 @@
+package com.psi.crypt;
+
+import java.security.AlgorithmParameters;
+
+/**
+ * Implementation of crypt(3C) which never shuffles the sb tables. Instead of
+ * permuting every table entry for the salt, the salt is applied as a swap
+ * mask to the E expanded half block inside each round, as in the 64 bit
+ * variants of UFC-crypt. The swap is linear, so the half blocks are kept in
+ * their unsalted form and only the value used for the table lookups is
+ * swapped. A salt change costs a handful of operations and needs no memory
+ * beyond the shared unsalted tables.
+ *
+ * @author John Glynn
+ */
+final class SaltMaskCryptImplementation {
+
+    /**
+     * Storage for the internal DES expanded key, one long per round.
+     */
+    private final long[] keysched;
+    /**
+     * The cache of key schedules, or null to build every schedule.
+     */
+    private KeyScheduleCache keyCache;
+    /**
+     * Stores the result of the digest prefixed with the salt.
+     */
+    private final char[] crypt_3_buf;
+    /**
+     * Two char array which stores the salt as given.
+     */
+    private final char[] current_salt_chars;
+    /**
+     * Group of eight bytes which stores each bit of the salt after applying a
+     * bitmask.
+     */
+    private long current_saltbits;
+    /**
+     * The 64 bit DES result of the last encryption.
+     */
+    private long result;
+
+    /**
+     * No argument constructor allocates memory.
+     */
+    SaltMaskCryptImplementation() {
+        keysched = new long[16];
+        crypt_3_buf = new char[13];
+        current_salt_chars = new char[2];
+    }
+
+    /**
+     * Accessor method to get the result string.
+     *
+     * @return String made up of the base64 encoded characters.
+     */
+    String getCrypt3Buffer() {
+        CryptUtility.outputConversion(current_salt_chars[0],
+                current_salt_chars[1], result, crypt_3_buf, 0);
+        return new String(crypt_3_buf);
+    }
+
+    /**
+     * Write the result string into a caller supplied array.
+     *
+     * @param buf The char[] receiving the 13 characters.
+     * @param offset Integer offset into buf.
+     */
+    void getCrypt3Buffer(char[] buf, int offset) {
+        CryptUtility.outputConversion(current_salt_chars[0],
+                current_salt_chars[1], result, buf, offset);
+    }
+
+    /**
+     * Accessor method to get the DES result of the last encryption.
+     *
+     * @return The 64 bit result, the first output bit in the most significant
+     * position.
+     */
+    long getResult() {
+        return result;
+    }
+
+    /**
+     * Perform 25 DES encryptions on the data.
+     */
+    void encrypt() {
+        final long[] t = CryptTables.sb_flat;
+        final long[] k = keysched;
+        final long saltbits = current_saltbits;
+        long l = 0;
+        long r = 0;
+
+        for (int itr = 25; itr > 0; --itr) {
+            for (int i = 0; i < 16; i += 2) {
+                long x = (r >>> 32 ^ r) & saltbits;
+                long s = k[i] ^ r ^ (x << 32 | x);
+                l ^= t[(int) (s >>> 51) & 0xfff]
+                        ^ t[0x1000 | (int) (s >>> 35) & 0xfff]
+                        ^ t[0x2000 | (int) (s >>> 19) & 0xfff]
+                        ^ t[0x3000 | (int) (s >>> 3) & 0xfff];
+
+                x = (l >>> 32 ^ l) & saltbits;
+                s = k[i + 1] ^ l ^ (x << 32 | x);
+                r ^= t[(int) (s >>> 51) & 0xfff]
+                        ^ t[0x1000 | (int) (s >>> 35) & 0xfff]
+                        ^ t[0x2000 | (int) (s >>> 19) & 0xfff]
+                        ^ t[0x3000 | (int) (s >>> 3) & 0xfff];
+            }
+            long s = l;
+            l = r;
+            r = s;
+        }
+
+        /*
+          * The halves are unsalted, so there is no E selection swap to undo
+         */
+        result = FlatCryptImplementation.doFinalPerm(l, r, 0);
+    }
+
+    /**
+     * Initialize the keysched array. A schedule precomputed by
+     * CryptKeyFactory is copied instead of being built again.
+     *
+     * @param cryptKey An opaque container for the key (password bytes).
+     */
+    void makeKeyTable(CryptKey cryptKey) {
+        long[] precomputed = cryptKey.getKeySchedule();
+        if (precomputed != null) {
+            System.arraycopy(precomputed, 0, keysched, 0, 16);
+        } else {
+            makeKeyTable(cryptKey.getEncoded());
+        }
+    }
+
+    /**
+     * Initialize the keysched array from the eight key bytes.
+     *
+     * @param key The password bytes, each masked to seven bits.
+     */
+    void makeKeyTable(byte[] key) {
+        if (keyCache != null) {
+            keyCache.makeKeyTable(key, keysched, 0);
+        } else {
+            CryptTables.makeKeyTable(key, keysched, 0);
+        }
+    }
+
+    /**
+     * Set the cache of key schedules.
+     *
+     * @param keyCache The cache, or null to build every schedule.
+     */
+    void setKeyScheduleCache(KeyScheduleCache keyCache) {
+        this.keyCache = keyCache;
+    }
+
+    /**
+     * Take the encoded bytes of the salt and compute the swap mask.
+     *
+     * @param params Opaque container for the salt bits.
+     */
+    void setupSalt(AlgorithmParameters params) {
+        byte[] saltBytes;
+        try {
+            saltBytes = params.getEncoded();
+        } catch (java.io.IOException io) {
+            throw new IllegalArgumentException(io);
+        }
+
+        setupSalt(saltBytes[0], saltBytes[1]);
+    }
+
+    /**
+     * Compute the swap mask for a salt given as two crypt(3C)-base64
+     * characters. The characters are decoded and echoed exactly as they are
+     * when passed through CryptAlgorithmParameterSpec.
+     *
+     * @param salt0 The first salt character.
+     * @param salt1 The second salt character.
+     */
+    void setupSalt(char salt0, char salt1) {
+        setupSalt((byte) CryptUtility.asciiToBinary(salt0),
+                (byte) CryptUtility.asciiToBinary(salt1));
+    }
+
+    /**
+     * Compute the swap mask for a salt given as the two bytes of
+     * CryptAlgorithmParameterSpec.
+     *
+     * @param b0 The first salt byte in crypt(3C)-base64 binary form.
+     * @param b1 The second salt byte in crypt(3C)-base64 binary form.
+     */
+    void setupSalt(byte b0, byte b1) {
+        current_saltbits = CryptTables.saltbits(CryptTables.saltValue(b0, b1));
+        current_salt_chars[0] = CryptUtility.binaryToAscii(b0);
+        current_salt_chars[1] = CryptUtility.binaryToAscii(b1);
+    }
+
+    /**
+     * Compute the swap mask for a salt.
+     *
+     * @param salt The 12 bit salt value. The low six bits come from the first
+     * salt character.
+     */
+    void setupSalt(int salt) {
+        current_saltbits = CryptTables.saltbits(salt);
+        current_salt_chars[0] = CryptUtility.binaryToAscii(salt & 0x3f);
+        current_salt_chars[1] = CryptUtility.binaryToAscii(salt >>> 6);
+    }
+}
@@ -0,0 +1,608 @@
+package com.psi.crypt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An external merge sort of credentials by salt, for credential dumps too
+ * large to group in memory.
+ *
+ * Credentials are added to an in-memory run of bounded size. A full run is
+ * ordered by salt with a counting sort and spilled to a temporary file in a
+ * compact binary form. forEach() and audit() merge the runs and stream the
+ * credentials in salt order, the runs of each salt one after the other, so
+ * the credentials of a salt arrive together however large the dump is.
+ * When there are more runs than the merge width, groups of runs are first
+ * merged into longer runs, so that memory stays bounded by the run size
+ * plus about 128 KB per merged run: a 64 KB read buffer and a buffer for
+ * the longest user name.
+ *
+ * audit() hashes each candidate password once per salt for the whole dump
+ * and looks up the stored result of every credential among the candidate
+ * results of its salt, so a dump of any size costs at most 4096 hashes per
+ * candidate.
+ *
+ * Run records are little endian:
+ *
+ * <pre>
+ * salt        2 bytes
+ * nameLength  2 bytes
+ * result      8 bytes
+ * name        the UTF-8 user name
+ * </pre>
+ *
+ * A spill is not thread safe. Closing it deletes its files.
+ *
+ * @author John Glynn
+ */
+public final class SaltSortedSpill implements Closeable {
+
+    /**
+     * The default size of a run in bytes.
+     */
+    public static final int DEFAULT_RUN_BYTES = 64 << 20;
+
+    /**
+     * The default number of runs merged at once.
+     */
+    public static final int DEFAULT_MERGE_WIDTH = 128;
+
+    private static final int SALTS = 1 << 12;
+    private static final int RECORD_HEADER_BYTES = 12;
+    private static final int MAX_RECORD_BYTES = RECORD_HEADER_BYTES
+            + CredentialStore.MAX_NAME_BYTES;
+    private static final int BUFFER_BYTES = 64 << 10;
+
+    private final Path directory;
+    private final int mergeWidth;
+
+    /**
+     * The current run: records in the run format, unsorted, and the offset
+     * and salt of each.
+     */
+    private final byte[] arena;
+    private int arenaEnd;
+    private int[] offsets = new int[1024];
+    private int count;
+
+    private final List<Path> runs = new ArrayList<>();
+    /**
+     * The write buffer of spills and merges, large enough for the longest
+     * record.
+     */
+    private final ByteBuffer output = ByteBuffer.allocateDirect(
+            Math.max(BUFFER_BYTES, MAX_RECORD_BYTES))
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private long size;
+    private long spilledBytes;
+    private boolean closed;
+
+    /**
+     * Creates a spill with the default run size and merge width.
+     *
+     * @param directory The directory of the temporary files.
+     */
+    public SaltSortedSpill(Path directory) {
+        this(directory, DEFAULT_RUN_BYTES, DEFAULT_MERGE_WIDTH);
+    }
+
+    /**
+     * Creates a spill.
+     *
+     * @param directory The directory of the temporary files.
+     * @param runBytes The size of a run in bytes, the memory used for
+     * sorting.
+     * @param mergeWidth The number of runs merged at once. Each needs about
+     * 128 KB.
+     * @exception IllegalArgumentException Thrown when the run cannot hold
+     * the longest record or the merge width is less than two.
+     */
+    public SaltSortedSpill(Path directory, int runBytes, int mergeWidth) {
+        if (runBytes < MAX_RECORD_BYTES) {
+            throw new IllegalArgumentException("Run too small: " + runBytes);
+        }
+        if (mergeWidth < 2) {
+            throw new IllegalArgumentException("Merge width less than two: "
+                    + mergeWidth);
+        }
+        this.directory = directory;
+        this.mergeWidth = mergeWidth;
+        this.arena = new byte[runBytes];
+    }
+
+    /**
+     * Add a credential.
+     *
+     * @param name The byte[] holding the UTF-8 user name.
+     * @param offset Integer offset into name.
+     * @param length The length of the name in bytes.
+     * @param salt The 12 bit salt.
+     * @param result The DES result.
+     * @exception IOException Thrown when a full run cannot be spilled.
+     * @exception IllegalArgumentException Thrown when the salt is not in
+     * range or the name is too long.
+     */
+    public void add(byte[] name, int offset, int length, int salt,
+            long result) throws IOException {
+        checkOpen();
+        if ((salt & ~0xfff) != 0) {
+            throw new IllegalArgumentException("Salt out of range: " + salt);
+        }
+        if (length > CredentialStore.MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("User name longer than "
+                    + CredentialStore.MAX_NAME_BYTES + " bytes");
+        }
+        if (arenaEnd + RECORD_HEADER_BYTES + length > arena.length) {
+            spill();
+        }
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        }
+        int p = arenaEnd;
+        offsets[count++] = p;
+        arena[p] = (byte) salt;
+        arena[p + 1] = (byte) (salt >>> 8);
+        arena[p + 2] = (byte) length;
+        arena[p + 3] = (byte) (length >>> 8);
+        for (int i = 0; i < 8; ++i) {
+            arena[p + 4 + i] = (byte) (result >>> 8 * i);
+        }
+        System.arraycopy(name, offset, arena, p + RECORD_HEADER_BYTES, length);
+        arenaEnd = p + RECORD_HEADER_BYTES + length;
+        size++;
+    }
+
+    /**
+     * Add the users of a passwd or shadow style file whose password field
+     * is a crypt(3C) string.
+     *
+     * @param file The file.
+     * @return The number of credentials added.
+     * @exception IOException Thrown when the file cannot be read or a run
+     * cannot be spilled.
+     */
+    public long addFile(Path file) throws IOException {
+        long added = 0;
+        try (ShadowFileReader reader = new ShadowFileReader(file)) {
+            while (reader.next()) {
+                int length;
+                if (!reader.isBlankOrComment()
+                        && reader.isCryptHash(ShadowFiles.PASSWORD_FIELD)
+                        && (length = reader.getFieldLength(0)) > 0
+                        && length <= CredentialStore.MAX_NAME_BYTES) {
+                    add(reader.getBuffer(), reader.getFieldOffset(0), length,
+                            reader.getSalt(ShadowFiles.PASSWORD_FIELD),
+                            reader.getResult(ShadowFiles.PASSWORD_FIELD));
+                    added++;
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Stream every credential to a visitor in salt order.
+     *
+     * @param visitor The visitor.
+     * @exception IOException Thrown when the runs cannot be written or read.
+     */
+    public void forEach(CredentialVisitor visitor) throws IOException {
+        List<RunReader> readers = prepare();
+        try {
+            for (int salt = nextSalt(readers); salt < SALTS;
+                    salt = nextSalt(readers)) {
+                for (RunReader r : readers) {
+                    while (r.salt == salt) {
+                        visitor.visit(r.name, 0, r.length, salt, r.result);
+                        r.next();
+                    }
+                }
+            }
+        } finally {
+            close(readers);
+        }
+    }
+
+    /**
+     * Check every credential against candidate passwords. Each candidate is
+     * hashed once for each salt of the dump.
+     *
+     * @param candidates The candidate passwords. At most the first eight
+     * encoded bytes of each are used.
+     * @param visitor The visitor receiving the matches.
+     * @return The number of matches.
+     * @exception IOException Thrown when the runs cannot be written or read.
+     */
+    public long audit(char[][] candidates, PasswordMatchVisitor visitor)
+            throws IOException {
+        int n = candidates.length;
+        byte[][] keys = new byte[n][8];
+        CryptEngine engine = Crypt.getEnginePool().acquire();
+        try {
+            for (int c = 0; c < n; ++c) {
+                engine.keyBytes(candidates[c], keys[c]);
+            }
+        } finally {
+            Crypt.getEnginePool().release(engine);
+        }
+        BatchCryptImplementation crypt = BatchCryptFactory.newImplementation();
+        int lanes = crypt.lanes();
+        byte[] saltBytes = new byte[2];
+        byte[][] salts = new byte[n][];
+        Arrays.fill(salts, saltBytes);
+        long[] hashes = new long[n];
+        long[] sorted = new long[n];
+
+        long matches = 0;
+        List<RunReader> readers = prepare();
+        try {
+            for (int salt = nextSalt(readers); salt < SALTS;
+                    salt = nextSalt(readers)) {
+                saltBytes[0] = (byte) (salt & 0x3f);
+                saltBytes[1] = (byte) (salt >>> 6);
+                for (int c = 0; c < n; c += lanes) {
+                    int m = Math.min(lanes, n - c);
+                    crypt.setup(keys, salts, c, m);
+                    crypt.encrypt();
+                    for (int lane = 0; lane < m; ++lane) {
+                        hashes[c + lane] = crypt.getResult(lane);
+                    }
+                }
+                System.arraycopy(hashes, 0, sorted, 0, n);
+                Arrays.sort(sorted);
+
+                for (RunReader r : readers) {
+                    while (r.salt == salt) {
+                        if (Arrays.binarySearch(sorted, r.result) >= 0) {
+                            for (int c = 0; c < n; ++c) {
+                                if (hashes[c] == r.result) {
+                                    visitor.matched(r.name, 0, r.length, c);
+                                    matches++;
+                                }
+                            }
+                        }
+                        r.next();
+                    }
+                }
+            }
+        } finally {
+            close(readers);
+            for (byte[] key : keys) {
+                CryptUtility.clearMemory(key);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Accessor method to get the number of credentials added.
+     *
+     * @return The number of credentials.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Accessor method to get the number of runs on disk.
+     *
+     * @return The number of runs.
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Accessor method to get the number of bytes written to runs, counting
+     * the runs of every merge pass.
+     *
+     * @return The number of bytes.
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Delete the runs.
+     *
+     * @exception IOException Thrown when a run cannot be deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        IOException failure = null;
+        for (Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        runs.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns a string representation of the spill.
+     *
+     * @return A string.
+     */
+    @Override
+    public String toString() {
+        return "SaltSortedSpill[size=" + size + ", runs=" + runs.size()
+                + ", spilled=" + spilledBytes + "]";
+    }
+
+    /**
+     * Spill the current run and merge the runs until at most the merge
+     * width remain, then open them.
+     *
+     * @return The readers of the runs, each on its first record.
+     * @exception IOException Thrown when the runs cannot be written or read.
+     */
+    private List<RunReader> prepare() throws IOException {
+        checkOpen();
+        spill();
+        while (runs.size() > mergeWidth) {
+            List<Path> group = new ArrayList<>(runs.subList(0, mergeWidth));
+            runs.add(merge(group));
+            // listed until deleted, so close() deletes them on a failure
+            for (Path p : group) {
+                Files.deleteIfExists(p);
+                runs.remove(p);
+            }
+        }
+        List<RunReader> readers = new ArrayList<>(runs.size());
+        try {
+            for (Path run : runs) {
+                readers.add(new RunReader(run));
+            }
+        } catch (IOException e) {
+            close(readers);
+            throw e;
+        }
+        return readers;
+    }
+
+    /**
+     * Merge runs into a new run. The runs are left as they are.
+     *
+     * @param group The runs.
+     * @return The new run.
+     * @exception IOException Thrown when the runs cannot be written or read.
+     */
+    private Path merge(List<Path> group) throws IOException {
+        Path run = Files.createTempFile(directory, "salt-run-", ".tmp");
+        List<RunReader> readers = new ArrayList<>(group.size());
+        try (FileChannel channel = FileChannel.open(run,
+                StandardOpenOption.WRITE)) {
+            for (Path p : group) {
+                readers.add(new RunReader(p));
+            }
+            for (int salt = nextSalt(readers); salt < SALTS;
+                    salt = nextSalt(readers)) {
+                for (RunReader r : readers) {
+                    while (r.salt == salt) {
+                        if (output.remaining() < RECORD_HEADER_BYTES
+                                + r.length) {
+                            drain(channel);
+                        }
+                        output.putShort((short) salt)
+                                .putShort((short) r.length)
+                                .putLong(r.result)
+                                .put(r.name, 0, r.length);
+                        r.next();
+                    }
+                }
+            }
+            drain(channel);
+        } catch (IOException | RuntimeException e) {
+            ((Buffer) output).clear();
+            Files.deleteIfExists(run);
+            throw e;
+        } finally {
+            close(readers);
+        }
+        return run;
+    }
+
+    /**
+     * Order the current run by salt and write it to a new file.
+     *
+     * @exception IOException Thrown when the run cannot be written.
+     */
+    private void spill() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int[] starts = new int[SALTS + 1];
+        for (int i = 0; i < count; ++i) {
+            starts[salt(offsets[i]) + 1]++;
+        }
+        for (int s = 0; s < SALTS; ++s) {
+            starts[s + 1] += starts[s];
+        }
+        int[] order = new int[count];
+        for (int i = 0; i < count; ++i) {
+            order[starts[salt(offsets[i])]++] = offsets[i];
+        }
+
+        Path run = Files.createTempFile(directory, "salt-run-", ".tmp");
+        try (FileChannel channel = FileChannel.open(run,
+                StandardOpenOption.WRITE)) {
+            for (int i = 0; i < count; ++i) {
+                int p = order[i];
+                int length = RECORD_HEADER_BYTES + (arena[p + 2] & 0xff
+                        | (arena[p + 3] & 0xff) << 8);
+                if (output.remaining() < length) {
+                    drain(channel);
+                }
+                output.put(arena, p, length);
+            }
+            drain(channel);
+        } catch (IOException | RuntimeException e) {
+            ((Buffer) output).clear();
+            Files.deleteIfExists(run);
+            throw e;
+        }
+        runs.add(run);
+        Arrays.fill(arena, 0, arenaEnd, (byte) 0);
+        arenaEnd = 0;
+        count = 0;
+    }
+
+    /**
+     * Accessor method to get the salt of a record of the current run.
+     *
+     * @param p The offset of the record in the arena.
+     * @return The salt.
+     */
+    private int salt(int p) {
+        return arena[p] & 0xff | (arena[p + 1] & 0x0f) << 8;
+    }
+
+    /**
+     * Write the output buffer to a channel and empty it.
+     *
+     * @param channel The channel.
+     * @exception IOException Thrown when the channel cannot be written.
+     */
+    private void drain(FileChannel channel) throws IOException {
+        ((Buffer) output).flip();
+        while (output.hasRemaining()) {
+            spilledBytes += channel.write(output);
+        }
+        ((Buffer) output).clear();
+    }
+
+    /**
+     * Check that the spill is open.
+     *
+     * @exception IllegalStateException Thrown when it is closed.
+     */
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Spill closed");
+        }
+    }
+
+    /**
+     * Find the smallest salt of the current records of runs.
+     *
+     * @param readers The readers of the runs.
+     * @return The salt, or 4096 when every run is exhausted.
+     */
+    private static int nextSalt(List<RunReader> readers) {
+        int salt = SALTS;
+        for (RunReader r : readers) {
+            salt = Math.min(salt, r.salt);
+        }
+        return salt;
+    }
+
+    /**
+     * Close run readers, ignoring failures.
+     *
+     * @param readers The readers.
+     */
+    private static void close(List<RunReader> readers) {
+        for (RunReader r : readers) {
+            try {
+                r.channel.close();
+            } catch (IOException e) {
+                // read only
+            }
+        }
+    }
+
+    /**
+     * Sequential reader of a run through a 64 KB buffer.
+     */
+    private static final class RunReader {
+
+        final FileChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        final byte[] name = new byte[CredentialStore.MAX_NAME_BYTES];
+
+        /**
+         * The current record; the salt is 4096 at the end of the run.
+         */
+        int salt;
+        int length;
+        long result;
+
+        /**
+         * Creates a reader on the first record of a run.
+         *
+         * @param run The run.
+         * @exception IOException Thrown when the run cannot be read.
+         */
+        RunReader(Path run) throws IOException {
+            channel = FileChannel.open(run, StandardOpenOption.READ);
+            ((Buffer) buffer).limit(0);
+            next();
+        }
+
+        /**
+         * Advance to the next record.
+         *
+         * @exception IOException Thrown when the run cannot be read or ends
+         * inside a record.
+         */
+        void next() throws IOException {
+            if (!fill(RECORD_HEADER_BYTES)) {
+                salt = SALTS;
+                return;
+            }
+            salt = buffer.getShort() & 0xfff;
+            length = buffer.getShort() & 0xffff;
+            result = buffer.getLong();
+            if (!fill(length)) {
+                throw new IOException("Truncated run");
+            }
+            buffer.get(name, 0, length);
+        }
+
+        /**
+         * Make bytes available in the buffer.
+         *
+         * @param n The number of bytes.
+         * @return <b>false</b> when the run ends before any of them.
+         * @exception IOException Thrown when the run cannot be read or ends
+         * inside the bytes.
+         */
+        private boolean fill(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return true;
+            }
+            buffer.compact();
+            while (buffer.position() < n) {
+                if (channel.read(buffer) < 0) {
+                    if (buffer.position() == 0) {
+                        ((Buffer) buffer).flip();
+                        return false;
+                    }
+                    throw new IOException("Truncated run");
+                }
+            }
+            ((Buffer) buffer).flip();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.psi.crypt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks SaltSortedSpill against an in-memory sort. Random credentials,
+ * among them user names of the longest allowed length, are spilled in runs
+ * small enough to need several merge passes. forEach() must stream them in
+ * salt order, and the credentials of each salt must be those of an
+ * in-memory sort. audit() must report exactly the matches found by calling
+ * Crypt.crypt for each credential and candidate. Closing the spill must
+ * delete its files. A failed check throws an IllegalStateException.
+ *
+ * <pre>
+ * java -cp target/classes com.psi.crypt.SaltSortedSpillTester
+ * </pre>
+ *
+ * @author John Glynn
+ */
+public class SaltSortedSpillTester {
+
+    private static final int USERS = 20000;
+    private static final int LONG_NAMES = 3;
+    private static final int RUN_BYTES = 128 << 10;
+    private static final int MERGE_WIDTH = 2;
+    private static final String[] PASSWORDS
+            = {"alpha", "beta", "gamma", "delta", "epsilon"};
+    private static final String[] CANDIDATES = {"beta", "epsilon", "zeta"};
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(3);
+        List<String> expected = new ArrayList<>();
+        Set<String> expectedMatches = new HashSet<>();
+        Path directory = Files.createTempDirectory("salt-spill");
+        try {
+            try (SaltSortedSpill spill = new SaltSortedSpill(directory,
+                    RUN_BYTES, MERGE_WIDTH)) {
+                for (int i = 0; i < USERS; ++i) {
+                    String salt = CryptHash.valueOf(random.nextInt(1 << 12), 0)
+                            .toString().substring(0, 2);
+                    String stored = Crypt.crypt(
+                            PASSWORDS[random.nextInt(PASSWORDS.length)], salt);
+                    add(spill, "user" + i, CryptHash.parse(stored), expected);
+                    for (int c = 0; c < CANDIDATES.length; ++c) {
+                        if (Crypt.crypt(CANDIDATES[c], salt).equals(stored)) {
+                            expectedMatches.add("user" + i + "/" + c);
+                        }
+                    }
+                }
+                for (int i = 0; i < LONG_NAMES; ++i) {
+                    char[] name = new char[CredentialStore.MAX_NAME_BYTES];
+                    Arrays.fill(name, (char) ('a' + i));
+                    add(spill, new String(name), CryptHash.valueOf(
+                            random.nextInt(1 << 12), random.nextLong()),
+                            expected);
+                }
+                System.out.println(spill);
+
+                List<String> actual = new ArrayList<>();
+                int[] last = {-1};
+                spill.forEach((name, offset, length, salt, result) -> {
+                    check(salt >= last[0], "salt " + salt + " after "
+                            + last[0]);
+                    last[0] = salt;
+                    actual.add(record(new String(name, offset, length,
+                            StandardCharsets.UTF_8), salt, result));
+                });
+                check(spill.getRunCount() <= MERGE_WIDTH,
+                        spill.getRunCount() + " runs left after merging");
+                Collections.sort(expected);
+                Collections.sort(actual);
+                check(expected.equals(actual),
+                        "spilled credentials differ from an in-memory sort");
+                System.out.println("salt order of " + actual.size()
+                        + " credentials: ok");
+
+                Set<String> matches = new HashSet<>();
+                long count = spill.audit(candidates(),
+                        (name, offset, length, candidate) -> matches.add(
+                                new String(name, offset, length,
+                                        StandardCharsets.UTF_8)
+                                + "/" + candidate));
+                check(count == matches.size()
+                        && expectedMatches.equals(matches),
+                        "audit differs from Crypt.crypt");
+                System.out.println("audit, " + count + " matches: ok");
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                    directory)) {
+                check(!files.iterator().hasNext(),
+                        "runs left after close");
+            }
+            System.out.println("runs deleted on close: ok");
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Add a credential to a spill and to the expected records.
+     *
+     * @param spill The spill.
+     * @param user The user name.
+     * @param hash The hash.
+     * @param expected The expected records.
+     * @exception IOException Thrown when a run cannot be spilled.
+     */
+    private static void add(SaltSortedSpill spill, String user,
+            CryptHash hash, List<String> expected) throws IOException {
+        byte[] name = user.getBytes(StandardCharsets.UTF_8);
+        spill.add(name, 0, name.length, hash.getSalt(), hash.getResult());
+        expected.add(record(user, hash.getSalt(), hash.getResult()));
+    }
+
+    /**
+     * Format a credential so that sorted records are in salt order.
+     *
+     * @param user The user name.
+     * @param salt The salt.
+     * @param result The DES result.
+     * @return The record.
+     */
+    private static String record(String user, int salt, long result) {
+        return String.format("%04d %016x %s", salt, result, user);
+    }
+
+    /**
+     * Accessor method to get the candidate passwords.
+     *
+     * @return The candidates as char arrays.
+     */
+    private static char[][] candidates() {
+        char[][] candidates = new char[CANDIDATES.length][];
+        for (int c = 0; c < CANDIDATES.length; ++c) {
+            candidates[c] = CANDIDATES[c].toCharArray();
+        }
+        return candidates;
+    }
+
+    /**
+     * Fail when a condition does not hold.
+     *
+     * @param condition The condition.
+     * @param message The failure message.
+     * @exception IllegalStateException Thrown when the condition is false.
+     */
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.psi.crypt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * A bounded cache of salt dependent tables keyed by the 12 bit salt value.
+ * There are only 4096 possible salts, so the cache is a direct mapped array
+ * which can be read concurrently without locking. When the memory budget is
+ * exceeded the least recently used salts are evicted using the CLOCK
+ * approximation of LRU.
+ *
+ * The tables handed out by the cache are shared and must not be modified.
+ *
+ * @author John Glynn
+ * @param <T> The type of the cached table.
+ */
+public final class SaltTableCache<T> {
+
+    /**
+     * The number of distinct crypt(3C) salts.
+     */
+    public static final int SALTS = 4096;
+
+    /**
+     * The system property holding the default memory budget in bytes.
+     */
+    public static final String BUDGET_PROPERTY = "com.psi.crypt.saltCacheBytes";
+
+    /**
+     * The default memory budget in bytes, used when the system property is not
+     * set.
+     */
+    public static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+
+    /**
+     * A cached table with its reference bit for the CLOCK algorithm.
+     *
+     * @param <T> The type of the cached table.
+     */
+    private static final class Entry<T> {
+
+        final T table;
+        volatile boolean referenced;
+
+        Entry(T table) {
+            this.table = table;
+        }
+    }
+
+    /**
+     * The cached entries indexed by salt.
+     */
+    private final AtomicReferenceArray<Entry<T>> entries;
+
+    /**
+     * Builds the table for a salt on a cache miss.
+     */
+    private final IntFunction<T> factory;
+
+    /**
+     * The approximate size in bytes of a single table.
+     */
+    private final long tableBytes;
+
+    /**
+     * The number of tables allowed by the memory budget.
+     */
+    private volatile int maxEntries;
+
+    /**
+     * The number of tables currently cached.
+     */
+    private final AtomicInteger size;
+
+    /**
+     * The position of the CLOCK hand. Guarded by this.
+     */
+    private int hand;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    /**
+     * Creates a cache for tables of the given size.
+     *
+     * @param factory Function building the table for a 12 bit salt.
+     * @param tableBytes The approximate size in bytes of a single table.
+     * @param budget The memory budget in bytes. A budget smaller than a single
+     * table disables caching.
+     */
+    SaltTableCache(IntFunction<T> factory, long tableBytes, long budget) {
+        this.entries = new AtomicReferenceArray<>(SALTS);
+        this.factory = factory;
+        this.tableBytes = tableBytes;
+        this.size = new AtomicInteger();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+        setMemoryBudget(budget);
+    }
+
+    /**
+     * Returns the memory budget configured through the system property
+     * <code>com.psi.crypt.saltCacheBytes</code>, or the default budget.
+     *
+     * @return The budget in bytes.
+     */
+    static long defaultBudget() {
+        return Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET);
+    }
+
+    /**
+     * Returns the table for a salt, building and caching it on a miss.
+     *
+     * @param salt The 12 bit salt value.
+     * @return The table for the salt.
+     */
+    T get(int salt) {
+        Entry<T> entry = entries.get(salt);
+        if (entry != null) {
+            if (!entry.referenced) {
+                entry.referenced = true;
+            }
+            hits.increment();
+            return entry.table;
+        }
+
+        misses.increment();
+        T table = factory.apply(salt);
+        if (maxEntries == 0) {
+            return table;
+        }
+
+        entry = new Entry<>(table);
+        if (!entries.compareAndSet(salt, null, entry)) {
+            // Another thread built the same table first
+            Entry<T> other = entries.get(salt);
+            return other != null ? other.table : table;
+        }
+        if (size.incrementAndGet() > maxEntries) {
+            evict(salt);
+        }
+        return table;
+    }
+
+    /**
+     * Sets the memory budget, evicting tables if the cache is now over budget.
+     *
+     * @param budget The memory budget in bytes.
+     */
+    public void setMemoryBudget(long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Negative budget: " + budget);
+        }
+        maxEntries = (int) Math.min(SALTS, budget / tableBytes);
+        if (size.get() > maxEntries) {
+            evict(-1);
+        }
+    }
+
+    /**
+     * Accessor method to get the memory budget.
+     *
+     * @return The memory budget in bytes, rounded down to whole tables.
+     */
+    public long getMemoryBudget() {
+        return maxEntries * tableBytes;
+    }
+
+    /**
+     * Accessor method to get the number of tables allowed by the budget.
+     *
+     * @return The maximum number of cached tables.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Accessor method to get the number of tables currently cached.
+     *
+     * @return The number of cached tables.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Accessor method to get the number of lookups served from the cache.
+     *
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Accessor method to get the number of lookups which built a table.
+     *
+     * @return The miss count.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Accessor method to get the number of tables evicted from the cache.
+     *
+     * @return The eviction count.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Removes every table from the cache. The counters are not reset.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < SALTS; ++i) {
+            if (entries.getAndSet(i, null) != null) {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Return a descriptive string with the cache statistics.
+     *
+     * @return The statistics as a string.
+     */
+    @Override
+    public String toString() {
+        return "SaltTableCache[size=" + size() + ", maxEntries=" + maxEntries
+                + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    /**
+     * Sweep the CLOCK hand over the entries until the cache is within budget.
+     * Entries referenced since the last sweep get a second chance.
+     *
+     * @param keep The salt just inserted, which is not evicted, or -1.
+     */
+    private synchronized void evict(int keep) {
+        while (size.get() > maxEntries) {
+            int salt = hand;
+            hand = (hand + 1) & (SALTS - 1);
+
+            Entry<T> entry = entries.get(salt);
+            if (entry == null || salt == keep && maxEntries > 0) {
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+            } else if (entries.compareAndSet(salt, entry, null)) {
+                size.decrementAndGet();
+                evictions.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.psi.crypt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a passwd or shadow style file, lines of fields
+ * separated by colons, without creating a String per line.
+ *
+ * The file is mapped a window at a time, and the bytes are copied out of
+ * the map in large chunks and scanned for line ends and colons in a reused
+ * byte[]. After next() the current line and its fields are slices of
+ * getBuffer(), valid until the following call of next(). A trailing
+ * carriage return is not part of the line. Crypt(3C) fields are decoded
+ * straight into their salt and 64 bit DES result.
+ *
+ * <pre>
+ * try (ShadowFileReader reader = new ShadowFileReader(path)) {
+ *     while (reader.next()) {
+ *         if (reader.isCryptHash(1)) {
+ *             store.put(reader.getBuffer(), reader.getFieldOffset(0),
+ *                     reader.getFieldLength(0), reader.getSalt(1),
+ *                     reader.getResult(1));
+ *         }
+ *     }
+ * }
+ * </pre>
+ *
+ * @author John Glynn
+ */
+public final class ShadowFileReader implements Closeable {
+
+    /**
+     * The field separator.
+     */
+    public static final byte SEPARATOR = ':';
+
+    /**
+     * The largest part of the file mapped at once.
+     */
+    private static final int WINDOW_BYTES = 256 << 20;
+
+    /**
+     * The bytes copied out of the map at once. Scanning a copy is much
+     * faster than reading a MappedByteBuffer byte by byte.
+     */
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long size;
+
+    /**
+     * The file offset of the next window.
+     */
+    private long position;
+    private MappedByteBuffer map;
+
+    private byte[] chunk = new byte[CHUNK_BYTES];
+    /**
+     * The file offset of chunk[0], the number of bytes in the chunk, the
+     * start of the unread bytes and the index where the search for the next
+     * line end resumes.
+     */
+    private long base;
+    private int limit;
+    private int unread;
+    private int scanned;
+
+    private int lineStart;
+    private int lineEnd;
+    private long lineNumber;
+
+    /**
+     * The start and end index of each field of the current line.
+     */
+    private int[] fields = new int[32];
+    private int fieldCount;
+
+    /**
+     * Creates a reader of a file.
+     *
+     * @param file The file.
+     * @exception IOException Thrown when the file cannot be opened.
+     */
+    public ShadowFileReader(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    /**
+     * Advance to the next line.
+     *
+     * @return <b>true</b> when there is a line, <b>false</b> at the end of
+     * the file.
+     * @exception IOException Thrown when the file cannot be read.
+     */
+    public boolean next() throws IOException {
+        for (;;) {
+            for (int i = scanned; i < limit; ++i) {
+                if (chunk[i] == '\n') {
+                    setLine(unread, i);
+                    unread = i + 1;
+                    scanned = unread;
+                    return true;
+                }
+            }
+            scanned = limit;
+            if (!fill()) {
+                if (unread < limit) {
+                    // a last line without a newline
+                    setLine(unread, limit);
+                    unread = limit;
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Go back to the start of the file, so the next call of next() reads
+     * the first line again. The file is read through the channel opened by
+     * the constructor, so a file replaced by a rename in the meantime is not
+     * seen.
+     */
+    public void rewind() {
+        position = 0;
+        map = null;
+        base = 0;
+        limit = 0;
+        unread = 0;
+        scanned = 0;
+        lineStart = 0;
+        lineEnd = 0;
+        lineNumber = 0;
+        fieldCount = 0;
+    }
+
+    /**
+     * Accessor method to get the buffer holding the current line. Its
+     * contents change on the next call of next().
+     *
+     * @return The byte[].
+     */
+    public byte[] getBuffer() {
+        return chunk;
+    }
+
+    /**
+     * Accessor method to get the offset of the current line in the buffer.
+     *
+     * @return The offset.
+     */
+    public int getLineOffset() {
+        return lineStart;
+    }
+
+    /**
+     * Accessor method to get the length of the current line, without its
+     * line end.
+     *
+     * @return The length in bytes.
+     */
+    public int getLineLength() {
+        return lineEnd - lineStart;
+    }
+
+    /**
+     * Accessor method to get the position of the current line in the file.
+     *
+     * @return The file offset of the first byte of the line.
+     */
+    public long getFilePosition() {
+        return base + lineStart;
+    }
+
+    /**
+     * Accessor method to get the number of the current line.
+     *
+     * @return The line number, counted from 1.
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Test whether the current line is empty or a comment starting with #.
+     *
+     * @return <b>true</b> or <b>false</b>
+     */
+    public boolean isBlankOrComment() {
+        return lineEnd == lineStart || chunk[lineStart] == '#';
+    }
+
+    /**
+     * Accessor method to get the number of fields of the current line. An
+     * empty line has one empty field.
+     *
+     * @return The number of fields.
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Accessor method to get the offset of a field in the buffer.
+     *
+     * @param field The field number, counted from 0.
+     * @return The offset.
+     * @exception IndexOutOfBoundsException Thrown when the line has no such
+     * field.
+     */
+    public int getFieldOffset(int field) {
+        checkField(field);
+        return fields[2 * field];
+    }
+
+    /**
+     * Accessor method to get the length of a field.
+     *
+     * @param field The field number, counted from 0.
+     * @return The length in bytes.
+     * @exception IndexOutOfBoundsException Thrown when the line has no such
+     * field.
+     */
+    public int getFieldLength(int field) {
+        checkField(field);
+        return fields[2 * field + 1] - fields[2 * field];
+    }
+
+    /**
+     * Test whether a field is a canonical crypt(3C) string. Locked accounts,
+     * empty passwords and other hash formats are not.
+     *
+     * @param field The field number, counted from 0.
+     * @return <b>true</b> or <b>false</b>; <b>false</b> when the line has no
+     * such field.
+     */
+    public boolean isCryptHash(int field) {
+        return field >= 0 && field < fieldCount
+                && fields[2 * field + 1] - fields[2 * field] == CryptHash.LENGTH
+                && CryptHash.isValid(chunk, fields[2 * field]);
+    }
+
+    /**
+     * Decode the salt of a crypt(3C) field.
+     *
+     * @param field The field number, counted from 0.
+     * @return The 12 bit salt.
+     * @exception IllegalArgumentException Thrown when the field is not a
+     * crypt(3C) string.
+     */
+    public int getSalt(int field) {
+        checkCryptHash(field);
+        return CryptHash.parseSalt(chunk, fields[2 * field]);
+    }
+
+    /**
+     * Decode the DES result of a crypt(3C) field.
+     *
+     * @param field The field number, counted from 0.
+     * @return The DES result.
+     * @exception IllegalArgumentException Thrown when the field is not a
+     * crypt(3C) string.
+     */
+    public long getResult(int field) {
+        checkCryptHash(field);
+        return CryptHash.parseResult(chunk, fields[2 * field]);
+    }
+
+    /**
+     * Accessor method to get the file.
+     *
+     * @return The path of the file.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Close the file.
+     *
+     * @exception IOException Thrown when the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        map = null;
+        channel.close();
+    }
+
+    /**
+     * Returns a string representation of the reader.
+     *
+     * @return A string.
+     */
+    @Override
+    public String toString() {
+        return "ShadowFileReader[file=" + file + ", line=" + lineNumber + "]";
+    }
+
+    /**
+     * Move the unread bytes to the front of the chunk and copy more bytes
+     * out of the map, mapping the next window when needed.
+     *
+     * @return <b>false</b> at the end of the file.
+     * @exception IOException Thrown when the file cannot be mapped.
+     */
+    private boolean fill() throws IOException {
+        if (map == null || !map.hasRemaining()) {
+            if (position >= size) {
+                return false;
+            }
+            long length = Math.min(WINDOW_BYTES, size - position);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            position += length;
+        }
+        int carry = limit - unread;
+        if (unread > 0) {
+            System.arraycopy(chunk, unread, chunk, 0, carry);
+            base += unread;
+            scanned -= unread;
+            unread = 0;
+        } else if (carry == chunk.length) {
+            chunk = Arrays.copyOf(chunk, 2 * chunk.length);
+        }
+        int n = Math.min(map.remaining(), chunk.length - carry);
+        map.get(chunk, carry, n);
+        limit = carry + n;
+        return true;
+    }
+
+    /**
+     * Make a range of the chunk the current line and find its fields.
+     *
+     * @param start The index of the first byte of the line.
+     * @param end The index of the line end.
+     */
+    private void setLine(int start, int end) {
+        if (end > start && chunk[end - 1] == '\r') {
+            end--;
+        }
+        lineStart = start;
+        lineEnd = end;
+        lineNumber++;
+
+        int count = 0;
+        int fieldStart = start;
+        for (int i = start; i <= end; ++i) {
+            if (i == end || chunk[i] == SEPARATOR) {
+                if (2 * count == fields.length) {
+                    fields = Arrays.copyOf(fields, 2 * fields.length);
+                }
+                fields[2 * count] = fieldStart;
+                fields[2 * count + 1] = i;
+                count++;
+                fieldStart = i + 1;
+            }
+        }
+        fieldCount = count;
+    }
+
+    /**
+     * Check that the current line has a field.
+     *
+     * @param field The field number.
+     * @exception IndexOutOfBoundsException Thrown when it has not.
+     */
+    private void checkField(int field) {
+        if (field < 0 || field >= fieldCount) {
+            throw new IndexOutOfBoundsException("Line " + lineNumber
+                    + " has no field " + field);
+        }
+    }
+
+    /**
+     * Check that a field of the current line is a crypt(3C) string.
+     *
+     * @param field The field number.
+     * @exception IllegalArgumentException Thrown when it is not.
+     */
+    private void checkCryptHash(int field) {
+        if (!isCryptHash(field)) {
+            throw new IllegalArgumentException("Line " + lineNumber
+                    + " field " + field + " is not a crypt(3C) string");
+        }
+    }
+}
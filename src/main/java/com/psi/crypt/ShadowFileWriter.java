@@ -0,0 +1,234 @@
+package com.psi.crypt;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the records of a passwd or shadow style file through one reused
+ * direct ByteBuffer, without creating a String per line. Lines or fields of
+ * a ShadowFileReader are copied as bytes and crypt(3C) fields are formatted
+ * straight from their salt and DES result.
+ *
+ * @author John Glynn
+ */
+public final class ShadowFileWriter implements Closeable, Flushable {
+
+    /**
+     * The default size of the buffer in bytes.
+     */
+    public static final int DEFAULT_BUFFER_BYTES = 64 << 10;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    /**
+     * Scratch space for formatting a crypt(3C) string.
+     */
+    private final byte[] hash = new byte[CryptHash.LENGTH];
+
+    private long written;
+
+    /**
+     * Creates a writer of a new or truncated file.
+     *
+     * @param file The file.
+     * @exception IOException Thrown when the file cannot be opened.
+     */
+    public ShadowFileWriter(Path file) throws IOException {
+        this(file, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * Creates a writer of a new or truncated file.
+     *
+     * @param file The file.
+     * @param bufferBytes The size of the buffer in bytes.
+     * @exception IOException Thrown when the file cannot be opened.
+     * @exception IllegalArgumentException Thrown when the buffer size is
+     * smaller than a crypt(3C) string.
+     */
+    public ShadowFileWriter(Path file, int bufferBytes) throws IOException {
+        if (bufferBytes < CryptHash.LENGTH) {
+            throw new IllegalArgumentException("Buffer too small: "
+                    + bufferBytes);
+        }
+        this.file = file;
+        this.buffer = ByteBuffer.allocateDirect(bufferBytes);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Write bytes.
+     *
+     * @param b The byte[] holding the bytes.
+     * @param offset Integer offset into b.
+     * @param length The number of bytes.
+     * @return This writer.
+     * @exception IOException Thrown when the file cannot be written.
+     */
+    public ShadowFileWriter write(byte[] b, int offset, int length)
+            throws IOException {
+        while (length > buffer.remaining()) {
+            int n = buffer.remaining();
+            buffer.put(b, offset, n);
+            offset += n;
+            length -= n;
+            drain();
+        }
+        buffer.put(b, offset, length);
+        return this;
+    }
+
+    /**
+     * Write a byte, e.g. a field separator.
+     *
+     * @param b The byte.
+     * @return This writer.
+     * @exception IOException Thrown when the file cannot be written.
+     */
+    public ShadowFileWriter write(byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put(b);
+        return this;
+    }
+
+    /**
+     * Write a salt and DES result as a crypt(3C) string.
+     *
+     * @param salt The 12 bit salt.
+     * @param result The DES result.
+     * @return This writer.
+     * @exception IOException Thrown when the file cannot be written.
+     */
+    public ShadowFileWriter writeHash(int salt, long result)
+            throws IOException {
+        CryptHash.format(salt, result, hash, 0);
+        return write(hash, 0, CryptHash.LENGTH);
+    }
+
+    /**
+     * Write a field of the current line of a reader.
+     *
+     * @param reader The reader.
+     * @param field The field number, counted from 0.
+     * @return This writer.
+     * @exception IOException Thrown when the file cannot be written.
+     * @exception IndexOutOfBoundsException Thrown when the line has no such
+     * field.
+     */
+    public ShadowFileWriter writeField(ShadowFileReader reader, int field)
+            throws IOException {
+        return write(reader.getBuffer(), reader.getFieldOffset(field),
+                reader.getFieldLength(field));
+    }
+
+    /**
+     * Write the current line of a reader and a line end.
+     *
+     * @param reader The reader.
+     * @return This writer.
+     * @exception IOException Thrown when the file cannot be written.
+     */
+    public ShadowFileWriter writeLine(ShadowFileReader reader)
+            throws IOException {
+        write(reader.getBuffer(), reader.getLineOffset(),
+                reader.getLineLength());
+        return newLine();
+    }
+
+    /**
+     * Write a line end.
+     *
+     * @return This writer.
+     * @exception IOException Thrown when the file cannot be written.
+     */
+    public ShadowFileWriter newLine() throws IOException {
+        return write((byte) '\n');
+    }
+
+    /**
+     * Accessor method to get the number of bytes written to the file, not
+     * counting the bytes still in the buffer.
+     *
+     * @return The number of bytes.
+     */
+    public long getBytesWritten() {
+        return written;
+    }
+
+    /**
+     * Accessor method to get the file.
+     *
+     * @return The path of the file.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Write the buffered bytes to the file.
+     *
+     * @exception IOException Thrown when the file cannot be written.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * Write the buffered bytes to the file and force them to the disk.
+     *
+     * @exception IOException Thrown when the file cannot be written.
+     */
+    public void force() throws IOException {
+        drain();
+        channel.force(true);
+    }
+
+    /**
+     * Write the buffered bytes and close the file.
+     *
+     * @exception IOException Thrown when the file cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns a string representation of the writer.
+     *
+     * @return A string.
+     */
+    @Override
+    public String toString() {
+        return "ShadowFileWriter[file=" + file + ", written=" + written + "]";
+    }
+
+    /**
+     * Write the buffer to the channel and empty it.
+     *
+     * @exception IOException Thrown when the file cannot be written.
+     */
+    private void drain() throws IOException {
+        ((Buffer) buffer).flip();
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        ((Buffer) buffer).clear();
+    }
+}
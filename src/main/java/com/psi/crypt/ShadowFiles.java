@@ -0,0 +1,243 @@
+package com.psi.crypt;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Batch jobs over passwd and shadow style files, streamed through a
+ * ShadowFileReader and ShadowFileWriter without a String per line.
+ *
+ * @author John Glynn
+ */
+public final class ShadowFiles {
+
+    /**
+     * The field holding the password hash in passwd and shadow files.
+     */
+    public static final int PASSWORD_FIELD = 1;
+
+    /**
+     * The most lines held back while their passwords wait for a batch.
+     */
+    private static final int MAX_PENDING_LINES = 4096;
+
+    /**
+     * ShadowFiles is not meant to be instantiated.
+     */
+    private ShadowFiles() {
+    }
+
+    /**
+     * Put the users of a file whose password field is a crypt(3C) string
+     * into a store. Other lines, e.g. locked accounts, are skipped.
+     *
+     * @param file The file.
+     * @param store The store.
+     * @return The number of users put into the store.
+     * @exception IOException Thrown when the file cannot be read.
+     */
+    public static long load(Path file, CredentialStore store)
+            throws IOException {
+        long count = 0;
+        try (ShadowFileReader reader = new ShadowFileReader(file)) {
+            while (reader.next()) {
+                int length;
+                if (!reader.isBlankOrComment()
+                        && reader.isCryptHash(PASSWORD_FIELD)
+                        && (length = reader.getFieldLength(0)) > 0
+                        && length <= CredentialStore.MAX_NAME_BYTES) {
+                    store.put(reader.getBuffer(), reader.getFieldOffset(0),
+                            length, reader.getSalt(PASSWORD_FIELD),
+                            reader.getResult(PASSWORD_FIELD));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copy a file replacing a field holding a plain password with its
+     * crypt(3C) hash under a new random salt, e.g. to import accounts. The
+     * passwords are hashed a batch at a time by the bitsliced
+     * implementation. Blank lines, comments and lines without the field are
+     * copied as they are.
+     *
+     * @param in The file with plain passwords.
+     * @param out The file written, created or truncated.
+     * @param field The number of the password field, counted from 0.
+     * @return The number of passwords hashed.
+     * @exception IOException Thrown when a file cannot be read or written.
+     * @exception IllegalArgumentException Thrown when the field number is
+     * negative.
+     */
+    public static long hashPasswords(Path in, Path out, int field)
+            throws IOException {
+        if (field < 0) {
+            throw new IllegalArgumentException("Negative field: " + field);
+        }
+        try (ShadowFileReader reader = new ShadowFileReader(in);
+                ShadowFileWriter writer = new ShadowFileWriter(out)) {
+            PasswordBatch batch = new PasswordBatch(writer);
+            while (reader.next()) {
+                if (reader.isBlankOrComment()
+                        || reader.getFieldCount() <= field) {
+                    batch.addLine(reader);
+                } else {
+                    batch.addPassword(reader, field);
+                }
+            }
+            batch.flush();
+            return batch.hashed;
+        }
+    }
+
+    /**
+     * Lines held back until the passwords in them are hashed, written in
+     * their original order.
+     */
+    private static final class PasswordBatch {
+
+        final ShadowFileWriter writer;
+        final BatchCryptImplementation crypt
+                = BatchCryptFactory.newImplementation();
+        final SaltGenerator salts = SaltGenerator.getDefault();
+
+        /**
+         * The key bytes and binary salt bytes of each lane, and the salt
+         * value of each lane.
+         */
+        final byte[][] keys;
+        final byte[][] saltBytes;
+        final int[] saltValues;
+        int lanes;
+
+        /**
+         * The pending lines, copied into one arena. Each line has its start,
+         * end, password field start and end in the arena, and its lane or -1
+         * for a line copied as it is.
+         */
+        byte[] arena = new byte[64 << 10];
+        int arenaEnd;
+        int[] lines = new int[5 * 256];
+        int lineCount;
+
+        long hashed;
+
+        /**
+         * Creates a batch writing to a writer.
+         *
+         * @param writer The writer.
+         */
+        PasswordBatch(ShadowFileWriter writer) {
+            this.writer = writer;
+            int n = crypt.lanes();
+            this.keys = new byte[n][8];
+            this.saltBytes = new byte[n][2];
+            this.saltValues = new int[n];
+        }
+
+        /**
+         * Add the current line of a reader, to be copied as it is.
+         *
+         * @param reader The reader.
+         * @exception IOException Thrown when the batch cannot be written.
+         */
+        void addLine(ShadowFileReader reader) throws IOException {
+            add(reader, -1, 0, 0);
+        }
+
+        /**
+         * Add the current line of a reader, to be copied with the password
+         * in a field replaced by its hash.
+         *
+         * @param reader The reader.
+         * @param field The number of the password field.
+         * @exception IOException Thrown when the batch cannot be written.
+         */
+        void addPassword(ShadowFileReader reader, int field)
+                throws IOException {
+            byte[] b = reader.getBuffer();
+            int offset = reader.getFieldOffset(field);
+            int length = Math.min(8, reader.getFieldLength(field));
+            byte[] key = keys[lanes];
+            System.arraycopy(b, offset, key, 0, length);
+            Arrays.fill(key, length, 8, (byte) 0);
+
+            int salt = salts.nextSalt();
+            saltValues[lanes] = salt;
+            saltBytes[lanes][0] = (byte) (salt & 0x3f);
+            saltBytes[lanes][1] = (byte) (salt >>> 6);
+
+            add(reader, lanes++, offset - reader.getLineOffset(),
+                    reader.getFieldLength(field));
+            hashed++;
+        }
+
+        /**
+         * Copy a line into the arena and write the batch when it is full.
+         *
+         * @param reader The reader.
+         * @param lane The lane hashing the password of the line, or -1.
+         * @param fieldOffset The offset of the password in the line.
+         * @param fieldLength The length of the password.
+         * @exception IOException Thrown when the batch cannot be written.
+         */
+        void add(ShadowFileReader reader, int lane, int fieldOffset,
+                int fieldLength) throws IOException {
+            int length = reader.getLineLength();
+            if (arenaEnd + length > arena.length) {
+                arena = Arrays.copyOf(arena,
+                        Math.max(2 * arena.length, arenaEnd + length));
+            }
+            if (5 * lineCount == lines.length) {
+                lines = Arrays.copyOf(lines, 2 * lines.length);
+            }
+            System.arraycopy(reader.getBuffer(), reader.getLineOffset(),
+                    arena, arenaEnd, length);
+            int p = 5 * lineCount++;
+            lines[p] = arenaEnd;
+            lines[p + 1] = arenaEnd + length;
+            lines[p + 2] = arenaEnd + fieldOffset;
+            lines[p + 3] = arenaEnd + fieldOffset + fieldLength;
+            lines[p + 4] = lane;
+            arenaEnd += length;
+            if (lanes == crypt.lanes() || lineCount == MAX_PENDING_LINES) {
+                flush();
+            }
+        }
+
+        /**
+         * Hash the pending passwords and write the pending lines.
+         *
+         * @exception IOException Thrown when the lines cannot be written.
+         */
+        void flush() throws IOException {
+            if (lanes > 0) {
+                crypt.setup(keys, saltBytes, 0, lanes);
+                crypt.encrypt();
+            }
+            for (int i = 0; i < 5 * lineCount; i += 5) {
+                int lane = lines[i + 4];
+                if (lane < 0) {
+                    writer.write(arena, lines[i], lines[i + 1] - lines[i]);
+                } else {
+                    writer.write(arena, lines[i], lines[i + 2] - lines[i]);
+                    writer.writeHash(saltValues[lane], crypt.getResult(lane));
+                    writer.write(arena, lines[i + 3],
+                            lines[i + 1] - lines[i + 3]);
+                }
+                writer.newLine();
+            }
+            // do not keep passwords around
+            for (int lane = 0; lane < lanes; ++lane) {
+                Arrays.fill(keys[lane], (byte) 0);
+            }
+            Arrays.fill(arena, 0, arenaEnd, (byte) 0);
+            arenaEnd = 0;
+            lineCount = 0;
+            lanes = 0;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.psi.crypt;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selects the fastest batch implementation available on this platform. When
+ * the <code>jdk.incubator.vector</code> module is present, e.g. when the JVM
+ * is started with <code>--add-modules jdk.incubator.vector</code>, and the
+ * preferred vector size is at least 256 bits, the Vector API implementation is
+ * used. Otherwise the bitsliced 64 lane implementation is used.
+ *
+ * @author John Glynn
+ */
+final class BatchCryptFactory {
+
+    private static final Logger LOG
+            = Logger.getLogger(BatchCryptFactory.class.getName());
+
+    /**
+     * The name of the Vector API implementation. It is loaded by name so this
+     * class does not link against the incubator module when it is absent.
+     */
+    private static final String VECTOR_IMPLEMENTATION
+            = "com.psi.crypt.VectorCryptImplementation";
+
+    /**
+     * True when the Vector API implementation can be used.
+     */
+    private static final boolean VECTOR = vectorSupported();
+
+    /**
+     * BatchCryptFactory is not meant to be instantiated.
+     */
+    private BatchCryptFactory() {
+    }
+
+    /**
+     * Create a new batch implementation.
+     *
+     * @return The Vector API implementation when it is supported, the
+     * bitsliced 64 lane implementation otherwise.
+     */
+    static BatchCryptImplementation newImplementation() {
+        if (VECTOR) {
+            return new VectorCryptImplementation();
+        }
+        return new BitsliceCryptImplementation();
+    }
+
+    /**
+     * Check the boot layer for the incubator module and ask the Vector API
+     * implementation whether the preferred vector size is large enough.
+     *
+     * @return True when the Vector API implementation can be used.
+     */
+    private static boolean vectorSupported() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return false;
+        }
+        try {
+            return (Boolean) Class.forName(VECTOR_IMPLEMENTATION)
+                    .getDeclaredMethod("isSupported").invoke(null);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            LOG.log(Level.FINE, "Vector API implementation unavailable", ex);
+            return false;
+        }
+    }
+}
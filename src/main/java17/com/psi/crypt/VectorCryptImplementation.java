@@ -0,0 +1,867 @@
+package com.psi.crypt;
+
+import java.util.Arrays;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import static jdk.incubator.vector.VectorOperators.AND_NOT;
+import static jdk.incubator.vector.VectorOperators.XOR;
+
+/**
+ * Bitsliced implementation of crypt(3C) on the Vector API. It works like
+ * BitsliceCryptImplementation, but every intermediate DES bit is a vector of
+ * longs of the preferred species, so a batch holds 256 lanes on AVX2 hosts and
+ * 512 lanes on AVX-512 hosts. Lane n lives in bit n % 64 of element n / 64.
+ *
+ * The state is kept in long[] arrays with one vector per DES bit, and vectors
+ * never cross a method boundary, so the JIT can keep them in registers.
+ *
+ * @author John Glynn
+ */
+final class VectorCryptImplementation extends BatchCryptImplementation {
+
+    /**
+     * The preferred species of long vectors on this platform.
+     */
+    private static final VectorSpecies<Long> SPECIES
+            = LongVector.SPECIES_PREFERRED;
+
+    /**
+     * The number of longs in a vector.
+     */
+    private static final int V = SPECIES.length();
+
+    /**
+     * The number of passwords hashed by one call to encrypt().
+     */
+    static final int LANES = 64 * V;
+
+    /**
+     * The DES key bit used by each of the 48 subkey bits of the 16 rounds.
+     */
+    private static final int[] keybit = new int[16 * 48];
+
+    /**
+     * The bit of the 32 bit half selected by each of the 48 E expansion bits.
+     */
+    private static final int[] ebit = new int[48];
+
+    /**
+     * The position in the round function output of each sbox output bit, i.e.
+     * the inverse of perm32.
+     */
+    private static final int[] pbit = new int[32];
+
+    static {
+        /*
+         * Follow the key bits through pc1, the rotations and pc2
+         */
+        int[] cd = new int[56];
+        for (int i = 0; i < 56; ++i) {
+            cd[i] = CryptTables.pc1[i] - 1;
+        }
+        for (int round = 0; round < 16; ++round) {
+            for (int rot = CryptTables.rots[round]; rot > 0; --rot) {
+                int c = cd[0];
+                int d = cd[28];
+                System.arraycopy(cd, 1, cd, 0, 27);
+                System.arraycopy(cd, 29, cd, 28, 27);
+                cd[27] = c;
+                cd[55] = d;
+            }
+            for (int bit = 0; bit < 48; ++bit) {
+                keybit[round * 48 + bit] = cd[CryptTables.pc2[bit] - 1];
+            }
+        }
+
+        for (int bit = 0; bit < 48; ++bit) {
+            ebit[bit] = CryptTables.esel[bit] - 1;
+        }
+        for (int bit = 0; bit < 32; ++bit) {
+            pbit[CryptTables.perm32[bit] - 1] = bit;
+        }
+    }
+
+    /**
+     * The transposed key bits in DES order, eight bits per key byte.
+     */
+    private final long[] keys;
+    /**
+     * The transposed subkeys of the 16 rounds.
+     */
+    private final long[] subkeys;
+    /**
+     * For each of the 12 salt bits, the lanes whose salt has that bit set.
+     */
+    private final long[] saltmask;
+    /**
+     * The salt characters of each lane.
+     */
+    private final char[] saltChars;
+    /**
+     * The transposed left and right halves of the DES block.
+     */
+    private long[] left;
+    private long[] right;
+    /**
+     * Storage for the E expanded and keyed half block.
+     */
+    private final long[] e;
+    /**
+     * The 64 bit DES result of each lane.
+     */
+    private final long[] results;
+
+    /**
+     * No argument constructor allocates memory.
+     */
+    VectorCryptImplementation() {
+        keys = new long[64 * V];
+        subkeys = new long[16 * 48 * V];
+        saltmask = new long[12 * V];
+        saltChars = new char[2 * LANES];
+        left = new long[32 * V];
+        right = new long[32 * V];
+        e = new long[48 * V];
+        results = new long[LANES];
+    }
+
+    /**
+     * Check whether the preferred vector size makes this implementation
+     * faster than the 64 lane implementation.
+     *
+     * @return True when the preferred vectors hold at least four longs.
+     */
+    static boolean isSupported() {
+        return V >= 4;
+    }
+
+    /**
+     * Accessor method to get the number of passwords hashed at once.
+     *
+     * @return Returns 64 times the number of longs in a vector.
+     */
+    @Override
+    int lanes() {
+        return LANES;
+    }
+
+    /**
+     * Load the keys and salts of the lanes. Lanes beyond count are hashed with
+     * an empty key and salt.
+     *
+     * @param keyBytes The password bytes of each lane. At most the first eight
+     * bytes of each password are used.
+     * @param salts The salt of each lane as two bytes in crypt(3C)-base64
+     * binary form.
+     * @param offset The index of the first password and salt to load.
+     * @param count The number of lanes to load, at most lanes().
+     */
+    @Override
+    void setup(byte[][] keyBytes, byte[][] salts, int offset, int count) {
+        if (count > LANES) {
+            throw new IllegalArgumentException("More than " + LANES
+                    + " lanes: " + count);
+        }
+        Arrays.fill(keys, 0);
+        Arrays.fill(saltmask, 0);
+
+        for (int lane = 0; lane < count; ++lane) {
+            int word = lane >>> 6;
+            int shift = lane & 0x3f;
+
+            byte[] key = keyBytes[offset + lane];
+            int length = Math.min(8, key.length);
+            for (int i = 0; i < length; ++i) {
+                int c = key[i];
+                for (int j = 0; j < 7; ++j) {
+                    keys[(8 * i + j) * V + word]
+                            |= (long) (c >>> 6 - j & 0x1) << shift;
+                }
+            }
+
+            byte[] salt = salts[offset + lane];
+            int s = CryptTables.saltValue(salt[0], salt[1]);
+            for (int j = 0; j < 12; ++j) {
+                saltmask[j * V + word] |= (long) (s >>> j & 0x1) << shift;
+            }
+            saltChars[2 * lane] = CryptUtility.binaryToAscii(salt[0]);
+            saltChars[2 * lane + 1] = CryptUtility.binaryToAscii(salt[1]);
+        }
+        for (int lane = count; lane < LANES; ++lane) {
+            saltChars[2 * lane] = '.';
+            saltChars[2 * lane + 1] = '.';
+        }
+
+        for (int i = 0; i < 16 * 48; ++i) {
+            System.arraycopy(keys, keybit[i] * V, subkeys, i * V, V);
+        }
+    }
+
+    /**
+     * Perform 25 DES encryptions on all lanes.
+     */
+    @Override
+    void encrypt() {
+        long[] l = left;
+        long[] r = right;
+        Arrays.fill(l, 0);
+        Arrays.fill(r, 0);
+
+        for (int itr = 25; itr > 0; --itr) {
+            for (int round = 0; round < 16; round += 2) {
+                round(r, l, round);
+                round(l, r, round + 1);
+            }
+            long[] s = l;
+            l = r;
+            r = s;
+        }
+
+        /*
+         * Do final permutation and transpose back to one long per lane
+         */
+        Arrays.fill(results, 0);
+        for (int bit = 0; bit < 64; ++bit) {
+            int from = CryptTables.final_perm[bit] - 1;
+            long[] half = from < 32 ? l : r;
+            int index = (from & 0x1f) * V;
+            for (int lane = 0; lane < LANES; ++lane) {
+                long word = half[index + (lane >>> 6)];
+                results[lane] |= (word >>> (lane & 0x3f) & 0x1) << 63 - bit;
+            }
+        }
+    }
+
+    /**
+     * Accessor method to get the DES result of a lane.
+     *
+     * @param lane The lane number.
+     * @return The 64 bit result, the first output bit in the most significant
+     * position.
+     */
+    @Override
+    long getResult(int lane) {
+        return results[lane];
+    }
+
+    /**
+     * Accessor method to get the result string of a lane.
+     *
+     * @param lane The lane number.
+     * @return String made up of the base64 encoded characters.
+     */
+    @Override
+    String getCrypt3Buffer(int lane) {
+        char[] buf = new char[13];
+        CryptUtility.outputConversion(saltChars[2 * lane],
+                saltChars[2 * lane + 1], results[lane], buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * Perform one DES round on all lanes, XORing the round function of one
+     * half into the other half.
+     *
+     * @param in The half fed through the round function.
+     * @param out The half receiving the output of the round function.
+     * @param round The round number.
+     */
+    private void round(long[] in, long[] out, int round) {
+        final long[] x = e;
+        final int base = round * 48 * V;
+
+        for (int bit = 0; bit < 12; ++bit) {
+            LongVector a = LongVector.fromArray(SPECIES, in, ebit[bit] * V);
+            LongVector b = LongVector.fromArray(SPECIES, in,
+                    ebit[bit + 24] * V);
+            LongVector t = a.lanewise(XOR, b).and(
+                    LongVector.fromArray(SPECIES, saltmask, bit * V));
+            a.lanewise(XOR, t).lanewise(XOR,
+                    LongVector.fromArray(SPECIES, subkeys, base + bit * V))
+                    .intoArray(x, bit * V);
+            b.lanewise(XOR, t).lanewise(XOR,
+                    LongVector.fromArray(SPECIES, subkeys,
+                            base + (bit + 24) * V))
+                    .intoArray(x, (bit + 24) * V);
+        }
+        for (int bit = 12; bit < 24; ++bit) {
+            expand(in, base, bit);
+            expand(in, base, bit + 24);
+        }
+
+        s1(x, 0, out, pbit[0] * V, pbit[1] * V, pbit[2] * V, pbit[3] * V);
+        s2(x, 6 * V, out, pbit[4] * V, pbit[5] * V, pbit[6] * V, pbit[7] * V);
+        s3(x, 12 * V, out, pbit[8] * V, pbit[9] * V, pbit[10] * V,
+                pbit[11] * V);
+        s4(x, 18 * V, out, pbit[12] * V, pbit[13] * V, pbit[14] * V,
+                pbit[15] * V);
+        s5(x, 24 * V, out, pbit[16] * V, pbit[17] * V, pbit[18] * V,
+                pbit[19] * V);
+        s6(x, 30 * V, out, pbit[20] * V, pbit[21] * V, pbit[22] * V,
+                pbit[23] * V);
+        s7(x, 36 * V, out, pbit[24] * V, pbit[25] * V, pbit[26] * V,
+                pbit[27] * V);
+        s8(x, 42 * V, out, pbit[28] * V, pbit[29] * V, pbit[30] * V,
+                pbit[31] * V);
+    }
+
+    /**
+     * E expand one bit not affected by the salt and XOR it with the subkey.
+     *
+     * @param in The half fed through the round function.
+     * @param base The index of the subkey of the round.
+     * @param bit The E expansion bit.
+     */
+    private void expand(long[] in, int base, int bit) {
+        LongVector.fromArray(SPECIES, in, ebit[bit] * V).lanewise(XOR,
+                LongVector.fromArray(SPECIES, subkeys, base + bit * V))
+                .intoArray(e, bit * V);
+    }
+
+    /**
+     * XOR a vector into the array.
+     *
+     * @param out The array.
+     * @param index The index of the first long of the vector in the array.
+     * @param v The vector.
+     */
+    private static void xor(long[] out, int index, LongVector v) {
+        LongVector.fromArray(SPECIES, out, index).lanewise(XOR, v)
+                .intoArray(out, index);
+    }
+
+    /**
+     * S-box 1 as a boolean circuit on vectors. The six inputs are read from
+     * consecutive vectors of the input array and the four outputs are XORed
+     * into the given vectors of the output array.
+     */
+    private static void s1(long[] in, int i, long[] out, int o1, int o2,
+            int o3, int o4) {
+        LongVector a1 = LongVector.fromArray(SPECIES, in, i);
+        LongVector a2 = LongVector.fromArray(SPECIES, in, i + V);
+        LongVector a3 = LongVector.fromArray(SPECIES, in, i + 2 * V);
+        LongVector a4 = LongVector.fromArray(SPECIES, in, i + 3 * V);
+        LongVector a5 = LongVector.fromArray(SPECIES, in, i + 4 * V);
+        LongVector a6 = LongVector.fromArray(SPECIES, in, i + 5 * V);
+        LongVector x1 = a1.lanewise(AND_NOT, a3);
+        LongVector x2 = a4.and(a3).not();
+        LongVector x3 = x1.lanewise(XOR, x2.and(a6));
+        LongVector x4 = a1.or(a4.not());
+        LongVector x5 = x4.or(a3);
+        LongVector x6 = a4.lanewise(XOR, a1.lanewise(AND_NOT, a3));
+        LongVector x7 = x5.lanewise(XOR, x6.lanewise(AND_NOT, a6));
+        LongVector x8 = x3.lanewise(XOR, x7.and(a5));
+        LongVector x9 = a1.lanewise(XOR, a4);
+        LongVector x10 = x9.or(a3.not());
+        LongVector x11 = a1.and(a4);
+        LongVector x12 = x11.lanewise(AND_NOT, a3);
+        LongVector x13 = x10.lanewise(XOR, x12.lanewise(AND_NOT, a6));
+        LongVector x14 = x11.lanewise(XOR, x1.and(a6));
+        LongVector x15 = x13.lanewise(XOR, x14.and(a5));
+        LongVector x16 = x8.lanewise(XOR, x15.lanewise(AND_NOT, a2));
+        LongVector x17 = a1.lanewise(AND_NOT, a4);
+        LongVector x18 = x17.or(a3.not());
+        LongVector x19 = x9.not();
+        LongVector x20 = x19.lanewise(XOR, a4.and(a3));
+        LongVector x21 = x18.lanewise(XOR, x20.and(a6));
+        LongVector x22 = a1.or(a4);
+        LongVector x23 = x22.lanewise(XOR, a3);
+        LongVector x24 = x22.or(a3.not());
+        LongVector x25 = x23.lanewise(XOR, x24.and(a6));
+        LongVector x26 = x21.lanewise(XOR, x25.and(a5));
+        LongVector x27 = x19.lanewise(XOR, x17.and(a3));
+        LongVector x28 = x27.lanewise(XOR, x27.lanewise(XOR, a3).and(a6));
+        LongVector x29 = x6.lanewise(XOR, x6.lanewise(XOR, x22).and(a6));
+        LongVector x30 = x28.lanewise(XOR, x29.and(a5));
+        LongVector x31 = x26.lanewise(XOR, x30.and(a2));
+        LongVector x32 = a3.not();
+        LongVector x33 = x32.lanewise(XOR, x9.lanewise(AND_NOT, a6));
+        LongVector x34 = x22.lanewise(XOR, a1.and(a3));
+        LongVector x35 = x11.lanewise(XOR, x17.and(a3));
+        LongVector x36 = x34.lanewise(XOR, x35.and(a6));
+        LongVector x37 = x33.lanewise(XOR, x36.lanewise(AND_NOT, a5));
+        LongVector x38 = x22.or(a3);
+        LongVector x39 = x38.or(a6);
+        LongVector x40 = x19.lanewise(XOR, a3);
+        LongVector x41 = x40.lanewise(XOR, x34.lanewise(AND_NOT, a6));
+        LongVector x42 = x39.lanewise(XOR, x41.and(a5));
+        LongVector x43 = x37.lanewise(XOR, x42.lanewise(AND_NOT, a2));
+        LongVector x44 = x23.not();
+        LongVector x45 = x4.lanewise(XOR, x44.and(a6));
+        LongVector x46 = a4.lanewise(XOR, x18.lanewise(AND_NOT, a6));
+        LongVector x47 = x45.lanewise(XOR, x46.and(a5));
+        LongVector x48 = x11.not();
+        LongVector x49 = x48.lanewise(XOR, x27.lanewise(AND_NOT, a6));
+        LongVector x50 = x22.not();
+        LongVector x51 = a1.or(a3);
+        LongVector x52 = x50.lanewise(XOR, x51.and(a6));
+        LongVector x53 = x49.lanewise(XOR, x52.lanewise(AND_NOT, a5));
+        LongVector x54 = x47.lanewise(XOR, x53.lanewise(AND_NOT, a2));
+        xor(out, o1, x16);
+        xor(out, o2, x31);
+        xor(out, o3, x43);
+        xor(out, o4, x54);
+    }
+
+    /**
+     * S-box 2 as a boolean circuit on vectors. The six inputs are read from
+     * consecutive vectors of the input array and the four outputs are XORed
+     * into the given vectors of the output array.
+     */
+    private static void s2(long[] in, int i, long[] out, int o1, int o2,
+            int o3, int o4) {
+        LongVector a1 = LongVector.fromArray(SPECIES, in, i);
+        LongVector a2 = LongVector.fromArray(SPECIES, in, i + V);
+        LongVector a3 = LongVector.fromArray(SPECIES, in, i + 2 * V);
+        LongVector a4 = LongVector.fromArray(SPECIES, in, i + 3 * V);
+        LongVector a5 = LongVector.fromArray(SPECIES, in, i + 4 * V);
+        LongVector a6 = LongVector.fromArray(SPECIES, in, i + 5 * V);
+        LongVector x1 = a1.lanewise(AND_NOT, a6);
+        LongVector x2 = x1.lanewise(XOR, a5);
+        LongVector x3 = x2.lanewise(XOR, a4.not());
+        LongVector x4 = a1.or(a6);
+        LongVector x5 = a1.and(a6);
+        LongVector x6 = x4.lanewise(XOR, x5.and(a5));
+        LongVector x7 = x3.lanewise(XOR, x6.and(a3));
+        LongVector x8 = a1.or(a5);
+        LongVector x9 = x1.or(a5.not());
+        LongVector x10 = x8.lanewise(XOR, x9.lanewise(AND_NOT, a4));
+        LongVector x11 = x4.not();
+        LongVector x12 = x10.lanewise(XOR, x11.lanewise(AND_NOT, a3));
+        LongVector x13 = x7.lanewise(XOR, x12.lanewise(AND_NOT, a2));
+        LongVector x14 = a1.lanewise(XOR, a5);
+        LongVector x15 = x14.lanewise(XOR, a4.not());
+        LongVector x16 = a6.and(a5);
+        LongVector x17 = a6.lanewise(XOR, x16.and(a4));
+        LongVector x18 = x15.lanewise(XOR, x17.lanewise(AND_NOT, a3));
+        LongVector x19 = a6.lanewise(XOR, x1.and(a5));
+        LongVector x20 = x19.or(a4.not());
+        LongVector x21 = x1.and(a5).not();
+        LongVector x22 = x20.lanewise(XOR, x21.and(a3));
+        LongVector x23 = x18.lanewise(XOR, x22.and(a2));
+        LongVector x24 = x4.lanewise(XOR, a5);
+        LongVector x25 = x21.lanewise(XOR, x24.and(a4));
+        LongVector x26 = a1.or(a6.not());
+        LongVector x27 = x8.lanewise(XOR, x8.lanewise(XOR, x26).and(a4));
+        LongVector x28 = x25.lanewise(XOR, x27.lanewise(AND_NOT, a3));
+        LongVector x29 = x26.or(a5);
+        LongVector x30 = x29.or(a4);
+        LongVector x31 = x19.lanewise(XOR, a1.lanewise(AND_NOT, a4));
+        LongVector x32 = x30.lanewise(XOR, x31.lanewise(AND_NOT, a3));
+        LongVector x33 = x28.lanewise(XOR, x32.and(a2));
+        LongVector x34 = x1.lanewise(XOR, a6.and(a5));
+        LongVector x35 = x26.or(a5.not());
+        LongVector x36 = x34.lanewise(XOR, x35.lanewise(AND_NOT, a4));
+        LongVector x37 = x1.not();
+        LongVector x38 = x11.lanewise(XOR, x37.and(a5));
+        LongVector x39 = x36.lanewise(XOR, x38.and(a3));
+        LongVector x40 = x4.or(a5);
+        LongVector x41 = a6.not();
+        LongVector x42 = x5.lanewise(XOR, x41.and(a5));
+        LongVector x43 = x40.lanewise(XOR, x42.lanewise(AND_NOT, a4));
+        LongVector x44 = x5.lanewise(XOR, x26.and(a5));
+        LongVector x45 = x43.lanewise(XOR, x44.and(a3));
+        LongVector x46 = x39.lanewise(XOR, x45.and(a2));
+        xor(out, o1, x13);
+        xor(out, o2, x23);
+        xor(out, o3, x33);
+        xor(out, o4, x46);
+    }
+
+    /**
+     * S-box 3 as a boolean circuit on vectors. The six inputs are read from
+     * consecutive vectors of the input array and the four outputs are XORed
+     * into the given vectors of the output array.
+     */
+    private static void s3(long[] in, int i, long[] out, int o1, int o2,
+            int o3, int o4) {
+        LongVector a1 = LongVector.fromArray(SPECIES, in, i);
+        LongVector a2 = LongVector.fromArray(SPECIES, in, i + V);
+        LongVector a3 = LongVector.fromArray(SPECIES, in, i + 2 * V);
+        LongVector a4 = LongVector.fromArray(SPECIES, in, i + 3 * V);
+        LongVector a5 = LongVector.fromArray(SPECIES, in, i + 4 * V);
+        LongVector a6 = LongVector.fromArray(SPECIES, in, i + 5 * V);
+        LongVector x1 = a4.lanewise(XOR, a6);
+        LongVector x2 = x1.or(a1.not());
+        LongVector x3 = x1.or(a1);
+        LongVector x4 = x2.lanewise(XOR, x3.and(a5));
+        LongVector x5 = a4.and(a6);
+        LongVector x6 = x5.lanewise(XOR, a6.lanewise(AND_NOT, a1));
+        LongVector x7 = x1.not();
+        LongVector x8 = a4.or(a6.not());
+        LongVector x9 = x7.lanewise(XOR, x8.and(a1));
+        LongVector x10 = x6.lanewise(XOR, x9.and(a5));
+        LongVector x11 = x4.lanewise(XOR, x10.and(a2));
+        LongVector x12 = a6.or(a1.not());
+        LongVector x13 = a4.lanewise(XOR, x8.lanewise(AND_NOT, a1));
+        LongVector x14 = x12.lanewise(XOR, x13.lanewise(AND_NOT, a5));
+        LongVector x15 = a6.not();
+        LongVector x16 = a4.lanewise(AND_NOT, a6);
+        LongVector x17 = x15.lanewise(XOR, x16.lanewise(AND_NOT, a1));
+        LongVector x18 = x14.lanewise(XOR, x17.and(a2));
+        LongVector x19 = x11.lanewise(XOR, x18.lanewise(AND_NOT, a3));
+        LongVector x20 = x1.lanewise(XOR, a1);
+        LongVector x21 = x8.or(a1);
+        LongVector x22 = x20.lanewise(XOR, x21.lanewise(AND_NOT, a5));
+        LongVector x23 = x17.not();
+        LongVector x24 = x23.or(a5.not());
+        LongVector x25 = x22.lanewise(XOR, x24.lanewise(AND_NOT, a2));
+        LongVector x26 = x21.or(a5.not());
+        LongVector x27 = a4.or(a1);
+        LongVector x28 = x27.lanewise(XOR, x15.and(a5));
+        LongVector x29 = x26.lanewise(XOR, x28.lanewise(AND_NOT, a2));
+        LongVector x30 = x25.lanewise(XOR, x29.lanewise(AND_NOT, a3));
+        LongVector x31 = x9.not();
+        LongVector x32 = x31.lanewise(XOR, x27.and(a5));
+        LongVector x33 = x12.or(a5);
+        LongVector x34 = x32.lanewise(XOR, x33.and(a2));
+        LongVector x35 = a1.or(a5);
+        LongVector x36 = x8.and(a1);
+        LongVector x37 = x36.lanewise(XOR, a1.and(a5));
+        LongVector x38 = x35.lanewise(XOR, x37.and(a2));
+        LongVector x39 = x34.lanewise(XOR, x38.and(a3));
+        LongVector x40 = a6.lanewise(XOR, a1);
+        LongVector x41 = x16.not();
+        LongVector x42 = x40.lanewise(XOR, x41.and(a5));
+        LongVector x43 = x5.not();
+        LongVector x44 = x42.lanewise(XOR, x43.lanewise(AND_NOT, a2));
+        LongVector x45 = x5.and(a1);
+        LongVector x46 = x45.or(a5.not());
+        LongVector x47 = x3.not();
+        LongVector x48 = x15.lanewise(AND_NOT, a1);
+        LongVector x49 = x47.lanewise(XOR, x48.and(a5));
+        LongVector x50 = x46.lanewise(XOR, x49.and(a2));
+        LongVector x51 = x44.lanewise(XOR, x50.lanewise(AND_NOT, a3));
+        xor(out, o1, x30);
+        xor(out, o2, x51);
+        xor(out, o3, x19);
+        xor(out, o4, x39);
+    }
+
+    /**
+     * S-box 4 as a boolean circuit on vectors. The six inputs are read from
+     * consecutive vectors of the input array and the four outputs are XORed
+     * into the given vectors of the output array.
+     */
+    private static void s4(long[] in, int i, long[] out, int o1, int o2,
+            int o3, int o4) {
+        LongVector a1 = LongVector.fromArray(SPECIES, in, i);
+        LongVector a2 = LongVector.fromArray(SPECIES, in, i + V);
+        LongVector a3 = LongVector.fromArray(SPECIES, in, i + 2 * V);
+        LongVector a4 = LongVector.fromArray(SPECIES, in, i + 3 * V);
+        LongVector a5 = LongVector.fromArray(SPECIES, in, i + 4 * V);
+        LongVector a6 = LongVector.fromArray(SPECIES, in, i + 5 * V);
+        LongVector x1 = a3.not();
+        LongVector x2 = a5.or(a3.not());
+        LongVector x3 = x1.lanewise(XOR, x2.and(a1));
+        LongVector x4 = a5.not();
+        LongVector x5 = x3.lanewise(XOR, x4.and(a4));
+        LongVector x6 = a5.lanewise(XOR, a3);
+        LongVector x7 = x6.or(a1);
+        LongVector x8 = x7.lanewise(XOR, x7.lanewise(XOR, a3).and(a4));
+        LongVector x9 = x5.lanewise(XOR, x8.and(a2));
+        LongVector x10 = a5.lanewise(AND_NOT, a3);
+        LongVector x11 = x10.not();
+        LongVector x12 = a3.lanewise(XOR, x11.lanewise(AND_NOT, a1));
+        LongVector x13 = x10.lanewise(XOR, x12.lanewise(AND_NOT, a4));
+        LongVector x14 = x2.or(a1.not());
+        LongVector x15 = x14.lanewise(XOR, x6.lanewise(AND_NOT, a4));
+        LongVector x16 = x13.lanewise(XOR, x15.lanewise(AND_NOT, a2));
+        LongVector x17 = x9.lanewise(XOR, x16.and(a6));
+        LongVector x18 = x9.not();
+        LongVector x19 = x16.not();
+        LongVector x20 = x18.lanewise(XOR, x19.lanewise(AND_NOT, a6));
+        LongVector x21 = x12.lanewise(XOR, a5.lanewise(AND_NOT, a4));
+        LongVector x22 = x6.or(a1.not());
+        LongVector x23 = x1.lanewise(XOR, x1.lanewise(XOR, x22).and(a4));
+        LongVector x24 = x21.lanewise(XOR, x23.and(a2));
+        LongVector x25 = x2.lanewise(XOR, x3.and(a4));
+        LongVector x26 = x11.lanewise(XOR, x10.and(a1));
+        LongVector x27 = x26.lanewise(XOR, x6.and(a4));
+        LongVector x28 = x25.lanewise(XOR, x27.lanewise(AND_NOT, a2));
+        LongVector x29 = x24.lanewise(XOR, x28.and(a6));
+        LongVector x30 = x28.not();
+        LongVector x31 = x24.lanewise(XOR, x30.lanewise(AND_NOT, a6));
+        xor(out, o1, x31);
+        xor(out, o2, x29);
+        xor(out, o3, x20);
+        xor(out, o4, x17);
+    }
+
+    /**
+     * S-box 5 as a boolean circuit on vectors. The six inputs are read from
+     * consecutive vectors of the input array and the four outputs are XORed
+     * into the given vectors of the output array.
+     */
+    private static void s5(long[] in, int i, long[] out, int o1, int o2,
+            int o3, int o4) {
+        LongVector a1 = LongVector.fromArray(SPECIES, in, i);
+        LongVector a2 = LongVector.fromArray(SPECIES, in, i + V);
+        LongVector a3 = LongVector.fromArray(SPECIES, in, i + 2 * V);
+        LongVector a4 = LongVector.fromArray(SPECIES, in, i + 3 * V);
+        LongVector a5 = LongVector.fromArray(SPECIES, in, i + 4 * V);
+        LongVector a6 = LongVector.fromArray(SPECIES, in, i + 5 * V);
+        LongVector x1 = a2.lanewise(XOR, a5);
+        LongVector x2 = x1.lanewise(XOR, a6);
+        LongVector x3 = x2.lanewise(XOR, a3.not());
+        LongVector x4 = a2.not();
+        LongVector x5 = x1.not();
+        LongVector x6 = x5.and(a6);
+        LongVector x7 = x4.lanewise(XOR, x6.and(a3));
+        LongVector x8 = x3.lanewise(XOR, x7.lanewise(AND_NOT, a4));
+        LongVector x9 = a5.not();
+        LongVector x10 = x9.lanewise(XOR, a5.and(a3));
+        LongVector x11 = a2.lanewise(XOR, a5.and(a6));
+        LongVector x12 = x1.lanewise(XOR, a2.and(a6));
+        LongVector x13 = x11.lanewise(XOR, x12.lanewise(AND_NOT, a3));
+        LongVector x14 = x10.lanewise(XOR, x13.lanewise(AND_NOT, a4));
+        LongVector x15 = x8.lanewise(XOR, x14.and(a1));
+        LongVector x16 = a2.or(a5);
+        LongVector x17 = x16.lanewise(XOR, a6.not());
+        LongVector x18 = a5.lanewise(XOR, x16.and(a6));
+        LongVector x19 = x17.lanewise(XOR, x18.lanewise(AND_NOT, a3));
+        LongVector x20 = a2.lanewise(AND_NOT, a5);
+        LongVector x21 = x20.lanewise(AND_NOT, a6).not();
+        LongVector x22 = x21.lanewise(XOR, a2.lanewise(AND_NOT, a3));
+        LongVector x23 = x19.lanewise(XOR, x22.lanewise(AND_NOT, a4));
+        LongVector x24 = x20.or(a6);
+        LongVector x25 = x24.or(a3);
+        LongVector x26 = x16.not();
+        LongVector x27 = x1.lanewise(XOR, x9.and(a6));
+        LongVector x28 = x26.lanewise(XOR, x27.and(a3));
+        LongVector x29 = x25.lanewise(XOR, x28.and(a4));
+        LongVector x30 = x23.lanewise(XOR, x29.lanewise(AND_NOT, a1));
+        LongVector x31 = x20.not();
+        LongVector x32 = x31.and(a6);
+        LongVector x33 = x27.lanewise(XOR, x32.and(a3));
+        LongVector x34 = x16.lanewise(XOR, x4.and(a6));
+        LongVector x35 = x9.lanewise(AND_NOT, a6);
+        LongVector x36 = x34.lanewise(XOR, x35.and(a3));
+        LongVector x37 = x33.lanewise(XOR, x36.and(a4));
+        LongVector x38 = a2.and(a5).not();
+        LongVector x39 = x5.lanewise(AND_NOT, a6);
+        LongVector x40 = x38.lanewise(XOR, x39.lanewise(AND_NOT, a3));
+        LongVector x41 = x24.lanewise(XOR, x1.and(a3));
+        LongVector x42 = x40.lanewise(XOR, x41.lanewise(AND_NOT, a4));
+        LongVector x43 = x37.lanewise(XOR, x42.and(a1));
+        LongVector x44 = x5.lanewise(XOR, x31.lanewise(AND_NOT, a3));
+        LongVector x45 = x44.lanewise(XOR, x24.lanewise(AND_NOT, a4));
+        LongVector x46 = x17.not();
+        LongVector x47 = x16.and(a6);
+        LongVector x48 = x46.lanewise(XOR, x47.lanewise(AND_NOT, a3));
+        LongVector x49 = x26.and(a6);
+        LongVector x50 = x49.lanewise(XOR, x39.lanewise(AND_NOT, a3));
+        LongVector x51 = x48.lanewise(XOR, x50.lanewise(AND_NOT, a4));
+        LongVector x52 = x45.lanewise(XOR, x51.lanewise(AND_NOT, a1));
+        xor(out, o1, x43);
+        xor(out, o2, x15);
+        xor(out, o3, x52);
+        xor(out, o4, x30);
+    }
+
+    /**
+     * S-box 6 as a boolean circuit on vectors. The six inputs are read from
+     * consecutive vectors of the input array and the four outputs are XORed
+     * into the given vectors of the output array.
+     */
+    private static void s6(long[] in, int i, long[] out, int o1, int o2,
+            int o3, int o4) {
+        LongVector a1 = LongVector.fromArray(SPECIES, in, i);
+        LongVector a2 = LongVector.fromArray(SPECIES, in, i + V);
+        LongVector a3 = LongVector.fromArray(SPECIES, in, i + 2 * V);
+        LongVector a4 = LongVector.fromArray(SPECIES, in, i + 3 * V);
+        LongVector a5 = LongVector.fromArray(SPECIES, in, i + 4 * V);
+        LongVector a6 = LongVector.fromArray(SPECIES, in, i + 5 * V);
+        LongVector x1 = a1.lanewise(XOR, a6);
+        LongVector x2 = x1.lanewise(XOR, a4);
+        LongVector x3 = a1.or(a6.not());
+        LongVector x4 = a1.lanewise(XOR, x3.lanewise(AND_NOT, a4));
+        LongVector x5 = x2.lanewise(XOR, x4.lanewise(AND_NOT, a5));
+        LongVector x6 = a1.or(a6);
+        LongVector x7 = a6.not();
+        LongVector x8 = x6.lanewise(XOR, x7.and(a4));
+        LongVector x9 = x8.lanewise(AND_NOT, a5);
+        LongVector x10 = x5.lanewise(XOR, x9.and(a3));
+        LongVector x11 = a1.and(a6);
+        LongVector x12 = x11.and(a4);
+        LongVector x13 = x12.lanewise(AND_NOT, a5).not();
+        LongVector x14 = x3.or(a4.not());
+        LongVector x15 = x14.lanewise(XOR, x11.lanewise(AND_NOT, a5));
+        LongVector x16 = x13.lanewise(XOR, x15.and(a3));
+        LongVector x17 = x10.lanewise(XOR, x16.and(a2));
+        LongVector x18 = x1.lanewise(XOR, x14.and(a5));
+        LongVector x19 = x12.not();
+        LongVector x20 = a1.not();
+        LongVector x21 = x20.lanewise(AND_NOT, a4);
+        LongVector x22 = x19.lanewise(XOR, x21.and(a5));
+        LongVector x23 = x18.lanewise(XOR, x22.and(a3));
+        LongVector x24 = a4.not();
+        LongVector x25 = x1.and(a4);
+        LongVector x26 = x24.lanewise(XOR, x25.and(a5));
+        LongVector x27 = a1.lanewise(AND_NOT, a6);
+        LongVector x28 = x12.lanewise(XOR, x27.lanewise(AND_NOT, a5));
+        LongVector x29 = x26.lanewise(XOR, x28.and(a3));
+        LongVector x30 = x23.lanewise(XOR, x29.lanewise(AND_NOT, a2));
+        LongVector x31 = x2.lanewise(XOR, x2.lanewise(XOR, x4).and(a5));
+        LongVector x32 = x27.or(a5);
+        LongVector x33 = x31.lanewise(XOR, x32.lanewise(AND_NOT, a3));
+        LongVector x34 = x27.not();
+        LongVector x35 = a6.lanewise(XOR, x34.and(a4));
+        LongVector x36 = a1.lanewise(XOR, x35.and(a5));
+        LongVector x37 = x11.not();
+        LongVector x38 = x20.lanewise(XOR, x37.and(a5));
+        LongVector x39 = x36.lanewise(XOR, x38.and(a3));
+        LongVector x40 = x33.lanewise(XOR, x39.and(a2));
+        LongVector x41 = x6.and(a4).not();
+        LongVector x42 = x27.lanewise(XOR, x41.and(a5));
+        LongVector x43 = x6.or(a4.not());
+        LongVector x44 = x43.lanewise(XOR, x43.lanewise(XOR, x20).and(a5));
+        LongVector x45 = x42.lanewise(XOR, x44.and(a3));
+        LongVector x46 = x14.or(a5);
+        LongVector x47 = x37.lanewise(XOR, x7.and(a4));
+        LongVector x48 = x46.lanewise(XOR, x47.lanewise(AND_NOT, a3));
+        LongVector x49 = x45.lanewise(XOR, x48.and(a2));
+        xor(out, o1, x17);
+        xor(out, o2, x30);
+        xor(out, o3, x40);
+        xor(out, o4, x49);
+    }
+
+    /**
+     * S-box 7 as a boolean circuit on vectors. The six inputs are read from
+     * consecutive vectors of the input array and the four outputs are XORed
+     * into the given vectors of the output array.
+     */
+    private static void s7(long[] in, int i, long[] out, int o1, int o2,
+            int o3, int o4) {
+        LongVector a1 = LongVector.fromArray(SPECIES, in, i);
+        LongVector a2 = LongVector.fromArray(SPECIES, in, i + V);
+        LongVector a3 = LongVector.fromArray(SPECIES, in, i + 2 * V);
+        LongVector a4 = LongVector.fromArray(SPECIES, in, i + 3 * V);
+        LongVector a5 = LongVector.fromArray(SPECIES, in, i + 4 * V);
+        LongVector a6 = LongVector.fromArray(SPECIES, in, i + 5 * V);
+        LongVector x1 = a4.lanewise(XOR, a2);
+        LongVector x2 = a5.or(a4.not());
+        LongVector x3 = x2.or(a2.not());
+        LongVector x4 = x1.lanewise(XOR, x3.and(a1));
+        LongVector x5 = a5.and(a4);
+        LongVector x6 = a5.lanewise(XOR, x5.lanewise(AND_NOT, a2));
+        LongVector x7 = a5.not();
+        LongVector x8 = x6.lanewise(XOR, x7.and(a1));
+        LongVector x9 = x4.lanewise(XOR, x8.lanewise(AND_NOT, a6));
+        LongVector x10 = a5.or(a2);
+        LongVector x11 = x10.or(a1.not());
+        LongVector x12 = x2.not();
+        LongVector x13 = x12.lanewise(XOR, a4.and(a2));
+        LongVector x14 = x13.or(a1);
+        LongVector x15 = x11.lanewise(XOR, x11.lanewise(XOR, x14).and(a6));
+        LongVector x16 = x9.lanewise(XOR, x15.and(a3));
+        LongVector x17 = x7.lanewise(XOR, a4.and(a2));
+        LongVector x18 = x2.lanewise(AND_NOT, a2);
+        LongVector x19 = x17.lanewise(XOR, x18.and(a1));
+        LongVector x20 = a5.lanewise(AND_NOT, a4);
+        LongVector x21 = x20.or(a1.not());
+        LongVector x22 = x19.lanewise(XOR, x21.lanewise(AND_NOT, a6));
+        LongVector x23 = a5.lanewise(AND_NOT, a2);
+        LongVector x24 = x23.or(a1.not());
+        LongVector x25 = a4.not();
+        LongVector x26 = x5.lanewise(XOR, x25.and(a2));
+        LongVector x27 = x26.or(a1);
+        LongVector x28 = x24.lanewise(XOR, x27.lanewise(AND_NOT, a6));
+        LongVector x29 = x22.lanewise(XOR, x28.and(a3));
+        LongVector x30 = a5.lanewise(XOR, a4);
+        LongVector x31 = x30.lanewise(XOR, a1.not());
+        LongVector x32 = x30.not();
+        LongVector x33 = x32.and(a2);
+        LongVector x34 = x3.lanewise(XOR, x33.and(a1));
+        LongVector x35 = x31.lanewise(XOR, x34.and(a6));
+        LongVector x36 = x2.lanewise(XOR, a2);
+        LongVector x37 = x36.not();
+        LongVector x38 = x37.and(a1);
+        LongVector x39 = x36.lanewise(XOR, x38.and(a6));
+        LongVector x40 = x35.lanewise(XOR, x39.lanewise(AND_NOT, a3));
+        LongVector x41 = x17.not();
+        LongVector x42 = x1.not();
+        LongVector x43 = x41.lanewise(XOR, x42.lanewise(AND_NOT, a1));
+        LongVector x44 = a4.or(a2.not());
+        LongVector x45 = x44.lanewise(XOR, x3.lanewise(AND_NOT, a1));
+        LongVector x46 = x43.lanewise(XOR, x45.and(a6));
+        LongVector x47 = x26.not();
+        LongVector x48 = a2.lanewise(XOR, a2.lanewise(XOR, x47).and(a1));
+        LongVector x49 = x5.lanewise(XOR, a2.and(a1));
+        LongVector x50 = x48.lanewise(XOR, x49.and(a6));
+        LongVector x51 = x46.lanewise(XOR, x50.and(a3));
+        xor(out, o1, x29);
+        xor(out, o2, x51);
+        xor(out, o3, x16);
+        xor(out, o4, x40);
+    }
+
+    /**
+     * S-box 8 as a boolean circuit on vectors. The six inputs are read from
+     * consecutive vectors of the input array and the four outputs are XORed
+     * into the given vectors of the output array.
+     */
+    private static void s8(long[] in, int i, long[] out, int o1, int o2,
+            int o3, int o4) {
+        LongVector a1 = LongVector.fromArray(SPECIES, in, i);
+        LongVector a2 = LongVector.fromArray(SPECIES, in, i + V);
+        LongVector a3 = LongVector.fromArray(SPECIES, in, i + 2 * V);
+        LongVector a4 = LongVector.fromArray(SPECIES, in, i + 3 * V);
+        LongVector a5 = LongVector.fromArray(SPECIES, in, i + 4 * V);
+        LongVector a6 = LongVector.fromArray(SPECIES, in, i + 5 * V);
+        LongVector x1 = a3.lanewise(AND_NOT, a5);
+        LongVector x2 = x1.lanewise(XOR, a4);
+        LongVector x3 = a3.lanewise(XOR, a5);
+        LongVector x4 = x2.lanewise(XOR, x3.lanewise(AND_NOT, a1));
+        LongVector x5 = x3.not();
+        LongVector x6 = a5.not();
+        LongVector x7 = x5.lanewise(XOR, x6.and(a4));
+        LongVector x8 = x7.or(a1);
+        LongVector x9 = x4.lanewise(XOR, x8.and(a2));
+        LongVector x10 = a3.or(a5.not());
+        LongVector x11 = x10.lanewise(XOR, a4);
+        LongVector x12 = x11.or(a1.not());
+        LongVector x13 = a3.and(a4);
+        LongVector x14 = x13.and(a1);
+        LongVector x15 = x12.lanewise(XOR, x14.lanewise(AND_NOT, a2));
+        LongVector x16 = x9.lanewise(XOR, x15.lanewise(AND_NOT, a6));
+        LongVector x17 = a3.or(a5);
+        LongVector x18 = x7.lanewise(XOR, x17.and(a1));
+        LongVector x19 = x3.lanewise(XOR, a4);
+        LongVector x20 = a5.or(a4);
+        LongVector x21 = x19.lanewise(XOR, x20.and(a1));
+        LongVector x22 = x18.lanewise(XOR, x18.lanewise(XOR, x21).and(a2));
+        LongVector x23 = x10.not();
+        LongVector x24 = x23.lanewise(XOR, x1.and(a4));
+        LongVector x25 = x24.lanewise(XOR, a1);
+        LongVector x26 = x13.not();
+        LongVector x27 = x3.lanewise(AND_NOT, a4);
+        LongVector x28 = x26.lanewise(XOR, x27.lanewise(AND_NOT, a1));
+        LongVector x29 = x25.lanewise(XOR, x28.lanewise(AND_NOT, a2));
+        LongVector x30 = x22.lanewise(XOR, x22.lanewise(XOR, x29).and(a6));
+        LongVector x31 = x10.lanewise(XOR, a5.lanewise(AND_NOT, a4));
+        LongVector x32 = x2.lanewise(XOR, x31.lanewise(AND_NOT, a1));
+        LongVector x33 = x20.lanewise(XOR, x13.lanewise(AND_NOT, a1));
+        LongVector x34 = x32.lanewise(XOR, x33.lanewise(AND_NOT, a2));
+        LongVector x35 = x22.not();
+        LongVector x36 = x34.lanewise(XOR, x34.lanewise(XOR, x35).and(a6));
+        LongVector x37 = x17.lanewise(XOR, a4);
+        LongVector x38 = a5.or(a4.not());
+        LongVector x39 = x37.lanewise(XOR, x38.lanewise(AND_NOT, a1));
+        LongVector x40 = x10.or(a1.not());
+        LongVector x41 = x39.lanewise(XOR, x40.lanewise(AND_NOT, a2));
+        LongVector x42 = x20.and(a1);
+        LongVector x43 = x5.lanewise(AND_NOT, a4);
+        LongVector x44 = x31.not();
+        LongVector x45 = x43.lanewise(XOR, x44.and(a1));
+        LongVector x46 = x42.lanewise(XOR, x45.and(a2));
+        LongVector x47 = x41.lanewise(XOR, x46.and(a6));
+        xor(out, o1, x36);
+        xor(out, o2, x16);
+        xor(out, o3, x47);
+        xor(out, o4, x30);
+    }
+
+}